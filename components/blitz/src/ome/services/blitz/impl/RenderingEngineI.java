@@ -5,6 +5,7 @@
 package ome.services.blitz.impl;
 
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -49,6 +50,7 @@ import omero.api.AMD_RenderingEngine_renderAsPackedInt;
 import omero.api.AMD_RenderingEngine_renderCompressed;
 import omero.api.AMD_RenderingEngine_renderProjectedAsPackedInt;
 import omero.api.AMD_RenderingEngine_renderProjectedCompressed;
+import omero.api.AMD_RenderingEngine_renderTiles;
 import omero.api.AMD_RenderingEngine_resetDefaultSettings;
 import omero.api.AMD_RenderingEngine_saveAsNewSettings;
 import omero.api.AMD_RenderingEngine_saveCurrentSettings;
@@ -103,6 +105,24 @@ public class RenderingEngineI extends AbstractPyramidServant implements
         super(service, be);
     }
     
+    /**
+     * Maps the list of compressed tiles returned by
+     * {@link RenderingEngine#renderTiles(java.util.List)} to a sequence of
+     * byte sequences.
+     */
+    private final static IceMapper.ReturnMapping TILES =
+            new IceMapper.ReturnMapping() {
+        public Object mapReturnValue(IceMapper mapper, Object value)
+                throws Ice.UserException {
+            if (value == null) {
+                return null;
+            }
+            @SuppressWarnings("unchecked")
+            final List<byte[]> tiles = (List<byte[]>) value;
+            return tiles.toArray(new byte[tiles.size()][]);
+        }
+    };
+
 	public void setServiceFactory(ServiceFactoryI sf) throws ServerError {
 		this.sf = sf;
 		this.roiService = sf.getRoiService(null);
@@ -354,6 +374,13 @@ public class RenderingEngineI extends AbstractPyramidServant implements
         callInvokerOnRawArgs(__cb, __current, def);
     }
 
+    public void renderTiles_async(
+            AMD_RenderingEngine_renderTiles __cb, List<PlaneDef> defs,
+            Current __current) throws ServerError {
+        IceMapper mapper = new IceMapper(TILES);
+        callInvokerOnMappedArgs(mapper, __cb, __current, defs);
+    }
+
     public void renderProjectedAsPackedInt_async(
             AMD_RenderingEngine_renderProjectedAsPackedInt __cb, 
             ProjectionType algorithm, int timepoint, int stepping, int start, 
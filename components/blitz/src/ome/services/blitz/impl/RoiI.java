@@ -6,18 +6,15 @@
 package ome.services.blitz.impl;
 
 import java.awt.Color;
-import java.awt.Point;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
-import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 import javax.imageio.ImageIO;
 
@@ -57,6 +54,7 @@ import omero.model.OriginalFileI;
 import omero.model.Roi;
 import omero.model.Shape;
 import omero.util.IceMapper;
+import omero.util.MaskRuns;
 
 import org.apache.commons.collections.MultiMap;
 import org.apache.commons.collections.map.MultiValueMap;
@@ -395,110 +393,27 @@ public class RoiI extends AbstractAmdServant implements _IRoiOperations,
         });
     }
 
-    class MaskClass
-    {
-    	Set<Point> points;
-    	int colour;
-    	Point min, max;
-    	int width;
-		int height;
-	 
-    	MaskClass(int value)
-    	{
-    		points = new HashSet<Point>();
-    		colour = value;
-    	}
-    	
-    	public Color getColour()
-    	{
-    		return new Color(colour);
-    	}
-    	
-    	
-    	public byte[] asBytes() throws IOException
-    	{
-    	   		
-    		byte[] data = new byte[(int) Math.ceil((double)width*(double)height/8.0)];
-    		int offset = 0;
-    		for(int y = min.y ; y < max.y + 1 ; y++)
-    		{
-    			for(int x = min.x ; x < max.x + 1 ; x++)
-    			{
-    				if(points.contains(new Point(x,y)))
-    					setBit(data, offset, 1);
-    				else
-    					setBit(data, offset, 0);
-    				offset++;
-    			}
-    		}
-    		return data;
-    	}
-    	
-    	public void add(Point p)
-    	{
-    		if(points.size()==0)
-    		{
-    			min = new Point(p);
-    			max = new Point(p);
-    		}
-    		else
-    		{
-    			min.x = Math.min(p.x, min.x);
-    			min.y = Math.min(p.y, min.y);
-    			max.x = Math.max(p.x, max.x);
-    			max.y = Math.max(p.y, max.y);
-    		}
-   			width = max.x-min.x+1;
-			height = max.y-min.y+1;
-    		points.add(p);
-    	}
-    	
-    	public ome.model.roi.Mask asMaskI(int z, int t) throws IOException
-    	{
-    		ome.model.roi.Mask mask = new ome.model.roi.Mask();
-    		mask.setX((double)min.x);
-    		mask.setY((double)min.y);
-    		mask.setWidth((double)width);
-    		mask.setHeight((double)height);
-    		mask.setLocked(true);
-    		mask.setTheT(t);
-    		mask.setTheZ(z);
-    		byte[] theseBytes;
-    		theseBytes = this.asBytes();
-    		mask.setBytes(theseBytes);
-    		return mask;
-    	}
-    	
-    	/** 
-    	 * Set the bit value in a byte array at position bit to be the value
-    	 * value.
-    	 * @param data See above.
-    	 * @param bit See above.
-    	 * @param val See above.
-    	 */
-    	private void setBit(byte[] data, int bit, int val) 
-    	{
-    		int bytePosition = bit/8;
-    		int bitPosition = 7-bit%8;
-    		data[bytePosition] = (byte) ((byte)(data[bytePosition]&
-    									(~(byte)(0x1<<bitPosition)))|
-    									(byte)(val<<bitPosition));
-    	}
-
-    	/** 
-    	 * Set the bit value in a byte array at position bit to be the value
-    	 * value.
-    	 * @param data See above.
-    	 * @param bit See above.
-    	 * @param val See above.
-    	 */
-    	private byte getBit(byte[] data, int bit) 
-    	{
-    		int bytePosition = bit/8;
-    		int bitPosition = 7-bit%8;
-    		return (byte) ((byte)(data[bytePosition] & (0x1<<bitPosition))!=0 ? (byte)1 : (byte)0);
-    	}
-
+    /** The maximum number of ROIs saved per call by {@link #uploadMask_async}. */
+    private static final int MASK_BATCH_SIZE = 500;
+
+    /**
+     * Creates a locked mask shape from a mask.
+     * @param mask the mask
+     * @param z the Z section of the mask
+     * @param t the timepoint of the mask
+     * @return the mask shape
+     */
+    private static ome.model.roi.Mask asMask(MaskRuns mask, int z, int t) {
+        ome.model.roi.Mask toSave = new ome.model.roi.Mask();
+        toSave.setX((double) mask.getX());
+        toSave.setY((double) mask.getY());
+        toSave.setWidth((double) mask.getWidth());
+        toSave.setHeight((double) mask.getHeight());
+        toSave.setLocked(true);
+        toSave.setTheT(t);
+        toSave.setTheZ(z);
+        toSave.setBytes(mask.asBytes());
+        return toSave;
     }
     
     @SuppressWarnings("unchecked")
@@ -538,35 +453,30 @@ public class RoiI extends AbstractAmdServant implements _IRoiOperations,
 				{
 					image = (ome.model.core.Image) o;
 					BufferedImage inputImage = ImageIO.read(s);
-					Map<Integer, MaskClass> map = new HashMap<Integer, MaskClass>();
-					MaskClass mask;
-					int value;
-					for (int x = 0; x < inputImage.getWidth(); x++)
-						for (int y = 0; y < inputImage.getHeight(); y++)
-						{
-							value = inputImage.getRGB(x, y);
-							if(value==Color.black.getRGB())
-								continue;
-							if (!map.containsKey(value))
-							{
-								mask = new MaskClass(value);
-								map.put(value, mask);
-							}
-							else
-								mask = map.get(value);
-							mask.add(new Point(x, y));
-						}
-					Iterator<Integer> maskIterator = map.keySet().iterator();
-					while (maskIterator.hasNext())
+					int sizeX = inputImage.getWidth();
+					int sizeY = inputImage.getHeight();
+					int[] plane = inputImage.getRGB(0, 0, sizeX, sizeY, null,
+							0, sizeX);
+					Map<Integer, MaskRuns> map = MaskRuns.fromPlane(plane,
+							sizeX, sizeY, Color.black.getRGB());
+					List<ome.model.roi.Roi> batch =
+							new ArrayList<ome.model.roi.Roi>();
+					for (MaskRuns mask : map.values())
 					{
-						int colour = maskIterator.next();
-						mask = map.get(colour);
 						roi = new ome.model.roi.Roi();
 						roi.setImage(image);
-						ome.model.roi.Mask  toSaveMask = mask.asMaskI(z, t);
-						roi.addShape(toSaveMask);
-						ome.model.roi.Roi newROI  = update.saveAndReturnObject(roi);
+						roi.addShape(asMask(mask, z, t));
+						batch.add(roi);
+						if (batch.size() == MASK_BATCH_SIZE)
+						{
+							update.saveAndReturnArray(batch.toArray(
+									new ome.model.roi.Roi[batch.size()]));
+							batch.clear();
+						}
 					}
+					if (!batch.isEmpty())
+						update.saveAndReturnArray(batch.toArray(
+								new ome.model.roi.Roi[batch.size()]));
 					return null;
 				} catch (Exception e)
 				{
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.services.throttling;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import ome.system.metrics.Counter;
+import ome.system.metrics.Histogram;
+import ome.system.metrics.Metrics;
+import ome.system.metrics.NullMetrics;
+import ome.system.metrics.Snapshot;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Records metrics for every servant call dispatched by a
+ * {@link ThrottlingStrategy}, per service and method, e.g.
+ * {@code RawPixelsStore.getPlane}: the number of calls, the number of calls
+ * in flight, a histogram of the latency in microseconds and a histogram of
+ * the size of the arguments. The size of an argument is the length of an
+ * array, string, collection or map and one for any other value.
+ * <p>
+ * The metrics are published via {@link Metrics} and so, by default, via JMX.
+ * They may also be read as plain text from a HTTP server listening only on
+ * the loopback interface, one line per method, so that they can be checked
+ * with {@code curl} on the server host without a metrics stack.
+ * </p>
+ *
+ * @since 5.4.10
+ */
+public class CallMetrics {
+
+    private final static Logger log = LoggerFactory.getLogger(CallMetrics.class);
+
+    /** The metrics of one method of a service. */
+    private static final class MethodMetrics {
+
+        final Counter calls;
+
+        final Counter inFlight;
+
+        final Histogram latency;
+
+        final Histogram argSize;
+
+        MethodMetrics(CallMetrics owner, Metrics metrics, String name) {
+            calls = metrics.counter(owner, name + ".calls");
+            inFlight = metrics.counter(owner, name + ".inFlight");
+            latency = metrics.histogram(owner, name + ".latency");
+            argSize = metrics.histogram(owner, name + ".argSize");
+        }
+    }
+
+    /**
+     * A call in progress, to be {@link #stop() stopped} when the call
+     * returns.
+     */
+    public static class Call {
+
+        private final MethodMetrics method;
+
+        private final long start;
+
+        private Call(MethodMetrics method) {
+            this.method = method;
+            this.start = System.nanoTime();
+        }
+
+        /**
+         * Records the completion of the call.
+         */
+        public void stop() {
+            if (method == null) {
+                return;
+            }
+            final long micros = TimeUnit.NANOSECONDS.toMicros(
+                    System.nanoTime() - start);
+            method.inFlight.dec();
+            method.latency.update((int) Math.min(micros, Integer.MAX_VALUE));
+        }
+    }
+
+    /** Returned when no metrics are recorded. */
+    private static final Call NO_CALL = new Call(null);
+
+    private final Metrics metrics;
+
+    private final boolean enabled;
+
+    private final ConcurrentMap<String, MethodMetrics> methods =
+            new ConcurrentHashMap<String, MethodMetrics>();
+
+    private final HttpServer server;
+
+    /**
+     * Creates an instance which records no metrics.
+     */
+    public CallMetrics() {
+        this(new NullMetrics(), false, 0);
+    }
+
+    /**
+     * @param metrics where to publish the call metrics
+     * @param enabled if the call metrics are to be recorded
+     * @param httpPort the loopback port on which to serve the call metrics
+     *        as text, or zero or less for none
+     */
+    public CallMetrics(Metrics metrics, boolean enabled, int httpPort) {
+        this.metrics = metrics;
+        this.enabled = enabled;
+        HttpServer server = null;
+        if (enabled && httpPort > 0) {
+            try {
+                server = HttpServer.create(new InetSocketAddress(
+                        InetAddress.getLoopbackAddress(), httpPort), 0);
+                server.createContext("/", new HttpHandler() {
+                    @Override
+                    public void handle(HttpExchange exchange)
+                            throws IOException {
+                        final byte[] body = report().getBytes(
+                                StandardCharsets.UTF_8);
+                        exchange.getResponseHeaders().set("Content-Type",
+                                "text/plain; charset=utf-8");
+                        exchange.sendResponseHeaders(200, body.length);
+                        final OutputStream out = exchange.getResponseBody();
+                        try {
+                            out.write(body);
+                        } finally {
+                            out.close();
+                        }
+                    }
+                });
+                server.start();
+                log.info("Serving call metrics on http://localhost:{}/",
+                        httpPort);
+            } catch (IOException ioe) {
+                log.warn("Failed to serve call metrics on port " + httpPort,
+                        ioe);
+                server = null;
+            }
+        }
+        this.server = server;
+    }
+
+    /**
+     * The name by which the metrics of a call are recorded: the service name
+     * taken from the servant identity, e.g. {@code RawPixelsStore} for
+     * {@code <uuid>omero.api.RawPixelsStore}, and the invoked method.
+     * @param current the call
+     * @return the name of the called method
+     */
+    static String methodName(Ice.Current current) {
+        final String name = current.id == null ? null : current.id.name;
+        final String service = name == null ? ""
+                : name.substring(name.lastIndexOf('.') + 1);
+        return service + "." + current.operation;
+    }
+
+    /**
+     * @param arg an argument of a call
+     * @return the size of the argument
+     */
+    static int argSize(Object arg) {
+        if (arg == null) {
+            return 0;
+        } else if (arg.getClass().isArray()) {
+            return Array.getLength(arg);
+        } else if (arg instanceof CharSequence) {
+            return ((CharSequence) arg).length();
+        } else if (arg instanceof Collection) {
+            return ((Collection<?>) arg).size();
+        } else if (arg instanceof Map) {
+            return ((Map<?, ?>) arg).size();
+        }
+        return 1;
+    }
+
+    /**
+     * Records the start of a call.
+     * @param current the call
+     * @param args the arguments of the call, may be {@code null}
+     * @return the call, to be stopped when it returns
+     */
+    public Call start(Ice.Current current, Object[] args) {
+        if (!enabled || current == null) {
+            return NO_CALL;
+        }
+        final String name = methodName(current);
+        MethodMetrics method = methods.get(name);
+        if (method == null) {
+            final MethodMetrics created = new MethodMetrics(this, metrics,
+                    name);
+            method = methods.putIfAbsent(name, created);
+            if (method == null) {
+                method = created;
+            }
+        }
+        int size = 0;
+        if (args != null) {
+            for (final Object arg : args) {
+                size += argSize(arg);
+            }
+        }
+        method.calls.inc();
+        method.inFlight.inc();
+        method.argSize.update(size);
+        return new Call(method);
+    }
+
+    /**
+     * Reports the recorded metrics, one line per method.
+     * @return the report
+     */
+    public String report() {
+        final StringBuilder sb = new StringBuilder();
+        for (final Map.Entry<String, MethodMetrics> entry :
+                new TreeMap<String, MethodMetrics>(methods).entrySet()) {
+            final MethodMetrics method = entry.getValue();
+            final Snapshot latency = method.latency.getSnapshot();
+            final Snapshot argSize = method.argSize.getSnapshot();
+            sb.append(entry.getKey());
+            sb.append(" calls=").append(method.calls.getCount());
+            sb.append(" in_flight=").append(method.inFlight.getCount());
+            sb.append(String.format(
+                    " latency_us_median=%.0f latency_us_p95=%.0f"
+                    + " latency_us_p99=%.0f latency_us_max=%d",
+                    latency.getMedian(), latency.get95thPercentile(),
+                    latency.get99thPercentile(), latency.getMax()));
+            sb.append(String.format(" arg_size_mean=%.1f arg_size_max=%d",
+                    argSize.getMean(), argSize.getMax()));
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Stops serving the call metrics.
+     */
+    public void destroy() {
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+}
@@ -0,0 +1,534 @@
+/*
+ * Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.services.throttling;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ome.api.ServiceInterface;
+import ome.security.basic.CurrentDetails;
+import ome.services.blitz.util.IceMethodInvoker;
+import ome.system.metrics.Counter;
+import ome.system.metrics.Metrics;
+import ome.system.metrics.Timer;
+import omero.TryAgain;
+import omero.util.IceMapper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import Ice.Current;
+
+/**
+ * Throttling implementation which admits the calls of the different sessions
+ * fairly. Calls are classified by service and method into
+ * {@link CallClass#IO I/O-heavy}, {@link CallClass#CPU CPU-heavy} and
+ * {@link CallClass#METADATA metadata} calls, each class being run on its own
+ * bounded set of worker threads so that the Ice dispatch thread is released
+ * as soon as the call is queued. Within a class the queued calls are kept per
+ * session and the sessions take turns, so one session issuing many calls,
+ * e.g. a script reading every plane of an image, cannot delay the calls of
+ * the other sessions by more than one call each. When a session or a class
+ * has too many calls queued, further calls are rejected with a
+ * {@link TryAgain} carrying the configured back-off.
+ * <p>
+ * The depth of the queue, the number of running and rejected calls and the
+ * time waited in the queue are published per class via {@link Metrics}.
+ * </p>
+ * <p>
+ * If not enabled, calls are run in the dispatch thread as by
+ * {@link InThreadThrottlingStrategy}.
+ * </p>
+ *
+ * @since 5.4.10
+ */
+public class FairShareThrottlingStrategy extends InThreadThrottlingStrategy {
+
+    private final static Logger log = LoggerFactory
+            .getLogger(FairShareThrottlingStrategy.class);
+
+    /**
+     * The classes of calls, each with its own concurrency limit.
+     */
+    public enum CallClass {
+        /** Calls mostly reading or writing files, e.g. pixel data. */
+        IO,
+        /** Calls mostly computing, e.g. rendering. */
+        CPU,
+        /** All other calls, mostly querying the database. */
+        METADATA;
+    }
+
+    private final boolean enabled;
+
+    /** Service names and service.method names of the I/O-heavy calls. */
+    private final Set<String> ioCalls;
+
+    /** Service names and service.method names of the CPU-heavy calls. */
+    private final Set<String> cpuCalls;
+
+    private final Map<CallClass, Lane> lanes =
+            new EnumMap<CallClass, Lane>(CallClass.class);
+
+    private volatile int maxQueuedPerSession = 100;
+
+    private volatile int maxQueued = 1000;
+
+    private volatile long backOff = 1000;
+
+    /**
+     * @param cd the current details to set up for each call
+     * @param metrics where to publish the queue metrics
+     * @param enabled if the calls are to be run on the worker threads,
+     *        otherwise they are run in the dispatch thread
+     * @param ioCalls comma-separated service names, e.g.
+     *        {@code RawPixelsStore}, or service and method names, e.g.
+     *        {@code ThumbnailStore.getThumbnailByLongestSide}, of the
+     *        I/O-heavy calls
+     * @param cpuCalls as {@code ioCalls}, for the CPU-heavy calls
+     * @param ioThreads the maximum number of I/O-heavy calls run at once
+     * @param cpuThreads the maximum number of CPU-heavy calls run at once
+     * @param metadataThreads the maximum number of other calls run at once
+     */
+    public FairShareThrottlingStrategy(CurrentDetails cd, Metrics metrics,
+            boolean enabled, String ioCalls, String cpuCalls, int ioThreads,
+            int cpuThreads, int metadataThreads) {
+        super(cd);
+        this.enabled = enabled;
+        this.ioCalls = parseCalls(ioCalls);
+        this.cpuCalls = parseCalls(cpuCalls);
+        lanes.put(CallClass.IO, new Lane(CallClass.IO, ioThreads, metrics));
+        lanes.put(CallClass.CPU, new Lane(CallClass.CPU, cpuThreads, metrics));
+        lanes.put(CallClass.METADATA, new Lane(CallClass.METADATA,
+                metadataThreads, metrics));
+        if (enabled) {
+            log.info("Fair-share throttling: {} I/O, {} CPU and {} metadata "
+                    + "threads", ioThreads, cpuThreads, metadataThreads);
+        }
+    }
+
+    /**
+     * @param maxQueuedPerSession the maximum number of calls of a session
+     *        queued in any one class before further calls are rejected
+     */
+    public void setMaxQueuedPerSession(int maxQueuedPerSession) {
+        this.maxQueuedPerSession = maxQueuedPerSession;
+    }
+
+    /**
+     * @param maxQueued the maximum number of calls queued in any one class
+     *        before further calls are rejected
+     */
+    public void setMaxQueued(int maxQueued) {
+        this.maxQueued = maxQueued;
+    }
+
+    /**
+     * @param backOff the back-off in milliseconds suggested to the clients
+     *        whose calls are rejected
+     */
+    public void setBackOff(long backOff) {
+        this.backOff = backOff;
+    }
+
+    private static Set<String> parseCalls(String calls) {
+        final Set<String> parsed = new HashSet<String>();
+        if (calls != null) {
+            for (String call : calls.split(",")) {
+                call = call.trim();
+                if (call.length() > 0) {
+                    parsed.add(call);
+                }
+            }
+        }
+        return Collections.unmodifiableSet(parsed);
+    }
+
+    /**
+     * Classifies a call by the service name taken from the servant identity,
+     * e.g. {@code RawPixelsStore} for {@code <uuid>omero.api.RawPixelsStore},
+     * and by the invoked method.
+     * @param current the call
+     * @return the class of the call
+     */
+    CallClass classify(Ice.Current current) {
+        if (current == null || current.id == null) {
+            return CallClass.METADATA;
+        }
+        final String name = current.id.name;
+        final String service = name == null ? ""
+                : name.substring(name.lastIndexOf('.') + 1);
+        final String method = service + "." + current.operation;
+        if (ioCalls.contains(method) || ioCalls.contains(service)) {
+            return CallClass.IO;
+        }
+        if (cpuCalls.contains(method) || cpuCalls.contains(service)) {
+            return CallClass.CPU;
+        }
+        return CallClass.METADATA;
+    }
+
+    /**
+     * The key by which the calls are queued: the session UUID which is the
+     * category of the servant identities, or the name of the session's
+     * own identity.
+     * @param current the call
+     * @return the key of the session making the call
+     */
+    static String sessionKey(Ice.Current current) {
+        if (current == null || current.id == null) {
+            return "";
+        }
+        final String category = current.id.category;
+        if (category == null || category.startsWith("session-")) {
+            return current.id.name;
+        }
+        return category;
+    }
+
+    /**
+     * @param callClass a class of calls
+     * @return the number of calls of the class queued but not yet running
+     */
+    public int getQueued(CallClass callClass) {
+        return lanes.get(callClass).getQueued();
+    }
+
+    /**
+     * @param callClass a class of calls
+     * @return the number of calls of the class running
+     */
+    public int getRunning(CallClass callClass) {
+        return lanes.get(callClass).getRunning();
+    }
+
+    @Override
+    public void callInvokerOnRawArgs(ServiceInterface service,
+            IceMethodInvoker invoker, Object __cb, Ice.Current __current,
+            Object... args) {
+        if (!enabled) {
+            super.callInvokerOnRawArgs(service, invoker, __cb, __current, args);
+            return;
+        }
+        IceMapper mapper = new IceMapper();
+        submit(__current, args, new Callback(service, invoker, mapper, __cb,
+                __current, args));
+    }
+
+    @Override
+    public void callInvokerWithMappedArgs(ServiceInterface service,
+            IceMethodInvoker invoker, IceMapper mapper, Object __cb,
+            Current __current, Object... args) {
+        if (!enabled) {
+            super.callInvokerWithMappedArgs(service, invoker, mapper, __cb,
+                    __current, args);
+            return;
+        }
+        submit(__current, args, new Callback(service, invoker, mapper,
+                __cb, __current, args));
+    }
+
+    @Override
+    public <R> void safeRunnableCall(Current __current, Object __cb,
+            boolean isVoid, Callable<R> callable) {
+        if (!enabled) {
+            super.safeRunnableCall(__current, __cb, isVoid, callable);
+            return;
+        }
+        submit(__current, null,
+                new Callback2<R>(__current, __cb, isVoid, callable));
+    }
+
+    @Override
+    public void runnableCall(Current __current, Task runnable) {
+        if (!enabled) {
+            super.runnableCall(__current, runnable);
+            return;
+        }
+        submit(__current, null, runnable);
+    }
+
+    /**
+     * Queues the given task in the lane of its class.
+     * @param current the call
+     * @param args the arguments of the call, may be {@code null}
+     * @param task the task running the call
+     */
+    void submit(Ice.Current current, Object[] args, Task task) {
+        lanes.get(classify(current)).submit(sessionKey(current),
+                new Job(current, args, task));
+    }
+
+    /**
+     * Stops the worker threads. The queued calls are cancelled.
+     */
+    public void destroy() {
+        for (final Lane lane : lanes.values()) {
+            lane.destroy();
+        }
+    }
+
+    /**
+     * A queued call.
+     */
+    private class Job {
+
+        final Ice.Current current;
+
+        final Object[] args;
+
+        final Task task;
+
+        Timer.Context waiting;
+
+        Job(Ice.Current current, Object[] args, Task task) {
+            this.current = current;
+            this.args = args;
+            this.task = task;
+        }
+
+        void run() {
+            setup(current);
+            /* the time waited in the queue is not counted */
+            CallMetrics.Call call = callMetrics.start(current, args);
+            try {
+                task.run(ctx);
+            } catch (Exception e) {
+                log.error("Exception during call", e);
+            } finally {
+                call.stop();
+                teardown();
+            }
+        }
+
+        void reject(Throwable t) {
+            try {
+                task.exception(t, ctx);
+            } catch (Exception e) {
+                log.error("Failed to reject call", e);
+            }
+        }
+    }
+
+    /**
+     * The queues and the workers of one class of calls.
+     */
+    private class Lane {
+
+        private final CallClass callClass;
+
+        private final int limit;
+
+        private final ThreadPoolExecutor workers;
+
+        /** The queued jobs, by session. */
+        private final Map<String, ArrayDeque<Job>> queues =
+                new HashMap<String, ArrayDeque<Job>>();
+
+        /** The sessions with queued jobs, in the order of their turns. */
+        private final ArrayDeque<String> turns = new ArrayDeque<String>();
+
+        private final Counter queuedCounter;
+
+        private final Counter runningCounter;
+
+        private final Counter rejectedCounter;
+
+        private final Timer waitTimer;
+
+        private int queued = 0;
+
+        private int running = 0;
+
+        private boolean destroyed = false;
+
+        Lane(final CallClass callClass, int limit, Metrics metrics) {
+            this.callClass = callClass;
+            this.limit = Math.max(1, limit);
+            final String prefix = callClass.name().toLowerCase();
+            this.queuedCounter = metrics.counter(
+                    FairShareThrottlingStrategy.this, prefix + ".queued");
+            this.runningCounter = metrics.counter(
+                    FairShareThrottlingStrategy.this, prefix + ".running");
+            this.rejectedCounter = metrics.counter(
+                    FairShareThrottlingStrategy.this, prefix + ".rejected");
+            this.waitTimer = metrics.timer(
+                    FairShareThrottlingStrategy.this, prefix + ".wait");
+            /* never more than the limit of jobs are handed to the workers */
+            this.workers = new ThreadPoolExecutor(this.limit, this.limit,
+                    60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            final Thread thread = new Thread(r, "FairShare-"
+                                    + prefix + "-" + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            this.workers.allowCoreThreadTimeOut(true);
+        }
+
+        synchronized int getQueued() {
+            return queued;
+        }
+
+        synchronized int getRunning() {
+            return running;
+        }
+
+        void submit(String session, Job job) {
+            String rejection = null;
+            boolean start = false;
+            synchronized (this) {
+                if (destroyed) {
+                    rejection = "shutting down";
+                } else if (running < limit && queued == 0) {
+                    running++;
+                    start = true;
+                } else {
+                    ArrayDeque<Job> queue = queues.get(session);
+                    if (queued >= maxQueued) {
+                        rejection = queued + " " + callClass + " calls queued";
+                    } else if (queue != null
+                            && queue.size() >= maxQueuedPerSession) {
+                        rejection = queue.size() + " " + callClass
+                                + " calls queued for the session";
+                    } else {
+                        if (queue == null) {
+                            queue = new ArrayDeque<Job>();
+                            queues.put(session, queue);
+                            turns.addLast(session);
+                        }
+                        queue.addLast(job);
+                        queued++;
+                        queuedCounter.inc();
+                        job.waiting = waitTimer.time();
+                    }
+                }
+            }
+            if (rejection != null) {
+                rejectedCounter.inc();
+                log.debug("Rejecting {} call {}: {}", callClass,
+                        job.current == null ? null : job.current.operation,
+                        rejection);
+                final TryAgain ta = new TryAgain();
+                ta.backOff = backOff;
+                ta.message = "Server busy: " + rejection;
+                job.reject(ta);
+            } else if (start) {
+                job.waiting = waitTimer.time();
+                execute(job);
+            }
+        }
+
+        /**
+         * Takes the next job from the session whose turn it is.
+         * @return the job or {@code null} if none are queued
+         */
+        private Job poll() {
+            final String session = turns.pollFirst();
+            if (session == null) {
+                return null;
+            }
+            final ArrayDeque<Job> queue = queues.get(session);
+            final Job job = queue.pollFirst();
+            if (queue.isEmpty()) {
+                queues.remove(session);
+            } else {
+                turns.addLast(session);
+            }
+            queued--;
+            queuedCounter.dec();
+            return job;
+        }
+
+        private void execute(final Job job) {
+            runningCounter.inc();
+            try {
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        job.waiting.stop();
+                        try {
+                            job.run();
+                        } finally {
+                            runningCounter.dec();
+                            completed();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException ree) {
+                runningCounter.dec();
+                synchronized (this) {
+                    running--;
+                }
+                job.reject(new Queue.CancelledException());
+            }
+        }
+
+        /**
+         * Hands the next queued job, if any, to the worker which has become
+         * free.
+         */
+        private void completed() {
+            final Job next;
+            synchronized (this) {
+                next = destroyed ? null : poll();
+                if (next == null) {
+                    running--;
+                }
+            }
+            if (next != null) {
+                execute(next);
+            }
+        }
+
+        void destroy() {
+            final List<Job> cancelled = new ArrayList<Job>();
+            synchronized (this) {
+                destroyed = true;
+                Job job;
+                while ((job = poll()) != null) {
+                    cancelled.add(job);
+                }
+            }
+            workers.shutdown();
+            for (final Job job : cancelled) {
+                job.reject(new Queue.CancelledException());
+            }
+        }
+    }
+}
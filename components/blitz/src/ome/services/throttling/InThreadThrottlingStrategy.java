@@ -30,10 +30,20 @@ public class InThreadThrottlingStrategy extends AbstractThrottlingStrategy {
 
     private final CurrentDetails cd;
 
+    protected CallMetrics callMetrics = new CallMetrics();
+
     public InThreadThrottlingStrategy(CurrentDetails cd) {
         this.cd = cd;
     }
 
+    /**
+     * @param callMetrics records the latency and the argument size of the
+     *        calls
+     */
+    public void setCallMetrics(CallMetrics callMetrics) {
+        this.callMetrics = callMetrics;
+    }
+
     void setup(Ice.Current current) {
         if (current != null) {
             cd.setContext(current.ctx);
@@ -49,12 +59,14 @@ public class InThreadThrottlingStrategy extends AbstractThrottlingStrategy {
             Object... args) {
 
         setup(__current);
+        CallMetrics.Call call = callMetrics.start(__current, args);
         try {
             IceMapper mapper = new IceMapper();
             Callback cb = new Callback(service, invoker, mapper, __cb,
                     __current, args);
             cb.run(ctx);
         } finally {
+            call.stop();
             teardown();
         }
     }
@@ -64,32 +76,38 @@ public class InThreadThrottlingStrategy extends AbstractThrottlingStrategy {
             Current __current, Object... args) {
 
         setup(__current);
+        CallMetrics.Call call = callMetrics.start(__current, args);
         try {
             Callback cb = new Callback(service, invoker, mapper, __cb,
                     __current, args);
             cb.run(ctx);
         } finally {
+            call.stop();
             teardown();
         }
     }
 
     public <R> void safeRunnableCall(Current __current, Object __cb, boolean isVoid, Callable<R> callable) {
         setup(__current);
+        CallMetrics.Call call = callMetrics.start(__current, null);
         try {
             Callback2<R> cb = new Callback2<R>(__current, __cb, isVoid, callable);
             cb.run(ctx);
         } finally {
+            call.stop();
             teardown();
         }
     }
 
     public void runnableCall(Current __current, Task runnable) {
         setup(__current);
+        CallMetrics.Call call = callMetrics.start(__current, null);
         try {
             runnable.run(ctx);
         } catch (Exception e) {
             log.error("Exception during runnableCall", e);
         } finally {
+            call.stop();
             teardown();
         }
     }
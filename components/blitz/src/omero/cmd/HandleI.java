@@ -127,8 +127,27 @@ public class HandleI implements _HandleOperations, IHandle,
 
     private/* final */IRequest req;
 
+    /**
+     * The request being run: {@link #req} unless it is run in parts, see
+     * {@link SplittableRequest}.
+     */
+    private volatile IRequest part;
+
+    /**
+     * The number of the part being run and the number of parts, for
+     * {@link #describeProgress()}.
+     */
+    private volatile int partNumber = 1, partCount = 1;
+
+    /**
+     * When the current step started, for {@link #describeProgress()}.
+     */
+    private volatile long stepStartTime;
+
     private/* final */Helper helper;
 
+    private RequestScheduler requestScheduler;
+
     //
     // INTIALIZATION
     //
@@ -157,9 +176,26 @@ public class HandleI implements _HandleOperations, IHandle,
         this.executor = sess.getExecutor();
     }
 
+    /**
+     * @param requestScheduler the scheduler which determines whether large
+     * requests are run in parts, may be {@code null}
+     */
+    public void setRequestScheduler(RequestScheduler requestScheduler) {
+        this.requestScheduler = requestScheduler;
+    }
+
+    /**
+     * @return the scheduler through which this handle is to be run,
+     * may be {@code null}
+     */
+    public RequestScheduler getRequestScheduler() {
+        return requestScheduler;
+    }
+
     public void initialize(Identity id, IRequest req, Map<String, String> ctx) {
         this.id = id;
         this.req = req;
+        this.part = req;
         this.callContext = ctx;
         this.helper = new Helper((Request)req, status, null, null, null);
     }
@@ -354,7 +390,6 @@ public class HandleI implements _HandleOperations, IHandle,
      *
      * NB: Executes only if at {@code CREATED} in the state diagram.
      */
-    @SuppressWarnings("unchecked")
     public void run() {
 
         // If we're not in the created state, then do nothing
@@ -364,33 +399,39 @@ public class HandleI implements _HandleOperations, IHandle,
         }
 
         StopWatch sw = new Slf4JStopWatch();
+        Response merged = null;
         try {
-            Map<String, String> merged = mergeContexts();
-            final List<Object> rv;
-            if (req instanceof ReadOnlyStatus.IsAware && ((ReadOnlyStatus.IsAware) req).isReadOnly(readOnly)) {
-                rv = (List<Object>) executor.execute(merged, principal,
-                        new RunSteps(this, "run (ro)", Ice.Util.identityToString(id), req) {
-                    @Transactional(readOnly = true)
-                    public List<Object> doWork(Session session, ServiceFactory sf) {
-                        return innerWork(session, sf);
-                    }
-                });
+            List<IRequest> parts = null;
+            final int chunkSize = requestScheduler == null ? 0 : requestScheduler.getChunkSize();
+            if (req instanceof SplittableRequest) {
+                parts = split((SplittableRequest) req, chunkSize);
+            }
+            if (parts == null) {
+                runPart(req);
             } else {
-                rv = (List<Object>) executor.execute(merged, principal,
-                        new RunSteps(this, "run (rw)", Ice.Util.identityToString(id), req) {
-                    @Transactional(readOnly = false)
-                    public List<Object> doWork(Session session, ServiceFactory sf) {
-                        return innerWork(session, sf);
+                // Each part commits in its own transaction.
+                helper.info("running in %s parts", parts.size());
+                partCount = parts.size();
+                final List<Response> responses = new ArrayList<Response>(parts.size());
+                for (final IRequest nextPart : parts) {
+                    partNumber = responses.size() + 1;
+                    if (status.parameters == null) {
+                        status.parameters = new HashMap<String, String>();
                     }
-                });
-            }
-
-            // Post-process
-            for (int step = 0; step < status.steps; step++) {
-                Object obj = rv.get(step);
-                req.buildResponse(step, obj);
+                    status.parameters.put("part", partNumber + "/" + partCount);
+                    runPart(nextPart);
+                    final Response response = nextPart.getResponse();
+                    if (response == null || response instanceof ERR) {
+                        return;
+                    }
+                    responses.add(response);
+                    if (responses.size() < partCount) {
+                        // Permit cancellation between the parts.
+                        state.compareAndSet(State.FINISHED, State.READY);
+                    }
+                }
+                merged = ((SplittableRequest) req).mergeResponses(responses);
             }
-
         } catch (Cancel cancel) {
             helper.debug("Request cancelled by %s", cancel.getCause());
             // If this is a cancel, then fail or similar has already
@@ -402,16 +443,69 @@ public class HandleI implements _HandleOperations, IHandle,
             // getResponse will be called regardless of return/exception state
             // and therefore any cleanup can happen there as soon as the response
             // is non-null.
-            rsp.set(req.getResponse());
+            rsp.set(merged == null ? part.getResponse() : merged);
             sw.stop("omero.request.tx");
             notifyCallbacks();
         }
     }
 
+    /**
+     * Runs the given request, either the whole of {@link #req} or a part of it,
+     * in one transaction.
+     * @param runPart the request to run
+     */
+    @SuppressWarnings("unchecked")
+    private void runPart(IRequest runPart) {
+        part = runPart;
+        Map<String, String> merged = mergeContexts();
+        final List<Object> rv;
+        if (runPart instanceof ReadOnlyStatus.IsAware && ((ReadOnlyStatus.IsAware) runPart).isReadOnly(readOnly)) {
+            rv = (List<Object>) executor.execute(merged, principal,
+                    new RunSteps(this, "run (ro)", Ice.Util.identityToString(id), runPart) {
+                @Transactional(readOnly = true)
+                public List<Object> doWork(Session session, ServiceFactory sf) {
+                    return innerWork(session, sf);
+                }
+            });
+        } else {
+            rv = (List<Object>) executor.execute(merged, principal,
+                    new RunSteps(this, "run (rw)", Ice.Util.identityToString(id), runPart) {
+                @Transactional(readOnly = false)
+                public List<Object> doWork(Session session, ServiceFactory sf) {
+                    return innerWork(session, sf);
+                }
+            });
+        }
+
+        // Post-process
+        for (int step = 0; step < status.steps; step++) {
+            Object obj = rv.get(step);
+            runPart.buildResponse(step, obj);
+        }
+    }
+
+    /**
+     * Split the request into parts within a read-only transaction.
+     * @param splittable the request
+     * @param chunkSize the maximum number of target objects for each part
+     * @return the parts or {@code null} if the request is to be run whole
+     */
+    @SuppressWarnings("unchecked")
+    private List<IRequest> split(final SplittableRequest splittable, final int chunkSize) {
+        part = splittable;
+        return (List<IRequest>) executor.execute(mergeContexts(), principal,
+                new Executor.SimpleWork(this, "split", Ice.Util.identityToString(id)) {
+            @Transactional(readOnly = true)
+            public List<IRequest> doWork(Session session, ServiceFactory sf) {
+                return splittable.split(chunkSize, session);
+            }
+        });
+    }
+
     private Map<String, String> mergeContexts() {
 
         final Map<String, String> merged = new HashMap<String, String>();
-        final Map<String, String> reqCctx = req.getCallContext();
+        final Map<String, String> reqCctx = part.getCallContext();
 
         if (callContext != null) {
             helper.debug("User callContext: %s", callContext);
@@ -434,12 +528,18 @@ public class HandleI implements _HandleOperations, IHandle,
             List<Object> rv = new ArrayList<Object>();
             StopWatch swEach = null;
             // Now that we're in the transaction, replace the helper.
+            final IRequest req = part;
             helper = new Helper((Request)req, status, sql, session, sf);
             req.init(helper);
+            currentStep.set(0);
+            status.stepStartTimes = new long[status.steps];
+            status.stepStopTimes = new long[status.steps];
 
             int j = 0;
             while (j < status.steps) {
                 swEach = new Slf4JStopWatch();
+                stepStartTime = swEach.getStartTime();
+                status.stepStartTimes[j] = stepStartTime;
                 try {
                     if (!state.compareAndSet(State.READY, State.RUNNING)) {
                         throw helper.cancel(new ERR(), null, "not-ready");
@@ -452,6 +552,7 @@ public class HandleI implements _HandleOperations, IHandle,
                     throw helper.cancel(new ERR(), t, "bad-step", "step", ""+j);
                 } finally {
                     swEach.stop("omero.request.step." + j);
+                    status.stepStopTimes[j] = System.currentTimeMillis();
                     // If cancel was thrown, then this value will be overwritten
                     // by the try/catch handler
                     state.compareAndSet(State.RUNNING, State.READY);
@@ -492,6 +593,33 @@ public class HandleI implements _HandleOperations, IHandle,
 
     }
 
+    /**
+     * Describes how far the request has progressed, for {@link RequestScheduler#getRunningRequests()}.
+     * @return the current step and how long it has taken so far
+     */
+    public String describeProgress() {
+        final State s = state.get();
+        if (s == State.CREATED || stepStartTime == 0) {
+            return s.toString();
+        }
+        final StringBuilder sb = new StringBuilder();
+        sb.append(s);
+        if (partCount > 1) {
+            sb.append(" part ");
+            sb.append(partNumber);
+            sb.append('/');
+            sb.append(partCount);
+        }
+        sb.append(" step ");
+        sb.append(status.currentStep + 1);
+        sb.append('/');
+        sb.append(status.steps);
+        sb.append(" for ");
+        sb.append(System.currentTimeMillis() - stepStartTime);
+        sb.append("ms");
+        return sb.toString();
+    }
+
     /**
      * Base class for the workers of {@link HandleI#run()} that run the steps of a request.
      * Perhaps could be refactored away in Java 8.
@@ -71,6 +71,8 @@ public class Helper {
 
     private boolean stepsSet = false;
 
+    private boolean isSubrequest = false;
+
     private transient boolean isGuest = true;
 
     private transient boolean preventGuest = true;
@@ -104,7 +106,18 @@ public class Helper {
      * @return the new helper
      */
     public Helper subhelper(Request req, Status substatus) {
-        return new Helper(req, substatus, sql, session, sf);
+        final Helper subhelper = new Helper(req, substatus, sql, session, sf);
+        subhelper.isSubrequest = true;
+        return subhelper;
+    }
+
+    /**
+     * @return if this helper was created by {@link #subhelper(Request, Status)},
+     * i.e. the request runs as part of a larger one which may already have
+     * made changes in the current transaction
+     */
+    public boolean isSubrequest() {
+        return isSubrequest;
     }
 
     private void requireStepsSet() {
@@ -15,11 +15,13 @@ import org.springframework.context.ApplicationContextAware;
 
 import ome.io.nio.PixelsService;
 import ome.io.nio.ThumbnailService;
+import ome.logic.RenderingSettingsImpl;
 import ome.security.ACLVoter;
 import ome.security.SecuritySystem;
 import ome.security.auth.PasswordProvider;
 import ome.security.auth.PasswordUtil;
 import ome.services.mail.MailUtil;
+import ome.services.util.FileSizeCache;
 import ome.system.OmeroContext;
 import ome.system.Roles;
 import ome.tools.hibernate.ExtendedMetadata;
@@ -30,6 +32,7 @@ import omero.cmd.basic.TimingI;
 import omero.cmd.fs.FindPyramidsI;
 import omero.cmd.fs.ManageImageBinariesI;
 import omero.cmd.fs.OriginalMetadataRequestI;
+import omero.cmd.fs.UpdateRenderingSettingsI;
 import omero.cmd.fs.UsedFilesRequestI;
 import omero.cmd.graphs.Chgrp2I;
 import omero.cmd.graphs.ChildOptionI;
@@ -78,6 +81,8 @@ public class RequestObjectFactoryRegistry extends
 
     private/* final */OmeroContext ctx;
 
+    private FileSizeCache fileSizeCache;
+
     public RequestObjectFactoryRegistry(ExtendedMetadata em,
             ACLVoter voter,
             Roles roles,
@@ -101,6 +106,13 @@ public class RequestObjectFactoryRegistry extends
         this.graphRequestFactory = graphRequestFactory;
     }
 
+    /**
+     * @param fileSizeCache the cache of the sizes of files in the binary repository, for disk usage requests
+     */
+    public void setFileSizeCache(FileSizeCache fileSizeCache) {
+        this.fileSizeCache = fileSizeCache;
+    }
+
     public void setApplicationContext(ApplicationContext ctx)
             throws BeansException {
         this.ctx = (OmeroContext) ctx;
@@ -207,6 +219,15 @@ public class RequestObjectFactoryRegistry extends
                         return new FindPyramidsI(pixelsService);
                     }
                 });
+        factories.put(UpdateRenderingSettingsI.ice_staticId(),
+                new ObjectFactory(UpdateRenderingSettingsI.ice_staticId()) {
+                    @Override
+                    public Ice.Object create(String name) {
+                        return new UpdateRenderingSettingsI(ctx.getBean(
+                                "internal-ome.api.IRenderingSettings",
+                                RenderingSettingsImpl.class));
+                    }
+                });
         factories.put(DiskUsageI.ice_staticId(),
                 new ObjectFactory(DiskUsageI.ice_staticId()) {
                     @Override
@@ -221,6 +242,9 @@ public class RequestObjectFactoryRegistry extends
                         final DiskUsage2I request = graphRequestFactory.getRequest(DiskUsage2I.class);
                         request.setPixelsService(pixelsService);
                         request.setThumbnailService(thumbnailService);
+                        if (fileSizeCache != null) {
+                            request.setFileSizeCache(fileSizeCache);
+                        }
                         return request;
                     }
                 });
@@ -0,0 +1,438 @@
+/*
+ * Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package omero.cmd;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+
+import ome.services.util.Executor;
+import omero.grid.ImportRequest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Schedules the requests submitted to sessions onto the {@link Executor}.
+ * Requests are assigned to a {@link Lane} by their type and each lane may be
+ * configured to run at most a given number of requests at once, so that long
+ * graph operations cannot occupy all the workers and database connections. Within a lane the
+ * queued requests are started in order of their estimated size, smallest
+ * first, so small interactive requests need not wait behind large ones; a
+ * request queued for longer than the configured maximum wait is started
+ * before any that have waited less, so large requests are not starved.
+ * <p>
+ * The queued and running requests are described by
+ * {@link #getQueuedRequests()} and {@link #getRunningRequests()}, which are
+ * exported via JMX.
+ * </p>
+ * @since 5.4.10
+ */
+public class RequestScheduler {
+
+    private static final Logger log = LoggerFactory.getLogger(RequestScheduler.class);
+
+    /**
+     * The lanes into which requests are divided.
+     */
+    public enum Lane {
+        /** Requests modifying model object graphs, e.g. {@link Delete2}, {@link Chgrp2}. */
+        GRAPH,
+        /** Requests querying model object graphs, e.g. {@link DiskUsage2}, {@link FindParents}. */
+        QUERY,
+        /** Import requests. */
+        IMPORT,
+        /** All other requests. */
+        OTHER;
+    }
+
+    /**
+     * The relative cost of targeting a model object of the given class by its simple name,
+     * for estimating the size of a request's graph. Unlisted classes cost {@code 1}.
+     */
+    private static final Map<String, Long> TARGET_WEIGHTS = ImmutableMap.<String, Long>builder()
+            .put("Experimenter", 100000L)
+            .put("ExperimenterGroup", 100000L)
+            .put("Screen", 10000L)
+            .put("Plate", 1000L)
+            .put("Project", 1000L)
+            .put("Dataset", 100L)
+            .put("Fileset", 10L)
+            .put("Image", 10L)
+            .build();
+
+    /**
+     * A submitted request.
+     */
+    private static class Entry {
+
+        final HandleI handle;
+        final IRequest request;
+        final Lane lane;
+        final long estimate;
+        final long sequence;
+        final Executor executor;
+        final Executor.Priority priority;
+        final Map<String, String> callContext;
+        final long queuedAt = System.currentTimeMillis();
+        long startedAt;
+
+        Entry(HandleI handle, IRequest request, Lane lane, long estimate, long sequence, Executor executor,
+                Executor.Priority priority, Map<String, String> callContext) {
+            this.handle = handle;
+            this.request = request;
+            this.lane = lane;
+            this.estimate = estimate;
+            this.sequence = sequence;
+            this.executor = executor;
+            this.priority = priority;
+            this.callContext = callContext;
+        }
+
+        @Override
+        public String toString() {
+            final long now = System.currentTimeMillis();
+            final StringBuilder sb = new StringBuilder();
+            sb.append(lane);
+            sb.append(' ');
+            sb.append(request.getClass().getSimpleName());
+            sb.append(" estimate=");
+            sb.append(estimate);
+            sb.append(" queued=");
+            sb.append((startedAt == 0 ? now : startedAt) - queuedAt);
+            sb.append("ms");
+            if (startedAt != 0) {
+                sb.append(" running=");
+                sb.append(now - startedAt);
+                sb.append("ms ");
+                sb.append(handle.describeProgress());
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * The queued and running requests of one lane.
+     */
+    private static class LaneState {
+
+        final int limit;
+        final List<Entry> queued = new ArrayList<Entry>();
+        final Set<Entry> running = new LinkedHashSet<Entry>();
+
+        LaneState(int limit) {
+            this.limit = limit > 0 ? limit : Integer.MAX_VALUE;
+        }
+    }
+
+    private final Map<Lane, LaneState> lanes = new EnumMap<Lane, LaneState>(Lane.class);
+
+    private long sequence = 0;
+
+    private volatile int chunkSize = 0;
+
+    private volatile long maxWait = 600000;
+
+    /**
+     * Construct a new request scheduler.
+     * A maximum that is not positive means that the lane's requests are all run as soon as they are submitted.
+     * @param graphRequests the maximum number of {@link Lane#GRAPH} requests to run at once
+     * @param queryRequests the maximum number of {@link Lane#QUERY} requests to run at once
+     * @param importRequests the maximum number of {@link Lane#IMPORT} requests to run at once
+     * @param otherRequests the maximum number of {@link Lane#OTHER} requests to run at once
+     */
+    public RequestScheduler(int graphRequests, int queryRequests, int importRequests, int otherRequests) {
+        lanes.put(Lane.GRAPH, new LaneState(graphRequests));
+        lanes.put(Lane.QUERY, new LaneState(queryRequests));
+        lanes.put(Lane.IMPORT, new LaneState(importRequests));
+        lanes.put(Lane.OTHER, new LaneState(otherRequests));
+        log.info("Request lanes: graph=#{}, query=#{}, import=#{}, other=#{}",
+                graphRequests, queryRequests, importRequests, otherRequests);
+    }
+
+    /**
+     * @param chunkSize the maximum number of target objects for which a {@link SplittableRequest} is run in one
+     * transaction, {@code 0} to leave the size of the parts to the request
+     */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @return the maximum number of target objects for which a {@link SplittableRequest} is run in one transaction,
+     * {@code 0} if the size of the parts is left to the request
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @param maxWait the time in milliseconds after which a queued request is started before those that have waited less,
+     * regardless of their estimated sizes
+     */
+    public void setMaxWait(long maxWait) {
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * Determine the lane of a request.
+     * @param request a request
+     * @return the lane for the request
+     */
+    public static Lane getLane(IRequest request) {
+        if (request instanceof GraphModify2) {
+            return Lane.GRAPH;
+        } else if (request instanceof GraphQuery || request instanceof DiskUsage) {
+            return Lane.QUERY;
+        } else if (request instanceof ImportRequest) {
+            return Lane.IMPORT;
+        } else if (request instanceof DoAll) {
+            final List<Request> subrequests = ((DoAll) request).requests;
+            Lane lane = Lane.OTHER;
+            if (subrequests != null) {
+                for (final Request subrequest : subrequests) {
+                    if (subrequest instanceof IRequest) {
+                        final Lane sublane = getLane((IRequest) subrequest);
+                        if (sublane.ordinal() < lane.ordinal()) {
+                            lane = sublane;
+                        }
+                    }
+                }
+            }
+            return lane;
+        }
+        return Lane.OTHER;
+    }
+
+    /**
+     * Estimate the size of the model object graph that a request will process. Targeted users, groups and containers
+     * are assumed to have many objects below them.
+     * @param request a request
+     * @return the estimated size of the request, at least {@code 1}
+     */
+    public static long getEstimate(IRequest request) {
+        long estimate = 0;
+        if (request instanceof GraphQuery) {
+            estimate += getEstimate(((GraphQuery) request).targetObjects);
+            if (request instanceof Chown2) {
+                final List<Long> targetUsers = ((Chown2) request).targetUsers;
+                if (targetUsers != null) {
+                    estimate += targetUsers.size() * TARGET_WEIGHTS.get("Experimenter");
+                }
+            }
+        } else if (request instanceof DiskUsage) {
+            estimate += getEstimate(((DiskUsage) request).objects);
+        } else if (request instanceof DoAll) {
+            final List<Request> subrequests = ((DoAll) request).requests;
+            if (subrequests != null) {
+                for (final Request subrequest : subrequests) {
+                    if (subrequest instanceof IRequest) {
+                        estimate += getEstimate((IRequest) subrequest);
+                    }
+                }
+            }
+        }
+        return Math.max(1, estimate);
+    }
+
+    private static long getEstimate(Map<String, List<Long>> targetObjects) {
+        long estimate = 0;
+        if (targetObjects != null) {
+            for (final Map.Entry<String, List<Long>> classTargets : targetObjects.entrySet()) {
+                final String className = classTargets.getKey();
+                final Long weight = TARGET_WEIGHTS.get(className.substring(className.lastIndexOf('.') + 1));
+                if (classTargets.getValue() != null) {
+                    estimate += classTargets.getValue().size() * (weight == null ? 1 : weight);
+                }
+            }
+        }
+        return estimate;
+    }
+
+    /**
+     * Queue a request to be run by the given executor once its lane has room for it.
+     * @param handle the handle which will run the request
+     * @param request the request
+     * @param executor the executor of the session to which the request was submitted
+     * @param priority the priority with which to submit the handle to the executor, may be {@code null}
+     * @param callContext the call context with which to submit the handle to the executor, may be {@code null}
+     */
+    public void submit(HandleI handle, IRequest request, Executor executor, Executor.Priority priority,
+            Map<String, String> callContext) {
+        final Lane lane = getLane(request);
+        final long estimate = getEstimate(request);
+        final LaneState state = lanes.get(lane);
+        final Entry entry;
+        synchronized (this) {
+            entry = new Entry(handle, request, lane, estimate, sequence++, executor, priority, callContext);
+            if (state.running.size() >= state.limit) {
+                state.queued.add(entry);
+                log.debug("Queued: {}", entry);
+                return;
+            }
+            start(state, entry);
+        }
+        execute(entry);
+    }
+
+    /**
+     * Mark a request as running, must be called while synchronized.
+     * @param state the lane of the request
+     * @param entry the request
+     */
+    private void start(LaneState state, Entry entry) {
+        entry.startedAt = System.currentTimeMillis();
+        state.running.add(entry);
+    }
+
+    /**
+     * Take the next request to start from the lane, must be called while synchronized.
+     * @param state a lane
+     * @return the request to start, or {@code null} if none are queued
+     */
+    private Entry poll(LaneState state) {
+        final long now = System.currentTimeMillis();
+        Entry next = null;
+        for (final Entry entry : state.queued) {
+            if (next == null || isBefore(entry, next, now)) {
+                next = entry;
+            }
+        }
+        if (next != null) {
+            state.queued.remove(next);
+        }
+        return next;
+    }
+
+    /**
+     * @param entry a queued request
+     * @param other another queued request
+     * @param now the current time
+     * @return if the request is to be started before the other one
+     */
+    private boolean isBefore(Entry entry, Entry other, long now) {
+        final boolean overdue = now - entry.queuedAt > maxWait;
+        final boolean otherOverdue = now - other.queuedAt > maxWait;
+        if (overdue != otherOverdue) {
+            return overdue;
+        }
+        if (!overdue && entry.estimate != other.estimate) {
+            return entry.estimate < other.estimate;
+        }
+        return entry.sequence < other.sequence;
+    }
+
+    private void execute(final Entry entry) {
+        final Runnable run = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    entry.handle.run();
+                } finally {
+                    completed(entry);
+                }
+            }
+        };
+        try {
+            entry.executor.submit(entry.priority, entry.callContext, Executors.callable(run));
+        } catch (Throwable t) {
+            log.error("Failed to submit {}", entry, t);
+            try {
+                entry.handle.cancel(null);
+            } catch (Throwable t2) {
+                log.warn("Failed to cancel {}", entry, t2);
+            }
+            completed(entry);
+        }
+    }
+
+    private void completed(Entry entry) {
+        final LaneState state = lanes.get(entry.lane);
+        final Entry next;
+        synchronized (this) {
+            if (!state.running.remove(entry)) {
+                return;
+            }
+            next = poll(state);
+            if (next != null) {
+                start(state, next);
+            }
+        }
+        log.debug("Completed: {}", entry);
+        if (next != null) {
+            execute(next);
+        }
+    }
+
+    /**
+     * @return the number of queued requests in each lane
+     */
+    public synchronized Map<String, Integer> getQueuedCounts() {
+        final Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (final Map.Entry<Lane, LaneState> lane : lanes.entrySet()) {
+            counts.put(lane.getKey().name(), lane.getValue().queued.size());
+        }
+        return counts;
+    }
+
+    /**
+     * @return the number of running requests in each lane
+     */
+    public synchronized Map<String, Integer> getRunningCounts() {
+        final Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (final Map.Entry<Lane, LaneState> lane : lanes.entrySet()) {
+            counts.put(lane.getKey().name(), lane.getValue().running.size());
+        }
+        return counts;
+    }
+
+    /**
+     * @return descriptions of the queued requests with their estimated sizes and how long they have waited
+     */
+    public synchronized String[] getQueuedRequests() {
+        final List<String> descriptions = new ArrayList<String>();
+        for (final LaneState state : lanes.values()) {
+            for (final Entry entry : state.queued) {
+                descriptions.add(entry.toString());
+            }
+        }
+        return descriptions.toArray(new String[descriptions.size()]);
+    }
+
+    /**
+     * @return descriptions of the running requests with how long they have run and their current steps
+     */
+    public synchronized String[] getRunningRequests() {
+        final List<String> descriptions = new ArrayList<String>();
+        for (final LaneState state : lanes.values()) {
+            for (final Entry entry : state.running) {
+                descriptions.add(entry.toString());
+            }
+        }
+        return descriptions.toArray(new String[descriptions.size()]);
+    }
+}
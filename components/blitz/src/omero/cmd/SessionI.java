@@ -205,7 +205,13 @@ public class SessionI implements _SessionOperations {
             // Init
             try {
                 handle.initialize(id, (IRequest) req, current.ctx);
-                executor.submit(priority, current.ctx, Executors.callable(handle));
+                final RequestScheduler scheduler = handle instanceof HandleI ?
+                        ((HandleI) handle).getRequestScheduler() : null;
+                if (scheduler == null) {
+                    executor.submit(priority, current.ctx, Executors.callable(handle));
+                } else {
+                    scheduler.submit((HandleI) handle, (IRequest) req, executor, priority, current.ctx);
+                }
                 __cb.ice_response(prx);
             } catch (Throwable e) {
                 log.error("Exception on startup; removing handle " + id, e);
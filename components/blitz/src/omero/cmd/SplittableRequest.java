@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package omero.cmd;
+
+import java.util.List;
+
+import org.hibernate.Session;
+
+/**
+ * A request that may be run as a sequence of smaller requests, each in its own
+ * transaction, so that a very large operation does not hold a database
+ * connection and its locks until it is wholly done. Only requests whose result
+ * does not depend on being run in one transaction should implement this.
+ * Changes committed by the earlier parts are not rolled back if a later part
+ * fails or the request is cancelled.
+ * @since 5.4.10
+ */
+public interface SplittableRequest extends IRequest {
+
+    /**
+     * Split this request into parts each targeting at most the given number
+     * of model objects, unless target objects that must be processed together
+     * are more. Must be called before {@link #init(Helper)}.
+     * @param maxTargets the maximum number of target objects for each part,
+     * {@code 0} if the server sets no maximum
+     * @param session a session in a read-only transaction with which to find
+     * the target objects that must be processed together
+     * @return the uninitialized parts to run in order, or {@code null} if this
+     * request is to be run whole
+     */
+    List<IRequest> split(int maxTargets, Session session);
+
+    /**
+     * Combine the responses of the parts into the response to this request.
+     * @param responses the responses of the parts, in order, none being an {@link ERR}
+     * @return the response to this request
+     */
+    Response mergeResponses(List<Response> responses);
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package omero.cmd.fs;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.Iterables;
+
+import ome.api.IRenderingSettings;
+import ome.logic.RenderingSettingsImpl;
+import ome.model.core.Pixels;
+import ome.parameters.Parameters;
+import ome.services.util.ReadOnlyStatus;
+import ome.util.SqlAction;
+import omero.cmd.ERR;
+import omero.cmd.HandleI.Cancel;
+import omero.cmd.Helper;
+import omero.cmd.IRequest;
+import omero.cmd.Response;
+import omero.cmd.SplittableRequest;
+import omero.cmd.UpdateRenderingSettings;
+import omero.cmd.UpdateRenderingSettingsResponse;
+
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resets or copies the rendering settings of the images contained in a set
+ * of objects, one batch of images at a time. The request is
+ * {@link SplittableRequest split} into one part per batch, each committed in
+ * its own transaction, so that clients can follow the progress of large sets
+ * on the handle and the batches already handled stay updated if a later one
+ * fails or the request is cancelled. When resetting the defaults, the minimum
+ * and maximum of the images without statistics are computed by a read-only
+ * part before the part updating the settings of the batch, so that the
+ * pixel data are not read while a write transaction is open. If a batch
+ * fails then its changes are rolled back, its images are reported as failed
+ * and the next batches are still handled.
+ *
+ * @since 5.4.10
+ */
+public class UpdateRenderingSettingsI extends UpdateRenderingSettings
+        implements IRequest, ReadOnlyStatus.IsAware, SplittableRequest {
+
+    private static final long serialVersionUID = -1L;
+
+    private static final Logger LOGGER =
+            LoggerFactory.getLogger(UpdateRenderingSettingsI.class);
+
+    private static final String SAVEPOINT = "update_rendering_settings";
+
+    /** The number of images handled per step if none is requested. */
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    private static final String SELECT =
+            "select distinct p.id, i.id from Pixels p join p.image i ";
+
+    /** The query finding the pixels and image IDs by target type. */
+    private static final Map<String, String> QUERIES =
+            new HashMap<String, String>();
+
+    static {
+        QUERIES.put("Project", SELECT +
+                "join i.datasetLinks dl join dl.parent d " +
+                "join d.projectLinks pl " +
+                "where pl.parent.id in (:ids)");
+        QUERIES.put("Dataset", SELECT +
+                "join i.datasetLinks dl where dl.parent.id in (:ids)");
+        QUERIES.put("Screen", SELECT +
+                "join i.wellSamples ws join ws.well w join w.plate pt " +
+                "join pt.screenLinks sl " +
+                "where sl.parent.id in (:ids)");
+        QUERIES.put("Plate", SELECT +
+                "join i.wellSamples ws where ws.well.plate.id in (:ids)");
+        QUERIES.put("PlateAcquisition", SELECT +
+                "join i.wellSamples ws where ws.plateAcquisition.id in (:ids)");
+        QUERIES.put("Image", SELECT + "where i.id in (:ids)");
+        QUERIES.put("Pixels", SELECT + "where p.id in (:ids)");
+    }
+
+    private final UpdateRenderingSettingsResponse rsp =
+            new UpdateRenderingSettingsResponse();
+
+    /** The image ID by pixels ID, in image order. */
+    private final Map<Long, Long> images = new LinkedHashMap<Long, Long>();
+
+    /** The pixels IDs of each batch. */
+    private final List<List<Long>> batches = new ArrayList<List<Long>>();
+
+    private final RenderingSettingsImpl settingsService;
+
+    /**
+     * The minimum and maximum by channel index by pixels set ID, shared
+     * between the parts handling the same batch, or {@code null} if not
+     * computed beforehand.
+     */
+    private Map<Long, Map<Integer, double[]>> minMax;
+
+    /** If this part only computes {@link #minMax}. */
+    private boolean computeMinMax;
+
+    private Helper helper;
+
+    private IRenderingSettings service;
+
+    /**
+     * Constructs a new request.
+     * @param settingsService the rendering settings service for computing
+     * the minimum and maximum of the pixel data before the settings are
+     * reset
+     */
+    public UpdateRenderingSettingsI(RenderingSettingsImpl settingsService) {
+        this.settingsService = settingsService;
+    }
+
+    @Override
+    public Map<String, String> getCallContext() {
+        return null;
+    }
+
+    /**
+     * @return if the action and the target type of this request are known
+     */
+    private boolean isValid() {
+        return ("resetDefaults".equals(action) || "resetMinMax".equals(action)
+                || "applySettings".equals(action))
+                && QUERIES.containsKey(targetType);
+    }
+
+    @Override
+    public List<IRequest> split(int maxTargets, Session session) {
+        if (!isValid() || targetIds == null || targetIds.isEmpty()) {
+            return null;
+        }
+        int size = batchSize > 0 ? batchSize : DEFAULT_BATCH_SIZE;
+        if (maxTargets > 0) {
+            size = Math.min(size, maxTargets);
+        }
+        final Query query =
+                session.createQuery(QUERIES.get(targetType) + " order by i.id");
+        query.setParameterList("ids", targetIds);
+        final Set<Long> pixelsIds = new LinkedHashSet<Long>();
+        for (final Object row : query.list()) {
+            pixelsIds.add((Long) ((Object[]) row)[0]);
+        }
+        final boolean resetDefaults = "resetDefaults".equals(action);
+        if (pixelsIds.size() <= size && !resetDefaults) {
+            return null;
+        }
+        final List<IRequest> parts = new ArrayList<IRequest>();
+        for (final List<Long> batch :
+                Iterables.partition(pixelsIds, size)) {
+            Map<Long, Map<Integer, double[]>> batchMinMax = null;
+            if (resetDefaults) {
+                batchMinMax = new HashMap<Long, Map<Integer, double[]>>();
+                parts.add(getPart(batch, batchMinMax, true));
+            }
+            parts.add(getPart(batch, batchMinMax, false));
+        }
+        return parts;
+    }
+
+    /**
+     * Constructs a request like this one but targeting only some pixels sets.
+     * @param pixelsIds the IDs of the pixels sets
+     * @param minMax the minimum and maximum of the pixels sets
+     * @param computeMinMax if the part only computes the minimum and maximum
+     * @return the new request
+     */
+    private UpdateRenderingSettingsI getPart(List<Long> pixelsIds,
+            Map<Long, Map<Integer, double[]>> minMax, boolean computeMinMax) {
+        final UpdateRenderingSettingsI part =
+                new UpdateRenderingSettingsI(settingsService);
+        part.action = action;
+        part.targetType = "Pixels";
+        part.targetIds = new ArrayList<Long>(pixelsIds);
+        part.fromPixelsId = fromPixelsId;
+        part.batchSize = pixelsIds.size();
+        part.minMax = minMax;
+        part.computeMinMax = computeMinMax;
+        return part;
+    }
+
+    @Override
+    public Response mergeResponses(List<Response> responses) {
+        final UpdateRenderingSettingsResponse merged =
+                new UpdateRenderingSettingsResponse();
+        merged.updatedImageIds = new ArrayList<Long>();
+        merged.failedImageIds = new ArrayList<Long>();
+        for (final Response response : responses) {
+            final UpdateRenderingSettingsResponse partRsp =
+                    (UpdateRenderingSettingsResponse) response;
+            merged.updatedImageIds.addAll(partRsp.updatedImageIds);
+            merged.failedImageIds.addAll(partRsp.failedImageIds);
+        }
+        return merged;
+    }
+
+    @Override
+    public boolean isReadOnly(ReadOnlyStatus readOnly) {
+        return computeMinMax;
+    }
+
+    @Override
+    public void init(Helper helper) throws Cancel {
+        this.helper = helper;
+        if (!"resetDefaults".equals(action) && !"resetMinMax".equals(action)
+                && !"applySettings".equals(action)) {
+            throw helper.cancel(new ERR(), null, "bad-action",
+                    "action", String.valueOf(action));
+        }
+        final String query = QUERIES.get(targetType);
+        if (query == null) {
+            throw helper.cancel(new ERR(), null, "bad-target-type",
+                    "targetType", String.valueOf(targetType));
+        }
+        service = helper.getServiceFactory().getRenderingSettingsService();
+        rsp.updatedImageIds = new ArrayList<Long>();
+        rsp.failedImageIds = new ArrayList<Long>();
+        if (targetIds != null && !targetIds.isEmpty()) {
+            final List<Object[]> rows = helper.getServiceFactory()
+                    .getQueryService().projection(query + " order by i.id",
+                            new Parameters().addIds(targetIds));
+            for (final Object[] row : rows) {
+                images.put((Long) row[0], (Long) row[1]);
+            }
+        }
+        final int size = computeMinMax ? images.size()
+                : batchSize > 0 ? batchSize : DEFAULT_BATCH_SIZE;
+        final List<Long> pixelsIds = new ArrayList<Long>(images.keySet());
+        for (int i = 0; i < pixelsIds.size(); i += size) {
+            batches.add(pixelsIds.subList(i,
+                    Math.min(i + size, pixelsIds.size())));
+        }
+        helper.setSteps(Math.max(1, batches.size()));
+    }
+
+    @Override
+    public Object step(int step) throws Cancel {
+        helper.assertStep(step);
+        if (batches.isEmpty()) {
+            return null;
+        }
+        final Set<Long> pixelsIds = new HashSet<Long>(batches.get(step));
+        if (computeMinMax) {
+            try {
+                minMax.putAll(settingsService.computeMinMaxInSet(pixelsIds));
+            } catch (RuntimeException e) {
+                /* the part updating the settings computes them instead */
+                LOGGER.warn("failed to compute the minimum and maximum of "
+                        + pixelsIds.size() + " images", e);
+            }
+            return null;
+        }
+        final Set<Long> updated = new HashSet<Long>();
+        /* a failed batch is reported and the next parts still run */
+        final SqlAction sql = helper.getSql();
+        sql.createSavepoint(SAVEPOINT);
+        try {
+            if ("resetDefaults".equals(action) && minMax != null) {
+                updated.addAll(settingsService.resetDefaultsInSet(
+                        Pixels.class, pixelsIds, minMax));
+            } else if ("resetDefaults".equals(action)) {
+                updated.addAll(service.resetDefaultsInSet(Pixels.class,
+                        pixelsIds));
+            } else if ("resetMinMax".equals(action)) {
+                /* returns pixels IDs */
+                for (final Long id : service.resetMinMaxInSet(Pixels.class,
+                        pixelsIds)) {
+                    updated.add(images.get(id));
+                }
+            } else {
+                final Map<Boolean, List<Long>> result =
+                        service.applySettingsToSet(fromPixelsId, Pixels.class,
+                                pixelsIds);
+                updated.addAll(result.get(Boolean.TRUE));
+            }
+            helper.getSession().flush();
+            sql.releaseSavepoint(SAVEPOINT);
+        } catch (RuntimeException e) {
+            LOGGER.warn("failed to update the rendering settings of batch "
+                    + step + " of " + batches.size(), e);
+            sql.rollbackSavepoint(SAVEPOINT);
+            helper.getSession().clear();
+            updated.clear();
+        }
+        for (final Long pixelsId : batches.get(step)) {
+            final Long imageId = images.get(pixelsId);
+            if (updated.contains(imageId)) {
+                rsp.updatedImageIds.add(imageId);
+            } else {
+                rsp.failedImageIds.add(imageId);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void finish() throws Cancel {
+        // no-op
+    }
+
+    @Override
+    public void buildResponse(int step, Object object) {
+        helper.assertResponse(step);
+        if (helper.isLast(step)) {
+            helper.setResponseIfNull(rsp);
+        }
+    }
+
+    @Override
+    public Response getResponse() {
+        return helper.getResponse();
+    }
+}
@@ -21,12 +21,17 @@ package omero.cmd.graphs;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
+import org.hibernate.Query;
+import org.hibernate.Session;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.context.ApplicationContext;
@@ -34,12 +39,16 @@ import org.springframework.context.ApplicationContext;
 import com.google.common.base.Function;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.SetMultimap;
 
 import ome.model.IObject;
+import ome.model.core.Image;
+import ome.model.fs.Fileset;
 import ome.security.ACLVoter;
 import ome.security.basic.LightAdminPrivileges;
 import ome.services.delete.Deletion;
+import ome.services.delete.files.FileDeleter;
 import ome.services.graphs.GraphException;
 import ome.services.graphs.GraphPathBean;
 import ome.services.graphs.GraphPolicy;
@@ -54,13 +63,16 @@ import omero.cmd.ERR;
 import omero.cmd.Helper;
 import omero.cmd.IRequest;
 import omero.cmd.Response;
+import omero.cmd.SplittableRequest;
+import omero.cmd.Status;
 
 /**
  * Request to delete model objects.
  * @author m.t.b.carroll@dundee.ac.uk
  * @since 5.1.0
  */
-public class Delete2I extends Delete2 implements IRequest, ReadOnlyStatus.IsAware, WrappableRequest<Delete2> {
+public class Delete2I extends Delete2 implements IRequest, ReadOnlyStatus.IsAware, SplittableRequest,
+        WrappableRequest<Delete2> {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(Delete2I.class);
 
@@ -197,7 +209,17 @@ public class Delete2I extends Delete2 implements IRequest, ReadOnlyStatus.IsAwar
             final SetMultimap<String, Long> result = (SetMultimap<String, Long>) object;
             if (!dryRun) {
                 try {
-                    deletionInstance.deleteFiles(GraphUtil.trimPackageNames(result));
+                    final FileDeleter files = deletionInstance.deleteFiles(GraphUtil.trimPackageNames(result));
+                    final Map<String, String> throughput = files.getThroughput();
+                    if (!throughput.isEmpty()) {
+                        final Status status = helper.getStatus();
+                        if (status.parameters == null) {
+                            status.parameters = new HashMap<String, String>();
+                        }
+                        for (final Map.Entry<String, String> typeThroughput : throughput.entrySet()) {
+                            status.parameters.put("file-delete-" + typeThroughput.getKey(), typeThroughput.getValue());
+                        }
+                    }
                 } catch (Exception e) {
                     helper.cancel(new ERR(), e, "file-delete-fail");
                 }
@@ -256,6 +278,135 @@ public class Delete2I extends Delete2 implements IRequest, ReadOnlyStatus.IsAwar
         return dryRun;
     }
 
+    /**
+     * Splits a request that targets only images and filesets. The images of a fileset may be deleted only together
+     * so the targets are grouped by fileset and each group is kept within one part. The images reached from other
+     * targets, such as containers, cannot be grouped without traversing the model graph so such requests are not split.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<IRequest> split(int maxTargets, Session session) {
+        if (dryRun || maxTargets < 1 || targetObjects == null || graphPolicyAdjusters == null ||
+                !graphPolicyAdjusters.isEmpty()) {
+            return null;
+        }
+        int targetCount = 0;
+        for (final List<Long> ids : targetObjects.values()) {
+            targetCount += ids.size();
+        }
+        if (targetCount <= maxTargets) {
+            return null;
+        }
+        final Set<Long> imageIds = new LinkedHashSet<Long>();
+        final Set<Long> filesetIds = new LinkedHashSet<Long>();
+        for (final Map.Entry<String, List<Long>> classTargets : targetObjects.entrySet()) {
+            final String className = classTargets.getKey().substring(classTargets.getKey().lastIndexOf('.') + 1);
+            if ("Image".equals(className)) {
+                imageIds.addAll(classTargets.getValue());
+            } else if ("Fileset".equals(className)) {
+                filesetIds.addAll(classTargets.getValue());
+            } else {
+                return null;
+            }
+        }
+        /* group the targets by fileset, each image without a fileset being a group of its own */
+        final Map<Long, Map<String, List<Long>>> filesetGroups = new LinkedHashMap<Long, Map<String, List<Long>>>();
+        final List<Map<String, List<Long>>> groups = new ArrayList<Map<String, List<Long>>>();
+        for (final Long filesetId : filesetIds) {
+            final Map<String, List<Long>> group = new LinkedHashMap<String, List<Long>>();
+            group.put(Fileset.class.getName(), new ArrayList<Long>(Collections.singletonList(filesetId)));
+            filesetGroups.put(filesetId, group);
+            groups.add(group);
+        }
+        final Map<Long, Long> filesetOfImage = new HashMap<Long, Long>();
+        for (final List<Long> imageIdBatch : Iterables.partition(imageIds, 1000)) {
+            final Query query = session.createQuery(
+                    "SELECT id, fileset.id FROM Image WHERE fileset IS NOT NULL AND id IN (:ids)");
+            query.setParameterList("ids", imageIdBatch);
+            for (final Object[] result : (List<Object[]>) query.list()) {
+                filesetOfImage.put((Long) result[0], (Long) result[1]);
+            }
+        }
+        for (final Long imageId : imageIds) {
+            final Long filesetId = filesetOfImage.get(imageId);
+            Map<String, List<Long>> group = filesetId == null ? null : filesetGroups.get(filesetId);
+            if (group == null) {
+                group = new LinkedHashMap<String, List<Long>>();
+                groups.add(group);
+                if (filesetId != null) {
+                    filesetGroups.put(filesetId, group);
+                }
+            }
+            List<Long> ids = group.get(Image.class.getName());
+            if (ids == null) {
+                ids = new ArrayList<Long>();
+                group.put(Image.class.getName(), ids);
+            }
+            ids.add(imageId);
+        }
+        /* fill each part with whole groups */
+        final GraphRequestFactory graphRequestFactory = applicationContext.getBean(GraphRequestFactory.class);
+        final List<IRequest> parts = new ArrayList<IRequest>();
+        Map<String, List<Long>> partTargets = new LinkedHashMap<String, List<Long>>();
+        int partTargetCount = 0;
+        for (final Map<String, List<Long>> group : groups) {
+            int groupTargetCount = 0;
+            for (final List<Long> ids : group.values()) {
+                groupTargetCount += ids.size();
+            }
+            if (partTargetCount > 0 && partTargetCount + groupTargetCount > maxTargets) {
+                parts.add(getPart(graphRequestFactory, partTargets));
+                partTargets = new LinkedHashMap<String, List<Long>>();
+                partTargetCount = 0;
+            }
+            for (final Map.Entry<String, List<Long>> classTargets : group.entrySet()) {
+                List<Long> ids = partTargets.get(classTargets.getKey());
+                if (ids == null) {
+                    ids = new ArrayList<Long>();
+                    partTargets.put(classTargets.getKey(), ids);
+                }
+                ids.addAll(classTargets.getValue());
+            }
+            partTargetCount += groupTargetCount;
+        }
+        if (partTargetCount > 0) {
+            parts.add(getPart(graphRequestFactory, partTargets));
+        }
+        return parts.size() > 1 ? parts : null;
+    }
+
+    /**
+     * Construct a request like this one but targeting only some of its target objects.
+     * @param graphRequestFactory the factory for the new request
+     * @param partTargets the target objects of the new request
+     * @return the new request
+     */
+    private Delete2I getPart(GraphRequestFactory graphRequestFactory, Map<String, List<Long>> partTargets) {
+        final Delete2I part = graphRequestFactory.getRequest(Delete2I.class);
+        copyFieldsTo(part);
+        part.targetObjects = partTargets;
+        if (typesToIgnore != null) {
+            part.typesToIgnore = new ArrayList<String>(typesToIgnore);
+        }
+        return part;
+    }
+
+    @Override
+    public Response mergeResponses(List<Response> responses) {
+        final Map<String, List<Long>> deletedObjects = new HashMap<String, List<Long>>();
+        for (final Response response : responses) {
+            for (final Map.Entry<String, List<Long>> deleted : ((Delete2Response) response).deletedObjects.entrySet()) {
+                List<Long> ids = deletedObjects.get(deleted.getKey());
+                if (ids == null) {
+                    ids = new ArrayList<Long>();
+                    deletedObjects.put(deleted.getKey(), ids);
+                }
+                ids.addAll(deleted.getValue());
+            }
+        }
+        return new Delete2Response(deletedObjects);
+    }
+
     /**
      * A <q>delete</q> processor that deletes model objects.
      * @author m.t.b.carroll@dundee.ac.uk
@@ -19,7 +19,6 @@
 
 package omero.cmd.graphs;
 
-import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -48,6 +47,7 @@ import ome.services.graphs.GraphException;
 import ome.services.graphs.GraphPathBean;
 import ome.services.graphs.GraphPolicy;
 import ome.services.graphs.GraphTraversal;
+import ome.services.util.FileSizeCache;
 import ome.services.util.ReadOnlyStatus;
 import ome.system.Login;
 import ome.system.Roles;
@@ -82,6 +82,7 @@ public class DiskUsage2I extends DiskUsage2 implements IRequest, ReadOnlyStatus.
     private final GraphPolicy graphPolicy;
     private PixelsService pixelsService;
     private ThumbnailService thumbnailService;
+    private FileSizeCache fileSizeCache = new FileSizeCache();
 
     private Helper helper;
     private GraphHelper graphHelper;
@@ -130,6 +131,14 @@ public class DiskUsage2I extends DiskUsage2 implements IRequest, ReadOnlyStatus.
         this.thumbnailService = thumbnailService;
     }
 
+    /**
+     * Provided by {@link omero.cmd.RequestObjectFactoryRegistry}.
+     * @param fileSizeCache the cache of the sizes of files in the binary repository
+     */
+    public void setFileSizeCache(FileSizeCache fileSizeCache) {
+        this.fileSizeCache = fileSizeCache;
+    }
+
     /* CMD REQUEST FRAMEWORK */
 
     @Override
@@ -152,6 +161,7 @@ public class DiskUsage2I extends DiskUsage2 implements IRequest, ReadOnlyStatus.
 
         graphTraversal = new GraphTraversal(helper.getSession(), helper.getEventContext(), aclVoter, graphPathBean, null,
                 graphPolicy, new InternalProcessor());
+        graphTraversal.setParallelLinkLoading(!helper.isSubrequest());
     }
 
     @Override
@@ -381,16 +391,6 @@ public class DiskUsage2I extends DiskUsage2 implements IRequest, ReadOnlyStatus.
         }
     }
 
-    /**
-     * Get the size of the file at the given path, or {@code 0} if it does not exist.
-     * @param path a file path
-     * @return the file's size, or {@code 0} if the file does not exist
-     */
-    private static long getFileSize(String path) {
-        final File file = new File(path);
-        return file.exists() ? file.length() : 0;
-    }
-
     /**
      * A processor that notes disk usage and how to attribute it.
      * @author m.t.b.carroll@dundee.ac.uk
@@ -422,28 +422,46 @@ public class DiskUsage2I extends DiskUsage2 implements IRequest, ReadOnlyStatus.
             if ("Pixels".equals(className)) {
                 /* Pixels may have /OMERO/Pixels/<id> files */
                 final String hql = "SELECT id, details.owner.id, details.group.id FROM Pixels WHERE id IN (:ids)";
-                for (final Object[] resultRow : queryService.projection(hql, parameters)) {
+                final List<Object[]> resultRows = queryService.projection(hql, parameters);
+                final List<String> paths = new ArrayList<String>(3 * resultRows.size());
+                for (final Object[] resultRow : resultRows) {
+                    if (resultRow != null) {
+                        final String pixelsPath = pixelsService.getPixelsPath((Long) resultRow[0]);
+                        paths.add(pixelsPath);
+                        paths.add(pixelsPath + PixelsService.PYRAMID_SUFFIX);
+                        paths.add(pixelsPath + PixelsService.PYRAMID_SUFFIX + BfPyramidPixelBuffer.PYR_LOCK_EXT);
+                    }
+                }
+                final Map<String, Long> sizes = fileSizeCache.getSizes(paths);
+                for (final Object[] resultRow : resultRows) {
                     if (resultRow != null) {
                         final Long pixelsId = (Long) resultRow[0];
                         final Long ownerId = (Long) resultRow[1];
                         final Long groupId = (Long) resultRow[2];
                         final String pixelsPath = pixelsService.getPixelsPath(pixelsId);
-                        usage.bumpTotals().add(ownerId, groupId, className, getFileSize(pixelsPath));
-                        usage.bumpTotals().add(ownerId, groupId, className, getFileSize(pixelsPath + PixelsService.PYRAMID_SUFFIX));
-                        usage.bumpTotals().add(ownerId, groupId, className, getFileSize(pixelsPath + PixelsService.PYRAMID_SUFFIX +
+                        usage.bumpTotals().add(ownerId, groupId, className, sizes.get(pixelsPath));
+                        usage.bumpTotals().add(ownerId, groupId, className, sizes.get(pixelsPath + PixelsService.PYRAMID_SUFFIX));
+                        usage.bumpTotals().add(ownerId, groupId, className, sizes.get(pixelsPath + PixelsService.PYRAMID_SUFFIX +
                                 BfPyramidPixelBuffer.PYR_LOCK_EXT));
                     }
                 }
             } else if ("Thumbnail".equals(className)) {
-                /* Thumbnails may have /OMERO/Thumbnails/<id> files */
+                /* Thumbnails may be in /OMERO/Thumbnails as files or packed */
                 final String hql = "SELECT id, details.owner.id, details.group.id FROM Thumbnail WHERE id IN (:ids)";
-                for (final Object[] resultRow : queryService.projection(hql, parameters)) {
+                final List<Object[]> resultRows = queryService.projection(hql, parameters);
+                final List<Long> thumbnailIds = new ArrayList<Long>(resultRows.size());
+                for (final Object[] resultRow : resultRows) {
+                    if (resultRow != null) {
+                        thumbnailIds.add((Long) resultRow[0]);
+                    }
+                }
+                final Map<Long, Long> sizes = thumbnailService.getThumbnailLengths(thumbnailIds);
+                for (final Object[] resultRow : resultRows) {
                     if (resultRow != null) {
                         final Long thumbnailId = (Long) resultRow[0];
                         final Long ownerId = (Long) resultRow[1];
                         final Long groupId = (Long) resultRow[2];
-                        final String thumbnailPath = thumbnailService.getThumbnailPath(thumbnailId);
-                        usage.bumpTotals().add(ownerId, groupId, className, getFileSize(thumbnailPath));
+                        usage.bumpTotals().add(ownerId, groupId, className, sizes.get(thumbnailId));
                     }
                 }
             } else if ("OriginalFile".equals(className)) {
@@ -551,15 +551,22 @@ public class DiskUsageI extends DiskUsage implements IRequest, ReadOnlyStatus.Is
                     }
                 }
             } else if ("Thumbnail".equals(className)) {
-                /* Thumbnails may have /OMERO/Thumbnails/<id> files */
+                /* Thumbnails may be in /OMERO/Thumbnails as files or packed */
                 final String hql = "SELECT id, details.owner.id, details.group.id FROM Thumbnail WHERE id IN (:ids)";
-                for (final Object[] resultRow : queryService.projection(hql, parameters)) {
+                final List<Object[]> resultRows = queryService.projection(hql, parameters);
+                final List<Long> thumbnailIds = new ArrayList<Long>(resultRows.size());
+                for (final Object[] resultRow : resultRows) {
+                    if (resultRow != null) {
+                        thumbnailIds.add((Long) resultRow[0]);
+                    }
+                }
+                final Map<Long, Long> sizes = thumbnailService.getThumbnailLengths(thumbnailIds);
+                for (final Object[] resultRow : resultRows) {
                     if (resultRow != null) {
                         final Long thumbnailId = (Long) resultRow[0];
                         final Long ownerId = (Long) resultRow[1];
                         final Long groupId = (Long) resultRow[2];
-                        final String thumbnailPath = thumbnailService.getThumbnailPath(thumbnailId);
-                        usage.bumpTotals().add(ownerId, groupId, className, getFileSize(thumbnailPath));
+                        usage.bumpTotals().add(ownerId, groupId, className, sizes.get(thumbnailId));
                     }
                 }
             } else if ("OriginalFile".equals(className)) {
@@ -133,8 +133,11 @@ public class GraphHelper {
             processor = GraphUtil.disableProcessor(processor);
         }
 
-        return new GraphTraversal(helper.getSession(), helper.getEventContext(), aclVoter, graphPathBean, unnullable, graphPolicy,
-                processor);
+        final GraphTraversal graphTraversal = new GraphTraversal(helper.getSession(), helper.getEventContext(), aclVoter,
+                graphPathBean, unnullable, graphPolicy, processor);
+        /* separate sessions would not see changes made by earlier requests in the same transaction */
+        graphTraversal.setParallelLinkLoading(!helper.isSubrequest());
+        return graphTraversal;
     }
 
     /**
@@ -1,6 +1,6 @@
 /*
  *------------------------------------------------------------------------------
- *  Copyright (C) 2015-2017 University of Dundee. All rights reserved.
+ *  Copyright (C) 2015-2018 University of Dundee. All rights reserved.
  *
  *
  *  This program is free software; you can redistribute it and/or modify
@@ -21,6 +21,7 @@
 package omero.gateway.facility;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -36,6 +37,8 @@ import org.apache.commons.lang.StringUtils;
 import omero.api.IContainerPrx;
 import omero.api.IQueryPrx;
 import omero.api.IScriptPrx;
+import omero.RLong;
+import omero.RType;
 import omero.gateway.Gateway;
 import omero.gateway.SecurityContext;
 import omero.gateway.exception.DSAccessException;
@@ -151,6 +154,187 @@ public class BrowseFacility extends Facility {
         return Collections.emptySet();
     }
 
+    /**
+     * Iterates over the hierarchy trees rooted by the nodes of the given
+     * type, loading the trees one page of root nodes at a time (see
+     * {@link PagedIterator}). The trees are returned in ascending order of
+     * root id. Unlike {@link #getHierarchy(SecurityContext, Class, long)}
+     * the orphaned objects are not included.
+     *
+     * @param ctx
+     *            The security context.
+     * @param rootType
+     *            The type of node to handle.
+     * @param userId
+     *            The user's to retrieve the data to handle, <code>-1</code>
+     *            for all users.
+     * @param pageSize
+     *            The maximum number of root nodes per page, if not positive
+     *            {@link PagedIterator#DEFAULT_PAGE_SIZE} is used.
+     * @return See above.
+     */
+    public PagedIterator<DataObject> iterateHierarchy(final SecurityContext ctx,
+            Class rootType, final long userId, int pageSize) {
+        final String type = PojoMapper.getModelType(rootType).getName();
+        final String query = "select r.id from "
+                + PojoMapper.getModelType(rootType).getSimpleName() + " as r "
+                + "where r.id > :lastId"
+                + (userId >= 0 ? " and r.details.owner.id = :userId" : "")
+                + " order by r.id";
+        return new PagedIterator<DataObject>(gateway, pageSize) {
+            @Override
+            List<Long> loadIds(long lastId, int pageSize) throws Exception {
+                ParametersI param = new ParametersI();
+                param.addLong("lastId", lastId);
+                if (userId >= 0)
+                    param.addLong("userId", userId);
+                return loadIdPage(ctx, query, param, pageSize);
+            }
+
+            @Override
+            List<DataObject> loadObjects(List<Long> ids) throws Exception {
+                IContainerPrx service = gateway.getPojosService(ctx);
+                return new ArrayList<DataObject>(PojoMapper
+                        .<DataObject> convertToDataObjects(service
+                                .loadContainerHierarchy(type, ids,
+                                        new ParametersI())));
+            }
+
+            @Override
+            void handleException(Throwable t) throws Exception {
+                BrowseFacility.this.handleException(BrowseFacility.this, t,
+                        "Could not load hierarchy");
+            }
+        }.start();
+    }
+
+    /**
+     * Returns one page of the ids returned by the given projection query
+     * which selects a single id column in ascending order.
+     *
+     * @param ctx
+     *            The security context.
+     * @param query
+     *            The query.
+     * @param param
+     *            The parameters of the query, the page is added.
+     * @param pageSize
+     *            The maximum number of ids to return.
+     * @return See above.
+     * @throws Exception
+     *             If the query failed.
+     */
+    private List<Long> loadIdPage(SecurityContext ctx, String query,
+            ParametersI param, int pageSize) throws Exception {
+        param.page(0, pageSize);
+        IQueryPrx service = gateway.getQueryService(ctx);
+        List<List<RType>> rows = service.projection(query, param);
+        List<Long> ids = new ArrayList<Long>(rows.size());
+        for (List<RType> row : rows)
+            ids.add(((RLong) row.get(0)).getValue());
+        return ids;
+    }
+
+    /**
+     * Creates an iterator over the images with the given ids, loaded by
+     * pages of ids.
+     *
+     * @param ctx
+     *            The security context.
+     * @param sortedIds
+     *            The ids of the images, sorted and without duplicates.
+     * @param pageSize
+     *            The maximum number of images per page.
+     * @return See above.
+     */
+    private PagedIterator<ImageData> iterateImages(final SecurityContext ctx,
+            final long[] sortedIds, int pageSize) {
+        return new PagedIterator<ImageData>(gateway, pageSize) {
+            @Override
+            List<Long> loadIds(long lastId, int pageSize) {
+                int from = Arrays.binarySearch(sortedIds, lastId);
+                from = from < 0 ? -from - 1 : from + 1;
+                int to = Math.min(sortedIds.length, from + pageSize);
+                List<Long> ids = new ArrayList<Long>(to - from);
+                for (int i = from; i < to; i++)
+                    ids.add(sortedIds[i]);
+                return ids;
+            }
+
+            @Override
+            List<ImageData> loadObjects(List<Long> ids) throws Exception {
+                return loadImages(ctx, ids);
+            }
+
+            @Override
+            void handleException(Throwable t) throws Exception {
+                BrowseFacility.this.handleException(BrowseFacility.this, t,
+                        "Could not load images");
+            }
+        }.start();
+    }
+
+    /**
+     * Creates an iterator over the images whose ids are returned by the
+     * given projection query, see {@link #loadIdPage}.
+     *
+     * @param ctx
+     *            The security context.
+     * @param query
+     *            The query, selecting the image ids greater than
+     *            <code>:lastId</code> in ascending order.
+     * @param param
+     *            The other parameters of the query.
+     * @param pageSize
+     *            The maximum number of images per page.
+     * @return See above.
+     */
+    private PagedIterator<ImageData> iterateImages(final SecurityContext ctx,
+            final String query, final ParametersI param, int pageSize) {
+        return new PagedIterator<ImageData>(gateway, pageSize) {
+            @Override
+            List<Long> loadIds(long lastId, int pageSize) throws Exception {
+                ParametersI p = new ParametersI(new HashMap<String, RType>(
+                        param.map));
+                p.addLong("lastId", lastId);
+                return loadIdPage(ctx, query, p, pageSize);
+            }
+
+            @Override
+            List<ImageData> loadObjects(List<Long> ids) throws Exception {
+                return loadImages(ctx, ids);
+            }
+
+            @Override
+            void handleException(Throwable t) throws Exception {
+                BrowseFacility.this.handleException(BrowseFacility.this, t,
+                        "Could not load images");
+            }
+        }.start();
+    }
+
+    /**
+     * Loads the images with the given ids.
+     *
+     * @param ctx
+     *            The security context.
+     * @param ids
+     *            The ids of the images.
+     * @return See above.
+     * @throws Exception
+     *             If the images could not be loaded.
+     */
+    private List<ImageData> loadImages(SecurityContext ctx, List<Long> ids)
+            throws Exception {
+        IContainerPrx service = gateway.getPojosService(ctx);
+        List<Image> images = service.getImages(
+                PojoMapper.getModelType(ImageData.class).getName(), ids, null);
+        List<ImageData> result = new ArrayList<ImageData>(images.size());
+        for (Image img : images)
+            result.add((ImageData) PojoMapper.asDataObject(img));
+        return result;
+    }
+
     /**
      * Retrieves an updated version of the specified object.
      *
@@ -1055,6 +1239,36 @@ public class BrowseFacility extends Facility {
         return Collections.emptyList();
     }
 
+    /**
+     * Iterates over the images of the logged in user, loading them one page
+     * at a time (see {@link PagedIterator}). The images are returned in
+     * ascending order of id.
+     *
+     * @param ctx
+     *            The {@link SecurityContext}
+     * @param pageSize
+     *            The maximum number of images per page, if not positive
+     *            {@link PagedIterator#DEFAULT_PAGE_SIZE} is used.
+     * @return See above.
+     */
+    public PagedIterator<ImageData> iterateUserImages(SecurityContext ctx,
+            int pageSize) {
+        ParametersI param = new ParametersI();
+        StringBuilder sb = new StringBuilder();
+        sb.append("select img.id from Image as img ");
+        sb.append("where img.id > :lastId");
+        if (ctx.getGroupID() >= 0) {
+            sb.append(" and img.details.group.id = :groupId");
+            param.addLong("groupId", ctx.getGroupID());
+        }
+        if (ctx.getExperimenter() >= 0) {
+            sb.append(" and img.details.owner.id = :userId");
+            param.addLong("userId", ctx.getExperimenter());
+        }
+        sb.append(" order by img.id");
+        return iterateImages(ctx, sb.toString(), param, pageSize);
+    }
+
     /**
      * Loads a image
      *
@@ -1166,6 +1380,38 @@ public class BrowseFacility extends Facility {
         return Collections.emptyList();
     }
 
+    /**
+     * Iterates over the images with the given ids, loading them one page at
+     * a time (see {@link PagedIterator}). The images are returned in
+     * ascending order of id, duplicated ids are ignored.
+     *
+     * @param ctx
+     *            The {@link SecurityContext}
+     * @param ids
+     *            The ids of the images to load
+     * @param pageSize
+     *            The maximum number of images per page, if not positive
+     *            {@link PagedIterator#DEFAULT_PAGE_SIZE} is used.
+     * @return See above.
+     */
+    public PagedIterator<ImageData> iterateImages(SecurityContext ctx,
+            Collection<Long> ids, int pageSize) {
+        long[] sortedIds = new long[ids == null ? 0 : ids.size()];
+        int n = 0;
+        if (ids != null) {
+            for (Long id : ids)
+                if (id != null)
+                    sortedIds[n++] = id;
+        }
+        Arrays.sort(sortedIds, 0, n);
+        int unique = 0;
+        for (int i = 0; i < n; i++) {
+            if (unique == 0 || sortedIds[i] != sortedIds[unique - 1])
+                sortedIds[unique++] = sortedIds[i];
+        }
+        return iterateImages(ctx, Arrays.copyOf(sortedIds, unique), pageSize);
+    }
+
     /**
      * Get orphaned images for a certain user
      *
@@ -1288,6 +1534,34 @@ public class BrowseFacility extends Facility {
         return Collections.emptyList();
     }
 
+    /**
+     * Iterates over the images belonging to particular datasets, loading
+     * them one page at a time (see {@link PagedIterator}). The images are
+     * returned in ascending order of id, an image linked to several of the
+     * datasets is returned once.
+     *
+     * @param ctx
+     *            The {@link SecurityContext}
+     * @param datasetIds
+     *            The ids of the datasets
+     * @param pageSize
+     *            The maximum number of images per page, if not positive
+     *            {@link PagedIterator#DEFAULT_PAGE_SIZE} is used.
+     * @return See above.
+     */
+    public PagedIterator<ImageData> iterateImagesForDatasets(
+            SecurityContext ctx, Collection<Long> datasetIds, int pageSize) {
+        if (CollectionUtils.isEmpty(datasetIds))
+            return iterateImages(ctx, new long[0], pageSize);
+        ParametersI param = new ParametersI();
+        param.addLongs("datasetIds", datasetIds);
+        String query = "select distinct link.child.id "
+                + "from DatasetImageLink as link "
+                + "where link.parent.id in (:datasetIds) "
+                + "and link.child.id > :lastId order by link.child.id";
+        return iterateImages(ctx, query, param, pageSize);
+    }
+
     /**
      * Load all images belonging to particular projects
      *
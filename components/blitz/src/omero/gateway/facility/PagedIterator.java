@@ -0,0 +1,272 @@
+/*
+ *------------------------------------------------------------------------------
+ *  Copyright (C) 2018 University of Dundee. All rights reserved.
+ *
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ *------------------------------------------------------------------------------
+ */
+package omero.gateway.facility;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import omero.gateway.Gateway;
+import omero.gateway.model.DataObject;
+
+/**
+ * Iterates over a possibly very large result set one page at a time, so that
+ * neither the client nor the server has to hold the whole result at once.
+ * <p>
+ * Pages are selected by keyset pagination on the object id: each page holds
+ * the objects whose id is greater than the last id of the previous page, in
+ * ascending id order. While the caller processes a page the next one is
+ * loaded asynchronously by the {@link Gateway}'s executor.
+ * </p>
+ * <p>
+ * As {@link Iterator} methods cannot throw checked exceptions, a page which
+ * could not be loaded makes {@link #hasNext()} and {@link #next()} throw an
+ * {@link IllegalStateException} whose cause is the
+ * {@link omero.gateway.exception.DSOutOfServiceException} or
+ * {@link omero.gateway.exception.DSAccessException}.
+ * </p>
+ *
+ * @param <T>
+ *            The type of the objects
+ * @since 5.4.10
+ */
+public abstract class PagedIterator<T extends DataObject> implements
+        Iterator<T>, Closeable {
+
+    /** The page size used if none is specified */
+    public static final int DEFAULT_PAGE_SIZE = 500;
+
+    /** One page of results */
+    private static class Page<T> {
+
+        /** The ids selected for the page, in ascending order */
+        private final List<Long> ids;
+
+        /** The objects loaded for these ids */
+        private final List<T> objects;
+
+        Page(List<Long> ids, List<T> objects) {
+            this.ids = ids;
+            this.objects = objects;
+        }
+    }
+
+    /** Orders the objects by id */
+    private static final Comparator<DataObject> BY_ID = new Comparator<DataObject>() {
+        @Override
+        public int compare(DataObject o1, DataObject o2) {
+            long id1 = o1.getId();
+            long id2 = o2.getId();
+            return id1 < id2 ? -1 : (id1 == id2 ? 0 : 1);
+        }
+    };
+
+    /** Reference to the {@link Gateway} */
+    private final Gateway gateway;
+
+    /** The maximum number of objects per page */
+    private final int pageSize;
+
+    /** The objects of the current page not returned yet */
+    private Iterator<T> current = Collections.<T> emptyIterator();
+
+    /** The page being loaded or <code>null</code> if there is none left */
+    private Future<Page<T>> next;
+
+    /** The number of pages loaded */
+    private int pages;
+
+    /**
+     * Creates a new instance, the first page is loaded asynchronously.
+     *
+     * @param gateway
+     *            Reference to the {@link Gateway}
+     * @param pageSize
+     *            The maximum number of objects per page, if not positive
+     *            {@link #DEFAULT_PAGE_SIZE} is used
+     */
+    PagedIterator(Gateway gateway, int pageSize) {
+        this.gateway = gateway;
+        this.pageSize = pageSize > 0 ? pageSize : DEFAULT_PAGE_SIZE;
+    }
+
+    /**
+     * Returns the ids of the next page, in ascending order.
+     *
+     * @param lastId
+     *            Only ids greater than this one are to be returned,
+     *            <code>-1</code> for the first page
+     * @param pageSize
+     *            The maximum number of ids to return
+     * @return See above.
+     * @throws Exception
+     *             If the ids could not be retrieved, is converted by
+     *             {@link #handleException(Throwable)}
+     */
+    abstract List<Long> loadIds(long lastId, int pageSize) throws Exception;
+
+    /**
+     * Loads the objects with the given ids. Objects which cannot be loaded
+     * are skipped.
+     *
+     * @param ids
+     *            The ids of the objects
+     * @return See above.
+     * @throws Exception
+     *             If the objects could not be loaded, is converted by
+     *             {@link #handleException(Throwable)}
+     */
+    abstract List<T> loadObjects(List<Long> ids) throws Exception;
+
+    /**
+     * Converts the exception thrown while loading a page into a
+     * {@link omero.gateway.exception.DSOutOfServiceException} or a
+     * {@link omero.gateway.exception.DSAccessException}.
+     *
+     * @param t
+     *            The exception
+     * @throws Exception
+     *             The converted exception
+     */
+    abstract void handleException(Throwable t) throws Exception;
+
+    /**
+     * Loads the page following the given id on the {@link Gateway}'s
+     * executor.
+     *
+     * @param lastId
+     *            The last id of the previous page
+     */
+    private void submit(final long lastId) {
+        next = gateway.submit(new Callable<Page<T>>() {
+            @Override
+            public Page<T> call() throws Exception {
+                try {
+                    List<Long> ids = loadIds(lastId, pageSize);
+                    if (ids.isEmpty()) {
+                        return new Page<T>(ids, Collections.<T> emptyList());
+                    }
+                    List<T> objects = new ArrayList<T>(loadObjects(ids));
+                    Collections.sort(objects, BY_ID);
+                    return new Page<T>(ids, objects);
+                } catch (Throwable t) {
+                    handleException(t);
+                    throw new IllegalStateException(t);
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits for the page being loaded and starts loading the following one.
+     */
+    private void advance() {
+        Page<T> page;
+        try {
+            page = next.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted loading page "
+                    + pages, e);
+        } catch (ExecutionException e) {
+            next = null;
+            throw new IllegalStateException("Could not load page " + pages,
+                    e.getCause());
+        }
+        pages++;
+        int n = page.ids.size();
+        if (n < pageSize)
+            next = null;
+        else
+            submit(page.ids.get(n - 1));
+        current = page.objects.iterator();
+    }
+
+    /**
+     * Starts loading the first page, to be invoked once by the facility
+     * which created the iterator.
+     *
+     * @return This iterator.
+     */
+    PagedIterator<T> start() {
+        submit(-1);
+        return this;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!current.hasNext()) {
+            if (next == null)
+                return false;
+            advance();
+        }
+        return true;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return current.next();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Returns the maximum number of objects per page.
+     *
+     * @return See above.
+     */
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Returns the number of pages loaded so far.
+     *
+     * @return See above.
+     */
+    public int getPageCount() {
+        return pages;
+    }
+
+    /**
+     * Stops the iteration, the page being loaded, if any, is discarded.
+     */
+    @Override
+    public void close() {
+        if (next != null) {
+            next.cancel(true);
+            next = null;
+        }
+        current = Collections.<T> emptyIterator();
+    }
+}
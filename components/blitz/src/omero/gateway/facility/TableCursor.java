@@ -0,0 +1,431 @@
+/*
+ * Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package omero.gateway.facility;
+
+import java.io.Closeable;
+
+import omero.ServerError;
+import omero.gateway.exception.DSAccessException;
+import omero.gateway.exception.DSOutOfServiceException;
+import omero.gateway.model.TableDataColumn;
+import omero.grid.BoolColumn;
+import omero.grid.Column;
+import omero.grid.Data;
+import omero.grid.DatasetColumn;
+import omero.grid.DoubleArrayColumn;
+import omero.grid.DoubleColumn;
+import omero.grid.FileColumn;
+import omero.grid.FloatArrayColumn;
+import omero.grid.ImageColumn;
+import omero.grid.LongArrayColumn;
+import omero.grid.LongColumn;
+import omero.grid.PlateColumn;
+import omero.grid.RoiColumn;
+import omero.grid.StringColumn;
+import omero.grid.TablePrx;
+import omero.grid.WellColumn;
+
+import Ice.AsyncResult;
+
+/**
+ * Reads a table chunk by chunk, keeping the table open between the chunks.
+ * Only the selected columns are read and their values are returned in the
+ * primitive arrays of the {@link Column}s, without conversion. While the
+ * caller processes a chunk the next one is read asynchronously.
+ * <p>
+ * Obtained from
+ * {@link TablesFacility#openTable(omero.gateway.SecurityContext, long, long, long, int, long...)}
+ * , must be closed once done with.
+ * </p>
+ *
+ * @since 5.4.10
+ */
+public class TableCursor implements Closeable {
+
+    /**
+     * A range of rows of the selected columns.
+     */
+    public static class Chunk {
+
+        /** The index of the first row */
+        private final long offset;
+
+        /** The columns, in the order of the selection */
+        private final Column[] columns;
+
+        /** The number of rows */
+        private final int rows;
+
+        /**
+         * Creates a new instance
+         *
+         * @param offset
+         *            The index of the first row
+         * @param data
+         *            The data read from the table
+         */
+        Chunk(long offset, Data data) {
+            this.offset = offset;
+            this.columns = data.columns;
+            this.rows = data.rowNumbers == null ? 0 : data.rowNumbers.length;
+        }
+
+        /**
+         * Returns the index of the first row of the chunk in the table.
+         *
+         * @return See above.
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * Returns the number of rows of the chunk.
+         *
+         * @return See above.
+         */
+        public int getRowCount() {
+            return rows;
+        }
+
+        /**
+         * Returns the number of columns of the chunk.
+         *
+         * @return See above.
+         */
+        public int getColumnCount() {
+            return columns.length;
+        }
+
+        /**
+         * Returns the given column as read from the table.
+         *
+         * @param column
+         *            The index of the column in the selection
+         * @return See above.
+         */
+        public Column getColumn(int column) {
+            return columns[column];
+        }
+
+        /**
+         * Returns the values of a {@link LongColumn} or of a column of
+         * object ids, i.e. {@link FileColumn}, {@link ImageColumn},
+         * {@link DatasetColumn}, {@link RoiColumn}, {@link WellColumn} or
+         * {@link PlateColumn}.
+         *
+         * @param column
+         *            The index of the column in the selection
+         * @return See above.
+         */
+        public long[] getLongs(int column) {
+            Column col = columns[column];
+            if (col instanceof LongColumn)
+                return ((LongColumn) col).values;
+            if (col instanceof ImageColumn)
+                return ((ImageColumn) col).values;
+            if (col instanceof RoiColumn)
+                return ((RoiColumn) col).values;
+            if (col instanceof WellColumn)
+                return ((WellColumn) col).values;
+            if (col instanceof PlateColumn)
+                return ((PlateColumn) col).values;
+            if (col instanceof FileColumn)
+                return ((FileColumn) col).values;
+            if (col instanceof DatasetColumn)
+                return ((DatasetColumn) col).values;
+            throw typeMismatch(column, "long");
+        }
+
+        /**
+         * Returns the values of a {@link DoubleColumn}.
+         *
+         * @param column
+         *            The index of the column in the selection
+         * @return See above.
+         */
+        public double[] getDoubles(int column) {
+            Column col = columns[column];
+            if (col instanceof DoubleColumn)
+                return ((DoubleColumn) col).values;
+            throw typeMismatch(column, "double");
+        }
+
+        /**
+         * Returns the values of a {@link BoolColumn}.
+         *
+         * @param column
+         *            The index of the column in the selection
+         * @return See above.
+         */
+        public boolean[] getBooleans(int column) {
+            Column col = columns[column];
+            if (col instanceof BoolColumn)
+                return ((BoolColumn) col).values;
+            throw typeMismatch(column, "boolean");
+        }
+
+        /**
+         * Returns the values of a {@link StringColumn}.
+         *
+         * @param column
+         *            The index of the column in the selection
+         * @return See above.
+         */
+        public String[] getStrings(int column) {
+            Column col = columns[column];
+            if (col instanceof StringColumn)
+                return ((StringColumn) col).values;
+            throw typeMismatch(column, "string");
+        }
+
+        /**
+         * Returns the values of a {@link LongArrayColumn}.
+         *
+         * @param column
+         *            The index of the column in the selection
+         * @return See above.
+         */
+        public long[][] getLongArrays(int column) {
+            Column col = columns[column];
+            if (col instanceof LongArrayColumn)
+                return ((LongArrayColumn) col).values;
+            throw typeMismatch(column, "long array");
+        }
+
+        /**
+         * Returns the values of a {@link DoubleArrayColumn}.
+         *
+         * @param column
+         *            The index of the column in the selection
+         * @return See above.
+         */
+        public double[][] getDoubleArrays(int column) {
+            Column col = columns[column];
+            if (col instanceof DoubleArrayColumn)
+                return ((DoubleArrayColumn) col).values;
+            throw typeMismatch(column, "double array");
+        }
+
+        /**
+         * Returns the values of a {@link FloatArrayColumn}.
+         *
+         * @param column
+         *            The index of the column in the selection
+         * @return See above.
+         */
+        public float[][] getFloatArrays(int column) {
+            Column col = columns[column];
+            if (col instanceof FloatArrayColumn)
+                return ((FloatArrayColumn) col).values;
+            throw typeMismatch(column, "float array");
+        }
+
+        private IllegalArgumentException typeMismatch(int column, String type) {
+            return new IllegalArgumentException("Column " + column + " ("
+                    + columns[column].name + ") does not hold " + type
+                    + " values");
+        }
+    }
+
+    /** Reference to the facility, for the error handling */
+    private final TablesFacility facility;
+
+    /** The open table */
+    private final TablePrx table;
+
+    /** The id of the file storing the table */
+    private final long fileId;
+
+    /** The indexes of the selected columns */
+    private final long[] columns;
+
+    /** The selected columns */
+    private final TableDataColumn[] header;
+
+    /** The number of rows of the table */
+    private final long rows;
+
+    /** The index of the row after the last one to read */
+    private final long stop;
+
+    /** The maximum number of rows per chunk */
+    private final int chunkSize;
+
+    /** The index of the first row of the next chunk */
+    private long position;
+
+    /** The read of the next chunk, <code>null</code> if not started */
+    private AsyncResult pending;
+
+    /** The index of the first row of the pending read */
+    private long pendingOffset;
+
+    /** Flag indicating that the cursor was closed */
+    private boolean closed;
+
+    /**
+     * Creates a new instance, the first chunk is read asynchronously.
+     *
+     * @param facility
+     *            Reference to the facility
+     * @param table
+     *            The open table, closed with the cursor
+     * @param fileId
+     *            The id of the file storing the table
+     * @param headers
+     *            The columns of the table
+     * @param columns
+     *            The indexes of the selected columns
+     * @param rows
+     *            The number of rows of the table
+     * @param start
+     *            The index of the first row to read
+     * @param stop
+     *            The index of the row after the last one to read
+     * @param chunkSize
+     *            The maximum number of rows per chunk
+     */
+    TableCursor(TablesFacility facility, TablePrx table, long fileId,
+            Column[] headers, long[] columns, long rows, long start,
+            long stop, int chunkSize) {
+        this.facility = facility;
+        this.table = table;
+        this.fileId = fileId;
+        this.columns = columns;
+        this.rows = rows;
+        this.stop = stop;
+        this.chunkSize = chunkSize;
+        this.header = new TableDataColumn[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            Column col = headers[(int) columns[i]];
+            header[i] = new TableDataColumn(col.name, col.description,
+                    (int) columns[i], TablesFacilityHelper.getType(col));
+        }
+        this.position = start;
+        readAhead();
+    }
+
+    /**
+     * Starts reading the next chunk, if any.
+     */
+    private void readAhead() {
+        if (position >= stop) {
+            pending = null;
+            return;
+        }
+        long end = Math.min(stop, position + chunkSize);
+        pendingOffset = position;
+        pending = table.begin_read(columns, position, end);
+        position = end;
+    }
+
+    /**
+     * Returns the id of the file storing the table.
+     *
+     * @return See above.
+     */
+    public long getFileId() {
+        return fileId;
+    }
+
+    /**
+     * Returns the number of rows of the table.
+     *
+     * @return See above.
+     */
+    public long getNumberOfRows() {
+        return rows;
+    }
+
+    /**
+     * Returns the selected columns, the types are those of the values of a
+     * {@link omero.gateway.model.TableData}.
+     *
+     * @return See above.
+     */
+    public TableDataColumn[] getColumns() {
+        return header;
+    }
+
+    /**
+     * Returns the maximum number of rows per chunk.
+     *
+     * @return See above.
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Returns <code>true</code> if there are rows left to read,
+     * <code>false</code> otherwise.
+     *
+     * @return See above.
+     */
+    public boolean hasNext() {
+        return !closed && pending != null;
+    }
+
+    /**
+     * Returns the next chunk and starts reading the following one.
+     *
+     * @return The chunk or <code>null</code> if all rows were read.
+     * @throws DSOutOfServiceException
+     *             If the connection is broken, or not logged in
+     * @throws DSAccessException
+     *             If an error occurred while trying to retrieve data from OMERO
+     *             service.
+     */
+    public Chunk next() throws DSOutOfServiceException, DSAccessException {
+        if (!hasNext())
+            return null;
+        long offset = pendingOffset;
+        Data data = null;
+        try {
+            data = table.end_read(pending);
+        } catch (Throwable t) {
+            pending = null;
+            facility.handleException(this, t, "Could not load table data");
+        }
+        readAhead();
+        return new Chunk(offset, data);
+    }
+
+    /**
+     * Closes the table, waiting for the pending read if any.
+     */
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            if (pending != null)
+                pending.waitForCompleted();
+        } finally {
+            pending = null;
+            try {
+                table.close();
+            } catch (ServerError e) {
+                facility.logError(this, "Could not close table", e);
+            }
+        }
+    }
+}
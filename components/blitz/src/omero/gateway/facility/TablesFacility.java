@@ -496,6 +496,113 @@ public class TablesFacility extends Facility {
         return null;
     }
 
+    /**
+     * Opens a table for reading it chunk by chunk, see {@link TableCursor}.
+     * The table is kept open until the cursor is closed.
+     *
+     * @param ctx
+     *            The {@link SecurityContext}
+     * @param fileId
+     *            The id of the {@link OriginalFile} which stores the table
+     * @param chunkSize
+     *            The maximum number of rows per chunk (can be <code>0</code>
+     *            in which case {@link TablesFacility#DEFAULT_MAX_ROWS_TO_FETCH}
+     *            rows are read at once)
+     * @param columns
+     *            The columns to take into account (can be left unspecified, in
+     *            which case all columns will used)
+     * @return The cursor over all the rows of the table
+     * @throws DSOutOfServiceException
+     *             If the connection is broken, or not logged in
+     * @throws DSAccessException
+     *             If an error occurred while trying to retrieve data from OMERO
+     *             service.
+     */
+    public TableCursor openTable(SecurityContext ctx, long fileId,
+            int chunkSize, long... columns) throws DSOutOfServiceException,
+            DSAccessException {
+        return openTable(ctx, fileId, 0, -1, chunkSize, columns);
+    }
+
+    /**
+     * Opens a table for reading a range of rows chunk by chunk, see
+     * {@link TableCursor}. The table is kept open until the cursor is closed.
+     *
+     * @param ctx
+     *            The {@link SecurityContext}
+     * @param fileId
+     *            The id of the {@link OriginalFile} which stores the table
+     * @param rowFrom
+     *            The start row (inclusive)
+     * @param rowTo
+     *            The end row (inclusive) (can be <code>-1</code> in which case
+     *            the rows are read up to the end of the table)
+     * @param chunkSize
+     *            The maximum number of rows per chunk (can be <code>0</code>
+     *            in which case {@link TablesFacility#DEFAULT_MAX_ROWS_TO_FETCH}
+     *            rows are read at once)
+     * @param columns
+     *            The columns to take into account (can be left unspecified, in
+     *            which case all columns will used)
+     * @return The cursor over the specified rows
+     * @throws DSOutOfServiceException
+     *             If the connection is broken, or not logged in
+     * @throws DSAccessException
+     *             If an error occurred while trying to retrieve data from OMERO
+     *             service.
+     */
+    public TableCursor openTable(SecurityContext ctx, long fileId,
+            long rowFrom, long rowTo, int chunkSize, long... columns)
+            throws DSOutOfServiceException, DSAccessException {
+        if (fileId < 0)
+            return null;
+
+        TablePrx table = null;
+        try {
+            OriginalFile file = new OriginalFileI(fileId, false);
+            SharedResourcesPrx sr = gateway.getSharedResources(ctx);
+            if (!sr.areTablesEnabled()) {
+                throw new DSAccessException(
+                        "Tables feature is not enabled on this server!");
+            }
+
+            table = sr.openTable(file);
+
+            Column[] cols = table.getHeaders();
+
+            if (columns == null || columns.length == 0) {
+                columns = new long[cols.length];
+                for (int i = 0; i < cols.length; i++) {
+                    columns[i] = i;
+                }
+            }
+
+            long rows = table.getNumberOfRows();
+            if (rowFrom < 0)
+                rowFrom = 0;
+            if (rowTo < 0 || rowTo >= rows)
+                rowTo = rows - 1;
+            if (chunkSize <= 0)
+                chunkSize = DEFAULT_MAX_ROWS_TO_FETCH;
+
+            TableCursor cursor = new TableCursor(this, table, fileId, cols,
+                    columns, rows, rowFrom, Math.max(rowFrom, rowTo + 1),
+                    chunkSize);
+            table = null;
+            return cursor;
+        } catch (Exception e) {
+            handleException(this, e, "Could not open table");
+        } finally {
+            if (table != null)
+                try {
+                    table.close();
+                } catch (ServerError e) {
+                    logError(this, "Could not close table", e);
+                }
+        }
+        return null;
+    }
+
     /**
      * Get all available tables for a the specified object
      *
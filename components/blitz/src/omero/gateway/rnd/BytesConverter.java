@@ -20,6 +20,8 @@
  */
 package omero.gateway.rnd;
 
+import java.nio.ByteBuffer;
+
 import omero.util.ReadOnlyByteArray;
 
 /** 
@@ -71,4 +73,47 @@ abstract class BytesConverter
      */
     public abstract double pack(ReadOnlyByteArray data, int offset, int length);
 
+    /**
+     * Converts the bytes representing a pixel value, as
+     * {@link #pack(ReadOnlyByteArray, int, int)} does, reading them from a
+     * big-endian buffer without moving its position.
+     *
+     * @param data The buffer containing the bytes to convert.
+     * @param offset The position of the first byte making up the pixel value.
+     * @param length The number of bytes that make up the pixel value.
+     * @return The numeric value.
+     */
+    public abstract double pack(ByteBuffer data, int offset, int length);
+
+    /**
+     * Converts the bytes representing an integer pixel value into an
+     * <code>int</code>, reading them from a big-endian buffer without moving
+     * its position. Supported only for the pixel types whose values all fit
+     * an <code>int</code>.
+     *
+     * @param data The buffer containing the bytes to convert.
+     * @param offset The position of the first byte making up the pixel value.
+     * @param length The number of bytes that make up the pixel value.
+     * @return The numeric value.
+     * @throws UnsupportedOperationException If the values of the pixel type
+     * do not all fit an <code>int</code>.
+     */
+    public int packInt(ByteBuffer data, int offset, int length)
+    {
+        throw new UnsupportedOperationException(
+                "pixel values do not fit an int");
+    }
+
+    /**
+     * Returns if the values of the pixel type with the given number of bytes
+     * per pixel all fit an <code>int</code>.
+     *
+     * @param length The number of bytes per pixel.
+     * @return See above.
+     */
+    public boolean fitsInt(int length)
+    {
+        return false;
+    }
+
 }
@@ -20,6 +20,8 @@
  */
 package omero.gateway.rnd;
 
+import java.nio.ByteBuffer;
+
 import omero.util.ReadOnlyByteArray;
 
 /** 
@@ -74,4 +76,13 @@ public class FloatConverter
         return Float.intBitsToFloat(r);
     }
 
+    /**
+     * Implemented as specified by {@link BytesConverter}
+     * @see BytesConverter#pack(ByteBuffer, int, int)
+     */
+    public double pack(ByteBuffer data, int offset, int length)
+    {
+        return data.getFloat(offset);
+    }
+
 }
@@ -20,6 +20,8 @@
  */
 package omero.gateway.rnd;
 
+import java.nio.ByteBuffer;
+
 import omero.util.ReadOnlyByteArray;
 
 /** 
@@ -74,4 +76,38 @@ public class IntConverter
         return r;
     }
 
+    /**
+     * Implemented as specified by {@link BytesConverter}
+     * @see BytesConverter#pack(ByteBuffer, int, int)
+     */
+    public double pack(ByteBuffer data, int offset, int length)
+    {
+        return packInt(data, offset, length);
+    }
+
+    /**
+     * Overridden for values of <code>1, 2</code> and <code>4</code>-byte
+     * length.
+     * @see BytesConverter#packInt(ByteBuffer, int, int)
+     */
+    public int packInt(ByteBuffer data, int offset, int length)
+    {
+        switch (length) {
+            case 1: return data.get(offset);
+            case 2: return data.getShort(offset);
+            case 4: return data.getInt(offset);
+            default: return super.packInt(data, offset, length);
+        }
+    }
+
+    /**
+     * Overridden for values of <code>1, 2</code> and <code>4</code>-byte
+     * length.
+     * @see BytesConverter#fitsInt(int)
+     */
+    public boolean fitsInt(int length)
+    {
+        return length <= 4;
+    }
+
 }
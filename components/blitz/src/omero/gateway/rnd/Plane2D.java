@@ -20,10 +20,15 @@
  */
 package omero.gateway.rnd;
 
+import java.nio.ByteBuffer;
+
 import omero.util.ReadOnlyByteArray;
 
 /** 
  * Holds structure used to mapped the raw pixels data.
+ * The pixel values are read from the raw data as they are requested rather
+ * than converted all at once, so a plane takes no more memory than its raw
+ * data. Regions of the plane may be copied in bulk into primitive arrays.
  *
  * @author Jean-Marie Burel &nbsp;&nbsp;&nbsp;&nbsp;
  * <a href="mailto:j.burel@dundee.ac.uk">j.burel@dundee.ac.uk</a>
@@ -41,15 +46,18 @@ public class Plane2D
     /** The number of elements along the x-axis. */
     private int sizeX;
 
+    /** The number of elements along the y-axis. */
+    private int sizeY;
+
     /** The original array. */
     private ReadOnlyByteArray data;
 
+    /** A big-endian view of the original array. */
+    private ByteBuffer buffer;
+
     /** Strategy used to transform original data. */
     private BytesConverter strategy;
 
-    /** The converted raw data. */
-    private double[][] mappedData;
-
     /** 
      * Determines the offset value.
      *
@@ -63,20 +71,36 @@ public class Plane2D
     }
 
     /**
-     * Converts the raw data.
+     * Checks that a point lies within the plane.
      *
-     * @param sizeY The number of pixels along the y-axis.
+     * @param x The x-coordinate.
+     * @param y The y-coordinate.
      */
-    private void mappedData(int sizeY)
+    private void checkPoint(int x, int y)
     {
-        mappedData = new double[sizeX][sizeY];
-        int offset;
-        for (int x = 0; x < sizeX; x++) {
-            for (int y = 0; y < sizeY; y++) {
-                offset = calculateOffset(x, y);
-                mappedData[x][y] = strategy.pack(data, offset, bytesPerPixel);
-            }
-        }
+        if (x < 0 || y < 0 || x >= sizeX || y >= sizeY)
+            throw new ArrayIndexOutOfBoundsException("Point "+x+","+y+
+                    " not within the "+sizeX+"x"+sizeY+" plane.");
+    }
+
+    /**
+     * Checks that a region lies within the plane and that an array can hold
+     * its values.
+     *
+     * @param x The x-coordinate of the top-left corner of the region.
+     * @param y The y-coordinate of the top-left corner of the region.
+     * @param w The width of the region.
+     * @param h The height of the region.
+     * @param length The length of the array.
+     */
+    private void checkRegion(int x, int y, int w, int h, int length)
+    {
+        if (x < 0 || y < 0 || w < 0 || h < 0 || x+w > sizeX || y+h > sizeY)
+            throw new IllegalArgumentException("Region "+x+","+y+" "+w+"x"+h+
+                    " not within the "+sizeX+"x"+sizeY+" plane.");
+        if (length < w*h)
+            throw new IllegalArgumentException("Array of length "+length+
+                    " cannot hold the "+w*h+" values of the region.");
     }
 
     /**
@@ -93,9 +117,44 @@ public class Plane2D
     {
         this.bytesPerPixel = bytesPerPixel;
         this.data = data;
+        this.buffer = data.asByteBuffer();
         this.strategy = strategy;
         this.sizeX = sizeX;
-        mappedData(sizeY);
+        this.sizeY = sizeY;
+    }
+
+    /**
+     * Returns the number of pixels along the x-axis.
+     *
+     * @return See above.
+     */
+    public int getSizeX() { return sizeX; }
+
+    /**
+     * Returns the number of pixels along the y-axis.
+     *
+     * @return See above.
+     */
+    public int getSizeY() { return sizeY; }
+
+    /**
+     * Returns the number of bytes per pixel.
+     *
+     * @return See above.
+     */
+    public int getBytesPerPixel() { return bytesPerPixel; }
+
+    /**
+     * Returns <code>true</code> if all the values of the plane's pixel type
+     * fit an <code>int</code>, so that {@link #getIntValue(int, int)} and
+     * {@link #getRegion(int, int, int, int, int[])} may be used,
+     * <code>false</code> otherwise.
+     *
+     * @return See above.
+     */
+    public boolean isIntType()
+    {
+        return strategy.fitsInt(bytesPerPixel);
     }
 
     /**
@@ -108,16 +167,132 @@ public class Plane2D
      */
     public double getPixelValue(int x, int y)
     {
-        return mappedData[x][y];
+        checkPoint(x, y);
+        return strategy.pack(buffer, calculateOffset(x, y), bytesPerPixel);
     }
 
     /**
-     * Returns the pixels values
+     * Returns the pixels value at the point specified by the x-coordinate
+     * and y-coordinate, for pixel types whose values fit an <code>int</code>.
+     *
+     * @param x The x-coordinate.
+     * @param y The y-coordinate.
+     * @return See above.
+     * @throws UnsupportedOperationException If {@link #isIntType()} is
+     * <code>false</code>.
+     */
+    public int getIntValue(int x, int y)
+    {
+        checkPoint(x, y);
+        return strategy.packInt(buffer, calculateOffset(x, y), bytesPerPixel);
+    }
+
+    /**
+     * Copies the pixels values of a region of the plane, row by row, into
+     * the given array.
+     *
+     * @param x The x-coordinate of the top-left corner of the region.
+     * @param y The y-coordinate of the top-left corner of the region.
+     * @param w The width of the region.
+     * @param h The height of the region.
+     * @param values The array to fill, of length at least <code>w*h</code>,
+     * or <code>null</code> to create one.
+     * @return The filled array.
+     */
+    public double[] getRegion(int x, int y, int w, int h, double[] values)
+    {
+        if (values == null) values = new double[w*h];
+        checkRegion(x, y, w, h, values.length);
+        int index = 0;
+        for (int j = y; j < y+h; j++) {
+            int offset = calculateOffset(x, j);
+            for (int i = 0; i < w; i++) {
+                values[index++] = strategy.pack(buffer, offset, bytesPerPixel);
+                offset += bytesPerPixel;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Copies the pixels values of a region of the plane, row by row, into
+     * the given array, for pixel types whose values fit an <code>int</code>.
+     *
+     * @param x The x-coordinate of the top-left corner of the region.
+     * @param y The y-coordinate of the top-left corner of the region.
+     * @param w The width of the region.
+     * @param h The height of the region.
+     * @param values The array to fill, of length at least <code>w*h</code>,
+     * or <code>null</code> to create one.
+     * @return The filled array.
+     * @throws UnsupportedOperationException If {@link #isIntType()} is
+     * <code>false</code>.
+     */
+    public int[] getRegion(int x, int y, int w, int h, int[] values)
+    {
+        if (!isIntType())
+            throw new UnsupportedOperationException(
+                    "pixel values do not fit an int");
+        if (values == null) values = new int[w*h];
+        checkRegion(x, y, w, h, values.length);
+        int index = 0;
+        for (int j = y; j < y+h; j++) {
+            int offset = calculateOffset(x, j);
+            for (int i = 0; i < w; i++) {
+                values[index++] = strategy.packInt(buffer, offset,
+                        bytesPerPixel);
+                offset += bytesPerPixel;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Copies the pixels values of a row of the plane into the given array.
+     *
+     * @param y The y-coordinate of the row.
+     * @param values The array to fill, of length at least the width of the
+     * plane, or <code>null</code> to create one.
+     * @return The filled array.
+     */
+    public double[] getRow(int y, double[] values)
+    {
+        return getRegion(0, y, sizeX, 1, values);
+    }
+
+    /**
+     * Copies the pixels values of a row of the plane into the given array,
+     * for pixel types whose values fit an <code>int</code>.
+     *
+     * @param y The y-coordinate of the row.
+     * @param values The array to fill, of length at least the width of the
+     * plane, or <code>null</code> to create one.
+     * @return The filled array.
+     * @throws UnsupportedOperationException If {@link #isIntType()} is
+     * <code>false</code>.
+     */
+    public int[] getRow(int y, int[] values)
+    {
+        return getRegion(0, y, sizeX, 1, values);
+    }
+
+    /**
+     * Returns the pixels values, indexed by x-coordinate then y-coordinate.
+     * The values are converted into a new array on each call, prefer
+     * {@link #getRegion(int, int, int, int, double[])} for large planes.
      * 
      * @return See above.
      */
     public double[][] getPixelValues() {
-        return copyArray(mappedData);
+        double[][] values = new double[sizeX][sizeY];
+        for (int x = 0; x < sizeX; x++) {
+            int offset = calculateOffset(x, 0);
+            for (int y = 0; y < sizeY; y++) {
+                values[x][y] = strategy.pack(buffer, offset, bytesPerPixel);
+                offset += bytesPerPixel*sizeX;
+            }
+        }
+        return values;
     }
 
     /**
@@ -130,20 +305,4 @@ public class Plane2D
     {
         return data.get(offset);
     }
-    
-    /**
-     * Simply copies a 2-dimensional double array
-     * 
-     * @param src
-     *            The array to copy
-     * @return A copy of the array
-     */
-    private double[][] copyArray(double[][] src) {
-        int length = src.length;
-        double[][] target = new double[length][src[0].length];
-        for (int i = 0; i < length; i++) {
-            System.arraycopy(src[i], 0, target[i], 0, src[i].length);
-        }
-        return target;
-    }
 }
@@ -20,6 +20,8 @@
  */
 package omero.gateway.rnd;
 
+import java.nio.ByteBuffer;
+
 import omero.util.ReadOnlyByteArray;
 
 /** 
@@ -78,4 +80,36 @@ public class UintConverter
         return r;
     }
 
+    /**
+     * Implemented as specified by {@link BytesConverter}
+     * @see BytesConverter#pack(ByteBuffer, int, int)
+     */
+    public double pack(ByteBuffer data, int offset, int length)
+    {
+        if (length == 4) return data.getInt(offset) & 0xFFFFFFFFL;
+        return packInt(data, offset, length);
+    }
+
+    /**
+     * Overridden for values of <code>1</code> and <code>2</code>-byte length.
+     * @see BytesConverter#packInt(ByteBuffer, int, int)
+     */
+    public int packInt(ByteBuffer data, int offset, int length)
+    {
+        switch (length) {
+            case 1: return data.get(offset) & 0xFF;
+            case 2: return data.getShort(offset) & 0xFFFF;
+            default: return super.packInt(data, offset, length);
+        }
+    }
+
+    /**
+     * Overridden for values of <code>1</code> and <code>2</code>-byte length.
+     * @see BytesConverter#fitsInt(int)
+     */
+    public boolean fitsInt(int length)
+    {
+        return length < 4;
+    }
+
 }
@@ -24,13 +24,16 @@ package omero.gateway.util;
 import java.awt.Color;
 import java.awt.Point;
 import java.io.IOException;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import omero.gateway.model.MaskData;
+import omero.util.MaskRuns;
 
 /** 
  * The mask.
+ * The points of the mask are held as runs of consecutive points along rows
+ * by a {@link MaskRuns}, shared with the server.
  *
  * @author  Jean-Marie Burel &nbsp;&nbsp;&nbsp;&nbsp;
  * <a href="mailto:j.burel@dundee.ac.uk">j.burel@dundee.ac.uk</a>
@@ -42,19 +45,10 @@ class MaskClass
 {
 	
 	/** The points in the mask. */
-	private Set<Point> points;
+	private final MaskRuns runs;
 	
 	/** The color of the mask. */
 	private int colour;
-	
-	/** The minimum and maximum (x,y) coordinates of the mask. */
-	private Point min, max;
-	
-	/** The mask Width. */
-	private int width;
-	
-	/** The mask Height. */
-	private int height;
 
 	/**
 	 * Creates a new instance. 
@@ -63,8 +57,38 @@ class MaskClass
 	 */
 	MaskClass(int value)
 	{
-		points = new HashSet<Point>();
-		colour = value;
+		this(new MaskRuns(value));
+	}
+
+	/**
+	 * Creates a new instance holding the given points.
+	 * 
+	 * @param runs The points in the mask, labelled with its color value.
+	 */
+	private MaskClass(MaskRuns runs)
+	{
+		this.runs = runs;
+		colour = runs.getLabel();
+	}
+
+	/**
+	 * Creates a mask for each label of a plane in a single pass over the
+	 * plane.
+	 * 
+	 * @param plane The labels of the plane's points, row by row.
+	 * @param sizeX The width of the plane.
+	 * @param sizeY The height of the plane.
+	 * @param background The label of the points not in any mask.
+	 * @return The masks by label, in the order the labels are first met.
+	 */
+	static Map<Integer, MaskClass> createMasks(int[] plane, int sizeX,
+			int sizeY, int background)
+	{
+		Map<Integer, MaskClass> masks = new LinkedHashMap<Integer, MaskClass>();
+		for (MaskRuns mask : MaskRuns.fromPlane(plane, sizeX, sizeY,
+				background).values())
+			masks.put(mask.getLabel(), new MaskClass(mask));
+		return masks;
 	}
 
 	/**
@@ -82,21 +106,7 @@ class MaskClass
 	byte[] asBytes() 
 		throws IOException
 	{
-		byte[] data = new byte[(int) Math.ceil(
-				(double) width*(double) height/8.0)];
-		int offset = 0;
-		for (int y = min.y ; y < max.y + 1 ; y++)
-		{
-			for (int x = min.x ; x < max.x + 1 ; x++)
-			{
-				if(points.contains(new Point(x,y)))
-					setBit(data, offset, 1);
-				else
-					setBit(data, offset, 0);
-				offset++;
-			}
-		}
-		return data;
+		return runs.asBytes();
 	}
 
 	/**
@@ -105,21 +115,7 @@ class MaskClass
 	 */
 	void add(Point p)
 	{
-		if (points.size() == 0)
-		{
-			min = new Point(p);
-			max = new Point(p);
-		}
-		else
-		{
-			min.x = Math.min(p.x, min.x);
-			min.y = Math.min(p.y, min.y);
-			max.x = Math.max(p.x, max.x);
-			max.y = Math.max(p.y, max.y);
-		}
-		width = max.x-min.x+1;
-		height = max.y-min.y+1;
-		points.add(p);
+		runs.addRun(p.y, p.x, p.x);
 	}
 
 	/**
@@ -136,10 +132,10 @@ class MaskClass
 		throws IOException
 	{
 		MaskData mask = new MaskData();
-		mask.setX((double) min.x);
-		mask.setY((double) min.y);
-		mask.setWidth((double) width);
-		mask.setHeight((double) height);
+		mask.setX((double) runs.getX());
+		mask.setY((double) runs.getY());
+		mask.setWidth((double) runs.getWidth());
+		mask.setHeight((double) runs.getHeight());
 		mask.setReadOnly(true);
 		mask.setT(t);
 		mask.setZ(z);
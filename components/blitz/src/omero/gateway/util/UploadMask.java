@@ -22,7 +22,6 @@
 package omero.gateway.util;
 
 import java.awt.Color;
-import java.awt.Point;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
@@ -34,8 +33,12 @@ import java.util.Map;
 
 import javax.imageio.ImageIO;
 
+import omero.ServerError;
+import omero.api.IUpdatePrx;
 import omero.gateway.model.MaskData;
 import omero.gateway.model.ROIData;
+import omero.model.IObject;
+import omero.model.Roi;
 import omero.model.RoiI;
 
 /** 
@@ -125,6 +128,30 @@ public class UploadMask
 		component.addMasks(maskMap);
 	}
 	
+	/**
+	 * Adds a Mask Shape for each label of a labelled plane to the appropriate
+	 * ROIClass, creating one if necessary. The masks of all the labels are
+	 * collected in a single pass over the plane.
+	 * 
+	 * @param plane The labels of the plane's points, row by row;
+	 * <code>0</code> for the points not in any mask.
+	 * @param sizeX The width of the plane.
+	 * @param sizeY The height of the plane.
+	 * @param z The Z Section of the image.
+	 * @param t The Time point of the image.
+	 * @param c The channel of the image.
+	 * @throws IOException Thrown if an error occurred while creating the mask.
+	 */
+	public void addPlane(int[] plane, int sizeX, int sizeY, int z, int t,
+			int c)
+		throws IOException
+	{
+		Map<Integer, MaskClass> classMap = MaskClass.createMasks(plane, sizeX,
+				sizeY, 0);
+		Map<Integer, MaskData> maskMap = mapToMaskData(classMap, z, t, c);
+		component.addMasks(maskMap);
+	}
+	
 	/**
 	 * Creates Mask Class objects from the bytes stream, This will create a 
 	 * Mask object for each unique colour value in the image.  
@@ -136,60 +163,36 @@ public class UploadMask
 	private Map<Integer, MaskClass> createMasks(byte[] bytes) 
 		throws IOException
 	{
-		Map<Integer, MaskClass> maskMap = new HashMap<Integer, MaskClass>();
 		ByteArrayInputStream imageStream = new ByteArrayInputStream(bytes);
 		BufferedImage inputImage = ImageIO.read(imageStream);
-		int value;
-		MaskClass mask;
-		for (int x = 0; x < inputImage.getWidth(); x++)
-			for (int y = 0; y < inputImage.getHeight(); y++)
-			{
-				value = inputImage.getRGB(x, y);
-				if (value == DEFAUL_COLOR)
-					continue;
-				if (!maskMap.containsKey(value))
-				{
-					mask = new MaskClass(value);
-					maskMap.put(value, mask);
-				}
-				else
-					mask = maskMap.get(value);
-				mask.add(new Point(x, y));
-			}
-		return maskMap;
+		int sizeX = inputImage.getWidth();
+		int sizeY = inputImage.getHeight();
+		int[] plane = inputImage.getRGB(0, 0, sizeX, sizeY, null, 0, sizeX);
+		return MaskClass.createMasks(plane, sizeX, sizeY, DEFAUL_COLOR);
 	}
 	
 	/**
 	 * Creates Mask Class objects from the bytes stream, This will create a 
 	 * Mask object for each unique colour value in the image.  
 	 * 
-	 * @param bytes The bytes representing the image.
+	 * @param data The image values indexed by x then y.
 	 * @return A map of <Integer, MaskClass>
 	 * @throws IOException Thrown if an error occurred while creating the mask.
 	 */
 	private Map<Integer, MaskClass> createMasks(int[][] data) 
 		throws IOException
 	{
-		Map<Integer, MaskClass> maskMap = new HashMap<Integer, MaskClass>();
-	
+		int sizeX = data.length;
+		int sizeY = sizeX == 0 ? 0 : data[0].length;
+		int[] plane = new int[sizeX * sizeY];
 		int value;
-		MaskClass mask;
-		for (int y = 0; y < data.length; y++)
-			for (int x = 0; x < data[y].length; x++)
+		for (int x = 0; x < sizeX; x++)
+			for (int y = 0; y < sizeY; y++)
 			{
 				value = data[x][y];
-				if (value == DEFAUL_COLOR || value == 0)
-					continue;
-				if (!maskMap.containsKey(value))
-				{
-					mask = new MaskClass(value);
-					maskMap.put(value, mask);
-				}
-				else
-					mask = maskMap.get(value);
-				mask.add(new Point(x, y));
+				plane[y * sizeX + x] = value == DEFAUL_COLOR ? 0 : value;
 			}
-		return maskMap;
+		return MaskClass.createMasks(plane, sizeX, sizeY, 0);
 	}
 	
 	/**
@@ -205,5 +208,30 @@ public class UploadMask
 			rList.add((RoiI)roi.asIObject());
 		return rList;
 	}
+	
+	/**
+	 * Saves the ROIs created from uploading the images, several ROIs per
+	 * call to the server.
+	 * 
+	 * @param updateService The service used to save the ROIs.
+	 * @param batchSize The maximum number of ROIs to save per call.
+	 * @return The saved ROIs.
+	 * @throws ServerError Thrown if an error occurred while saving the ROIs.
+	 */
+	public List<Roi> saveROI(IUpdatePrx updateService, int batchSize)
+		throws ServerError
+	{
+		List<RoiI> rois = getROI();
+		List<Roi> saved = new ArrayList<Roi>(rois.size());
+		int step = Math.max(1, batchSize);
+		for (int i = 0; i < rois.size(); i += step)
+		{
+			List<IObject> batch = new ArrayList<IObject>(
+					rois.subList(i, Math.min(i + step, rois.size())));
+			for (IObject object : updateService.saveAndReturnArray(batch))
+				saved.add((Roi) object);
+		}
+		return saved;
+	}
 
 }
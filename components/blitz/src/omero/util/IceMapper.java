@@ -907,6 +907,8 @@ public class IceMapper extends ome.util.ModelMapper implements
             return source;
         } else if (RType.class.isAssignableFrom(source.getClass())) {
             return fromRType((RType) source);
+        } else if (source instanceof omero.romio.PlaneDef) {
+            return convert((omero.romio.PlaneDef) source);
         } else {
             omero.ApiUsageException aue = new omero.ApiUsageException();
             aue.message = "Don't know how to reverse " + source;
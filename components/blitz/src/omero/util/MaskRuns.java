@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package omero.util;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The points of one label of a labelled plane, held as runs of consecutive
+ * points along rows, and their packing into the bits of a mask shape.
+ * Used by both the server and the client to turn labelled planes into masks
+ * in a single pass over the plane.
+ * @since 5.4.10
+ */
+public class MaskRuns {
+
+    private final int label;
+
+    /* consecutive (y, first x, last x) triples */
+    private int[] runs = new int[3 * 4];
+
+    private int runsLength = 0;
+
+    private int minX, minY, maxX, maxY;
+
+    /**
+     * Creates an empty mask.
+     * @param label the label of the mask's points
+     */
+    public MaskRuns(int label) {
+        this.label = label;
+    }
+
+    /**
+     * Collects the points of each label of a plane in a single pass over the plane.
+     * @param plane the labels of the plane's points, row by row
+     * @param sizeX the width of the plane
+     * @param sizeY the height of the plane
+     * @param background the label of the points not in any mask
+     * @return the masks by label, in the order the labels are first met
+     */
+    public static Map<Integer, MaskRuns> fromPlane(int[] plane, int sizeX, int sizeY, int background) {
+        if (plane.length < sizeX * sizeY) {
+            throw new IllegalArgumentException("plane has " + plane.length + " points, expected " + sizeX * sizeY);
+        }
+        final Map<Integer, MaskRuns> masks = new LinkedHashMap<Integer, MaskRuns>();
+        MaskRuns mask = null;
+        int offset = 0;
+        for (int y = 0; y < sizeY; y++) {
+            int x = 0;
+            while (x < sizeX) {
+                final int value = plane[offset + x];
+                int end = x + 1;
+                while (end < sizeX && plane[offset + end] == value) {
+                    end++;
+                }
+                if (value != background) {
+                    /* neighbouring runs usually share a label */
+                    if (mask == null || mask.label != value) {
+                        mask = masks.get(value);
+                        if (mask == null) {
+                            mask = new MaskRuns(value);
+                            masks.put(value, mask);
+                        }
+                    }
+                    mask.addRun(y, x, end - 1);
+                }
+                x = end;
+            }
+            offset += sizeX;
+        }
+        return masks;
+    }
+
+    /**
+     * Adds a run of consecutive points along a row to the mask.
+     * @param y the row of the points
+     * @param firstX the x coordinate of the first point
+     * @param lastX the x coordinate of the last point
+     */
+    public void addRun(int y, int firstX, int lastX) {
+        if (runsLength == 0) {
+            minX = firstX;
+            minY = y;
+            maxX = lastX;
+            maxY = y;
+        } else {
+            minX = Math.min(firstX, minX);
+            minY = Math.min(y, minY);
+            maxX = Math.max(lastX, maxX);
+            maxY = Math.max(y, maxY);
+        }
+        if (runsLength == runs.length) {
+            runs = Arrays.copyOf(runs, 2 * runs.length);
+        }
+        runs[runsLength++] = y;
+        runs[runsLength++] = firstX;
+        runs[runsLength++] = lastX;
+    }
+
+    /**
+     * @return the label of the mask's points
+     */
+    public int getLabel() {
+        return label;
+    }
+
+    /**
+     * @return the minimum x coordinate of the mask
+     */
+    public int getX() {
+        return minX;
+    }
+
+    /**
+     * @return the minimum y coordinate of the mask
+     */
+    public int getY() {
+        return minY;
+    }
+
+    /**
+     * @return the width of the mask's bounding box
+     */
+    public int getWidth() {
+        return runsLength == 0 ? 0 : maxX - minX + 1;
+    }
+
+    /**
+     * @return the height of the mask's bounding box
+     */
+    public int getHeight() {
+        return runsLength == 0 ? 0 : maxY - minY + 1;
+    }
+
+    /**
+     * @return a (y, first x, last x) triple for each run of points along a row, in the order they were added
+     */
+    public int[] getRuns() {
+        return Arrays.copyOf(runs, runsLength);
+    }
+
+    /**
+     * Packs the mask's bounding box into bits row by row, the first point in the most significant bit, as for
+     * the bytes of a mask shape.
+     * @return the packed bits
+     */
+    public byte[] asBytes() {
+        final int width = getWidth();
+        final byte[] data = new byte[(int) Math.ceil((double) width * (double) getHeight() / 8.0)];
+        for (int i = 0; i < runsLength; i += 3) {
+            final int offset = (runs[i] - minY) * width + runs[i + 1] - minX;
+            setBits(data, offset, runs[i + 2] - runs[i + 1] + 1);
+        }
+        return data;
+    }
+
+    /**
+     * Sets a range of bits in a byte array, whole bytes at a time where possible.
+     * @param data the byte array
+     * @param bit the first bit to set
+     * @param count the number of bits to set
+     */
+    static void setBits(byte[] data, int bit, int count) {
+        final int end = bit + count;
+        while (bit < end && bit % 8 != 0) {
+            data[bit / 8] |= (byte) (0x80 >>> (bit++ % 8));
+        }
+        if (bit + 8 <= end) {
+            Arrays.fill(data, bit / 8, end / 8, (byte) 0xFF);
+            bit = end - end % 8;
+        }
+        while (bit < end) {
+            data[bit / 8] |= (byte) (0x80 >>> (bit++ % 8));
+        }
+    }
+}
@@ -21,9 +21,31 @@ public class RPSTileData implements TileData
 
     final protected RPSTileLoop loop;
 
+    /**
+     * The store to which tiles are written if shared with other instances,
+     * otherwise <code>null</code>.
+     */
+    final protected RawPixelsStorePrx writer;
+
     public RPSTileData(RPSTileLoop loop, RawPixelsStorePrx rps) {
+        this(loop, rps, null);
+    }
+
+    /**
+     * Reads tiles from a store of its own but writes them to a store shared
+     * with other instances, which is saved and closed by its owner.
+     * Closing this instance therefore does not save the pixels set.
+     * @param loop the loop which uses this instance
+     * @param rps the store from which to read tiles, closed with this instance
+     * @param writer the store to which to write tiles, may be <code>null</code>
+     * if it is <code>rps</code>
+     * @since 5.4.10
+     */
+    public RPSTileData(RPSTileLoop loop, RawPixelsStorePrx rps,
+            RawPixelsStorePrx writer) {
         this.loop = loop;
         this.rps = rps;
+        this.writer = writer;
     }
 
     public byte[] getTile(int z, int c, int t, int x, int y, int w, int h) {
@@ -36,7 +58,7 @@ public class RPSTileData implements TileData
 
     public void setTile(byte[] buffer, int z, int c, int t, int x, int y, int w, int h) {
         try {
-            rps.setTile(buffer, z, c, t, x, y, w, h);
+            (writer == null ? rps : writer).setTile(buffer, z, c, t, x, y, w, h);
         } catch (ServerError se) {
             throw new RuntimeException(se);
         }
@@ -44,6 +66,11 @@ public class RPSTileData implements TileData
 
     public void close() {
         try {
+            if (writer != null) {
+                /* unmodified so not saved */
+                rps.close();
+                return;
+            }
             Pixels pixels = rps.save();
             loop.setPixels(pixels);
             rps.close();
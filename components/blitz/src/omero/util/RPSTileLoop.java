@@ -30,6 +30,12 @@ public class RPSTileLoop extends TileLoop {
      */
     protected volatile Pixels pixels;
 
+    /**
+     * The store to which all tiles are written while tiles are accessed
+     * concurrently, otherwise <code>null</code>.
+     */
+    private volatile RawPixelsStorePrx writer;
+
     public RPSTileLoop(ServiceFactoryPrx session, Pixels pixels) {
         this.session = session;
         this.pixels = pixels;
@@ -66,7 +72,7 @@ public class RPSTileLoop extends TileLoop {
         try {
             RawPixelsStorePrx rps = getSession().createRawPixelsStore();
             rps.setPixelsId(getPixels().getId().getValue(), false); // 'false' is ignored here.
-            return new RPSTileData(this, rps);
+            return new RPSTileData(this, rps, writer);
         } catch (ServerError se) {
             throw new RuntimeException(se);
         }
@@ -85,6 +91,35 @@ public class RPSTileLoop extends TileLoop {
      */
     public int forEachTile(int tileWidth, int tileHeight,
                            TileLoopIteration iteration) throws ClientError, ServerError {
+        return forEachTile(tileWidth, tileHeight, 1, iteration);
+    }
+
+    /**
+     * Iterates over every tile in a given pixel based on the
+     * over arching dimensions and a requested maximum tile width and height,
+     * keeping several tiles in flight at once through a separate
+     * {@link RawPixelsStorePrx} for each thread. Tiles are however all written
+     * through one further store which is saved, calculating the checksum of
+     * the pixel data, once every thread has finished. The server handles the
+     * calls to that store one at a time so the writes themselves are not
+     * parallel: the gain is from reading tiles concurrently and from
+     * overlapping the network round trips of the writes with the work of the
+     * other threads. Since the server accepts only one writer of a pixels set
+     * which requires a pyramid, the tiles of such pixels sets are iterated
+     * over one at a time.
+     * @param tileWidth <b>Maximum</b> width of the tile requested. The tile
+     * request itself will be smaller than the original tile width requested if
+     * <code>x + tileWidth > sizeX</code>.
+     * @param tileHeight <b>Maximum</b> height of the tile requested. The tile
+     * request itself will be smaller if <code>y + tileHeight > sizeY</code>.
+     * @param concurrency How many tiles may be accessed at once.
+     * @param iteration Invoker to call for each tile, must be thread-safe if
+     * <code>concurrency</code> is greater than one.
+     * @return The total number of tiles iterated over.
+     * @see TileLoop#forEachTile(int, int, int, int, int, int, int, int, TileLoopIteration)
+     */
+    public int forEachTile(int tileWidth, int tileHeight, int concurrency,
+                           TileLoopIteration iteration) throws ClientError, ServerError {
 
         if (!pixels.isLoaded()) {
             try {
@@ -100,7 +135,38 @@ public class RPSTileLoop extends TileLoop {
         final int sizeC = pixels.getSizeC().getValue();
         final int sizeT = pixels.getSizeT().getValue();
 
-        return forEachTile(sizeX, sizeY, sizeZ, sizeC, sizeT, tileWidth, tileHeight, iteration);
+        if (concurrency > 1 && requiresPixelsPyramid()) {
+            concurrency = 1;
+        }
+
+        if (concurrency <= 1) {
+            return forEachTile(sizeX, sizeY, sizeZ, sizeC, sizeT, tileWidth, tileHeight, iteration);
+        }
+
+        final RawPixelsStorePrx rps = getSession().createRawPixelsStore();
+        final TileData saver = new RPSTileData(this, rps);
+        try {
+            rps.setPixelsId(getPixels().getId().getValue(), false);
+            writer = rps;
+            return forEachTile(sizeX, sizeY, sizeZ, sizeC, sizeT, tileWidth, tileHeight, concurrency, iteration);
+        } finally {
+            writer = null;
+            saver.close();
+        }
 
     }
+
+    /**
+     * Asks the server if the pixels set requires a pyramid.
+     * @return if the pixels set requires a pyramid
+     */
+    private boolean requiresPixelsPyramid() throws ServerError {
+        final RawPixelsStorePrx rps = getSession().createRawPixelsStore();
+        try {
+            rps.setPixelsId(getPixels().getId().getValue(), false);
+            return rps.requiresPixelsPyramid();
+        } finally {
+            rps.close();
+        }
+    }
 }
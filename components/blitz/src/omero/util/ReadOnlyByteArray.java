@@ -23,6 +23,8 @@
 
 package omero.util;
 
+import java.nio.ByteBuffer;
+
 /** 
  * A read-only slice of a given array.
  * Given a <code>base</code> array and an interval <code>[offset, offset+length]
@@ -110,4 +112,16 @@ public class ReadOnlyByteArray
 		return base[offset+index];
 	}
 
+	/**
+	 * Returns a read-only, big-endian view of this slice, so that the
+	 * element at index <code>0</code> of the buffer is the element at the
+	 * <code>0</code> position in this slice. The elements are not copied.
+	 * 
+	 * @return	See above.
+	 */
+	public ByteBuffer asByteBuffer()
+	{
+		return ByteBuffer.wrap(base, offset, length).slice().asReadOnlyBuffer();
+	}
+
 }
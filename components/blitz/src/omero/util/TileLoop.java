@@ -6,6 +6,15 @@
  */
 package omero.util;
 
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
 /**
  * @author Josh Moore, josh at glencoesoftware.com
  * @since 4.3.0
@@ -45,48 +54,219 @@ public abstract class TileLoop {
 
         try
         {
-            int x, y, w, h;
-            int tileCount = 0;
-            for (int t = 0; t < sizeT; t++)
-            {
-                for (int c = 0; c < sizeC; c++)
-                {
-                    for (int z = 0; z < sizeZ; z++)
-                    {
-                        for (int tileOffsetY = 0;
-                            tileOffsetY < (sizeY + tileHeight - 1) / tileHeight;
-                            tileOffsetY++)
-                        {
-                            for (int tileOffsetX = 0;
-                                tileOffsetX < (sizeX + tileWidth - 1) / tileWidth;
-                                tileOffsetX++)
-                            {
-                                x = tileOffsetX * tileWidth;
-                                y = tileOffsetY * tileHeight;
-                                w = tileWidth;
-                                if (w + x > sizeX)
-                                {
-                                    w = sizeX - x;
-                                }
-                                h = tileHeight;
-                                if (h + y > sizeY)
-                                {
-                                    h = sizeY - y;
+            return iterate(sizeX, sizeY, sizeZ, sizeC, sizeT,
+                    tileWidth, tileHeight, data, iteration);
+
+        } finally {
+
+            data.close();
+
+        }
+    }
+
+    /**
+     * Iterates over every tile as
+     * {@link #forEachTile(int, int, int, int, int, int, int, TileLoopIteration)}
+     * does but keeps several tiles in flight at once, so that the loop is not
+     * limited by the latency of each tile's access. Each of
+     * <code>concurrency</code> threads uses its own {@link TileData} from
+     * {@link #createData()}, closed once the loop ends, and the tiles are
+     * handed to the threads in order through a window of at most
+     * <code>2 * concurrency</code> waiting tiles. The iteration is therefore
+     * called from several threads at once and tiles may complete out of order.
+     * If an iteration throws then no further tiles are started and the
+     * exception is rethrown once the threads have stopped.
+     * @param sizeX the size of the plane's X dimension
+     * @param sizeY the size of the plane's Y dimension
+     * @param sizeZ the size of the plane's Z dimension
+     * @param sizeC the size of the plane's C dimension
+     * @param sizeT the size of the plane's T dimension
+     * @param tileWidth <b>Maximum</b> width of the tile requested.
+     * @param tileHeight <b>Maximum</b> height of the tile requested.
+     * @param concurrency How many tiles may be accessed at once. If not
+     * greater than one the tiles are iterated over in the calling thread.
+     * @param iteration Invoker to call for each tile, must be thread-safe.
+     * @return The total number of tiles iterated over.
+     */
+    public int forEachTile(int sizeX, int sizeY,
+                           int sizeZ, int sizeC, int sizeT,
+                           int tileWidth, int tileHeight, int concurrency,
+                           final TileLoopIteration iteration) {
+
+        if (concurrency <= 1) {
+            return forEachTile(sizeX, sizeY, sizeZ, sizeC, sizeT,
+                    tileWidth, tileHeight, iteration);
+        }
+
+        final BlockingQueue<int[]> window =
+                new ArrayBlockingQueue<int[]>(2 * concurrency);
+        final AtomicReference<Throwable> failure =
+                new AtomicReference<Throwable>();
+        final ExecutorService workers = Executors.newFixedThreadPool(
+                concurrency, new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+                    public Thread newThread(Runnable runnable) {
+                        final Thread thread = new Thread(runnable,
+                                "TileLoop-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+
+        try {
+            for (int i = 0; i < concurrency; i++) {
+                workers.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            final TileData data = createData();
+                            try {
+                                int[] tile;
+                                while ((tile = window.take()) != END
+                                        && failure.get() == null) {
+                                    iteration.run(data, tile[0], tile[1],
+                                            tile[2], tile[3], tile[4], tile[5],
+                                            tile[6], tile[7]);
                                 }
-                                iteration.run(data, z, c, t, x, y, w, h, tileCount);
-                                tileCount++;
+                            } finally {
+                                data.close();
                             }
+                        } catch (Throwable t) {
+                            failure.compareAndSet(null, t);
                         }
                     }
-                }
+                });
             }
 
+            final int tileCount = iterate(sizeX, sizeY, sizeZ, sizeC, sizeT,
+                    tileWidth, tileHeight, null, new TileLoopIteration() {
+                        public void run(TileData ignored, int z, int c, int t,
+                                int x, int y, int w, int h, int count) {
+                            enqueue(window, failure,
+                                    new int[] {z, c, t, x, y, w, h, count});
+                        }
+                    });
+            for (int i = 0; i < concurrency; i++) {
+                enqueue(window, failure, END);
+            }
+            workers.shutdown();
+            while (!workers.awaitTermination(1, TimeUnit.SECONDS)) {
+                /* an iteration may take long */
+            }
+            rethrow(failure.get());
             return tileCount;
 
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while iterating tiles", ie);
+        } catch (StoppedException se) {
+            /* other threads may be waiting for tiles that will not come */
+            workers.shutdownNow();
+            try {
+                while (!workers.awaitTermination(1, TimeUnit.SECONDS)) {
+                    /* wait for the tile data to close */
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            rethrow(failure.get());
+            throw se;
         } finally {
+            workers.shutdownNow();
+        }
+    }
 
-            data.close();
+    /** Marks the end of the tiles in the window. */
+    private static final int[] END = new int[0];
+
+    /** Stops the enqueueing of tiles once an iteration failed. */
+    private static class StoppedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Adds a tile to the window, waiting for room unless an iteration failed.
+     * @param window the window of tiles waiting for a thread
+     * @param failure the first failure of an iteration, if any
+     * @param tile the tile to add
+     */
+    private static void enqueue(BlockingQueue<int[]> window,
+            AtomicReference<Throwable> failure, int[] tile) {
+        try {
+            while (!window.offer(tile, 100, TimeUnit.MILLISECONDS)) {
+                if (failure.get() != null) {
+                    throw new StoppedException();
+                }
+            }
+            if (failure.get() != null && tile != END) {
+                throw new StoppedException();
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while iterating tiles", ie);
+        }
+    }
+
+    /**
+     * Rethrows the failure of an iteration, if any.
+     * @param failure the failure or <code>null</code>
+     */
+    private static void rethrow(Throwable failure) {
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw new RuntimeException(failure);
+        }
+    }
 
+    /**
+     * Calls the iteration for every tile in turn.
+     * @param data the tile access strategy to pass to the iteration
+     * @return The total number of tiles iterated over.
+     * @see #forEachTile(int, int, int, int, int, int, int, TileLoopIteration)
+     */
+    private static int iterate(int sizeX, int sizeY,
+                               int sizeZ, int sizeC, int sizeT,
+                               int tileWidth, int tileHeight,
+                               TileData data, TileLoopIteration iteration) {
+
+        int x, y, w, h;
+        int tileCount = 0;
+        for (int t = 0; t < sizeT; t++)
+        {
+            for (int c = 0; c < sizeC; c++)
+            {
+                for (int z = 0; z < sizeZ; z++)
+                {
+                    for (int tileOffsetY = 0;
+                        tileOffsetY < (sizeY + tileHeight - 1) / tileHeight;
+                        tileOffsetY++)
+                    {
+                        for (int tileOffsetX = 0;
+                            tileOffsetX < (sizeX + tileWidth - 1) / tileWidth;
+                            tileOffsetX++)
+                        {
+                            x = tileOffsetX * tileWidth;
+                            y = tileOffsetY * tileHeight;
+                            w = tileWidth;
+                            if (w + x > sizeX)
+                            {
+                                w = sizeX - x;
+                            }
+                            h = tileHeight;
+                            if (h + y > sizeY)
+                            {
+                                h = sizeY - y;
+                            }
+                            iteration.run(data, z, c, t, x, y, w, h, tileCount);
+                            tileCount++;
+                        }
+                    }
+                }
+            }
         }
+
+        return tileCount;
     }
 }
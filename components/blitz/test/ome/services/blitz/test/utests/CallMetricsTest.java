@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.services.blitz.test.utests;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+
+import ome.security.basic.CurrentDetails;
+import ome.services.throttling.CallMetrics;
+import ome.services.throttling.InThreadThrottlingStrategy;
+import ome.services.throttling.Task;
+import ome.system.OmeroContext;
+import ome.system.metrics.DefaultMetrics;
+
+import org.apache.commons.io.IOUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the recording and the reporting of the servant call metrics by
+ * {@link CallMetrics}.
+ * @since 5.4.10
+ */
+public class CallMetricsTest {
+
+    private static Ice.Current current(String service, String operation) {
+        final Ice.Current current = new Ice.Current();
+        current.id = new Ice.Identity();
+        current.id.category = "session";
+        current.id.name = "a1b2c3d4-0000-0000-0000-000000000000omero.api."
+                + service;
+        current.operation = operation;
+        return current;
+    }
+
+    private static String line(String report, String method) {
+        for (final String line : report.split("\n")) {
+            if (line.startsWith(method + " ")) {
+                return line;
+            }
+        }
+        Assert.fail("no line for " + method + " in " + report);
+        return null;
+    }
+
+    /**
+     * Test that the calls, the calls in flight and the argument sizes are
+     * recorded per service method.
+     */
+    @Test
+    public void testRecordPerMethod() {
+        final CallMetrics metrics = new CallMetrics(new DefaultMetrics(),
+                true, 0);
+        metrics.start(current("RawPixelsStore", "getPlane"),
+                new Object[] {0, 0, 0}).stop();
+        metrics.start(current("RawPixelsStore", "getPlane"),
+                new Object[] {0, 0, 1}).stop();
+        final CallMetrics.Call running = metrics.start(
+                current("RawPixelsStore", "setPlane"),
+                new Object[] {new byte[1000], 0, 0, 0});
+        metrics.start(current("IQuery", "findAllByQuery"), new Object[] {
+                "select i from Image i", Collections.singletonMap("a", 1)})
+                .stop();
+        String report = metrics.report();
+        Assert.assertEquals(report.split("\n").length, 3);
+        Assert.assertTrue(line(report, "RawPixelsStore.getPlane")
+                .contains(" calls=2 in_flight=0 "));
+        Assert.assertTrue(line(report, "RawPixelsStore.getPlane")
+                .contains(" arg_size_max=3"));
+        Assert.assertTrue(line(report, "RawPixelsStore.setPlane")
+                .contains(" calls=1 in_flight=1 "));
+        Assert.assertTrue(line(report, "RawPixelsStore.setPlane")
+                .contains(" arg_size_max=1003"));
+        Assert.assertTrue(line(report, "IQuery.findAllByQuery")
+                .contains(" arg_size_max=22"));
+        running.stop();
+        report = metrics.report();
+        Assert.assertTrue(line(report, "RawPixelsStore.setPlane")
+                .contains(" calls=1 in_flight=0 "));
+    }
+
+    /**
+     * Test that nothing is recorded if not enabled.
+     */
+    @Test
+    public void testDisabled() {
+        final CallMetrics metrics = new CallMetrics(new DefaultMetrics(),
+                false, 0);
+        metrics.start(current("RawPixelsStore", "getPlane"), null).stop();
+        Assert.assertEquals(metrics.report(), "");
+    }
+
+    /**
+     * Test that the calls run by a throttling strategy are recorded.
+     */
+    @Test
+    public void testStrategyRecordsCalls() {
+        final CallMetrics metrics = new CallMetrics(new DefaultMetrics(),
+                true, 0);
+        final InThreadThrottlingStrategy strategy =
+                new InThreadThrottlingStrategy(new CurrentDetails());
+        strategy.setCallMetrics(metrics);
+        final Ice.Current current = current("RenderingEngine", "render");
+        for (int i = 0; i < 3; i++) {
+            strategy.runnableCall(current, new Task(null, current, true) {
+                @Override
+                public void run(OmeroContext ctx) {
+                }
+            });
+        }
+        Assert.assertTrue(line(metrics.report(), "RenderingEngine.render")
+                .contains(" calls=3 in_flight=0 "));
+    }
+
+    /**
+     * Test that the report is served over HTTP on the loopback interface.
+     * @throws Exception unexpected
+     */
+    @Test
+    public void testHttpEndpoint() throws Exception {
+        final int port;
+        final ServerSocket socket = new ServerSocket(0);
+        try {
+            port = socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+        final CallMetrics metrics = new CallMetrics(new DefaultMetrics(),
+                true, port);
+        try {
+            metrics.start(current("ThumbnailStore", "getThumbnailSet"),
+                    new Object[] {64, 64, Arrays.asList(1L, 2L, 3L)}).stop();
+            final HttpURLConnection connection = (HttpURLConnection)
+                    new URL("http://127.0.0.1:" + port + "/").openConnection();
+            Assert.assertEquals(connection.getResponseCode(), 200);
+            final InputStream in = connection.getInputStream();
+            try {
+                final String report = IOUtils.toString(in, "UTF-8");
+                Assert.assertTrue(line(report, "ThumbnailStore.getThumbnailSet")
+                        .contains(" arg_size_max=5"));
+            } finally {
+                in.close();
+            }
+        } finally {
+            metrics.destroy();
+        }
+    }
+}
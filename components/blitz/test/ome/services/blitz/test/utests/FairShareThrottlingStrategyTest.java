@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.services.blitz.test.utests;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import ome.security.basic.CurrentDetails;
+import ome.services.throttling.FairShareThrottlingStrategy;
+import ome.services.throttling.FairShareThrottlingStrategy.CallClass;
+import ome.services.throttling.Task;
+import ome.system.OmeroContext;
+import ome.system.metrics.NullMetrics;
+import omero.TryAgain;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the classification, the fair ordering and the load shedding of the
+ * {@link FairShareThrottlingStrategy}.
+ * @since 5.4.10
+ */
+public class FairShareThrottlingStrategyTest {
+
+    private FairShareThrottlingStrategy strategy;
+
+    private final List<String> ran =
+            Collections.synchronizedList(new ArrayList<String>());
+
+    private final List<Throwable> rejected =
+            Collections.synchronizedList(new ArrayList<Throwable>());
+
+    /** Released to let the blocking tasks complete. */
+    private CountDownLatch release;
+
+    /** Counts down as the tasks complete. */
+    private CountDownLatch done;
+
+    /**
+     * A task which records its name when run and the exception by which it is
+     * rejected, optionally blocking until {@link #release} counts down.
+     */
+    private class RecordingTask extends Task {
+
+        private final String name;
+
+        private final boolean block;
+
+        RecordingTask(Ice.Current current, String name, boolean block) {
+            super(null, current, true);
+            this.name = name;
+            this.block = block;
+        }
+
+        @Override
+        public void run(OmeroContext ctx) {
+            try {
+                if (block) {
+                    release.await(10, TimeUnit.SECONDS);
+                }
+                ran.add(name);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                done.countDown();
+            }
+        }
+
+        @Override
+        protected void exception(Throwable ex, OmeroContext ctx) {
+            rejected.add(ex);
+        }
+    }
+
+    private static Ice.Current current(String session, String service,
+            String operation) {
+        final Ice.Current current = new Ice.Current();
+        current.id = new Ice.Identity();
+        current.id.category = session;
+        current.id.name = "a1b2c3d4-0000-0000-0000-000000000000omero.api."
+                + service;
+        current.operation = operation;
+        return current;
+    }
+
+    private void call(String session, String name, boolean block) {
+        strategy.runnableCall(current(session, "RawPixelsStore", "getPlane"),
+                new RecordingTask(current(session, "RawPixelsStore",
+                        "getPlane"), name, block));
+    }
+
+    @BeforeMethod
+    public void setUp() {
+        strategy = new FairShareThrottlingStrategy(new CurrentDetails(),
+                new NullMetrics(), true, "RawPixelsStore",
+                "RenderingEngine,ThumbnailStore.getThumbnail", 1, 1, 1);
+        ran.clear();
+        rejected.clear();
+        release = new CountDownLatch(1);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        release.countDown();
+        strategy.destroy();
+    }
+
+    @Test
+    public void testClassification() throws Exception {
+        done = new CountDownLatch(4);
+        strategy.runnableCall(current("s", "RawPixelsStore", "getTile"),
+                new RecordingTask(null, "io", true));
+        strategy.runnableCall(current("s", "RenderingEngine", "render"),
+                new RecordingTask(null, "cpu", true));
+        strategy.runnableCall(current("s", "ThumbnailStore", "getThumbnail"),
+                new RecordingTask(null, "thumbnail", true));
+        strategy.runnableCall(current("s", "IQuery", "findAllByQuery"),
+                new RecordingTask(null, "query", true));
+        Assert.assertEquals(strategy.getRunning(CallClass.IO), 1);
+        Assert.assertEquals(strategy.getRunning(CallClass.CPU), 1);
+        Assert.assertEquals(strategy.getQueued(CallClass.CPU), 1);
+        Assert.assertEquals(strategy.getRunning(CallClass.METADATA), 1);
+        release.countDown();
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(ran.size(), 4);
+    }
+
+    @Test
+    public void testSessionsTakeTurns() throws Exception {
+        done = new CountDownLatch(5);
+        call("a", "a0", true);
+        call("a", "a1", false);
+        call("a", "a2", false);
+        call("a", "a3", false);
+        call("b", "b0", false);
+        Assert.assertEquals(strategy.getQueued(CallClass.IO), 4);
+        release.countDown();
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(ran,
+                Arrays.asList("a0", "a1", "b0", "a2", "a3"));
+        Assert.assertEquals(strategy.getQueued(CallClass.IO), 0);
+    }
+
+    @Test
+    public void testOverflowRejected() throws Exception {
+        strategy.setMaxQueuedPerSession(2);
+        strategy.setBackOff(250);
+        done = new CountDownLatch(4);
+        call("a", "a0", true);
+        call("a", "a1", false);
+        call("a", "a2", false);
+        call("a", "a3", false);
+        call("b", "b0", false);
+        Assert.assertEquals(rejected.size(), 1);
+        Assert.assertTrue(rejected.get(0) instanceof TryAgain);
+        Assert.assertEquals(((TryAgain) rejected.get(0)).backOff, 250);
+        release.countDown();
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Assert.assertFalse(ran.contains("a3"));
+        Assert.assertTrue(ran.contains("b0"));
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package omero.cmd;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import ome.services.util.Executor;
+import ome.services.util.ReadOnlyStatus;
+import omero.cmd.graphs.Delete2I;
+import omero.cmd.graphs.DiskUsage2I;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Test the assignment of requests to lanes and the order in which queued requests are started.
+ * @since 5.4.10
+ */
+@Test
+public class RequestSchedulerTest {
+
+    /* the callables submitted to the executor, in order */
+    private final List<Callable<?>> submitted = new ArrayList<Callable<?>>();
+
+    private Executor executor;
+
+    private RequestScheduler scheduler;
+
+    /**
+     * Set up a scheduler whose executor records rather than runs the submitted callables.
+     */
+    @BeforeMethod
+    public void setup() {
+        submitted.clear();
+        executor = (Executor) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {Executor.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if ("submit".equals(method.getName())) {
+                            submitted.add((Callable<?>) args[args.length - 1]);
+                        }
+                        return null;
+                    }
+                });
+        scheduler = new RequestScheduler(1, 1, 1, 1);
+    }
+
+    private static Delete2I delete(String className, Long... ids) {
+        final Delete2I request = new Delete2I(null, null, null, null, null, null, null, null, null);
+        request.targetObjects = new HashMap<String, List<Long>>();
+        request.targetObjects.put(className, Arrays.asList(ids));
+        return request;
+    }
+
+    /**
+     * Submit a request whose handle does nothing when run.
+     * @param request the request
+     */
+    private void submit(IRequest request) {
+        final HandleI handle = new HandleI(new ReadOnlyStatus(false, false), 1000);
+        final Ice.Identity id = new Ice.Identity();
+        id.name = "test";
+        handle.initialize(id, request, null);
+        try {
+            handle.cancel(null);
+        } catch (LockTimeout lt) {
+            Assert.fail("cannot cancel new handle", lt);
+        }
+        scheduler.submit(handle, request, executor, null, null);
+    }
+
+    /**
+     * Test that requests are assigned lanes by their type.
+     */
+    public void testLanes() {
+        Assert.assertEquals(RequestScheduler.getLane(delete("Image", 1L)), RequestScheduler.Lane.GRAPH);
+        Assert.assertEquals(RequestScheduler.getLane(new DiskUsage2I(null, null, null, null, null, null)),
+                RequestScheduler.Lane.QUERY);
+    }
+
+    /**
+     * Test that the estimated size of a request depends on the classes of its targets.
+     */
+    public void testEstimates() {
+        Assert.assertEquals(RequestScheduler.getEstimate(delete("Image", 1L, 2L)), 20);
+        Assert.assertEquals(RequestScheduler.getEstimate(delete("ome.model.containers.Project", 1L)), 1000);
+        Assert.assertEquals(RequestScheduler.getEstimate(delete("Roi", 1L)), 1);
+    }
+
+    /**
+     * Test that a lane runs only its limit of requests at once and that the smaller queued request is started first.
+     * @throws Exception unexpected
+     */
+    public void testSmallerRequestStartsFirst() throws Exception {
+        submit(delete("Project", 1L, 2L, 3L));
+        submit(delete("Project", 4L, 5L));
+        submit(delete("Image", 6L));
+        submit(new DiskUsage2I(null, null, null, null, null, null));
+        Assert.assertEquals(submitted.size(), 2);
+        Assert.assertEquals(scheduler.getQueuedCounts().get("GRAPH"), Integer.valueOf(2));
+        Assert.assertEquals(scheduler.getRunningCounts().get("QUERY"), Integer.valueOf(1));
+
+        submitted.get(0).call();
+        Assert.assertEquals(submitted.size(), 3);
+        final String[] running = scheduler.getRunningRequests();
+        Assert.assertEquals(running.length, 2);
+        Assert.assertTrue(running[0].contains("estimate=10 "), running[0]);
+
+        submitted.get(2).call();
+        Assert.assertEquals(submitted.size(), 4);
+        Assert.assertTrue(scheduler.getRunningRequests()[0].contains("estimate=2000 "));
+        Assert.assertEquals(scheduler.getQueuedRequests().length, 0);
+    }
+
+    /**
+     * Test that a request that has waited too long is started before smaller ones.
+     * @throws Exception unexpected
+     */
+    public void testOverdueRequestStartsFirst() throws Exception {
+        scheduler.setMaxWait(0);
+        submit(delete("Image", 1L));
+        submit(delete("Project", 2L));
+        Thread.sleep(5);
+        submit(delete("Image", 3L));
+        Thread.sleep(5);
+        submitted.get(0).call();
+        Assert.assertTrue(scheduler.getRunningRequests()[0].contains("estimate=1000 "));
+        Assert.assertEquals(scheduler.getQueuedRequests().length, 1);
+    }
+
+    /**
+     * Test that a lane without a limit starts every request at once.
+     */
+    public void testNoLimit() {
+        scheduler = new RequestScheduler(0, 0, 0, 0);
+        submit(delete("Project", 1L));
+        submit(delete("Image", 2L));
+        submit(delete("Image", 3L));
+        Assert.assertEquals(submitted.size(), 3);
+        Assert.assertEquals(scheduler.getRunningCounts().get("GRAPH"), Integer.valueOf(3));
+        Assert.assertEquals(scheduler.getQueuedRequests().length, 0);
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package omero.gateway.rnd;
+
+import java.util.Random;
+
+import omero.util.ReadOnlyByteArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for reading pixel values from planes without converting them all up front.
+ * @since 5.4.10
+ */
+@Test(groups = "unit")
+public class Plane2DTest {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Plane2DTest.class);
+
+    /**
+     * @return the pixel types with their number of bytes per pixel
+     */
+    @DataProvider(name = "pixel types")
+    public Object[][] providePixelTypes() {
+        return new Object[][] {
+                {DataSink.INT_8, 1}, {DataSink.UINT_8, 1},
+                {DataSink.INT_16, 2}, {DataSink.UINT_16, 2},
+                {DataSink.INT_32, 4}, {DataSink.UINT_32, 4},
+                {DataSink.FLOAT, 4}, {DataSink.DOUBLE, 8}};
+    }
+
+    /**
+     * Create random raw plane data.
+     * @param size the number of bytes
+     * @return the bytes
+     */
+    private static byte[] randomBytes(int size) {
+        final byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Convert the pixel values of a plane all up front, as {@link Plane2D} used to.
+     * @param data the raw data
+     * @param sizeX the width of the plane
+     * @param sizeY the height of the plane
+     * @param bytesPerPixel the number of bytes per pixel
+     * @param converter the converter for the pixel type
+     * @return the pixel values indexed by x then y
+     */
+    private static double[][] convertEagerly(ReadOnlyByteArray data, int sizeX, int sizeY, int bytesPerPixel,
+            BytesConverter converter) {
+        final double[][] values = new double[sizeX][sizeY];
+        for (int x = 0; x < sizeX; x++) {
+            for (int y = 0; y < sizeY; y++) {
+                values[x][y] = converter.pack(data, bytesPerPixel * (sizeX * y + x), bytesPerPixel);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Test that the values read from the raw data match those converted up front.
+     * @param pixelType the pixel type
+     * @param bytesPerPixel the number of bytes per pixel
+     */
+    @Test(dataProvider = "pixel types")
+    public void testValuesMatchConversion(String pixelType, int bytesPerPixel) {
+        final int sizeX = 37;
+        final int sizeY = 23;
+        final BytesConverter converter = BytesConverter.getConverter(pixelType);
+        final ReadOnlyByteArray data = new ReadOnlyByteArray(randomBytes(sizeX * sizeY * bytesPerPixel), 0,
+                sizeX * sizeY * bytesPerPixel);
+        final double[][] expected = convertEagerly(data, sizeX, sizeY, bytesPerPixel, converter);
+        final Plane2D plane = new Plane2D(data, sizeX, sizeY, bytesPerPixel, converter);
+        final double[] region = plane.getRegion(5, 3, 20, 10, (double[]) null);
+        final int[] intRegion = plane.isIntType() ? plane.getRegion(5, 3, 20, 10, (int[]) null) : null;
+        for (int y = 0; y < sizeY; y++) {
+            for (int x = 0; x < sizeX; x++) {
+                final double value = plane.getPixelValue(x, y);
+                if (Double.isNaN(expected[x][y])) {
+                    Assert.assertTrue(Double.isNaN(value));
+                    continue;
+                }
+                Assert.assertEquals(value, expected[x][y], 0);
+                if (plane.isIntType()) {
+                    Assert.assertEquals((double) plane.getIntValue(x, y), expected[x][y], 0);
+                }
+                if (x >= 5 && x < 25 && y >= 3 && y < 13) {
+                    final int index = (y - 3) * 20 + x - 5;
+                    Assert.assertEquals(region[index], expected[x][y], 0);
+                    if (intRegion != null) {
+                        Assert.assertEquals((double) intRegion[index], expected[x][y], 0);
+                    }
+                }
+            }
+        }
+        final double[][] values = plane.getPixelValues();
+        Assert.assertEquals(values.length, sizeX);
+        Assert.assertEquals(Double.compare(values[sizeX - 1][sizeY - 1], expected[sizeX - 1][sizeY - 1]), 0);
+    }
+
+    /**
+     * Test that only the integer types whose values fit an {@code int} may be read as such.
+     */
+    @Test
+    public void testIntTypes() {
+        final ReadOnlyByteArray data = new ReadOnlyByteArray(new byte[16], 0, 16);
+        Assert.assertTrue(new Plane2D(data, 2, 2, 2, BytesConverter.getConverter(DataSink.UINT_16)).isIntType());
+        Assert.assertTrue(new Plane2D(data, 2, 2, 4, BytesConverter.getConverter(DataSink.INT_32)).isIntType());
+        Assert.assertFalse(new Plane2D(data, 2, 2, 4, BytesConverter.getConverter(DataSink.UINT_32)).isIntType());
+        Assert.assertFalse(new Plane2D(data, 2, 2, 4, BytesConverter.getConverter(DataSink.FLOAT)).isIntType());
+    }
+
+    /**
+     * Test that regions must lie within the plane.
+     */
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testRegionOutsidePlane() {
+        final ReadOnlyByteArray data = new ReadOnlyByteArray(new byte[16], 0, 16);
+        new Plane2D(data, 4, 4, 1, BytesConverter.getConverter(DataSink.UINT_8)).getRegion(2, 2, 3, 1, (int[]) null);
+    }
+
+    /**
+     * Compare the time taken to read a large 16-bit plane by converting it up front and by bulk copying its rows.
+     */
+    @Test(groups = "manual")
+    public void benchmarkPlaneRead() {
+        final int size = 2048;
+        final int bytesPerPixel = 2;
+        final BytesConverter converter = BytesConverter.getConverter(DataSink.UINT_16);
+        final ReadOnlyByteArray data = new ReadOnlyByteArray(randomBytes(size * size * bytesPerPixel), 0,
+                size * size * bytesPerPixel);
+        long eagerNanos = Long.MAX_VALUE, rowNanos = Long.MAX_VALUE;
+        double eagerSum = 0, rowSum = 0;
+        for (int run = 0; run < 5; run++) {
+            long start = System.nanoTime();
+            final double[][] values = convertEagerly(data, size, size, bytesPerPixel, converter);
+            eagerSum = 0;
+            for (int x = 0; x < size; x++) {
+                for (int y = 0; y < size; y++) {
+                    eagerSum += values[x][y];
+                }
+            }
+            eagerNanos = Math.min(eagerNanos, System.nanoTime() - start);
+            start = System.nanoTime();
+            final Plane2D plane = new Plane2D(data, size, size, bytesPerPixel, converter);
+            final int[] row = new int[size];
+            rowSum = 0;
+            for (int y = 0; y < size; y++) {
+                plane.getRow(y, row);
+                for (final int value : row) {
+                    rowSum += value;
+                }
+            }
+            rowNanos = Math.min(rowNanos, System.nanoTime() - start);
+        }
+        Assert.assertEquals(rowSum, eagerSum, 0);
+        LOGGER.info("read {}x{} 16-bit plane: converted up front in {} ms, by rows in {} ms",
+                size, size, eagerNanos / 1000000, rowNanos / 1000000);
+    }
+}
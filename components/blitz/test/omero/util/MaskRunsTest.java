@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package omero.util;
+
+import java.util.Map;
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for collecting masks from labelled planes.
+ * @since 5.4.10
+ */
+@Test(groups = "unit")
+public class MaskRunsTest {
+
+    /**
+     * Test that the masks collected in one pass over a plane are packed as if built point by point.
+     * @throws Exception unexpected
+     */
+    @Test
+    public void testMasksMatchPointByPoint() throws Exception {
+        final int sizeX = 97;
+        final int sizeY = 53;
+        final int[] plane = new int[sizeX * sizeY];
+        final Random random = new Random(1);
+        for (int i = 0; i < plane.length; i++) {
+            /* runs of varying length, some crossing byte boundaries */
+            plane[i] = i > 0 && random.nextInt(4) > 0 ? plane[i - 1] : random.nextInt(6);
+        }
+        final Map<Integer, MaskRuns> masks = MaskRuns.fromPlane(plane, sizeX, sizeY, 0);
+        Assert.assertFalse(masks.containsKey(0));
+        for (final Map.Entry<Integer, MaskRuns> entry : masks.entrySet()) {
+            final MaskRuns expected = new MaskRuns(entry.getKey());
+            for (int y = 0; y < sizeY; y++) {
+                for (int x = 0; x < sizeX; x++) {
+                    if (plane[y * sizeX + x] == entry.getKey()) {
+                        expected.addRun(y, x, x);
+                    }
+                }
+            }
+            final MaskRuns actual = entry.getValue();
+            Assert.assertEquals(actual.getLabel(), entry.getKey().intValue());
+            Assert.assertEquals(actual.getX(), expected.getX());
+            Assert.assertEquals(actual.getY(), expected.getY());
+            Assert.assertEquals(actual.getWidth(), expected.getWidth());
+            Assert.assertEquals(actual.getHeight(), expected.getHeight());
+            Assert.assertEquals(actual.asBytes(), expected.asBytes());
+        }
+    }
+
+    /**
+     * Test the bits and runs of a small mask.
+     * @throws Exception unexpected
+     */
+    @Test
+    public void testBitsAndRuns() throws Exception {
+        final int[] plane = new int[] {
+                0, 7, 7, 0,
+                0, 7, 7, 7,
+                0, 0, 0, 0 };
+        final Map<Integer, MaskRuns> masks = MaskRuns.fromPlane(plane, 4, 3, 0);
+        Assert.assertEquals(masks.size(), 1);
+        final MaskRuns mask = masks.get(7);
+        Assert.assertEquals(mask.getX(), 1);
+        Assert.assertEquals(mask.getY(), 0);
+        Assert.assertEquals(mask.getWidth(), 3);
+        Assert.assertEquals(mask.getHeight(), 2);
+        Assert.assertEquals(mask.getRuns(), new int[] {0, 1, 2, 1, 1, 3});
+        /* 110 111 */
+        Assert.assertEquals(mask.asBytes(), new byte[] {(byte) 0xDC});
+    }
+
+    /**
+     * Test setting ranges of bits within and across bytes.
+     */
+    @Test
+    public void testSetBits() {
+        byte[] data = new byte[4];
+        MaskRuns.setBits(data, 3, 2);
+        Assert.assertEquals(data, new byte[] {0x18, 0, 0, 0});
+        data = new byte[4];
+        MaskRuns.setBits(data, 6, 20);
+        Assert.assertEquals(data, new byte[] {0x03, (byte) 0xFF, (byte) 0xFF, (byte) 0xC0});
+        data = new byte[4];
+        MaskRuns.setBits(data, 8, 16);
+        Assert.assertEquals(data, new byte[] {0, (byte) 0xFF, (byte) 0xFF, 0});
+    }
+}
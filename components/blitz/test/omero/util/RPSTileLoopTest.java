@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package omero.util;
+
+import static omero.rtypes.rint;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import omero.api.RawPixelsStorePrx;
+import omero.api.ServiceFactoryPrx;
+import omero.model.Pixels;
+import omero.model.PixelsI;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests which pixels stores {@link RPSTileLoop} and {@link RPSTileData} read tiles from, write tiles to and save.
+ * @since 5.4.10
+ */
+@Test(groups = "unit")
+public class RPSTileLoopTest {
+
+    private static final int SIZE_X = 500, SIZE_Y = 300, SIZE_Z = 2, TILE_SIZE = 128;
+
+    private static final int TILE_COUNT = 4 * 3 * SIZE_Z;
+
+    /**
+     * Records the calls to a pixels store.
+     */
+    private static class Store implements InvocationHandler {
+
+        final boolean requiresPyramid;
+        final AtomicInteger reads = new AtomicInteger(), writes = new AtomicInteger();
+        volatile int saves = 0, closes = 0;
+        final RawPixelsStorePrx proxy;
+
+        Store(boolean requiresPyramid) {
+            this.requiresPyramid = requiresPyramid;
+            proxy = (RawPixelsStorePrx) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[] {RawPixelsStorePrx.class}, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            final String name = method.getName();
+            if ("requiresPixelsPyramid".equals(name)) {
+                return requiresPyramid;
+            } else if ("getTile".equals(name)) {
+                reads.incrementAndGet();
+                return new byte[(Integer) args[5] * (Integer) args[6]];
+            } else if ("setTile".equals(name)) {
+                writes.incrementAndGet();
+            } else if ("save".equals(name)) {
+                saves++;
+                return new PixelsI(1L, false);
+            } else if ("close".equals(name)) {
+                closes++;
+            } else if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            } else if ("equals".equals(name)) {
+                return proxy == args[0];
+            }
+            return null;
+        }
+    }
+
+    /* the stores created by the session, in order */
+    private final List<Store> stores = Collections.synchronizedList(new ArrayList<Store>());
+
+    private Pixels pixels;
+
+    /** Reads each tile then writes it back. */
+    private static final TileLoopIteration COPY = new TileLoopIteration() {
+        @Override
+        public void run(TileData data, int z, int c, int t, int x, int y, int w, int h, int tileCount) {
+            data.setTile(data.getTile(z, c, t, x, y, w, h), z, c, t, x, y, w, h);
+        }
+    };
+
+    @BeforeMethod
+    public void setup() {
+        stores.clear();
+        pixels = new PixelsI(1L, true);
+        pixels.setSizeX(rint(SIZE_X));
+        pixels.setSizeY(rint(SIZE_Y));
+        pixels.setSizeZ(rint(SIZE_Z));
+        pixels.setSizeC(rint(1));
+        pixels.setSizeT(rint(1));
+    }
+
+    /**
+     * @param requiresPyramid if the pixels set requires a pyramid
+     * @return a session whose pixels stores are recorded in {@link #stores}
+     */
+    private ServiceFactoryPrx session(final boolean requiresPyramid) {
+        return (ServiceFactoryPrx) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] {ServiceFactoryPrx.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if ("createRawPixelsStore".equals(method.getName())) {
+                            final Store store = new Store(requiresPyramid);
+                            stores.add(store);
+                            return store.proxy;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    /**
+     * Test that concurrent tile data each read from a store of their own but all write to one further store which
+     * alone is saved, once.
+     * @throws Exception unexpected
+     */
+    public void testConcurrentWritesToOneSavedStore() throws Exception {
+        final RPSTileLoop loop = new RPSTileLoop(session(false), pixels);
+        Assert.assertEquals(loop.forEachTile(TILE_SIZE, TILE_SIZE, 3, COPY), TILE_COUNT);
+        /* the pyramid check, the writer then a reader for each thread */
+        Assert.assertEquals(stores.size(), 5);
+        final Store writer = stores.get(1);
+        Assert.assertEquals(writer.reads.get(), 0);
+        Assert.assertEquals(writer.writes.get(), TILE_COUNT);
+        Assert.assertEquals(writer.saves, 1);
+        Assert.assertEquals(writer.closes, 1);
+        int reads = 0;
+        for (final Store reader : stores.subList(2, stores.size())) {
+            reads += reader.reads.get();
+            Assert.assertEquals(reader.writes.get(), 0);
+            Assert.assertEquals(reader.saves, 0);
+            Assert.assertEquals(reader.closes, 1);
+        }
+        Assert.assertEquals(reads, TILE_COUNT);
+        Assert.assertFalse(loop.getPixels().isLoaded());
+    }
+
+    /**
+     * Test that the tiles of a pixels set which requires a pyramid are read from and written to one saved store.
+     * @throws Exception unexpected
+     */
+    public void testPyramidOneStore() throws Exception {
+        final RPSTileLoop loop = new RPSTileLoop(session(true), pixels);
+        Assert.assertEquals(loop.forEachTile(TILE_SIZE, TILE_SIZE, 3, COPY), TILE_COUNT);
+        /* the pyramid check then the only store used */
+        Assert.assertEquals(stores.size(), 2);
+        final Store store = stores.get(1);
+        Assert.assertEquals(store.reads.get(), TILE_COUNT);
+        Assert.assertEquals(store.writes.get(), TILE_COUNT);
+        Assert.assertEquals(store.saves, 1);
+        Assert.assertEquals(store.closes, 1);
+        Assert.assertFalse(loop.getPixels().isLoaded());
+    }
+}
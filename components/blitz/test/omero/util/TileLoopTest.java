@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package omero.util;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests iterating over tiles with several tiles in flight at once.
+ * @since 5.4.10
+ */
+@Test(groups = "unit")
+public class TileLoopTest {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TileLoopTest.class);
+
+    private static final int SIZE_X = 1000, SIZE_Y = 700, SIZE_Z = 2, TILE_SIZE = 128;
+
+    /**
+     * An in-memory plane store shared by the tile data of a loop. Each tile write waits to simulate the latency of a
+     * remote pixels store.
+     */
+    private static class InMemoryTileLoop extends TileLoop {
+
+        final byte[] pixels = new byte[SIZE_X * SIZE_Y * SIZE_Z];
+        final AtomicInteger opened = new AtomicInteger(), closed = new AtomicInteger();
+        final long latencyMillis;
+
+        InMemoryTileLoop(long latencyMillis) {
+            this.latencyMillis = latencyMillis;
+        }
+
+        @Override
+        public TileData createData() {
+            opened.incrementAndGet();
+            return new TileData() {
+                @Override
+                public byte[] getTile(int z, int c, int t, int x, int y, int w, int h) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public void setTile(byte[] buffer, int z, int c, int t, int x, int y, int w, int h) {
+                    try {
+                        Thread.sleep(latencyMillis);
+                    } catch (InterruptedException ie) {
+                        throw new RuntimeException(ie);
+                    }
+                    for (int row = 0; row < h; row++) {
+                        System.arraycopy(buffer, row * w, pixels, (z * SIZE_Y + y + row) * SIZE_X + x, w);
+                    }
+                }
+
+                @Override
+                public void close() {
+                    closed.incrementAndGet();
+                }
+            };
+        }
+    }
+
+    /** Writes each tile filled with its plane's index plus one. */
+    private static final TileLoopIteration WRITE = new TileLoopIteration() {
+        @Override
+        public void run(TileData data, int z, int c, int t, int x, int y, int w, int h, int tileCount) {
+            final byte[] tile = new byte[w * h];
+            Arrays.fill(tile, (byte) (z + 1));
+            data.setTile(tile, z, c, t, x, y, w, h);
+        }
+    };
+
+    /**
+     * Write every tile of the in-memory store.
+     * @param loop the loop
+     * @param concurrency how many tiles may be written at once
+     * @return how long the loop took, in milliseconds
+     */
+    private static long writeAll(InMemoryTileLoop loop, int concurrency) {
+        final long start = System.nanoTime();
+        final int tileCount = loop.forEachTile(SIZE_X, SIZE_Y, SIZE_Z, 1, 1, TILE_SIZE, TILE_SIZE, concurrency, WRITE);
+        final long elapsed = (System.nanoTime() - start) / 1000000;
+        Assert.assertEquals(tileCount, 8 * 6 * SIZE_Z);
+        for (int z = 0; z < SIZE_Z; z++) {
+            for (int i = z * SIZE_X * SIZE_Y; i < (z + 1) * SIZE_X * SIZE_Y; i++) {
+                if (loop.pixels[i] != z + 1) {
+                    Assert.fail("pixel " + i + " not written");
+                }
+            }
+        }
+        Assert.assertEquals(loop.opened.get(), concurrency);
+        Assert.assertEquals(loop.closed.get(), concurrency);
+        LOGGER.info("wrote {} tiles with {} in flight in {} ms: {} tiles/s",
+                tileCount, concurrency, elapsed, elapsed == 0 ? "-" : 1000 * tileCount / elapsed);
+        return elapsed;
+    }
+
+    /**
+     * Test that writing tiles with several in flight writes every tile and is faster than writing them one by one.
+     */
+    @Test
+    public void testParallelWritesFaster() {
+        final long sequential = writeAll(new InMemoryTileLoop(2), 1);
+        final long parallel = writeAll(new InMemoryTileLoop(2), 4);
+        Assert.assertTrue(parallel < sequential, "parallel " + parallel + " ms, sequential " + sequential + " ms");
+    }
+
+    /**
+     * Test that a failing iteration stops the loop, closes the tile data and is rethrown.
+     */
+    @Test
+    public void testFailureRethrown() {
+        final InMemoryTileLoop loop = new InMemoryTileLoop(0);
+        final AtomicInteger started = new AtomicInteger();
+        try {
+            loop.forEachTile(SIZE_X, SIZE_Y, SIZE_Z, 1, 1, TILE_SIZE, TILE_SIZE, 3, new TileLoopIteration() {
+                @Override
+                public void run(TileData data, int z, int c, int t, int x, int y, int w, int h, int tileCount) {
+                    started.incrementAndGet();
+                    if (tileCount == 5) {
+                        throw new IllegalStateException("tile " + tileCount);
+                    }
+                }
+            });
+            Assert.fail("expected failure");
+        } catch (IllegalStateException ise) {
+            Assert.assertEquals(ise.getMessage(), "tile 5");
+        }
+        Assert.assertTrue(started.get() < 8 * 6 * SIZE_Z);
+        Assert.assertEquals(loop.closed.get(), loop.opened.get());
+    }
+}
@@ -102,7 +102,23 @@ public interface RenderingEngine extends StatefulServiceInterface {
      * @see #renderAsPackedInt(PlaneDef)
      */
     public byte[] renderCompressed(PlaneDef pd);
-    
+
+    /**
+     * Renders the data selected by each of the <code>pds</code> according to
+     * the current rendering settings and compresses the resulting RGBA
+     * composite images. The planes or tiles are rendered concurrently, up to
+     * a configured limit.
+     *
+     * @param pds
+     *            The plane definitions, typically tiles of the same plane.
+     * @return The compressed RGBA JPEGs, in the same order as
+     *         <code>pds</code>.
+     * @throws ValidationException
+     *             If <code>pds</code> is <code>null</code>.
+     * @see #renderCompressed(PlaneDef)
+     */
+    public List<byte[]> renderTiles(List<PlaneDef> pds);
+
     
     /**
      * Performs a projection through selected optical sections of a particular 
@@ -2899,6 +2899,12 @@ class ImViewerModel
 				loader.load();
 			}
 		}
+		//Prefetch the tiles likely to be requested next.
+		List<Region> regions = new ArrayList<Region>(n);
+		Iterator<Tile> k = list.iterator();
+		while (k.hasNext())
+			regions.add(k.next().getRegion());
+		proxies.get(0).prefetchTiles(pDef, regions);
     }
     
     /** Resets the tiles.*/
@@ -620,11 +620,28 @@ public class PixelsServicesFactory
 			}
 			((RenderingControlProxy) rnd).setSlaves(slaves);
 		}
-		
+		((RenderingControlProxy) rnd).setTileCache(
+				new TileCache(getTileCacheSize(), registry.getLogger()));
 		singleton.rndSvcProxies.put(id, rnd);
 		return rnd;
 	}
 	
+	/**
+	 * Returns the size, in bytes, of the cache of rendered tiles of an image.
+	 * This is the configured size of the image cache but no more than
+	 * {@link #RATIO} of the maximum memory.
+	 * 
+	 * @return See above.
+	 */
+	private static long getTileCacheSize()
+	{
+		Integer value = (Integer) registry.lookup(LookupNames.RE_CACHE_SZ);
+		if (value == null || value.intValue() <= 0) return 0;
+		long size = value.longValue()*1024*1024;
+		long max = (long) (RATIO*Runtime.getRuntime().maxMemory());
+		return Math.min(size, max);
+	}
+
 	/**
 	 * Returns the size of the cache.
 	 * 
@@ -33,6 +33,7 @@ import omero.romio.PlaneDef;
 import omero.gateway.exception.DSOutOfServiceException;
 import omero.gateway.exception.RenderingServiceException;
 
+import org.openmicroscopy.shoola.env.rnd.data.Region;
 import org.openmicroscopy.shoola.env.rnd.data.ResolutionLevel;
 
 import omero.gateway.model.ChannelData;
@@ -633,6 +634,20 @@ public interface RenderingControl
 	public BufferedImage render(PlaneDef pDef, int compression)
 		throws RenderingServiceException, DSOutOfServiceException;
 
+	/**
+	 * Renders in the background, while the user is idle, the tiles
+	 * surrounding the specified regions of the plane and the same regions
+	 * in the adjacent z-sections and timepoints. The tiles are kept in the
+	 * tile cache so that they are returned without rendering when requested.
+	 * Returns immediately, the tiles are determined in the background so the
+	 * method may be invoked from the event dispatching thread.
+	 * Does nothing if the tiles are not cached.
+	 * 
+	 * @param pDef Information about the plane being viewed.
+	 * @param regions The regions requested by the viewer.
+	 */
+	public void prefetchTiles(PlaneDef pDef, Collection<Region> regions);
+
 	/**
 	 * Returns one of the compression level defined by this class.
 	 * 
@@ -36,6 +36,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 
 import omero.LockTimeout;
 import omero.api.RenderingEnginePrx;
@@ -51,6 +52,7 @@ import omero.model.RenderingModel;
 import omero.model.ReverseIntensityContext;
 import omero.model.enums.UnitsLength;
 import omero.romio.PlaneDef;
+import omero.romio.RegionDef;
 import omero.romio.ReverseIntensityMapContext;
 
 import org.openmicroscopy.shoola.env.LookupNames;
@@ -66,6 +68,7 @@ import omero.gateway.exception.DSOutOfServiceException;
 import omero.gateway.exception.RenderingServiceException;
 import omero.log.LogMessage;
 
+import org.openmicroscopy.shoola.env.rnd.data.Region;
 import org.openmicroscopy.shoola.env.rnd.data.ResolutionLevel;
 import org.openmicroscopy.shoola.util.image.geom.Factory;
 import org.openmicroscopy.shoola.util.image.io.WriterImage;
@@ -178,6 +181,18 @@ class RenderingControlProxy
 	
 	/** The lookup tables */
 	private Collection<String> lookupTables;
+
+	/** The cache of rendered tiles shared with the slaves.*/
+	private TileCache tileCache;
+
+	/** The description of the resolution levels if it is a big image.*/
+	private ResolutionDescription[] resolutionDescriptions;
+
+	/**
+	 * Serialises the rendering by the viewer and by the prefetching thread
+	 * since both use the servant and the compression level of the proxy.
+	 */
+	private final Object renderLock = new Object();
 	
     /**
      * Maps the color channel Red to {@link #RED_INDEX}, Blue to 
@@ -303,6 +318,7 @@ class RenderingControlProxy
     /** Clears the cache. */
     private void invalidateCache()
     {
+    	if (tileCache != null) tileCache.invalidate();
     	if (isBigImage()) return;
     	if (cacheID >= 0) context.getCacheService().clearCache(cacheID);
     }
@@ -674,6 +690,99 @@ class RenderingControlProxy
         return img;
 	}
 	
+	/**
+	 * Returns the key identifying the specified tile in the tile cache or
+	 * <code>null</code> if the plane is not a tile of an XY-plane or if the
+	 * tiles are not cached.
+	 * 
+	 * @param pDef The plane to render.
+	 * @param value The compression level.
+	 * @return See above.
+	 */
+	private TileCache.Key createTileKey(PlaneDef pDef, int value)
+	{
+		if (tileCache == null || !tileCache.isEnabled()) return null;
+		if (pDef.region == null || pDef.slice != omero.romio.XY.value)
+			return null;
+		RegionDef r = pDef.region;
+		return tileCache.createKey(getPixelsID(),
+				getSelectedResolutionLevel(), pDef.z, pDef.t, r.x, r.y,
+				r.width, r.height, value);
+	}
+
+	/**
+	 * Renders the specified tile and adds it to the tile cache. Errors are
+	 * only logged since the tile was not requested by the viewer.
+	 * 
+	 * @param pDef The tile to render.
+	 */
+	private void prefetchTile(PlaneDef pDef)
+	{
+		synchronized (renderLock) {
+			int value = compression;
+			TileCache.Key key = createTileKey(pDef, value);
+			if (shutDown || key == null || tileCache.contains(key)) return;
+			try {
+				BufferedImage img;
+				if (value != RenderingControl.UNCOMPRESSED)
+					img = WriterImage.bytesToImage(
+							servant.renderCompressed(pDef));
+				else img = Factory.createImage(servant.renderAsPackedInt(pDef),
+						32, pDef.region.width, pDef.region.height);
+				tileCache.putPrefetched(key, img);
+			} catch (Throwable e) {
+				log("Cannot prefetch tile "+key+": "+e);
+			}
+		}
+	}
+
+	/**
+	 * Returns the size of the selected resolution level.
+	 * 
+	 * @return See above.
+	 * @throws Exception If the resolution levels cannot be retrieved.
+	 */
+	private Dimension getResolutionLevelSize()
+		throws Exception
+	{
+		if (!isBigImage())
+			return new Dimension(getPixelsDimensionsX(),
+					getPixelsDimensionsY());
+		if (resolutionDescriptions == null)
+			resolutionDescriptions = servant.getResolutionDescriptions();
+		int index = resolutionDescriptions.length-1-
+				getSelectedResolutionLevel();
+		if (index < 0 || index >= resolutionDescriptions.length) return null;
+		ResolutionDescription r = resolutionDescriptions[index];
+		return new Dimension(r.sizeX, r.sizeY);
+	}
+
+	/**
+	 * Creates a plane to render the specified region of a plane.
+	 * 
+	 * @param pDef The plane of reference.
+	 * @param z The z-section.
+	 * @param t The timepoint.
+	 * @param x The x-coordinate of the region.
+	 * @param y The y-coordinate of the region.
+	 * @param w The width of the region.
+	 * @param h The height of the region.
+	 * @return See above.
+	 */
+	private PlaneDef createTilePlane(PlaneDef pDef, int z, int t, int x, int y,
+			int w, int h)
+	{
+		PlaneDef def = new PlaneDef();
+		def.slice = pDef.slice;
+		def.stride = pDef.stride;
+		def.x = pDef.x;
+		def.y = pDef.y;
+		def.z = z;
+		def.t = t;
+		def.region = new RegionDef(x, y, w, h);
+		return def;
+	}
+
 	/** Checks if the proxy is still alive.*/
 	private void isSessionAlive()
 		throws RenderingServiceException
@@ -827,6 +936,20 @@ class RenderingControlProxy
     	if (slaves == null) return;
     	this.slaves = slaves;
     }
+
+    /**
+     * Sets the cache of rendered tiles. The cache is shared by the proxy
+     * and its slaves.
+     * 
+     * @param tileCache The value to set.
+     */
+    void setTileCache(TileCache tileCache)
+    {
+    	this.tileCache = tileCache;
+    	Iterator<RenderingControl> i = slaves.iterator();
+    	while (i.hasNext())
+    		((RenderingControlProxy) i.next()).setTileCache(tileCache);
+    }
     
     /**
      * Resets the rendering engine.
@@ -951,6 +1074,7 @@ class RenderingControlProxy
     	try {
     		if (!keepCache && cacheID >= 0)
     			context.getCacheService().removeCache(cacheID);
+    		if (tileCache != null) tileCache.clear();
     		Iterator<RenderingControl> j = slaves.iterator();
 			while (j.hasNext())
 				((RenderingControlProxy) j.next()).shutDown();
@@ -1674,23 +1798,139 @@ class RenderingControlProxy
     {
     	if (pDef == null) 
              throw new IllegalArgumentException("Plane def cannot be null.");
-    	try {
-    	    context.getImageService().isAlive(ctx);
-			servant.ice_ping();
-		} catch (Exception e) {
-			return null;
-		}
-    	retry = 0;
-    	//since this method is always invoked after another change in
-    	//the settings and due to the fact that the proxy is usually invoked
-    	//in the swing thread.
-    	if (value != compression) setCompression(value);
+    	TileCache.Key key = createTileKey(pDef, value);
     	BufferedImage img;
-        if (isCompressed()) img = renderCompressedBI(pDef);
-        else img = renderUncompressed(pDef);
-        if (value != compression) setCompression(compression);
+    	if (key != null) {
+    		img = tileCache.get(key);
+    		if (img != null) return img;
+    		tileCache.startRequest();
+    	}
+    	try {
+    		synchronized (renderLock) {
+    			try {
+    				context.getImageService().isAlive(ctx);
+    				servant.ice_ping();
+    			} catch (Exception e) {
+    				return null;
+    			}
+    			retry = 0;
+    			//since this method is always invoked after another change in
+    			//the settings and due to the fact that the proxy is usually
+    			//invoked in the swing thread.
+    			if (value != compression) setCompression(value);
+    			if (isCompressed()) img = renderCompressedBI(pDef);
+    			else img = renderUncompressed(pDef);
+    			if (value != compression) setCompression(compression);
+    		}
+    		if (key != null) tileCache.put(key, img);
+    	} finally {
+    		if (key != null) tileCache.endRequest();
+    	}
         return img;
     }
+
+	/** 
+	 * Implemented as specified by {@link RenderingControl}.
+	 * @see RenderingControl#prefetchTiles(PlaneDef, Collection)
+	 */
+	public void prefetchTiles(final PlaneDef pDef, Collection<Region> regions)
+	{
+		if (shutDown || pDef == null || regions == null || regions.isEmpty())
+			return;
+		if (tileCache == null || !tileCache.isEnabled() ||
+			pDef.slice != omero.romio.XY.value) return;
+		final List<Region> requested = new ArrayList<Region>(regions);
+		//Determining the tiles may call the server so is done in the
+		//background rather than in the calling thread, usually the swing one.
+		tileCache.prefetch(new Callable<List<Runnable>>() {
+			public List<Runnable> call() throws Exception {
+				return createPrefetchTasks(pDef, requested);
+			}
+		});
+	}
+
+	/**
+	 * Creates the tasks rendering the tiles surrounding the specified regions
+	 * of the plane and the same regions in the adjacent z-sections and
+	 * timepoints.
+	 * 
+	 * @param pDef Information about the plane being viewed.
+	 * @param regions The regions requested by the viewer.
+	 * @return See above or <code>null</code> if there is nothing to prefetch.
+	 * @throws Exception If the tiles cannot be determined.
+	 */
+	private List<Runnable> createPrefetchTasks(PlaneDef pDef,
+			Collection<Region> regions)
+		throws Exception
+	{
+		if (shutDown) return null;
+		Integer value = (Integer) context.lookup(LookupNames.RE_MAX_PRE_FETCH);
+		if (value == null || value.intValue() <= 0) return null;
+		int max = value.intValue();
+		Dimension tile, size;
+		synchronized (renderLock) {
+			tile = getTileSize();
+			size = getResolutionLevelSize();
+		}
+		if (tile == null || size == null || tile.width <= 0 ||
+			tile.height <= 0) return null;
+		//Determine the requested tiles in tile coordinates.
+		int minColumn = Integer.MAX_VALUE, minRow = Integer.MAX_VALUE;
+		int maxColumn = -1, maxRow = -1;
+		Iterator<Region> i = regions.iterator();
+		Region r;
+		while (i.hasNext()) {
+			r = i.next();
+			minColumn = Math.min(minColumn, r.getX()/tile.width);
+			maxColumn = Math.max(maxColumn, r.getX()/tile.width);
+			minRow = Math.min(minRow, r.getY()/tile.height);
+			maxRow = Math.max(maxRow, r.getY()/tile.height);
+		}
+		int columns = (size.width+tile.width-1)/tile.width;
+		int rows = (size.height+tile.height-1)/tile.height;
+		List<PlaneDef> planes = new ArrayList<PlaneDef>();
+		//The tiles surrounding the requested ones.
+		int x, y;
+		for (int row = minRow-1; row <= maxRow+1; row++) {
+			for (int column = minColumn-1; column <= maxColumn+1; column++) {
+				if (row < 0 || column < 0 || row >= rows || column >= columns)
+					continue;
+				if (row >= minRow && row <= maxRow && column >= minColumn &&
+					column <= maxColumn) continue;
+				x = column*tile.width;
+				y = row*tile.height;
+				planes.add(createTilePlane(pDef, pDef.z, pDef.t, x, y,
+						Math.min(tile.width, size.width-x),
+						Math.min(tile.height, size.height-y)));
+			}
+		}
+		//The requested tiles in the adjacent z-sections and timepoints.
+		int[][] adjacent = {{pDef.z+1, pDef.t}, {pDef.z-1, pDef.t},
+				{pDef.z, pDef.t+1}, {pDef.z, pDef.t-1}};
+		int sizeZ = getPixelsDimensionsZ();
+		int sizeT = getPixelsDimensionsT();
+		for (int j = 0; j < adjacent.length; j++) {
+			int z = adjacent[j][0];
+			int t = adjacent[j][1];
+			if (z < 0 || z >= sizeZ || t < 0 || t >= sizeT) continue;
+			i = regions.iterator();
+			while (i.hasNext()) {
+				r = i.next();
+				planes.add(createTilePlane(pDef, z, t, r.getX(), r.getY(),
+						r.getWidth(), r.getHeight()));
+			}
+		}
+		if (planes.size() > max) planes = planes.subList(0, max);
+		List<Runnable> tasks = new ArrayList<Runnable>(planes.size());
+		Iterator<PlaneDef> k = planes.iterator();
+		while (k.hasNext()) {
+			final PlaneDef def = k.next();
+			tasks.add(new Runnable() {
+				public void run() { prefetchTile(def); }
+			});
+		}
+		return tasks;
+	}
     
     /** 
 	 * Implemented as specified by {@link RenderingControl}.
@@ -2017,6 +2257,7 @@ class RenderingControlProxy
 		throws RenderingServiceException, DSOutOfServiceException
 	{
 		tileSize = null;
+		if (tileCache != null) tileCache.cancelPrefetch();
 		if (level > getResolutionLevels())
 			level = getResolutionLevels();
 		isSessionAlive();
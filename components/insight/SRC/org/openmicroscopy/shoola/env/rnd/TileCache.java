@@ -0,0 +1,530 @@
+/*
+ *------------------------------------------------------------------------------
+ *  Copyright (C) 2018 University of Dundee. All rights reserved.
+ *
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ *------------------------------------------------------------------------------
+ */
+
+package org.openmicroscopy.shoola.env.rnd;
+
+
+//Java imports
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+//Third-party libraries
+
+//Application-internal dependencies
+import omero.log.Logger;
+
+/**
+ * Caches the tiles of a big image rendered by a {@link RenderingControlProxy}
+ * and its slaves, so that panning back over a region or returning to a plane
+ * does not render the tiles again.
+ * <p>The tiles are kept in least recently used order until their total size
+ * reaches the size of the cache. Each entry is tagged with the version of the
+ * rendering settings it was rendered with; the version is increased, and the
+ * cache cleared, every time the settings change so that a tile rendered with
+ * stale settings is never returned.</p>
+ * <p>The cache also runs, on a single background thread, the tiles prefetched
+ * by the proxies. A prefetched tile is only rendered when no tile was
+ * requested by the viewer for {@link #IDLE_DELAY} milliseconds and none is
+ * being rendered, it is dropped if a new set of tiles is prefetched in the
+ * meantime.</p>
+ *
+ * @since 5.4.10
+ */
+class TileCache
+{
+
+	/**
+	 * The time, in milliseconds, without tile requests after which the
+	 * user is considered idle and prefetched tiles are rendered.
+	 */
+	static final long IDLE_DELAY = 300;
+
+	/** Logs the statistics every time that many tiles were requested.*/
+	private static final int STATS_INTERVAL = 200;
+
+	/** Identifies a rendered tile. */
+	static final class Key
+	{
+
+		/** The identifier of the pixels set.*/
+		private final long pixelsID;
+
+		/** The resolution level.*/
+		private final int level;
+
+		/** The selected z-section.*/
+		private final int z;
+
+		/** The selected timepoint.*/
+		private final int t;
+
+		/** The region of the tile.*/
+		private final int x, y, width, height;
+
+		/** The compression level.*/
+		private final int compression;
+
+		/** The version of the rendering settings.*/
+		private final long version;
+
+		/**
+		 * Creates a new instance.
+		 *
+		 * @param pixelsID The identifier of the pixels set.
+		 * @param level The resolution level.
+		 * @param z The selected z-section.
+		 * @param t The selected timepoint.
+		 * @param x The x-coordinate of the tile.
+		 * @param y The y-coordinate of the tile.
+		 * @param width The width of the tile.
+		 * @param height The height of the tile.
+		 * @param compression The compression level.
+		 * @param version The version of the rendering settings.
+		 */
+		Key(long pixelsID, int level, int z, int t, int x, int y, int width,
+				int height, int compression, long version)
+		{
+			this.pixelsID = pixelsID;
+			this.level = level;
+			this.z = z;
+			this.t = t;
+			this.x = x;
+			this.y = y;
+			this.width = width;
+			this.height = height;
+			this.compression = compression;
+			this.version = version;
+		}
+
+		/**
+		 * Overridden to compare all the fields.
+		 * @see Object#equals(Object)
+		 */
+		public boolean equals(Object object)
+		{
+			if (this == object) return true;
+			if (!(object instanceof Key)) return false;
+			Key other = (Key) object;
+			return pixelsID == other.pixelsID && level == other.level &&
+					z == other.z && t == other.t && x == other.x &&
+					y == other.y && width == other.width &&
+					height == other.height &&
+					compression == other.compression &&
+					version == other.version;
+		}
+
+		/**
+		 * Overridden to combine all the fields.
+		 * @see Object#hashCode()
+		 */
+		public int hashCode()
+		{
+			int hash = (int) (pixelsID ^ (pixelsID >>> 32));
+			hash = 31*hash+level;
+			hash = 31*hash+z;
+			hash = 31*hash+t;
+			hash = 31*hash+x;
+			hash = 31*hash+y;
+			hash = 31*hash+width;
+			hash = 31*hash+height;
+			hash = 31*hash+compression;
+			hash = 31*hash+(int) (version ^ (version >>> 32));
+			return hash;
+		}
+
+		/**
+		 * Overridden to describe the tile.
+		 * @see Object#toString()
+		 */
+		public String toString()
+		{
+			return "Pixels:"+pixelsID+"[level="+level+" z="+z+" t="+t+" x="+x+
+					" y="+y+" w="+width+" h="+height+"]";
+		}
+	}
+
+	/** The maximum size, in bytes, of the cached tiles. */
+	private final long maxSize;
+
+	/** The cached tiles in least recently used order. */
+	private final LinkedHashMap<Key, BufferedImage> tiles;
+
+	/** The logger used to report the statistics or <code>null</code>. */
+	private final Logger logger;
+
+	/** The current size, in bytes, of the cached tiles. */
+	private long size;
+
+	/** The version of the rendering settings. */
+	private long version;
+
+	/** The statistics of the cache. */
+	private long hits, misses, evictions, prefetched;
+
+	/** Renders the prefetched tiles, created on demand. */
+	private ThreadPoolExecutor prefetcher;
+
+	/** Increased every time a new set of tiles is prefetched. */
+	private volatile long prefetchRequest;
+
+	/** The time the viewer last requested a tile. */
+	private volatile long lastRequest;
+
+	/** The number of tiles requested by the viewer being rendered. */
+	private volatile int activeRequests;
+
+	/**
+	 * Returns the size, in bytes, of the specified image.
+	 *
+	 * @param image The image.
+	 * @return See above.
+	 */
+	private static long sizeOf(BufferedImage image)
+	{
+		DataBuffer buffer = image.getRaster().getDataBuffer();
+		return (long) buffer.getSize()*buffer.getNumBanks()*
+				DataBuffer.getDataTypeSize(buffer.getDataType())/8;
+	}
+
+	/** Logs the statistics of the cache. */
+	private void logStatistics()
+	{
+		if (logger == null) return;
+		logger.debug(this, "Tile cache: "+tiles.size()+" tiles, "+size+
+				"/"+maxSize+" bytes, "+hits+" hits, "+misses+" misses, "+
+				evictions+" evictions, "+prefetched+" prefetched");
+	}
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param maxSize The maximum size, in bytes, of the cached tiles.
+	 * 				  If not positive, no tile is cached.
+	 * @param logger The logger used to report the statistics of the cache,
+	 * 				 may be <code>null</code>.
+	 */
+	TileCache(long maxSize, Logger logger)
+	{
+		this.maxSize = maxSize;
+		this.logger = logger;
+		tiles = new LinkedHashMap<Key, BufferedImage>(16, 0.75f, true);
+	}
+
+	/**
+	 * Returns <code>true</code> if tiles are cached at all,
+	 * <code>false</code> otherwise.
+	 *
+	 * @return See above.
+	 */
+	boolean isEnabled() { return maxSize > 0; }
+
+	/**
+	 * Returns the key identifying the specified tile rendered with the
+	 * current rendering settings.
+	 *
+	 * @param pixelsID The identifier of the pixels set.
+	 * @param level The resolution level.
+	 * @param z The selected z-section.
+	 * @param t The selected timepoint.
+	 * @param x The x-coordinate of the tile.
+	 * @param y The y-coordinate of the tile.
+	 * @param width The width of the tile.
+	 * @param height The height of the tile.
+	 * @param compression The compression level.
+	 * @return See above.
+	 */
+	synchronized Key createKey(long pixelsID, int level, int z, int t, int x,
+			int y, int width, int height, int compression)
+	{
+		return new Key(pixelsID, level, z, t, x, y, width, height,
+				compression, version);
+	}
+
+	/**
+	 * Returns the cached tile or <code>null</code> if the tile has to be
+	 * rendered.
+	 *
+	 * @param key The key identifying the tile.
+	 * @return See above.
+	 */
+	synchronized BufferedImage get(Key key)
+	{
+		BufferedImage image = tiles.get(key);
+		if (image == null) misses++;
+		else hits++;
+		if ((hits+misses) % STATS_INTERVAL == 0) logStatistics();
+		return image;
+	}
+
+	/**
+	 * Returns <code>true</code> if the specified tile is cached,
+	 * <code>false</code> otherwise. Does not affect the order of the tiles
+	 * nor the statistics.
+	 *
+	 * @param key The key identifying the tile.
+	 * @return See above.
+	 */
+	synchronized boolean contains(Key key)
+	{
+		return tiles.containsKey(key);
+	}
+
+	/**
+	 * Caches the specified tile, evicting the least recently used ones
+	 * if required. The tile is not cached if the rendering settings changed
+	 * since the key was created.
+	 *
+	 * @param key The key identifying the tile.
+	 * @param image The rendered tile.
+	 */
+	synchronized void put(Key key, BufferedImage image)
+	{
+		if (maxSize <= 0 || image == null || key.version != version) return;
+		long length = sizeOf(image);
+		if (length > maxSize) return;
+		BufferedImage previous = tiles.put(key, image);
+		if (previous != null) size -= sizeOf(previous);
+		size += length;
+		Iterator<Map.Entry<Key, BufferedImage>> i =
+				tiles.entrySet().iterator();
+		Map.Entry<Key, BufferedImage> eldest;
+		while (size > maxSize && i.hasNext()) {
+			eldest = i.next();
+			if (eldest.getKey().equals(key)) continue;
+			size -= sizeOf(eldest.getValue());
+			i.remove();
+			evictions++;
+		}
+	}
+
+	/**
+	 * Caches the specified prefetched tile.
+	 *
+	 * @param key The key identifying the tile.
+	 * @param image The rendered tile.
+	 * @see #put(Key, BufferedImage)
+	 */
+	synchronized void putPrefetched(Key key, BufferedImage image)
+	{
+		put(key, image);
+		prefetched++;
+	}
+
+	/**
+	 * Indicates that the viewer requested a tile which is being rendered.
+	 * Prefetching is suspended until {@link #endRequest()} is invoked.
+	 */
+	synchronized void startRequest()
+	{
+		activeRequests++;
+		lastRequest = System.currentTimeMillis();
+	}
+
+	/** Indicates that a tile requested by the viewer was rendered. */
+	synchronized void endRequest()
+	{
+		if (activeRequests > 0) activeRequests--;
+		lastRequest = System.currentTimeMillis();
+	}
+
+	/**
+	 * Clears the cache and increases the version of the rendering settings.
+	 * To be invoked every time the settings change.
+	 */
+	synchronized void invalidate()
+	{
+		version++;
+		prefetchRequest++;
+		if (tiles.isEmpty()) return;
+		logStatistics();
+		tiles.clear();
+		size = 0;
+	}
+
+	/**
+	 * Starts a new set of prefetched tiles, dropping the tiles still waiting
+	 * from the previous set.
+	 *
+	 * @return The identifier of the new set.
+	 */
+	private long startPrefetch()
+	{
+		ThreadPoolExecutor executor;
+		final long request;
+		synchronized (this) {
+			request = ++prefetchRequest;
+			lastRequest = System.currentTimeMillis();
+			if (prefetcher == null) {
+				prefetcher = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+						new LinkedBlockingQueue<Runnable>(),
+						new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "TilePrefetch");
+						thread.setDaemon(true);
+						thread.setPriority(Thread.MIN_PRIORITY);
+						return thread;
+					}
+				});
+				prefetcher.allowCoreThreadTimeOut(true);
+			}
+			executor = prefetcher;
+		}
+		executor.getQueue().clear();
+		return request;
+	}
+
+	/**
+	 * Runs the specified task in the background once the user is idle,
+	 * unless a new set of tiles is prefetched in the meantime.
+	 *
+	 * @param request The identifier of the set of tiles.
+	 * @param task The task to run.
+	 */
+	private void submit(final long request, final Runnable task)
+	{
+		ThreadPoolExecutor executor;
+		synchronized (this) {
+			executor = prefetcher;
+		}
+		if (executor == null) return;
+		executor.execute(new Runnable() {
+			public void run() {
+				try {
+					long wait;
+					while (request == prefetchRequest) {
+						wait = lastRequest+IDLE_DELAY-
+								System.currentTimeMillis();
+						if (activeRequests > 0) wait = IDLE_DELAY;
+						else if (wait <= 0) break;
+						Thread.sleep(wait);
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (request != prefetchRequest) return;
+				task.run();
+			}
+		});
+	}
+
+	/**
+	 * Renders the specified tiles in the background while the user is idle.
+	 * The tiles still waiting from a previous invocation are dropped.
+	 *
+	 * @param tasks The tasks rendering the tiles.
+	 */
+	void prefetch(List<Runnable> tasks)
+	{
+		if (maxSize <= 0 || tasks == null) return;
+		long request = startPrefetch();
+		Iterator<Runnable> i = tasks.iterator();
+		while (i.hasNext())
+			submit(request, i.next());
+	}
+
+	/**
+	 * Determines in the background, once the user is idle, the tiles to
+	 * prefetch then renders them as {@link #prefetch(List)} does. This
+	 * allows to invoke the method from the event dispatching thread when
+	 * determining the tiles requires calls to the server.
+	 * The tiles still waiting from a previous invocation are dropped.
+	 *
+	 * @param planner Returns the tasks rendering the tiles.
+	 */
+	void prefetch(final Callable<List<Runnable>> planner)
+	{
+		if (maxSize <= 0 || planner == null) return;
+		final long request = startPrefetch();
+		submit(request, new Runnable() {
+			public void run() {
+				List<Runnable> tasks;
+				try {
+					tasks = planner.call();
+				} catch (Exception e) {
+					if (logger != null)
+						logger.debug(TileCache.this,
+								"Cannot determine the tiles to prefetch: "+e);
+					return;
+				}
+				if (tasks == null) return;
+				Iterator<Runnable> i = tasks.iterator();
+				while (i.hasNext())
+					submit(request, i.next());
+			}
+		});
+	}
+
+	/** Drops the tiles waiting to be prefetched. */
+	void cancelPrefetch()
+	{
+		synchronized (this) {
+			prefetchRequest++;
+			if (prefetcher == null) return;
+		}
+		prefetcher.getQueue().clear();
+	}
+
+	/** Clears the cache and stops prefetching tiles. */
+	synchronized void clear()
+	{
+		cancelPrefetch();
+		tiles.clear();
+		size = 0;
+	}
+
+	/**
+	 * Returns the number of cached tiles.
+	 *
+	 * @return See above.
+	 */
+	synchronized int getCount() { return tiles.size(); }
+
+	/**
+	 * Returns the size, in bytes, of the cached tiles.
+	 *
+	 * @return See above.
+	 */
+	synchronized long getSize() { return size; }
+
+	/**
+	 * Returns the number of requested tiles found in the cache.
+	 *
+	 * @return See above.
+	 */
+	synchronized long getHits() { return hits; }
+
+	/**
+	 * Returns the number of requested tiles not found in the cache.
+	 *
+	 * @return See above.
+	 */
+	synchronized long getMisses() { return misses; }
+
+}
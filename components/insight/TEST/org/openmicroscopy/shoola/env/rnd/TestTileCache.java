@@ -0,0 +1,111 @@
+/*
+ *------------------------------------------------------------------------------
+ *  Copyright (C) 2018 University of Dundee. All rights reserved.
+ *
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along
+ *  with this program; if not, write to the Free Software Foundation, Inc.,
+ *  51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ *------------------------------------------------------------------------------
+ */
+
+package org.openmicroscopy.shoola.env.rnd;
+
+
+//Java imports
+import java.awt.image.BufferedImage;
+
+//Third-party libraries
+import junit.framework.TestCase;
+
+//Application-internal dependencies
+
+/**
+ * Routine unit test for {@link TileCache}.
+ * Verifies the size bound, the eviction order and the invalidation of the
+ * tiles when the rendering settings change.
+ *
+ * @since 5.4.10
+ */
+public class TestTileCache
+    extends TestCase
+{
+
+    /** The size, in bytes, of a tile. */
+    private static final int TILE_SIZE = 16*16*4;
+
+    private TileCache cache;  //Object under test.
+
+    private TileCache.Key key(int x)
+    {
+        return cache.createKey(1, 0, 0, 0, x, 0, 16, 16, 0);
+    }
+
+    private BufferedImage tile()
+    {
+        return new BufferedImage(16, 16, BufferedImage.TYPE_INT_RGB);
+    }
+
+    protected void setUp()
+    {
+        cache = new TileCache(3*TILE_SIZE, null);
+    }
+
+    public void testHit()
+    {
+        BufferedImage image = tile();
+        assertNull(cache.get(key(0)));
+        cache.put(key(0), image);
+        assertSame(image, cache.get(key(0)));
+        assertNull(cache.get(key(16)));
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    public void testLeastRecentlyUsedEvicted()
+    {
+        cache.put(key(0), tile());
+        cache.put(key(16), tile());
+        cache.put(key(32), tile());
+        cache.get(key(0));
+        cache.put(key(48), tile());
+        assertEquals(3, cache.getCount());
+        assertEquals(3*TILE_SIZE, cache.getSize());
+        assertTrue(cache.contains(key(0)));
+        assertFalse(cache.contains(key(16)));
+        assertTrue(cache.contains(key(48)));
+    }
+
+    public void testInvalidate()
+    {
+        TileCache.Key stale = key(0);
+        cache.put(stale, tile());
+        cache.invalidate();
+        assertEquals(0, cache.getCount());
+        assertFalse(cache.contains(key(0)));
+        //A tile rendered with the previous settings is not cached.
+        cache.put(stale, tile());
+        assertEquals(0, cache.getCount());
+        cache.put(key(0), tile());
+        assertEquals(1, cache.getCount());
+    }
+
+    public void testDisabled()
+    {
+        cache = new TileCache(0, null);
+        assertFalse(cache.isEnabled());
+        cache.put(key(0), tile());
+        assertNull(cache.get(key(0)));
+    }
+
+}
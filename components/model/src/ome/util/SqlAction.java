@@ -432,6 +432,14 @@ public interface SqlAction {
 
     long currValue(String segmentName);
 
+    /**
+     * Insert rows into the event log. Implementations may write many rows
+     * with each statement so the rows need not each be a round-trip to the
+     * database.
+     *
+     * @param batchData the rows, each being the values for the id, permissions,
+     * entity ID, entity type, action and event columns
+     */
     void insertLogs(List<Object[]> batchData);
 
     List<Map<String, Object>> roiByImage(final long imageId);
@@ -231,8 +231,58 @@ public class PostgresSqlAction extends SqlAction.Impl {
         }
     }
 
+    /**
+     * How many event log rows to write with each multi-row insert. Each row has
+     * six bind parameters and PostgreSQL allows at most 32767 per statement.
+     */
+    private static final int LOG_ROWS_PER_INSERT = 1000;
+
+    private static final int LOG_COLUMNS = 6;
+
+    /**
+     * The multi-row insert statement for {@link #LOG_ROWS_PER_INSERT} event log rows.
+     */
+    private volatile String insertLogsChunk;
+
+    private String insertLogsChunk() {
+        if (insertLogsChunk == null) {
+            final StringBuilder values = new StringBuilder();
+            for (int row = 0; row < LOG_ROWS_PER_INSERT; row++) {
+                if (row > 0) {
+                    values.append(',');
+                }
+                values.append("(?,?,?,?,?,?)");
+            }
+            insertLogsChunk = String.format(_lookup("insert_logs_rows"), values); //$NON-NLS-1$
+        }
+        return insertLogsChunk;
+    }
+
     public void insertLogs(List<Object[]> batchData) {
-        _jdbc().batchUpdate(_lookup("insert_logs"), batchData); //$NON-NLS-1$
+        if (batchData.size() < LOG_ROWS_PER_INSERT) {
+            _jdbc().batchUpdate(_lookup("insert_logs"), batchData); //$NON-NLS-1$
+            return;
+        }
+        // Full chunks go as one JDBC batch of multi-row inserts.
+        final List<Object[]> fullChunks = new ArrayList<Object[]>();
+        List<Object[]> remainder = null;
+        for (final List<Object[]> chunk : Iterables.partition(batchData, LOG_ROWS_PER_INSERT)) {
+            if (chunk.size() < LOG_ROWS_PER_INSERT) {
+                remainder = chunk;
+                break;
+            }
+            final Object[] args = new Object[LOG_ROWS_PER_INSERT * LOG_COLUMNS];
+            int index = 0;
+            for (final Object[] row : chunk) {
+                System.arraycopy(row, 0, args, index, LOG_COLUMNS);
+                index += LOG_COLUMNS;
+            }
+            fullChunks.add(args);
+        }
+        _jdbc().batchUpdate(insertLogsChunk(), fullChunks);
+        if (remainder != null) {
+            _jdbc().batchUpdate(_lookup("insert_logs"), remainder); //$NON-NLS-1$
+        }
     }
 
     public List<Map<String, Object>> roiByImage(final long imageId) {
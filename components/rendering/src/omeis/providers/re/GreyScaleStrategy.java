@@ -5,6 +5,10 @@
 package omeis.providers.re;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -44,6 +48,82 @@ class GreyScaleStrategy extends RenderingStrategy {
     /** The channel binding we're using */
     private ChannelBinding channelBinding;
 
+    /**
+     * The minimum number of pixels worth rendering in a band of its own.
+     * Smaller planes, such as most tiles, are rendered by the calling thread.
+     */
+    static final int MIN_BAND_SIZE = 128 * 512;
+
+    /** Writes rows of quantized values into an image buffer. */
+    private interface RowWriter {
+
+        /**
+         * Writes a row.
+         *
+         * @param pixelIndex The index in the buffer of the row's first pixel.
+         * @param discreteValues The quantized values of the row's pixels.
+         */
+        void writeRow(int pixelIndex, int[] discreteValues);
+    }
+
+    /** Renders a band of rows of a plane. */
+    private static class RenderGreyScaleBandTask implements RenderingTask {
+
+        private final Plane2D plane;
+
+        private final QuantumStrategy qs;
+
+        private final CodomainChain cc;
+
+        private final boolean transform;
+
+        private final RowWriter writer;
+
+        private final int sizeX1;
+
+        /** The first row of the band. */
+        private final int x2Start;
+
+        /** The row after the band. */
+        private final int x2End;
+
+        RenderGreyScaleBandTask(Plane2D plane, QuantumStrategy qs,
+                CodomainChain cc, boolean transform, RowWriter writer,
+                int sizeX1, int x2Start, int x2End) {
+            this.plane = plane;
+            this.qs = qs;
+            this.cc = cc;
+            this.transform = transform;
+            this.writer = writer;
+            this.sizeX1 = sizeX1;
+            this.x2Start = x2Start;
+            this.x2End = x2End;
+        }
+
+        public Object call() throws QuantizationException {
+            boolean planar = plane.isXYPlanar();
+            int[] row = new int[sizeX1];
+            int x1, x2, discreteValue, pixelIndex;
+            for (x2 = x2Start; x2 < x2End; ++x2) {
+                pixelIndex = sizeX1 * x2;
+                for (x1 = 0; x1 < sizeX1; ++x1) {
+                    if (planar) {
+                        discreteValue = qs.quantize(
+                                plane.getPixelValue(pixelIndex + x1));
+                    } else {
+                        discreteValue = qs.quantize(plane.getPixelValue(x1, x2));
+                    }
+                    if (transform) {
+                        discreteValue = cc.transform(discreteValue);
+                    }
+                    row[x1] = discreteValue;
+                }
+                writer.writeRow(pixelIndex, row);
+            }
+            return null;
+        }
+    }
+
     /**
      * Implemented as specified by the superclass.
      * 
@@ -76,48 +156,21 @@ class GreyScaleStrategy extends RenderingStrategy {
 
         RGBBuffer buf = getRgbBuffer();
         
-        byte value;
-        float alpha = channelBinding.getAlpha().floatValue() / 255;
-
-        int x1, x2, discreteValue, pixelIndex;
-        byte[] r = buf.getRedBand();
-        byte[] g = buf.getBlueBand();
-        byte[] b = buf.getGreenBand();
-        boolean hasMapContext = cc.hasMapContext();
-        if (plane.isXYPlanar())
-        {
-        	int planeSize = sizeX1 * sizeX2;
-            for (int i = 0; i < planeSize; i++)
-            {
-                for (x1 = 0; x1 < sizeX1; ++x1)
-                {
-                    discreteValue = qs.quantize(plane.getPixelValue(i));
-                    if (hasMapContext) {
-                        discreteValue = cc.transform(discreteValue);
-                    }
-                    value = (byte) (discreteValue * alpha);
-                    r[i] = value;
-                    g[i] = value;
-                    b[i] = value;
+        final float alpha = channelBinding.getAlpha().floatValue() / 255;
+        final byte[] r = buf.getRedBand();
+        final byte[] g = buf.getBlueBand();
+        final byte[] b = buf.getGreenBand();
+        renderBands(plane, qs, cc, cc.hasMapContext(), new RowWriter() {
+            public void writeRow(int pixelIndex, int[] discreteValues) {
+                byte value;
+                for (int x1 = 0; x1 < discreteValues.length; ++x1) {
+                    value = (byte) (discreteValues[x1] * alpha);
+                    r[pixelIndex + x1] = value;
+                    g[pixelIndex + x1] = value;
+                    b[pixelIndex + x1] = value;
                 }
             }
-        }
-        else
-        {
-        	for (x2 = 0; x2 < sizeX2; ++x2) {
-        		for (x1 = 0; x1 < sizeX1; ++x1) {
-        			pixelIndex = sizeX1 * x2 + x1;
-        			discreteValue = qs.quantize(plane.getPixelValue(x1, x2));
-        			if (hasMapContext) {
-                        discreteValue = cc.transform(discreteValue);
-                    }
-        			value = (byte) (discreteValue * alpha);
-        			r[pixelIndex] = value;
-        			g[pixelIndex] = value;
-        			b[pixelIndex] = value;
-        		}
-        	}
-        }
+        });
         return buf;
     }
     
@@ -168,37 +221,18 @@ class GreyScaleStrategy extends RenderingStrategy {
        
 	    RGBIntBuffer dataBuf = getIntBuffer();
 	    
-        int alpha = channelBinding.getAlpha();
-        int[] buf = ((RGBIntBuffer) dataBuf).getDataBuffer();
-        int x1, x2, discreteValue, pixelIndex;
-        boolean hasMapContext = cc.hasMapContext();
-        if (plane.isXYPlanar())
-        {
-        	int planeSize = sizeX1 * sizeX2;
-        	for (int i = 0; i < planeSize; i++)
-        	{
-                discreteValue = qs.quantize(plane.getPixelValue(i));
-                if (hasMapContext) {
-                    discreteValue = cc.transform(discreteValue);
+        final int alpha = channelBinding.getAlpha();
+        final int[] buf = dataBuf.getDataBuffer();
+        renderBands(plane, qs, cc, cc.hasMapContext(), new RowWriter() {
+            public void writeRow(int pixelIndex, int[] discreteValues) {
+                int discreteValue;
+                for (int x1 = 0; x1 < discreteValues.length; ++x1) {
+                    discreteValue = discreteValues[x1];
+                    buf[pixelIndex + x1] = alpha << 24 | discreteValue << 16
+                            | discreteValue << 8 | discreteValue;
                 }
-                buf[i] = alpha << 24 | discreteValue << 16
-                        | discreteValue << 8 | discreteValue;
-        	}
-        }
-        else
-        {
-        	for (x2 = 0; x2 < sizeX2; ++x2) {
-        		pixelIndex = sizeX1 * x2;
-        		for (x1 = 0; x1 < sizeX1; ++x1) {
-        			discreteValue = qs.quantize(plane.getPixelValue(x1, x2));
-        			if (hasMapContext) {
-                        discreteValue = cc.transform(discreteValue);
-                    }
-        			buf[pixelIndex + x1] = alpha << 24 | discreteValue << 16
-        			| discreteValue << 8 | discreteValue;
-        		}
-        	}
-        }
+            }
+        });
 	    return dataBuf;
 	}
 
@@ -234,39 +268,87 @@ class GreyScaleStrategy extends RenderingStrategy {
 	
 	    RGBAIntBuffer dataBuf = getRGBAIntBuffer();
 	    
-        int alpha = channelBinding.getAlpha();
-        int[] buf = ((RGBAIntBuffer) dataBuf).getDataBuffer();
-        int x1, x2, discreteValue, pixelIndex;
-        boolean hasMapContext = cc.hasMapContext();
-        if (plane.isXYPlanar())
-        {
-        	int planeSize = sizeX1 * sizeX2;
-        	for (int i = 0; i < planeSize; i++)
-        	{
-                discreteValue = qs.quantize(plane.getPixelValue(i));
-                if (hasMapContext) {
-                    discreteValue = cc.transform(discreteValue);
+        final int alpha = channelBinding.getAlpha();
+        final int[] buf = dataBuf.getDataBuffer();
+        // Planes not read as a whole have always been mapped through the
+        // codomain chain, even when it is empty.
+        boolean transform = cc.hasMapContext() || !plane.isXYPlanar();
+        renderBands(plane, qs, cc, transform, new RowWriter() {
+            public void writeRow(int pixelIndex, int[] discreteValues) {
+                int discreteValue;
+                for (int x1 = 0; x1 < discreteValues.length; ++x1) {
+                    discreteValue = discreteValues[x1];
+                    buf[pixelIndex + x1] = alpha | discreteValue << 24
+                            | discreteValue << 16 | discreteValue << 8;
                 }
-                buf[i] = alpha | discreteValue << 24
-                        | discreteValue << 16 | discreteValue << 8;
-        	}
-        }
-        else
-        {
-        	for (x2 = 0; x2 < sizeX2; ++x2) {
-        		pixelIndex = sizeX1 * x2;
-        		for (x1 = 0; x1 < sizeX1; ++x1) {
-        			discreteValue = qs.quantize(plane.getPixelValue(x1, x2));
-        			discreteValue = cc.transform(discreteValue);
-        			buf[pixelIndex + x1] = alpha | discreteValue << 24
-        			| discreteValue << 16 | discreteValue << 8;
-        		}
-        	}
-        }
+            }
+        });
 	    return dataBuf;
 	}
 
 
+    /**
+     * Quantizes the rows of a plane and passes them to a writer. Large planes
+     * are split into bands of rows rendered concurrently by the
+     * {@link SharedWorkers}, the first band being rendered by the calling
+     * thread.
+     *
+     * @param plane The plane to render.
+     * @param qs The quantum strategy of the rendered channel.
+     * @param cc The codomain chain of the rendered channel.
+     * @param transform Pass <code>true</code> to map the quantized values
+     *            through the codomain chain, <code>false</code> otherwise.
+     * @param writer Writes the rendered rows into the image buffer.
+     * @throws QuantizationException If an error occurred while quantizing the
+     *             pixels raw data.
+     */
+    private void renderBands(Plane2D plane, QuantumStrategy qs,
+            CodomainChain cc, boolean transform, RowWriter writer)
+            throws QuantizationException {
+        int bandCount = Math.min(maxTasks, sizeX2);
+        bandCount = Math.min(bandCount, sizeX1 * sizeX2 / MIN_BAND_SIZE);
+        if (bandCount <= 1) {
+            new RenderGreyScaleBandTask(plane, qs, cc, transform, writer,
+                    sizeX1, 0, sizeX2).call();
+            return;
+        }
+        int bandHeight = (sizeX2 + bandCount - 1) / bandCount;
+        List<Future<?>> futures = new ArrayList<Future<?>>(bandCount - 1);
+        boolean done = false;
+        try {
+            for (int x2 = bandHeight; x2 < sizeX2; x2 += bandHeight) {
+                futures.add(SharedWorkers.submit(new RenderGreyScaleBandTask(
+                        plane, qs, cc, transform, writer, sizeX1, x2,
+                        Math.min(x2 + bandHeight, sizeX2))));
+            }
+            // Render the first band in the current thread.
+            new RenderGreyScaleBandTask(plane, qs, cc, transform, writer,
+                    sizeX1, 0, bandHeight).call();
+            for (Future<?> future : futures) {
+                SharedWorkers.get(future);
+            }
+            done = true;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof QuantizationException) {
+                throw (QuantizationException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            if (!done) {
+                for (Future<?> future : futures) {
+                    future.cancel(true);
+                }
+            }
+        }
+    }
+
 	/**
 	 * Initializes the first active channel binding for the current rendering
 	 * context.
@@ -402,6 +402,48 @@ public class Renderer {
         checkOptimizations();
     }
 
+    /**
+     * Creates a new instance sharing the settings, quantum strategies and
+     * codomain chains of the specified renderer.
+     *
+     * @param source The renderer to copy.
+     * @param bufferObj PixelBuffer object.
+     * @param overlays Overlay to color map or <code>null</code>.
+     * @see #newRenderer(PixelBuffer, Map)
+     */
+    private Renderer(Renderer source, PixelBuffer bufferObj,
+            Map<byte[], Integer> overlays) {
+        if (bufferObj == null) {
+            throw new NullPointerException("Expecting not null buffer");
+        }
+        metadata = source.metadata;
+        rndDef = source.rndDef;
+        buffer = bufferObj;
+        lutProvider = source.lutProvider;
+        quantumManager = source.quantumManager;
+        codomainChains = source.codomainChains;
+        this.overlays = overlays;
+        renderingStrategy = RenderingStrategy.makeNew(rndDef.getModel());
+        checkOptimizations();
+    }
+
+    /**
+     * Returns a renderer for the current settings which reads the pixels
+     * data from the specified buffer. The returned renderer has its own
+     * rendering strategy, overlays and statistics, so several of them may
+     * render concurrently as long as the settings of this renderer are not
+     * modified in the meantime.
+     *
+     * @param bufferObj The pixel buffer to read from, which remains owned
+     *                  by the caller.
+     * @param overlays Overlay to color map or <code>null</code>.
+     * @return See above.
+     */
+    public Renderer newRenderer(PixelBuffer bufferObj,
+            Map<byte[], Integer> overlays) {
+        return new Renderer(this, bufferObj, overlays);
+    }
+
     /**
      * Returns the current lookup table provider.
      *
@@ -0,0 +1,88 @@
+/*
+ *   Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ *   All rights reserved.
+ *
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+
+package omeis.providers.re;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads shared by the rendering and the statistics code to work on the
+ * parts of a request concurrently, one per processor as the work is mostly
+ * computation. Tasks are {@link #submit(Callable) submitted} and their
+ * results then {@link #get(Future) collected}; collecting the result of a
+ * task that no worker has yet started runs it in the calling thread. So, the
+ * calling thread always does its share of the work and tasks may themselves
+ * submit tasks without waiting for a worker to become free.
+ *
+ * @since 5.4.10
+ */
+public final class SharedWorkers {
+
+    private static final ExecutorService WORKERS = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                private final AtomicInteger threadCount = new AtomicInteger();
+
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable,
+                            "SharedWorkers-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private SharedWorkers() {
+    }
+
+    /**
+     * Submits a task to the shared workers.
+     *
+     * @param task The task to run.
+     * @return The pending result of the task.
+     */
+    public static <T> Future<T> submit(Callable<T> task) {
+        return WORKERS.submit(task);
+    }
+
+    /**
+     * Waits for the result of a task, first running it in the calling thread
+     * if no worker has started it.
+     *
+     * @param future The pending result of a task returned by
+     *               {@link #submit(Callable)}.
+     * @return The result of the task.
+     * @throws ExecutionException If the task failed.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public static <T> T get(Future<T> future)
+            throws ExecutionException, InterruptedException {
+        if (future instanceof RunnableFuture) {
+            // Does nothing if a worker has already started the task.
+            ((RunnableFuture<?>) future).run();
+        }
+        return future.get();
+    }
+
+    /**
+     * Cancels the tasks that no worker has started, e.g. when the result of
+     * another part of the request failed.
+     *
+     * @param futures The pending results of tasks returned by
+     *                {@link #submit(Callable)}.
+     */
+    public static void cancel(Iterable<? extends Future<?>> futures) {
+        for (Future<?> future : futures) {
+            future.cancel(false);
+        }
+    }
+}
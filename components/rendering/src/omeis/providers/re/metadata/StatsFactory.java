@@ -7,6 +7,20 @@
 
 package omeis.providers.re.metadata;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
 import loci.formats.FormatTools;
 
 import org.slf4j.Logger;
@@ -17,16 +31,15 @@ import ome.model.core.Channel;
 import ome.model.core.Pixels;
 import ome.model.enums.PixelsType;
 import ome.model.stats.StatsInfo;
+import ome.util.PixelData;
 
-import omeis.providers.re.data.Plane2D;
+import omeis.providers.re.SharedWorkers;
 import omeis.providers.re.data.PlaneDef;
-import omeis.providers.re.quantum.QuantumStrategy;
 
 /**
- * Computes two types of statistics: The PixelsStats and the location stats. The
- * location stats determine the location of the pixels' values in order to set
- * the inputWindow and the noiseReduction flag. This flag will then be used when
- * we map the pixels intensity values onto the device space.
+ * Computes the statistics of the pixels' values: the minimum and maximum of
+ * the sampled planes and the input window, i.e. <code>inputStart</code> and
+ * <code>inputEnd</code>, of a channel.
  * 
  * @author Jean-Marie Burel &nbsp;&nbsp;&nbsp;&nbsp; <a
  *         href="mailto:j.burel@dundee.ac.uk">j.burel@dundee.ac.uk</a>
@@ -42,27 +55,12 @@ public class StatsFactory {
 
 	/** The minimum range. */
 	private static final int RANGE_RGB = 255;
-	
-	/** The number of bins. */
-    private static final int NB_BIN = 2 * QuantumStrategy.DECILE;
-
-    /** The default size of a bin. */
-    private static final int BIN = 2;
-
-    /** The error factor. */
-    private static final int EPSILON = 4;
-
-    /** The threshold value. */
-    private static final double THRESHOLD = 0.99;
-
-    /** The noise reduction threshold value. */
-    private static final double NR_THRESHOLD = 0.95;
 
-    /** The location statistics. */
-    private double[] locationStats;
-
-    /** Boolean flag to determine the mapping algorithm. */
-    private boolean noiseReduction;
+    /**
+     * Default maximum number of pixels sampled per plane, larger planes
+     * are sampled with a stride.
+     */
+    public static final int DEFAULT_MAX_SAMPLES = 4 * 1024 * 1024;
 
     /** Value determined according to the location of the pixels' value. */
     private double inputStart;
@@ -70,147 +68,212 @@ public class StatsFactory {
     /** Value determined according to the location of the pixels' value. */
     private double inputEnd;
 
-    /** The size of the bin.*/
-    private double sizeBin;
-    
-    /** The epsilon value.*/
-    private double epsilon;
-    
     /**
-     * For the specified {@link Plane2D}, computes the bins, determines the
-     * inputWindow and the noiseReduction flag.
-     * 
-     * @param p2D 	 The selected plane2d.
-     * @param gMin The global minimum.
-     * @param sizeX2 The size along one axis.
-     * @param sizeX1 The size along the other axis.
+     * Accumulates the minimum and maximum of the pixel values passed to
+     * {@link #add(double)}.
      */
-    private void computeBins(Plane2D p2D, double gMin, int sizeX2,
-            int sizeX1) {
-    	int[] totals = new int[NB_BIN];
-        /*
-         * Segment[] segments = new Segment[NB_BIN]; for (int i = 0; i < NB_BIN;
-         * i++) { segments[i] = new Segment( gMin + i * sizeBin, 0, gMin + (i +
-         * 1) * sizeBin, 0); }
-         */
-        BasicSegment[] segments = new BasicSegment[NB_BIN];
-        for (int i = 0; i < NB_BIN; i++) {
-            segments[i] = new BasicSegment(gMin + i * sizeBin, gMin + (i + 1)
-                    * sizeBin);
+    private static final class Accumulator {
+
+        double min = Double.POSITIVE_INFINITY;
+
+        double max = Double.NEGATIVE_INFINITY;
+
+        void add(double v) {
+            if (v < min) min = v;
+            if (v > max) max = v;
         }
+    }
 
-        // check segment [o,e[
-        double v;
-        BasicSegment segment;
-        if (p2D.isXYPlanar()) {
-            // modified code
-            int size = sizeX1 * sizeX2;
-            for (int j = 0; j < size; j++) {
-                v = p2D.getPixelValue(j);
-                for (int i = 0; i < segments.length; i++) {
-                    segment = segments[i];
-                    if (v >= segment.x1 && v < segment.x2) {
-                        totals[i]++;
-                        break;
+    /**
+     * Feeds every <code>stride</code>-th of the first <code>size</code>
+     * pixels to the accumulator, reading the backing buffer through a typed
+     * view rather than converting each pixel with
+     * {@link PixelData#getPixelValue(int)}.
+     *
+     * @param data The pixel data.
+     * @param size The number of pixels to consider.
+     * @param stride The distance between two sampled pixels.
+     * @param acc The accumulator.
+     */
+    private static void scan(PixelData data, int size, int stride,
+            Accumulator acc) {
+        final ByteBuffer buf = data.getData().duplicate();
+        buf.order(data.getOrder());
+        buf.clear();
+        final boolean signed = data.isSigned();
+        switch (data.javaType()) {
+            case PixelData.BYTE:
+                if (signed) {
+                    for (int i = 0; i < size; i += stride) {
+                        acc.add(buf.get(i));
                     }
-                } // end i
-            }
-        } else {
-            for (int x2 = 0; x2 < sizeX2; ++x2) {
-                for (int x1 = 0; x1 < sizeX1; ++x1) {
-                    v = p2D.getPixelValue(x1, x2);
-                    for (int i = 0; i < segments.length; i++) {
-                        segment = segments[i];
-                        if (v >= segment.x1 && v < segment.x2) {
-                            totals[i]++;
-                            break;
-                        }
-                        /*
-                         * if (!segments[i].equals(1, pointX1, pointX2) &&
-                         * segments[i].lies(pointX1, pointX2)) { totals[i]++;
-                         * break; }
-                         */
-                    } // end i
-                } // end x1
-            }// end x2
+                } else {
+                    for (int i = 0; i < size; i += stride) {
+                        acc.add(buf.get(i) & 0xFF);
+                    }
+                }
+                break;
+            case PixelData.SHORT:
+                final ShortBuffer shorts = buf.asShortBuffer();
+                if (signed) {
+                    for (int i = 0; i < size; i += stride) {
+                        acc.add(shorts.get(i));
+                    }
+                } else {
+                    for (int i = 0; i < size; i += stride) {
+                        acc.add(shorts.get(i) & 0xFFFF);
+                    }
+                }
+                break;
+            case PixelData.INT:
+                final IntBuffer ints = buf.asIntBuffer();
+                if (signed) {
+                    for (int i = 0; i < size; i += stride) {
+                        acc.add(ints.get(i));
+                    }
+                } else {
+                    for (int i = 0; i < size; i += stride) {
+                        acc.add(ints.get(i) & 0xFFFFFFFFL);
+                    }
+                }
+                break;
+            case PixelData.FLOAT:
+                final FloatBuffer floats = buf.asFloatBuffer();
+                for (int i = 0; i < size; i += stride) {
+                    acc.add(floats.get(i));
+                }
+                break;
+            case PixelData.DOUBLE:
+                final DoubleBuffer doubles = buf.asDoubleBuffer();
+                for (int i = 0; i < size; i += stride) {
+                    acc.add(doubles.get(i));
+                }
+                break;
+            default:
+                for (int i = 0; i < size; i += stride) {
+                    acc.add(data.getPixelValue(i));
+                }
         }
+    }
 
-        double total = sizeX2 * sizeX1;
-        for (int i = 0; i < totals.length; i++) {
-            locationStats[i] += totals[i] / total;
-        }
-        double s = segments[0].x2;
-        double end = segments[NB_BIN - 1].x2;
-        total = total - totals[0] - totals[NB_BIN - 1];
-        if (totals[0] >= totals[NB_BIN - 1]) {
-            end = accumulateCloseToMin(totals, segments, total, epsilon);
-        } else {
-            s = accumulateCloseToMax(totals, segments, total, epsilon);
+    /**
+     * Returns the stride to use so that no more than <code>maxSamples</code>
+     * of <code>size</code> pixels are sampled.
+     *
+     * @param size The number of pixels.
+     * @param maxSamples The maximum number of pixels to sample.
+     * @return See above.
+     */
+    public static int sampleStride(long size, int maxSamples) {
+        if (maxSamples <= 0 || size <= maxSamples) {
+            return 1;
         }
-        if (s < inputStart) inputStart = s;
-        if (end > inputEnd) inputEnd = end;
-        noiseReduction = noiseReduction();
+        return (int) ((size + maxSamples - 1) / maxSamples);
     }
 
-    /** Determines the value of the noiseReduction flag. */
-    private boolean noiseReduction() {
-        double sumMin = 0, sumMax = 0;
-        for (int i = 0; i < locationStats.length; i++) {
-            if (i < BIN) {
-                sumMin += locationStats[i];
-            }
-            if (i >= locationStats.length - BIN) {
-                sumMax += locationStats[i];
-            }
-        }
-        if (sumMin >= NR_THRESHOLD || sumMax >= NR_THRESHOLD) {
-           return false;
+    /**
+     * Determines the minimum and maximum of every <code>stride</code>-th
+     * pixel of the passed data. <code>NaN</code> values are ignored.
+     *
+     * @param data The pixel data.
+     * @param stride The distance between two sampled pixels.
+     * @return The minimum and maximum or the pixels type range if there
+     *         were no values.
+     */
+    public static double[] minMax(PixelData data, int stride) {
+        final Accumulator acc = new Accumulator();
+        scan(data, data.size(), Math.max(1, stride), acc);
+        if (acc.min > acc.max) {
+            return new double[] {data.getMinimum(), data.getMaximum()};
         }
-        return true;
+        return new double[] {acc.min, acc.max};
     }
 
     /**
-     * Determines the value of inputEnd when the pixels' values accumulated
-     * closed to the minimum.
-     * 
-     * @param totals The accumulated values.
-     * @param segments The segments to analyze.
-     * @param total The total value.
-     * @param epsilon The error value.
+     * Reads the plane to sample for statistics. If the buffer has several
+     * resolution levels, the largest one with no more than
+     * <code>maxSamples</code> pixels, or else the smallest one, is read
+     * instead of the full resolution plane. The resolution level of the
+     * buffer is restored afterwards.
+     *
+     * @param buffer The pixel buffer.
+     * @param z The selected z-section.
+     * @param c The selected channel.
+     * @param t The selected timepoint.
+     * @param maxSamples The targeted maximum number of pixels.
+     * @return See above.
+     * @throws IOException If the data cannot be read.
      */
-    private double accumulateCloseToMin(int[] totals, BasicSegment[] segments,
-            double total, double epsilon) {
-        double e = segments[NB_BIN - 1].x2, sum = 0;
-        for (int i = 1; i < totals.length - 1; i++) {
-            sum += totals[i];
-            if (sum / total > THRESHOLD) {
-                e = segments[i].x1 + epsilon;
+    public static PixelData samplePlane(PixelBuffer buffer, int z, int c,
+            int t, int maxSamples) throws IOException {
+        final int levels = buffer.getResolutionLevels();
+        if (levels <= 1) {
+            return buffer.getPlane(z, c, t);
+        }
+        // Descriptions are ordered from the largest resolution down
+        final List<List<Integer>> sizes = buffer.getResolutionDescriptions();
+        int level = 0;
+        for (int l = 1; l < levels; l++) {
+            final List<Integer> size = sizes.get(levels - 1 - l);
+            if ((long) size.get(0) * size.get(1) > maxSamples) {
                 break;
             }
+            level = l;
+        }
+        final List<Integer> size = sizes.get(levels - 1 - level);
+        final int current = buffer.getResolutionLevel();
+        buffer.setResolutionLevel(level);
+        try {
+            return buffer.getTile(z, c, t, 0, 0, size.get(0), size.get(1));
+        } finally {
+            buffer.setResolutionLevel(current);
         }
-        return e;
     }
 
     /**
-     * Determines the value of inputStart when the pixels' values accumulated
-     * closed to the max.
-     * 
-     * @param totals The accumulated values.
-     * @param segments The segments to analyze.
-     * @param total The total value.
-     * @param epsilon The error value.
+     * Determines the minimum and maximum of the selected plane of each of
+     * the passed channels. Planes are read one after the other, from a low
+     * resolution level if available, and their statistics computed by the
+     * {@link SharedWorkers} while the next plane is being read. Planes larger
+     * than <code>maxSamples</code> pixels are sampled with a stride.
+     *
+     * @param buffer The pixel buffer.
+     * @param channels The channel indices.
+     * @param z The selected z-section.
+     * @param t The selected timepoint.
+     * @param maxSamples The maximum number of pixels to sample per plane.
+     * @return A map from channel index to minimum and maximum.
+     * @throws IOException If the data cannot be read.
      */
-    private double accumulateCloseToMax(int[] totals, BasicSegment[] segments,
-            double total, double epsilon) {
-        double s = segments[0].x2, sum = 0;
-        for (int i = totals.length - 2; i > 0; i--) {
-            sum += totals[i];
-            if (sum / total > THRESHOLD) {
-                s = segments[i].x2 - epsilon;
-                break;
+    public static Map<Integer, double[]> computeMinMax(PixelBuffer buffer,
+            int[] channels, int z, int t, final int maxSamples)
+                    throws IOException {
+        final Map<Integer, double[]> result =
+                new HashMap<Integer, double[]>();
+        final List<Future<double[]>> futures =
+                new ArrayList<Future<double[]>>(channels.length);
+        try {
+            for (int i = 0; i < channels.length; i++) {
+                final PixelData px = samplePlane(buffer, z, channels[i], t,
+                        maxSamples);
+                futures.add(SharedWorkers.submit(new Callable<double[]>() {
+                    public double[] call() {
+                        return minMax(px, sampleStride(px.size(), maxSamples));
+                    }
+                }));
+            }
+            for (int i = 0; i < channels.length; i++) {
+                result.put(channels[i], SharedWorkers.get(futures.get(i)));
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            SharedWorkers.cancel(futures);
         }
-        return s;
+        return result;
     }
 
     /** 
@@ -252,9 +315,9 @@ public class StatsFactory {
     }
 
     /**
-     * Helper object to determine the location of the pixels' values, the
-     * inputWindow i.e. <code>inputStart</code> and <code>inputEnd</code>
-     * and to initialize the <code>noiseReduction</code> flag.
+     * Determines the inputWindow i.e. <code>inputStart</code> and
+     * <code>inputEnd</code> of the channel from its global minimum and
+     * maximum, or from the range of the pixels type if none.
      * 
      * @param metadata The pixels to parse.
      * @param pixelsData The buffer.
@@ -279,25 +342,6 @@ public class StatsFactory {
         }
     }
 
-    /**
-     * Returns the statistics.
-     * 
-     * @return See above.
-     */
-    public double[] getLocationStats() {
-        return locationStats;
-    }
-
-    /**
-     * Returns <code>true</code> if the flag is on, <code>false</code>
-     * otherwise.
-     * 
-     * @return See above.
-     */
-    public boolean isNoiseReduction() {
-        return noiseReduction;
-    }
-
     /**
      * Returns the input start.
      * 
@@ -316,31 +360,4 @@ public class StatsFactory {
         return inputEnd;
     }
 
-    // inner class
-    class BasicSegment {
-
-        /** Left bound of the segment. */
-        double x1;
-
-        /** Right bound of the segment. */
-        double x2;
-
-        /**
-         * Creates a new instance.
-         * 
-         * @param x1
-         *            The left bound of the segment.
-         * @param x2
-         *            The right bound of the segment.
-         */
-        BasicSegment(double x1, double x2) {
-            if (x2 < x1) {
-                throw new IllegalArgumentException("Segment not valid.");
-            }
-            this.x2 = x2;
-            this.x1 = x1;
-        }
-
-    }
-
 }
@@ -55,32 +55,39 @@ public class Quantization_float extends QuantumStrategy {
     /** The uppest pixel intensity value. */
     private int max;
 
-    /** The input start normalized value. */
-    private double ysNormalized;
+    /**
+     * The parameters of the maps, computed afresh for each value so that
+     * values may be quantized concurrently, e.g. by the bands of a plane.
+     */
+    private static final class Maps {
 
-    /** The input end normalized value. */
-    private double yeNormalized;
+        /** The input start normalized value. */
+        double ysNormalized;
 
-    /** The slope of the normalized map. */
-    private double aNormalized;
+        /** The input end normalized value. */
+        double yeNormalized;
 
-    /** The lower bound of the decile interval. */
-    private double Q1;
+        /** The slope of the normalized map. */
+        double aNormalized;
 
-    /** The upper bound of the decile interval. */
-    private double Q9;
+        /** The lower bound of the decile interval. */
+        double Q1;
 
-    /**
-     * The mapping parameters from the sub-interval of [Q1, Q9] to the device
-     * space.
-     */
-    private double aDecile, bDecile;
+        /** The upper bound of the decile interval. */
+        double Q9;
 
-    /**
-     * The device space sub-interval. The values aren't the ones stored in
-     * {@link QuantumDef} if the noise reduction flag is <code>true</code>.
-     */
-    private int cdStart, cdEnd;
+        /**
+         * The mapping parameters from the sub-interval of [Q1, Q9] to the
+         * device space.
+         */
+        double aDecile, bDecile;
+
+        /**
+         * The device space sub-interval. The values aren't the ones stored in
+         * {@link QuantumDef} if the noise reduction flag is <code>true</code>.
+         */
+        int cdStart, cdEnd;
+    }
 
     /** The mapped values.*/
     private LoadingCache<Double, Integer> values;
@@ -90,12 +97,14 @@ public class Quantization_float extends QuantumStrategy {
      *
      * @param k
      *            The coefficient of the selected curve.
+     * @param m
+     *            The maps to initialize.
      */
-    private void initNormalizedMap(double k) {
-        ysNormalized = valueMapper.transform(MIN, k);
-        yeNormalized = valueMapper.transform(MAX, k);
-        aNormalized = qDef.getBitResolution().intValue()
-                / (yeNormalized - ysNormalized);
+    private void initNormalizedMap(double k, Maps m) {
+        m.ysNormalized = valueMapper.transform(MIN, k);
+        m.yeNormalized = valueMapper.transform(MAX, k);
+        m.aNormalized = qDef.getBitResolution().intValue()
+                / (m.yeNormalized - m.ysNormalized);
     }
 
     /**
@@ -107,52 +116,54 @@ public class Quantization_float extends QuantumStrategy {
      *            The input window start.
      * @param dEnd
      *            The input window end.
+     * @param m
+     *            The maps to initialize.
      * @return See above.
      */
-    private double initDecileMap(double dStart, double dEnd) {
-        cdStart = qDef.getCdStart().intValue();
-        cdEnd = qDef.getCdEnd().intValue();
+    private double initDecileMap(double dStart, double dEnd, Maps m) {
+        m.cdStart = qDef.getCdStart().intValue();
+        m.cdEnd = qDef.getCdEnd().intValue();
         double denum = dEnd - dStart, num = MAX;
 
         double v = 0, b = dStart;
         int e = 0;
         double startMin = min;
         double startMax = max;
-        Q1 = min;
-        Q9 = max;
+        m.Q1 = min;
+        m.Q9 = max;
 
         if (dStart <= startMin) {
-            Q1 = dStart;
+            m.Q1 = dStart;
         }
-        if (dEnd >= startMax) Q9 = dEnd;
+        if (dEnd >= startMax) m.Q9 = dEnd;
         if (startMin == startMax) v = 1;
         double decile = (startMax - startMin) / DECILE;
         if (getNoiseReduction()) {
-            Q1 += decile;
-            Q9 -= decile;
-            denum = Q9 - Q1;
+            m.Q1 += decile;
+            m.Q9 -= decile;
+            denum = m.Q9 - m.Q1;
             v = DECILE;
             e = DECILE;
             num = MAX - 2 * DECILE;
-            b = Q1;
-            if (dStart >= Q1 && dEnd > Q9) {
-                denum = Q9 - dStart;
+            b = m.Q1;
+            if (dStart >= m.Q1 && dEnd > m.Q9) {
+                denum = m.Q9 - dStart;
                 b = dStart;
-            } else if (dStart >= Q1 && dEnd <= Q9) {
+            } else if (dStart >= m.Q1 && dEnd <= m.Q9) {
                 denum = dEnd - dStart;
                 b = dStart;
-            } else if (dStart < Q1 && dEnd <= Q9) {
-                denum = dEnd - Q1;
+            } else if (dStart < m.Q1 && dEnd <= m.Q9) {
+                denum = dEnd - m.Q1;
             }
-            if (cdStart < DECILE) {
-                cdStart = DECILE;
+            if (m.cdStart < DECILE) {
+                m.cdStart = DECILE;
             }
-            if (cdEnd > MAX - DECILE) {
-                cdEnd = MAX - DECILE;
+            if (m.cdEnd > MAX - DECILE) {
+                m.cdEnd = MAX - DECILE;
             }
         }
-        aDecile = num / denum;
-        bDecile = aDecile * b - e;
+        m.aDecile = num / denum;
+        m.bDecile = m.aDecile * b - e;
 
         return v;
     }
@@ -198,25 +209,26 @@ public class Quantization_float extends QuantumStrategy {
         double a1 = (qDef.getCdEnd().intValue() - qDef.getCdStart().intValue())
                 / qDef.getBitResolution().doubleValue();
 
+        Maps m = new Maps();
         // Initializes the normalized map.
-        initNormalizedMap(k);
+        initNormalizedMap(k, m);
         // Initializes the decile map.
-        double v = initDecileMap(dStart, dEnd);
+        double v = initDecileMap(dStart, dEnd, m);
         QuantumMap normalize = new PolynomialMap();
 
-        if (value > Q1) {
-            if (value <= Q9) {
-                v = aDecile * normalize.transform(value, 1) - bDecile;
+        if (value > m.Q1) {
+            if (value <= m.Q9) {
+                v = m.aDecile * normalize.transform(value, 1) - m.bDecile;
             } else {
-                v = cdEnd;
+                v = m.cdEnd;
             }
         } else {
-            v = cdStart;
+            v = m.cdStart;
         }
 
-        v = aNormalized * (valueMapper.transform(v, k) - ysNormalized);
+        v = m.aNormalized * (valueMapper.transform(v, k) - m.ysNormalized);
         v = Math.round(v);
-        v = Math.round(a1 * v + cdStart);
+        v = Math.round(a1 * v + m.cdStart);
         return ((byte) v) & 0xFF;
     }
 
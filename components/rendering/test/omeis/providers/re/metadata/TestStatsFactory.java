@@ -19,8 +19,12 @@
 
 package omeis.providers.re.metadata;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 import ome.model.core.Pixels;
 import ome.model.enums.PixelsType;
+import ome.util.PixelData;
 
 import org.testng.Assert;
 import org.testng.annotations.Test;
@@ -129,4 +133,51 @@ public class TestStatsFactory {
         Assert.assertEquals(pixelsRange[0], 0.0);
         Assert.assertEquals(pixelsRange[1], 65535.0);
     }
+
+    private PixelData createUint16(int... values) {
+        ByteBuffer buf = ByteBuffer.allocate(values.length * 2);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        for (int v : values) {
+            buf.putShort((short) v);
+        }
+        PixelData data = new PixelData("uint16", buf);
+        data.setOrder(ByteOrder.LITTLE_ENDIAN);
+        return data;
+    }
+
+    public void testMinMaxUnsigned() {
+        PixelData data = createUint16(300, 65535, 7, 40000);
+        double[] minMax = StatsFactory.minMax(data, 1);
+        Assert.assertEquals(minMax[0], 7.0);
+        Assert.assertEquals(minMax[1], 65535.0);
+    }
+
+    public void testMinMaxSigned() {
+        ByteBuffer buf = ByteBuffer.wrap(new byte[] {5, -128, 127, 0});
+        double[] minMax = StatsFactory.minMax(new PixelData("int8", buf), 1);
+        Assert.assertEquals(minMax[0], -128.0);
+        Assert.assertEquals(minMax[1], 127.0);
+    }
+
+    public void testMinMaxFloatIgnoresNaN() {
+        ByteBuffer buf = ByteBuffer.allocate(12);
+        buf.putFloat(Float.NaN).putFloat(-1.5f).putFloat(2.5f);
+        double[] minMax = StatsFactory.minMax(new PixelData("float", buf), 1);
+        Assert.assertEquals(minMax[0], -1.5);
+        Assert.assertEquals(minMax[1], 2.5);
+    }
+
+    public void testMinMaxStride() {
+        PixelData data = createUint16(1, 100, 2, 200, 3);
+        double[] minMax = StatsFactory.minMax(data, 2);
+        Assert.assertEquals(minMax[0], 1.0);
+        Assert.assertEquals(minMax[1], 3.0);
+    }
+
+    public void testSampleStride() {
+        Assert.assertEquals(StatsFactory.sampleStride(100, 100), 1);
+        Assert.assertEquals(StatsFactory.sampleStride(101, 100), 2);
+        Assert.assertEquals(StatsFactory.sampleStride(1000, 100), 10);
+        Assert.assertEquals(StatsFactory.sampleStride(1000, 0), 1);
+    }
 }
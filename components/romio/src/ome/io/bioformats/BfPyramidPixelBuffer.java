@@ -30,6 +30,7 @@ import ome.conditions.ResourceError;
 import ome.io.nio.ConfiguredTileSizes;
 import ome.io.nio.DimensionsOutOfBoundsException;
 import ome.io.nio.PixelBuffer;
+import ome.io.nio.PyramidTileCache;
 import ome.io.nio.TileSizes;
 import ome.model.core.Pixels;
 import ome.util.PixelData;
@@ -121,8 +122,21 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
     /** The byte order of the compressed pyramid. */
     private ByteOrder byteOrder = ByteOrder.BIG_ENDIAN;
 
+    /** Decoded tiles shared with other buffers, disabled by default. */
+    private PyramidTileCache tileCache = new PyramidTileCache();
+
+    /** Modification time of the pyramid file when the reader was opened. */
+    private long fileVersion;
+
     public static final String PYR_LOCK_EXT = ".pyr_lock";
 
+    /**
+     * Number of resolution levels, the full resolution included, written for
+     * floating point pixels. Each level halves the size of the previous one
+     * which matches the levels of JPEG 2000 compressed integer pyramids.
+     */
+    public static final int FLOATING_POINT_RESOLUTION_LEVELS = 6;
+
     /**
      * We may want a constructor that takes the id of an imported file
      * or that takes a File object?
@@ -204,6 +218,7 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
             // note: we double checked readerFile exists just in case.
             lockFile.delete();
         }
+        fileVersion = readerFile.lastModified();
         reader = new OmeroPixelsPyramidReader();
         delegate = new BfPixelBuffer(readerFile.getAbsolutePath(), reader);
         byteOrder = delegate.isLittleEndian()? ByteOrder.LITTLE_ENDIAN
@@ -299,6 +314,21 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
     private void addSeries(int tileWidth, int tileLength)
         throws EnumerationException
     {
+        if (isFloatingPoint())
+        {
+            // JPEG 2000 cannot hold floating point samples, the writer
+            // downsamples each resolution level into its own series.
+            int sizeX = pixels.getSizeX();
+            int sizeY = pixels.getSizeY();
+            for (int series = 0; series < FLOATING_POINT_RESOLUTION_LEVELS;
+                 series++)
+            {
+                createSeries(series, sizeX, sizeY);
+                sizeX = (sizeX + 1) / 2;
+                sizeY = (sizeY + 1) / 2;
+            }
+            return;
+        }
         int series = 0;
         for (int level : new int[] { 0, 5, 4 })
         {
@@ -461,6 +491,40 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
         return writerFile != null;
     }
 
+    /**
+     * Sets the cache in which tiles read from the pyramid are kept for reuse
+     * by this and other buffers.
+     * @param tileCache the cache to use
+     */
+    public void setTileCache(PyramidTileCache tileCache)
+    {
+        this.tileCache = tileCache;
+    }
+
+    /**
+     * Determines how a tile is known in the {@link #tileCache}. Opens the
+     * reader if it is not yet open, closing the writer if necessary.
+     * @param t Rasterized timepoint offset of the tile.
+     * @param x X offset of the tile.
+     * @param y Y offset of the tile.
+     * @param w Width of the tile.
+     * @param h Height of the tile.
+     * @param direct If the tile is byte swapped.
+     * @return the key of the tile or <code>null</code> if it is not to be
+     * cached
+     */
+    private PyramidTileCache.Key getTileKey(int t, int x, int y, int w, int h,
+            boolean direct)
+    {
+        if (!tileCache.isEnabled() || pixels.getId() == null)
+        {
+            return null;
+        }
+        final int resolutionLevel = delegate().getResolutionLevel();
+        return new PyramidTileCache.Key(pixels.getId(), fileVersion,
+                resolutionLevel, t, x, y, w, h, direct);
+    }
+
     private BfPixelBuffer delegate()
     {
         if (isWrite())
@@ -538,7 +602,9 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
             try
             {
                 initializeWriter(writerFile.getAbsolutePath(),
-                        TiffCompression.JPEG_2000.getCodecName(), true, w, h);
+                        isFloatingPoint()? TiffWriter.COMPRESSION_ZLIB
+                                : TiffCompression.JPEG_2000.getCodecName(),
+                        true, w, h);
             }
             catch (Exception e)
             {
@@ -565,6 +631,19 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
         return lastIFD;
     }
 
+    /**
+     * Whether the pixels are of a floating point type, which are written
+     * losslessly with explicitly downsampled resolution levels rather than
+     * JPEG 2000 compressed.
+     * @return <code>true</code> for <code>float</code> and
+     * <code>double</code> pixels
+     */
+    private boolean isFloatingPoint()
+    {
+        return FormatTools.isFloatingPoint(FormatTools.pixelTypeFromString(
+                pixels.getPixelsType().getValue()));
+    }
+
     /**
      * Retrieves the rasterized timepoint offset based on the linearization of
      * the z-section, channel and timepoint offsets.
@@ -1010,8 +1089,25 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
         t = getRasterizedT(z, c, t);
         c = 0;
         z = 0;
+        final PyramidTileCache.Key key = getTileKey(t, x, y, w, h, false);
+        if (key != null)
+        {
+            final byte[] tile = tileCache.get(key);
+            if (tile != null)
+            {
+                PixelData data = new PixelData(
+                        pixels.getPixelsType().getValue(),
+                        ByteBuffer.wrap(tile));
+                data.setOrder(byteOrder);
+                return data;
+            }
+        }
         PixelData data = delegate().getTile(z, c, t, x, y, w, h);
         data.setOrder(byteOrder);
+        if (key != null)
+        {
+            tileCache.put(key, data.getData().array());
+        }
         return data;
     }
 
@@ -1026,7 +1122,22 @@ public class BfPyramidPixelBuffer implements PixelBuffer {
         t = getRasterizedT(z, c, t);
         c = 0;
         z = 0;
-        return delegate().getTileDirect(z, c, t, x, y, w, h, buffer);
+        final PyramidTileCache.Key key = getTileKey(t, x, y, w, h, true);
+        if (key != null)
+        {
+            final byte[] tile = tileCache.get(key);
+            if (tile != null && tile.length <= buffer.length)
+            {
+                System.arraycopy(tile, 0, buffer, 0, tile.length);
+                return buffer;
+            }
+        }
+        buffer = delegate().getTileDirect(z, c, t, x, y, w, h, buffer);
+        if (key != null)
+        {
+            tileCache.put(key, buffer, w * h * getByteWidth());
+        }
+        return buffer;
     }
 
     /* (non-Javadoc)
@@ -6,12 +6,16 @@
 package ome.io.bioformats;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import loci.common.RandomAccessInputStream;
+import loci.formats.CoreMetadata;
 import loci.formats.FormatException;
+import loci.formats.FormatTools;
 import loci.formats.in.MinimalTiffReader;
 import loci.formats.tiff.IFD;
 import loci.formats.tiff.TiffParser;
@@ -28,6 +32,13 @@ public class OmeroPixelsPyramidReader extends MinimalTiffReader {
     private final static Logger log =
         LoggerFactory.getLogger(OmeroPixelsPyramidReader.class);
 
+    /**
+     * The IFDs of each resolution level, largest first, if the pyramid holds
+     * floating point pixels and so has explicitly downsampled levels rather
+     * than JPEG 2000 ones. Otherwise <code>null</code>.
+     */
+    private List<List<IFD>> levelIFDs;
+
    /* (non-Javadoc)
     * @see loci.formats.FormatReader#isThisType(java.lang.String, boolean)
     */
@@ -88,6 +99,84 @@ public class OmeroPixelsPyramidReader extends MinimalTiffReader {
         super.setId(id);
     }
 
+    /* (non-Javadoc)
+     * @see loci.formats.in.MinimalTiffReader#initFile(java.lang.String)
+     */
+    @Override
+    protected void initFile(String id) throws FormatException, IOException
+    {
+        super.initFile(id);
+        if (ifds.isEmpty()
+            || !FormatTools.isFloatingPoint(ifds.get(0).getPixelType()))
+        {
+            return;
+        }
+        // Floating point pyramids carry their resolution levels as series
+        // written by OmeroPixelsPyramidWriter#downsampleSeries(int).
+        levelIFDs = new ArrayList<List<IFD>>();
+        List<CoreMetadata> levels = new ArrayList<CoreMetadata>();
+        for (int series = 0; ; series++)
+        {
+            List<IFD> seriesIFDs =
+                OmeroPixelsPyramidWriter.getSeriesIFDs(ifds, series);
+            if (seriesIFDs.isEmpty())
+            {
+                break;
+            }
+            IFD first = seriesIFDs.get(0);
+            CoreMetadata level = new CoreMetadata();
+            level.sizeX = (int) first.getImageWidth();
+            level.sizeY = (int) first.getImageLength();
+            level.sizeZ = 1;
+            level.sizeC = 1;
+            level.sizeT = seriesIFDs.size();
+            level.imageCount = seriesIFDs.size();
+            level.pixelType = first.getPixelType();
+            level.bitsPerPixel = FormatTools.getBytesPerPixel(
+                    level.pixelType) * 8;
+            level.littleEndian = first.isLittleEndian();
+            level.dimensionOrder = "XYZCT";
+            level.orderCertain = true;
+            level.rgb = false;
+            level.interleaved = false;
+            level.metadataComplete = true;
+            levelIFDs.add(seriesIFDs);
+            levels.add(level);
+        }
+        levels.get(0).resolutionCount = levels.size();
+        core = levels;
+    }
+
+    /* (non-Javadoc)
+     * @see loci.formats.in.MinimalTiffReader#openBytes(int, byte[], int, int, int, int)
+     */
+    @Override
+    public byte[] openBytes(int no, byte[] buf, int x, int y, int w, int h)
+        throws FormatException, IOException
+    {
+        if (levelIFDs == null)
+        {
+            return super.openBytes(no, buf, x, y, w, h);
+        }
+        FormatTools.checkPlaneParameters(this, no, buf.length, x, y, w, h);
+        IFD ifd = levelIFDs.get(getCoreIndex()).get(no);
+        tiffParser.fillInIFD(ifd);
+        return tiffParser.getSamples(ifd, buf, x, y, w, h);
+    }
+
+    /* (non-Javadoc)
+     * @see loci.formats.in.MinimalTiffReader#close(boolean)
+     */
+    @Override
+    public void close(boolean fileOnly) throws IOException
+    {
+        super.close(fileOnly);
+        if (!fileOnly)
+        {
+            levelIFDs = null;
+        }
+    }
+
     /* (non-Javadoc)
      * @see loci.formats.FormatReader#close()
      */
@@ -8,14 +8,21 @@
 package ome.io.bioformats;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import loci.formats.FormatException;
+import loci.formats.FormatTools;
 import loci.formats.in.TiffReader;
 import loci.formats.out.TiffWriter;
 import loci.formats.tiff.IFD;
+import loci.formats.tiff.IFDList;
+import loci.formats.tiff.TiffParser;
 
 /**
  * File format writer for OMERO pixels pyramid files.
@@ -79,6 +86,14 @@ public class OmeroPixelsPyramidWriter extends TiffWriter {
      */
     protected void postProcess() throws IOException, FormatException
     {
+        if (isFloatingPoint())
+        {
+            for (int series = 1; series < getSeriesCount(); series++)
+            {
+                downsampleSeries(series);
+            }
+            return;
+        }
         TiffReader reader = new TiffReader();
         try
         {
@@ -127,4 +142,174 @@ public class OmeroPixelsPyramidWriter extends TiffWriter {
             saveBytes(i, plane, ifd);
         }
     }
+
+    /**
+     * Whether the pixels written are of a floating point type, in which case
+     * the pyramid is not JPEG 2000 compressed and each resolution level
+     * is downsampled by {@link #downsampleSeries(int)}.
+     * @return See above.
+     */
+    protected boolean isFloatingPoint()
+    {
+        return FormatTools.isFloatingPoint(FormatTools.pixelTypeFromString(
+                getMetadataRetrieve().getPixelsType(0).getValue()));
+    }
+
+    /**
+     * @return the number of series in the pyramid's metadata.
+     */
+    private int getSeriesCount()
+    {
+        return getMetadataRetrieve().getImageCount();
+    }
+
+    /**
+     * Returns the IFDs of a resolution level already written, in plane order.
+     * @param ifds All the IFDs of the pyramid.
+     * @param series The resolution level, <code>0</code> being the full
+     * resolution whose IFDs are not tagged.
+     * @return See above.
+     */
+    static List<IFD> getSeriesIFDs(IFDList ifds, int series)
+    {
+        List<IFD> seriesIFDs = new ArrayList<IFD>();
+        for (IFD ifd : ifds)
+        {
+            if (ifd.getIFDIntValue(IFD_TAG_SERIES, 0) == series)
+            {
+                seriesIFDs.add(ifd);
+            }
+        }
+        return seriesIFDs;
+    }
+
+    /**
+     * Writes a floating point resolution level by halving the previous one
+     * tile by tile. Each pixel is the mean of the up to four pixels it
+     * covers, so that the values stay within the range of the full
+     * resolution.
+     * @param series Target series for the downsampled data.
+     * @throws FormatException
+     * @throws IOException
+     */
+    protected void downsampleSeries(int series)
+        throws FormatException, IOException
+    {
+        TiffParser parser = new TiffParser(currentId);
+        try
+        {
+            List<IFD> sources = getSeriesIFDs(parser.getIFDs(), series - 1);
+            setSeries(series);
+            for (int i = 0; i < sources.size(); i++)
+            {
+                IFD source = sources.get(i);
+                parser.fillInIFD(source);
+                int pixelType = source.getPixelType();
+                int bytesPerPixel = FormatTools.getBytesPerPixel(pixelType);
+                ByteOrder order = source.isLittleEndian()?
+                        ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+                int sourceWidth = (int) source.getImageWidth();
+                int sourceLength = (int) source.getImageLength();
+                int width = (sourceWidth + 1) / 2;
+                int length = (sourceLength + 1) / 2;
+                int tileWidth = (int) Math.min(source.getTileWidth(), width);
+                int tileLength =
+                        (int) Math.min(source.getTileLength(), length);
+                IFD ifd = new IFD();
+                ifd.put(IFD.IMAGE_DESCRIPTION, IMAGE_DESCRIPTION);
+                ifd.put(IFD.TILE_WIDTH, tileWidth);
+                ifd.put(IFD.TILE_LENGTH, tileLength);
+                ifd.put(IFD_TAG_SERIES, series);
+                ifd.put(IFD_TAG_PLANE_NUMBER, i);
+                for (int y = 0; y < length; y += tileLength)
+                {
+                    int h = Math.min(tileLength, length - y);
+                    int sourceH = Math.min(2 * h, sourceLength - 2 * y);
+                    for (int x = 0; x < width; x += tileWidth)
+                    {
+                        int w = Math.min(tileWidth, width - x);
+                        int sourceW = Math.min(2 * w, sourceWidth - 2 * x);
+                        byte[] sourceTile =
+                                new byte[sourceW * sourceH * bytesPerPixel];
+                        parser.getSamples(source, sourceTile, 2 * x, 2 * y,
+                                sourceW, sourceH);
+                        byte[] tile = new byte[w * h * bytesPerPixel];
+                        downsample(ByteBuffer.wrap(sourceTile).order(order),
+                                sourceW, sourceH,
+                                ByteBuffer.wrap(tile).order(order), w, h,
+                                pixelType == FormatTools.DOUBLE);
+                        saveBytes(i, tile, ifd, x, y, w, h);
+                    }
+                }
+            }
+        }
+        finally
+        {
+            parser.getStream().close();
+        }
+    }
+
+    /**
+     * Halves a tile of floating point pixels, each target pixel being the
+     * mean of the up to four source pixels it covers, kept within their
+     * minimum and maximum. <code>NaN</code> source pixels are ignored
+     * unless all of them are <code>NaN</code>.
+     * @param source The source pixels.
+     * @param sourceWidth The width of the source tile.
+     * @param sourceLength The length of the source tile, at most twice
+     * <code>length</code>.
+     * @param target Receives the downsampled pixels.
+     * @param width The width of the target tile.
+     * @param length The length of the target tile.
+     * @param isDouble <code>true</code> for <code>double</code> pixels,
+     * <code>false</code> for <code>float</code>.
+     */
+    public static void downsample(ByteBuffer source, int sourceWidth,
+            int sourceLength, ByteBuffer target, int width, int length,
+            boolean isDouble)
+    {
+        for (int y = 0; y < length; y++)
+        {
+            int y0 = 2 * y;
+            int y1 = Math.min(y0 + 1, sourceLength - 1);
+            for (int x = 0; x < width; x++)
+            {
+                int x0 = 2 * x;
+                int x1 = Math.min(x0 + 1, sourceWidth - 1);
+                double sum = 0;
+                double min = Double.POSITIVE_INFINITY;
+                double max = Double.NEGATIVE_INFINITY;
+                int count = 0;
+                for (int sy = y0; sy <= y1; sy++)
+                {
+                    for (int sx = x0; sx <= x1; sx++)
+                    {
+                        int index = sy * sourceWidth + sx;
+                        double value = isDouble?
+                                source.getDouble(index * 8)
+                                : source.getFloat(index * 4);
+                        if (!Double.isNaN(value))
+                        {
+                            // Quartered so that large doubles cannot overflow.
+                            sum += value / 4;
+                            min = Math.min(min, value);
+                            max = Math.max(max, value);
+                            count++;
+                        }
+                    }
+                }
+                double mean = count == 0? Double.NaN
+                        : Math.max(min, Math.min(max, sum * (4.0 / count)));
+                int index = y * width + x;
+                if (isDouble)
+                {
+                    target.putDouble(index * 8, mean);
+                }
+                else
+                {
+                    target.putFloat(index * 4, (float) mean);
+                }
+            }
+        }
+    }
 }
@@ -82,6 +82,16 @@ public class AbstractFileSystemService {
         return FilenameUtils.concat(root, PIXELS_PATH);
     }
 
+    /**
+     * Returns the thumbnails directory of this service. For example, this
+     * will return "ROOT/Thumbnails/"
+     *
+     * @return the path relative to the root
+     */
+    public String getThumbnailsDirectory() {
+        return FilenameUtils.concat(root, THUMBNAILS_PATH);
+    }
+
     /**
      * Returns a numbered path relative to the root of this service, but is
      * ignorant of FS and similar constructs. For example, given an id of
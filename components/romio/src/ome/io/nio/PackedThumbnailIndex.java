@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.io.nio;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from positive thumbnail ids to packed container
+ * locations, used by {@link PackedThumbnailService} so that an index of tens
+ * of millions of entries does not need an object per entry. Not thread-safe.
+ *
+ * @since 5.4.10
+ */
+class PackedThumbnailIndex {
+
+    /** Returned by {@link #get(long)} for missing keys. */
+    static final long MISSING = -1L;
+
+    /**
+     * Callback for {@link PackedThumbnailIndex#visit(Visitor)}.
+     */
+    interface Visitor {
+        void visit(long key, long value);
+    }
+
+    private long[] keys;
+
+    private long[] values;
+
+    private int size = 0;
+
+    PackedThumbnailIndex() {
+        this(1024);
+    }
+
+    PackedThumbnailIndex(int capacity) {
+        int n = 16;
+        while (n < capacity) {
+            n <<= 1;
+        }
+        keys = new long[n];
+        values = new long[n];
+    }
+
+    private static int hash(long key) {
+        key ^= (key >>> 33);
+        key *= 0xff51afd7ed558ccdL;
+        key ^= (key >>> 33);
+        return (int) key;
+    }
+
+    private int slot(long key) {
+        final int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (keys[i] != 0 && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long get(long key) {
+        final int i = slot(key);
+        return keys[i] == 0 ? MISSING : values[i];
+    }
+
+    boolean containsKey(long key) {
+        return keys[slot(key)] != 0;
+    }
+
+    /**
+     * @return the previous value or {@link #MISSING}.
+     */
+    long put(long key, long value) {
+        if (key <= 0) {
+            throw new IllegalArgumentException("Invalid key: " + key);
+        }
+        int i = slot(key);
+        if (keys[i] == key) {
+            final long old = values[i];
+            values[i] = value;
+            return old;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size > keys.length * 3 / 5) {
+            resize();
+        }
+        return MISSING;
+    }
+
+    /**
+     * Removes the key, shifting later entries of the same probe sequence
+     * back so that no tombstones are needed.
+     *
+     * @return the previous value or {@link #MISSING}.
+     */
+    long remove(long key) {
+        final int mask = keys.length - 1;
+        int i = slot(key);
+        if (keys[i] == 0) {
+            return MISSING;
+        }
+        final long old = values[i];
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (keys[j] == 0) {
+                break;
+            }
+            final int home = hash(keys[j]) & mask;
+            // Move j into the gap at i unless its home lies cyclically in (i, j]
+            if ((j > i && (home <= i || home > j))
+                    || (j < i && (home <= i && home > j))) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+        }
+        keys[i] = 0;
+        values[i] = 0;
+        size--;
+        return old;
+    }
+
+    void visit(Visitor visitor) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) {
+                visitor.visit(keys[i], values[i]);
+            }
+        }
+    }
+
+    void clear() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(values, 0);
+        size = 0;
+    }
+
+    private void resize() {
+        final long[] oldKeys = keys;
+        final long[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new long[oldValues.length * 2];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.io.nio;
+
+import java.io.IOException;
+
+/**
+ * Command-line tool moving the thumbnails of a binary repository from the
+ * one-file-per-thumbnail layout into a {@link PackedThumbnailService}. It must
+ * be run while the server is stopped, with the same settings as
+ * <code>omero.thumbnail.packed.*</code>.
+ *
+ * @since 5.4.10
+ */
+public class PackedThumbnailMigrator {
+
+    private static void usage() {
+        System.err.println("usage: PackedThumbnailMigrator DATA_DIR SHARDS " +
+                "CONTAINER_SIZE [--keep-originals]");
+        System.exit(2);
+    }
+
+    /**
+     * @param argv the data directory, the number of shards, the container
+     *        size and optionally <code>--keep-originals</code>
+     * @throws IOException if a thumbnail cannot be read or written
+     */
+    public static void main(String[] argv) throws IOException {
+        if (argv.length < 3 || argv.length > 4) {
+            usage();
+        }
+        boolean deleteOriginals = true;
+        if (argv.length == 4) {
+            if (!"--keep-originals".equals(argv[3])) {
+                usage();
+            }
+            deleteOriginals = false;
+        }
+        final PackedThumbnailService service = new PackedThumbnailService(
+                argv[0], false, Integer.parseInt(argv[1]),
+                Long.parseLong(argv[2]), 1000);
+        try {
+            final long count = service.migrate(deleteOriginals);
+            System.out.println("Migrated " + count + " thumbnails");
+        } finally {
+            service.close();
+        }
+    }
+}
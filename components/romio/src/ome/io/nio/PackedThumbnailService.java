@@ -0,0 +1,1075 @@
+/*
+ * Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.io.nio;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ome.conditions.ResourceError;
+import ome.model.display.Thumbnail;
+
+/**
+ * {@link ThumbnailService} which packs thumbnails into append-only container
+ * files instead of writing one file per thumbnail, so that very large numbers
+ * of thumbnails do not overwhelm the file system with metadata operations.
+ *
+ * Thumbnails are sharded by id over {@link #shards} directories under
+ * <code>Thumbnails/Packed/</code>. Each shard holds numbered containers
+ * (<code>NNNNNN.pack</code>) next to an index journal
+ * (<code>NNNNNN.idx</code>) recording where each thumbnail was written and
+ * when it was removed. The journals are replayed into an in-memory index on
+ * startup. A thumbnail is on disk, in its container and its journal, before
+ * {@link #createThumbnail(Thumbnail, byte[])} returns; the thumbnails of
+ * concurrent callers are appended and forced to disk together. Sealed
+ * containers are memory-mapped for reading.
+ * {@link #compact()} rewrites the live entries of containers which are mostly
+ * made up of removed thumbnails.
+ *
+ * Thumbnails which are not found in the packed store are looked up in the
+ * per-file layout of the superclass, so the store can be enabled before the
+ * existing thumbnails have been moved with {@link #migrate(boolean)}. Only a
+ * single server process may write to a packed store.
+ *
+ * @since 5.4.10
+ */
+public class PackedThumbnailService extends ThumbnailService {
+
+    private transient static Logger log = LoggerFactory
+            .getLogger(PackedThumbnailService.class);
+
+    /** Sub-directory of the thumbnails directory holding the shards. */
+    public final static String PACKED_PATH = "Packed";
+
+    /** Size of the header written before every thumbnail: id and length. */
+    final static int RECORD_HEADER = 8 + 4;
+
+    /** Size of an index journal entry: id, location and length. */
+    final static int INDEX_ENTRY = 8 + 8 + 4;
+
+    /** Number of bits of a location used for the offset in the container. */
+    final static int OFFSET_BITS = 40;
+
+    final static long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+    private final File packedDir;
+
+    private final boolean isReadOnlyRepo;
+
+    private final int shards;
+
+    private final long maxContainerSize;
+
+    private final int batchSize;
+
+    /** Ratio of removed bytes above which a container is compacted. */
+    private double compactionThreshold = 0.5;
+
+    private final Shard[] shardArray;
+
+    public PackedThumbnailService(String path, boolean isReadOnlyRepo,
+            int shards, long maxContainerSize, int batchSize) {
+        super(path, isReadOnlyRepo);
+        if (shards < 1 || maxContainerSize < 1 || batchSize < 1) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid packed thumbnail store settings: shards=%s " +
+                    "maxContainerSize=%s batchSize=%s",
+                    shards, maxContainerSize, batchSize));
+        }
+        this.isReadOnlyRepo = isReadOnlyRepo;
+        this.shards = shards;
+        // Containers are memory-mapped as a whole once sealed
+        this.maxContainerSize = Math.min(maxContainerSize, Integer.MAX_VALUE);
+        this.batchSize = batchSize;
+        this.packedDir = new File(getThumbnailsDirectory(), PACKED_PATH);
+        this.shardArray = new Shard[shards];
+        for (int i = 0; i < shards; i++) {
+            shardArray[i] = new Shard(new File(packedDir,
+                    String.format("%03d", i)));
+        }
+        log.info(String.format("Using packed thumbnail store: %s " +
+                "(shards=%s, maxContainerSize=%s, batchSize=%s)",
+                packedDir, shards, maxContainerSize, batchSize));
+    }
+
+    public void setCompactionThreshold(double compactionThreshold) {
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    private Shard shard(long id) {
+        return shardArray[(int) (id % shards)];
+    }
+
+    //
+    // ThumbnailService overrides
+    //
+
+    @Override
+    public void createThumbnail(Thumbnail thumbnail, byte[] buf)
+            throws IOException {
+        final long id = thumbnail.getId();
+        shard(id).put(id, buf);
+    }
+
+    @Override
+    public long getThumbnailLength(Thumbnail thumbnail) {
+        final long id = thumbnail.getId();
+        try {
+            final byte[] data = shard(id).get(id);
+            if (data != null) {
+                return data.length;
+            }
+        } catch (IOException e) {
+            log.warn("Failed to read packed thumbnail " + id, e);
+        }
+        return super.getThumbnailLength(thumbnail);
+    }
+
+    @Override
+    public Map<Long, Long> getThumbnailLengths(Collection<Long> thumbnailIds) {
+        final Map<Long, Long> lengths = new HashMap<Long, Long>();
+        final List<Long> unpacked = new ArrayList<Long>();
+        for (Long id : thumbnailIds) {
+            int length = -1;
+            try {
+                length = shard(id).length(id);
+            } catch (IOException e) {
+                log.warn("Failed to read packed thumbnail " + id, e);
+            }
+            if (length < 0) {
+                unpacked.add(id);
+            } else {
+                lengths.put(id, (long) length);
+            }
+        }
+        if (!unpacked.isEmpty()) {
+            lengths.putAll(super.getThumbnailLengths(unpacked));
+        }
+        return lengths;
+    }
+
+    @Override
+    public byte[] getThumbnail(Thumbnail thumbnail) throws IOException {
+        final long id = thumbnail.getId();
+        final byte[] data = shard(id).get(id);
+        if (data != null) {
+            return data;
+        }
+        return super.getThumbnail(thumbnail);
+    }
+
+    @Override
+    public byte[] getThumbnail(Thumbnail thumbnail, byte[] buf)
+            throws IOException {
+        final long id = thumbnail.getId();
+        final byte[] data = shard(id).get(id);
+        if (data != null) {
+            System.arraycopy(data, 0, buf, 0, Math.min(data.length, buf.length));
+            return buf;
+        }
+        return super.getThumbnail(thumbnail, buf);
+    }
+
+    /**
+     * Returns a stream which spools to a temporary file and adds the
+     * thumbnail to the packed store when closed. Callers should prefer
+     * {@link #createThumbnail(Thumbnail, byte[])}.
+     */
+    @Override
+    public FileOutputStream getThumbnailOutputStream(final Thumbnail thumbnail)
+            throws IOException {
+        final File spool = File.createTempFile("thumbnail", ".spool");
+        return new FileOutputStream(spool) {
+            private boolean closed = false;
+            @Override
+            public void close() throws IOException {
+                super.close();
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                try {
+                    createThumbnail(thumbnail,
+                            FileUtils.readFileToByteArray(spool));
+                } finally {
+                    spool.delete();
+                }
+            }
+        };
+    }
+
+    @Override
+    public boolean getThumbnailExists(Thumbnail thumbnail) throws IOException {
+        final long id = thumbnail.getId();
+        if (shard(id).contains(id)) {
+            return true;
+        }
+        return super.getThumbnailExists(thumbnail);
+    }
+
+    /**
+     * Removes the thumbnails from the packed store, writing one journal
+     * batch per shard, as well as any files in the per-file layout.
+     */
+    @Override
+    public void removeThumbnails(List<Long> thumbnailIds) {
+        final Map<Shard, List<Long>> byShard = new HashMap<Shard, List<Long>>();
+        for (Long id : thumbnailIds) {
+            final Shard shard = shard(id);
+            List<Long> ids = byShard.get(shard);
+            if (ids == null) {
+                ids = new ArrayList<Long>();
+                byShard.put(shard, ids);
+            }
+            ids.add(id);
+        }
+        for (Map.Entry<Shard, List<Long>> entry : byShard.entrySet()) {
+            try {
+                entry.getKey().remove(entry.getValue());
+            } catch (IOException e) {
+                throw new ResourceError("Thumbnail deletion failed: "
+                        + e.getMessage());
+            }
+        }
+        super.removeThumbnails(thumbnailIds);
+    }
+
+    //
+    // Maintenance
+    //
+
+    /**
+     * Writes all buffered thumbnails and removals to disk. Thumbnails are
+     * written as they are created so there is usually nothing to write.
+     */
+    @Override
+    public void flush() {
+        for (Shard shard : shardArray) {
+            try {
+                shard.flush();
+            } catch (IOException e) {
+                log.error("Failed to flush " + shard, e);
+            }
+        }
+    }
+
+    /**
+     * Rewrites the live thumbnails of every sealed container in which the
+     * ratio of removed bytes exceeds {@link #compactionThreshold}, then
+     * deletes the container.
+     *
+     * @return the number of bytes reclaimed.
+     */
+    @Override
+    public long compact() {
+        long reclaimed = 0;
+        for (Shard shard : shardArray) {
+            try {
+                reclaimed += shard.compact();
+            } catch (IOException e) {
+                log.error("Failed to compact " + shard, e);
+            }
+        }
+        if (reclaimed > 0) {
+            log.info("Compaction reclaimed {} bytes", reclaimed);
+        }
+        return reclaimed;
+    }
+
+    /**
+     * Moves all thumbnails found in the per-file layout into the packed
+     * store, batch by batch.
+     *
+     * @param deleteOriginals whether the files should be deleted once their
+     *        batch has been written.
+     * @return the number of thumbnails moved.
+     */
+    public long migrate(boolean deleteOriginals) throws IOException {
+        final File legacy = new File(getThumbnailsDirectory());
+        final List<File> batch = new ArrayList<File>();
+        final long[] count = new long[]{0};
+        migrate(legacy, batch, count, deleteOriginals);
+        finishMigrationBatch(batch, count, deleteOriginals);
+        log.info("Migrated {} thumbnails into {}", count[0], packedDir);
+        return count[0];
+    }
+
+    private void migrate(File dir, List<File> batch, long[] count,
+            boolean deleteOriginals) throws IOException {
+        final File[] children = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return !file.equals(packedDir);
+            }
+        });
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (child.isDirectory()) {
+                migrate(child, batch, count, deleteOriginals);
+                continue;
+            }
+            final long id;
+            try {
+                id = Long.parseLong(child.getName());
+            } catch (NumberFormatException nfe) {
+                log.debug("Skipping {}", child);
+                continue;
+            }
+            if (id <= 0) {
+                continue;
+            }
+            final Shard shard = shard(id);
+            if (!shard.contains(id)) {
+                shard.buffer(id, FileUtils.readFileToByteArray(child));
+            }
+            batch.add(child);
+            if (batch.size() >= batchSize) {
+                finishMigrationBatch(batch, count, deleteOriginals);
+            }
+        }
+    }
+
+    private void finishMigrationBatch(List<File> batch, long[] count,
+            boolean deleteOriginals) throws IOException {
+        for (Shard shard : shardArray) {
+            shard.flush();
+        }
+        count[0] += batch.size();
+        if (deleteOriginals) {
+            for (File file : batch) {
+                if (!file.delete()) {
+                    log.warn("Failed to delete migrated thumbnail {}", file);
+                }
+            }
+        }
+        batch.clear();
+    }
+
+    /**
+     * Called by Spring on destruction.
+     */
+    public void close() {
+        flush();
+        for (Shard shard : shardArray) {
+            shard.close();
+        }
+    }
+
+    //
+    // Shard
+    //
+
+    /**
+     * One directory of containers together with its in-memory index. The
+     * state is guarded by {@link #rwl}: thumbnails are looked up and read
+     * under its read lock, so concurrent readers do not wait for each
+     * other, and the state is changed under its write lock. Appending to the
+     * active container and compacting are additionally serialized by
+     * {@link #appendLock}, always taken before {@link #rwl}, so that the disk
+     * is written without holding up readers and the writes queued meanwhile
+     * are committed by the next append. Only appends change the index, so it
+     * stays the same while {@link #appendLock} is held.
+     */
+    private class Shard {
+
+        private final File dir;
+
+        private final Object appendLock = new Object();
+
+        private final ReentrantReadWriteLock rwl = new ReentrantReadWriteLock();
+
+        /** Number of changes buffered so far. */
+        private long enqueued = 0;
+
+        /** Number of buffered changes known to be on disk. */
+        private long committed = 0;
+
+        private final PackedThumbnailIndex index = new PackedThumbnailIndex();
+
+        /** Container number to {total bytes, removed bytes}. */
+        private final TreeMap<Integer, long[]> containers =
+                new TreeMap<Integer, long[]>();
+
+        /** Bytes of each container's journal which have been replayed. */
+        private final Map<Integer, Long> replayed = new HashMap<Integer, Long>();
+
+        /** Mapped under the read lock as well, hence concurrent. */
+        private final Map<Integer, MappedByteBuffer> mapped =
+                new ConcurrentHashMap<Integer, MappedByteBuffer>();
+
+        /** Buffered writes; a null value is a buffered removal. */
+        private final LinkedHashMap<Long, byte[]> pending =
+                new LinkedHashMap<Long, byte[]>();
+
+        private long pendingBytes = 0;
+
+        private int active = 0;
+
+        private RandomAccessFile activePack, activeIdx;
+
+        private volatile boolean loaded = false;
+
+        Shard(File dir) {
+            this.dir = dir;
+        }
+
+        @Override
+        public String toString() {
+            return "Shard(" + dir + ")";
+        }
+
+        private File packFile(int container) {
+            return new File(dir, String.format("%06d.pack", container));
+        }
+
+        private File idxFile(int container) {
+            return new File(dir, String.format("%06d.idx", container));
+        }
+
+        private void load() throws IOException {
+            if (loaded) {
+                return;
+            }
+            final File[] packs = dir.listFiles();
+            if (packs != null) {
+                for (File pack : packs) {
+                    final String name = pack.getName();
+                    if (name.endsWith(".pack")) {
+                        containers.put(Integer.valueOf(
+                                name.substring(0, name.length() - 5)),
+                                new long[]{pack.length(), 0});
+                    }
+                }
+            }
+            replay();
+            active = containers.isEmpty() ? 1 : containers.lastKey();
+            loaded = true;
+        }
+
+        /**
+         * Applies all journal entries which have not yet been seen. On a
+         * read-only server this picks up the writes of the writing server.
+         */
+        private void replay() throws IOException {
+            for (Map.Entry<Integer, long[]> entry : containers.entrySet()) {
+                final int container = entry.getKey();
+                final File idx = idxFile(container);
+                final long start = replayed.containsKey(container)
+                        ? replayed.get(container) : 0L;
+                final long length = idx.length();
+                final long complete = length - (length % INDEX_ENTRY);
+                if (complete <= start) {
+                    continue;
+                }
+                final long packLength = packFile(container).length();
+                entry.getValue()[0] = packLength;
+                final RandomAccessFile raf = new RandomAccessFile(idx, "r");
+                try {
+                    final ByteBuffer buf = ByteBuffer.allocate(
+                            (int) (complete - start));
+                    raf.getChannel().read(buf, start);
+                    buf.flip();
+                    while (buf.remaining() >= INDEX_ENTRY) {
+                        final long id = buf.getLong();
+                        final long location = buf.getLong();
+                        final int size = buf.getInt();
+                        if (location < 0) {
+                            forget(id);
+                        } else if ((location & OFFSET_MASK) + RECORD_HEADER
+                                + size <= packLength) {
+                            remember(id, location);
+                        } else {
+                            log.warn("Ignoring truncated entry for " +
+                                    "thumbnail {} in {}", id, idx);
+                        }
+                    }
+                } finally {
+                    raf.close();
+                }
+                replayed.put(container, complete);
+            }
+        }
+
+        private void remember(long id, long location) throws IOException {
+            forget(id);
+            index.put(id, location);
+        }
+
+        private void forget(long id) throws IOException {
+            final long old = index.remove(id);
+            if (old != PackedThumbnailIndex.MISSING) {
+                final long[] stats = containers.get(container(old));
+                if (stats != null) {
+                    stats[1] += RECORD_HEADER + readLength(old);
+                }
+            }
+        }
+
+        /**
+         * Takes the read lock to look a thumbnail up. The shard is first
+         * loaded and, on a read-only server, the journals are replayed if
+         * the thumbnail is unknown, both under the write lock. The read lock
+         * is held only if this method returns normally.
+         */
+        private void lockForRead(long id) throws IOException {
+            rwl.readLock().lock();
+            if (loaded && !(isReadOnlyRepo && !index.containsKey(id))) {
+                return;
+            }
+            rwl.readLock().unlock();
+            rwl.writeLock().lock();
+            try {
+                load();
+                if (isReadOnlyRepo && !index.containsKey(id)) {
+                    replay();
+                }
+                /* downgrade */
+                rwl.readLock().lock();
+            } finally {
+                rwl.writeLock().unlock();
+            }
+        }
+
+        boolean contains(long id) throws IOException {
+            lockForRead(id);
+            try {
+                if (pending.containsKey(id)) {
+                    return pending.get(id) != null;
+                }
+                return index.containsKey(id);
+            } finally {
+                rwl.readLock().unlock();
+            }
+        }
+
+        /**
+         * Returns the length of a thumbnail without reading it.
+         * @return the length, or -1 if the thumbnail is not in the shard
+         */
+        int length(long id) throws IOException {
+            lockForRead(id);
+            try {
+                if (pending.containsKey(id)) {
+                    final byte[] data = pending.get(id);
+                    return data == null ? -1 : data.length;
+                }
+                final long location = index.get(id);
+                if (location == PackedThumbnailIndex.MISSING) {
+                    return -1;
+                }
+                return readLength(location);
+            } finally {
+                rwl.readLock().unlock();
+            }
+        }
+
+        byte[] get(long id) throws IOException {
+            lockForRead(id);
+            try {
+                if (pending.containsKey(id)) {
+                    return pending.get(id);
+                }
+                final long location = index.get(id);
+                if (location == PackedThumbnailIndex.MISSING) {
+                    return null;
+                }
+                return read(location);
+            } finally {
+                rwl.readLock().unlock();
+            }
+        }
+
+        /**
+         * Reads the thumbnail at the given location, under either lock.
+         */
+        private byte[] read(long location) throws IOException {
+            final int length = readLength(location);
+            final byte[] data = new byte[length];
+            final int container = container(location);
+            final long offset = (location & OFFSET_MASK) + RECORD_HEADER;
+            if (container == active && activePack != null) {
+                final ByteBuffer buf = ByteBuffer.wrap(data);
+                while (buf.hasRemaining()) {
+                    if (activePack.getChannel().read(buf,
+                            offset + buf.position()) < 0) {
+                        throw new IOException("Unexpected end of " +
+                                packFile(container));
+                    }
+                }
+            } else {
+                final ByteBuffer map = map(container, offset + length);
+                final ByteBuffer view = map.duplicate();
+                view.position((int) offset);
+                view.get(data);
+            }
+            return data;
+        }
+
+        private int readLength(long location) throws IOException {
+            final int container = container(location);
+            final long offset = (location & OFFSET_MASK) + 8;
+            if (container == active && activePack != null) {
+                final ByteBuffer buf = ByteBuffer.allocate(4);
+                activePack.getChannel().read(buf, offset);
+                buf.flip();
+                return buf.getInt();
+            }
+            return map(container, offset + 4).getInt((int) offset);
+        }
+
+        /**
+         * Returns a read-only mapping of the container which covers at
+         * least {@code required} bytes, re-mapping if the file has grown.
+         * Concurrent readers may both map the container, the last mapping
+         * is kept.
+         */
+        private MappedByteBuffer map(int container, long required)
+                throws IOException {
+            MappedByteBuffer map = mapped.get(container);
+            if (map == null || map.capacity() < required) {
+                final RandomAccessFile raf =
+                        new RandomAccessFile(packFile(container), "r");
+                try {
+                    final long size = raf.length();
+                    if (size < required || size > Integer.MAX_VALUE) {
+                        throw new IOException("Cannot map " +
+                                packFile(container) + " for " + required);
+                    }
+                    map = raf.getChannel().map(
+                            FileChannel.MapMode.READ_ONLY, 0, size);
+                } finally {
+                    raf.close();
+                }
+                mapped.put(container, map);
+            }
+            return map;
+        }
+
+        /**
+         * Adds a thumbnail, returning once it is on disk.
+         */
+        void put(long id, byte[] data) throws IOException {
+            commit(buffer(id, data));
+        }
+
+        /**
+         * Adds a thumbnail without writing it, e.g. to write many together
+         * with {@link #flush()}.
+         * @return the ticket to {@link #commit(long)} the thumbnail
+         */
+        long buffer(long id, byte[] data) throws IOException {
+            rwl.writeLock().lock();
+            try {
+                load();
+                if (isReadOnlyRepo) {
+                    throw new ResourceError("Read-only thumbnail store");
+                }
+                final byte[] old = pending.put(id, data);
+                if (old != null) {
+                    pendingBytes -= old.length;
+                }
+                pendingBytes += data.length;
+                return ++enqueued;
+            } finally {
+                rwl.writeLock().unlock();
+            }
+        }
+
+        /**
+         * Removes thumbnails, returning once their removal is journaled.
+         */
+        void remove(List<Long> ids) throws IOException {
+            final long ticket;
+            rwl.writeLock().lock();
+            try {
+                load();
+                if (isReadOnlyRepo) {
+                    throw new ResourceError("Read-only thumbnail store");
+                }
+                for (Long id : ids) {
+                    final byte[] old = pending.remove(id);
+                    if (old != null) {
+                        pendingBytes -= old.length;
+                    }
+                    if (index.containsKey(id)) {
+                        pending.put(id, null);
+                    }
+                }
+                ticket = ++enqueued;
+            } finally {
+                rwl.writeLock().unlock();
+            }
+            commit(ticket);
+        }
+
+        /**
+         * Waits until the changes buffered up to the given ticket are on
+         * disk, appending them unless a concurrent append already has.
+         */
+        private void commit(long ticket) throws IOException {
+            synchronized (appendLock) {
+                rwl.readLock().lock();
+                try {
+                    if (committed >= ticket) {
+                        return;
+                    }
+                } finally {
+                    rwl.readLock().unlock();
+                }
+                flush();
+            }
+        }
+
+        /**
+         * Appends all buffered changes to the active container and its
+         * journal, forcing both to disk, and then updates the index. The
+         * buffered changes stay readable while they are being written.
+         */
+        void flush() throws IOException {
+            synchronized (appendLock) {
+                final Map<Long, byte[]> batch;
+                final long ticket;
+                final ByteBuffer data, journal;
+                final long[] locations;
+                final FileChannel pack, idx;
+                long position;
+                rwl.writeLock().lock();
+                try {
+                    if (pending.isEmpty()) {
+                        committed = enqueued;
+                        return;
+                    }
+                    load();
+                    batch = new LinkedHashMap<Long, byte[]>(pending);
+                    ticket = enqueued;
+                    long batchBytes = 0;
+                    for (byte[] bytes : batch.values()) {
+                        if (bytes != null) {
+                            batchBytes += RECORD_HEADER + bytes.length;
+                        }
+                    }
+                    openActive();
+                    if (activePack.length() > 0 && activePack.length()
+                            + batchBytes > maxContainerSize) {
+                        seal();
+                        active++;
+                        openActive();
+                    }
+                    pack = activePack.getChannel();
+                    idx = activeIdx.getChannel();
+                    position = activePack.length();
+                    data = ByteBuffer.allocate((int) Math.min(
+                            Integer.MAX_VALUE, batchBytes));
+                    journal = ByteBuffer.allocate(batch.size() * INDEX_ENTRY);
+                    locations = new long[batch.size()];
+                } finally {
+                    rwl.writeLock().unlock();
+                }
+                final long start = position;
+                int i = 0;
+                for (Map.Entry<Long, byte[]> entry : batch.entrySet()) {
+                    final long id = entry.getKey();
+                    final byte[] bytes = entry.getValue();
+                    journal.putLong(id);
+                    if (bytes == null) {
+                        journal.putLong(-1L);
+                        journal.putInt(0);
+                        locations[i++] = -1L;
+                        continue;
+                    }
+                    final long location = location(active, position);
+                    data.putLong(id);
+                    data.putInt(bytes.length);
+                    data.put(bytes);
+                    journal.putLong(location);
+                    journal.putInt(bytes.length);
+                    locations[i++] = location;
+                    position += RECORD_HEADER + bytes.length;
+                }
+                data.flip();
+                journal.flip();
+                /* only this thread appends, readers use the index */
+                write(pack, data, start);
+                pack.force(false);
+                write(idx, journal, idx.size());
+                idx.force(false);
+
+                rwl.writeLock().lock();
+                try {
+                    replayed.put(active, idx.size());
+                    containers.get(active)[0] = position;
+                    i = 0;
+                    for (Map.Entry<Long, byte[]> entry : batch.entrySet()) {
+                        final Long id = entry.getKey();
+                        if (locations[i] < 0) {
+                            forget(id);
+                        } else {
+                            remember(id, locations[i]);
+                        }
+                        i++;
+                        /* unless changed again meanwhile */
+                        if (pending.containsKey(id)
+                                && pending.get(id) == entry.getValue()) {
+                            pending.remove(id);
+                            if (entry.getValue() != null) {
+                                pendingBytes -= entry.getValue().length;
+                            }
+                        }
+                    }
+                    committed = ticket;
+                } finally {
+                    rwl.writeLock().unlock();
+                }
+            }
+        }
+
+        private void write(FileChannel channel, ByteBuffer buf, long position)
+                throws IOException {
+            while (buf.hasRemaining()) {
+                position += channel.write(buf, position);
+            }
+        }
+
+        private void openActive() throws IOException {
+            if (activePack != null) {
+                return;
+            }
+            if (!dir.exists()) {
+                dir.mkdirs();
+            }
+            activePack = new RandomAccessFile(packFile(active), "rw");
+            activeIdx = new RandomAccessFile(idxFile(active), "rw");
+            if (!containers.containsKey(active)) {
+                containers.put(active, new long[]{activePack.length(), 0});
+            }
+        }
+
+        private void seal() {
+            closeQuietly(activePack);
+            closeQuietly(activeIdx);
+            activePack = null;
+            activeIdx = null;
+        }
+
+        /**
+         * Rewrites the live thumbnails of sealed containers with too many
+         * removed bytes into the active container and deletes the former.
+         */
+        long compact() throws IOException {
+            synchronized (appendLock) {
+                final List<Integer> compactable = new ArrayList<Integer>();
+                rwl.writeLock().lock();
+                try {
+                    load();
+                    if (isReadOnlyRepo) {
+                        return 0;
+                    }
+                    for (Map.Entry<Integer, long[]> entry
+                            : containers.headMap(active).entrySet()) {
+                        final long[] stats = entry.getValue();
+                        if (stats[0] > 0
+                                && stats[1] >= stats[0] * compactionThreshold) {
+                            compactable.add(entry.getKey());
+                        }
+                    }
+                } finally {
+                    rwl.writeLock().unlock();
+                }
+                long reclaimed = 0;
+                for (Integer container : compactable) {
+                    reclaimed += compact(container);
+                }
+                return reclaimed;
+            }
+        }
+
+        /**
+         * Rewrites the live thumbnails of one sealed container and deletes
+         * it. The container and the journals are read without holding the
+         * write lock; {@link #appendLock} must be held so that the index
+         * does not change meanwhile.
+         * @return the number of bytes reclaimed
+         */
+        private long compact(final int container) throws IOException {
+            final List<Long> live = new ArrayList<Long>();
+            final List<Integer> older;
+            rwl.readLock().lock();
+            try {
+                index.visit(new PackedThumbnailIndex.Visitor() {
+                    @Override
+                    public void visit(long key, long value) {
+                        if (container(value) == container) {
+                            live.add(key);
+                        }
+                    }
+                });
+                older = new ArrayList<Integer>(
+                        containers.headMap(container).keySet());
+            } finally {
+                rwl.readLock().unlock();
+            }
+            final Map<Long, byte[]> copies = new LinkedHashMap<Long, byte[]>();
+            for (Long id : live) {
+                rwl.readLock().lock();
+                try {
+                    copies.put(id, read(index.get(id)));
+                } finally {
+                    rwl.readLock().unlock();
+                }
+            }
+            /* The journal to be deleted may hold the only removal of a
+             * thumbnail written to an older container: carry it over unless
+             * no older container holds the thumbnail any more. */
+            final Set<Long> removals = readJournal(container, true, null);
+            if (!removals.isEmpty()) {
+                final Set<Long> written = new HashSet<Long>();
+                for (Integer other : older) {
+                    written.addAll(readJournal(other, false, removals));
+                }
+                removals.retainAll(written);
+            }
+            rwl.writeLock().lock();
+            try {
+                for (Map.Entry<Long, byte[]> entry : copies.entrySet()) {
+                    final byte[] bytes = entry.getValue();
+                    if (!pending.containsKey(entry.getKey())) {
+                        pending.put(entry.getKey(), bytes);
+                        pendingBytes += bytes.length;
+                    }
+                }
+                for (Long id : removals) {
+                    if (!index.containsKey(id) && !pending.containsKey(id)) {
+                        pending.put(id, null);
+                    }
+                }
+                enqueued++;
+            } finally {
+                rwl.writeLock().unlock();
+            }
+            flush();
+            final long reclaimed;
+            rwl.writeLock().lock();
+            try {
+                mapped.remove(container);
+                reclaimed = containers.remove(container)[1];
+                replayed.remove(container);
+            } finally {
+                rwl.writeLock().unlock();
+            }
+            if (!packFile(container).delete()
+                    || !idxFile(container).delete()) {
+                log.warn("Failed to delete compacted container {} in {}",
+                        container, dir);
+            }
+            log.info(String.format("Compacted container %s in %s " +
+                    "(%s live thumbnails, %s removals carried over)",
+                    container, dir, live.size(), removals.size()));
+            return reclaimed;
+        }
+
+        /**
+         * Returns the ids recorded in a container's journal.
+         * @param removed whether to return the removed ids rather than the
+         *        written ones
+         * @param only if not null, the only ids to return
+         */
+        private Set<Long> readJournal(int container, boolean removed,
+                Set<Long> only) throws IOException {
+            final Set<Long> ids = new HashSet<Long>();
+            final File idx = idxFile(container);
+            final long length = idx.length();
+            final long complete = length - (length % INDEX_ENTRY);
+            if (complete == 0) {
+                return ids;
+            }
+            final RandomAccessFile raf = new RandomAccessFile(idx, "r");
+            try {
+                final ByteBuffer buf = ByteBuffer.allocate((int) complete);
+                raf.getChannel().read(buf, 0);
+                buf.flip();
+                while (buf.remaining() >= INDEX_ENTRY) {
+                    final long id = buf.getLong();
+                    final long location = buf.getLong();
+                    buf.getInt();
+                    if ((location < 0) == removed
+                            && (only == null || only.contains(id))) {
+                        ids.add(id);
+                    }
+                }
+            } finally {
+                raf.close();
+            }
+            return ids;
+        }
+
+        void close() {
+            synchronized (appendLock) {
+                rwl.writeLock().lock();
+                try {
+                    seal();
+                    mapped.clear();
+                } finally {
+                    rwl.writeLock().unlock();
+                }
+            }
+        }
+    }
+
+    static long location(int container, long offset) {
+        return ((long) container << OFFSET_BITS) | offset;
+    }
+
+    static int container(long location) {
+        return (int) (location >>> OFFSET_BITS);
+    }
+
+    private static void closeQuietly(RandomAccessFile raf) {
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                log.warn("Failed to close container", e);
+            }
+        }
+    }
+
+}
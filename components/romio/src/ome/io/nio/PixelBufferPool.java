@@ -0,0 +1,477 @@
+/*
+ * Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.io.nio;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ome.system.metrics.Counter;
+import ome.system.metrics.Metrics;
+import ome.system.metrics.NullMetrics;
+
+/**
+ * Keeps read-only {@link PixelBuffer} instances open between service calls
+ * so that a pixels set which is read again does not have to be located and
+ * have its Bio-Formats reader initialized anew.
+ *
+ * A buffer is lent to one caller at a time since it carries reader state
+ * such as the resolution level. Callers receive a handle whose
+ * {@link PixelBuffer#close()} returns the buffer to the pool; any resolution
+ * level the caller set is reverted then. Idle buffers are closed once there
+ * are more than {@link #maxIdle} of them or when they have not been used for
+ * {@link #idleTimeout} milliseconds. {@link #invalidate(long)} closes the
+ * buffers of a pixels set whose files changed; those currently lent out are
+ * closed when they are returned.
+ *
+ * Each server process has its own pool and invalidation does not reach the
+ * pools of other processes. The process which writes a pyramid, usually the
+ * pixel data service, invalidates its own pool once the pyramid is written.
+ * In other processes, such as the Blitz process that serves the pixels, pixels
+ * sets that need a pyramid cannot be opened until it has been written, so no
+ * pooled buffer predates it; any other buffer whose files were changed
+ * elsewhere is only closed once it has been idle for {@link #idleTimeout}
+ * milliseconds.
+ *
+ * @since 5.4.10
+ */
+public class PixelBufferPool {
+
+    private final static Logger log =
+            LoggerFactory.getLogger(PixelBufferPool.class);
+
+    /**
+     * Opens a pixel buffer on a pool miss.
+     */
+    public interface Opener {
+
+        /**
+         * @return a new read-only pixel buffer
+         */
+        PixelBuffer open();
+    }
+
+    /** An open buffer and how the pool knows it. */
+    private static final class Entry {
+
+        final long pixelsId;
+
+        final long generation;
+
+        final PixelBuffer buffer;
+
+        long idleSince;
+
+        Entry(long pixelsId, long generation, PixelBuffer buffer) {
+            this.pixelsId = pixelsId;
+            this.generation = generation;
+            this.buffer = buffer;
+        }
+    }
+
+    /** The maximum number of idle buffers kept open, over all pixels sets. */
+    private final int maxIdle;
+
+    /** Milliseconds after which an idle buffer is closed. */
+    private final long idleTimeout;
+
+    /** Idle buffers by pixels set, the most recently returned last. */
+    private final Map<Long, Deque<Entry>> idle =
+            new LinkedHashMap<Long, Deque<Entry>>();
+
+    /** Number of buffers lent out by pixels set. */
+    private final Map<Long, Integer> lent = new HashMap<Long, Integer>();
+
+    /** Bumped by {@link #invalidate(long)}, only present once invalidated. */
+    private final Map<Long, Long> generations = new HashMap<Long, Long>();
+
+    private int idleCount = 0;
+
+    /** If {@link #close()} was called. */
+    private boolean shutdown = false;
+
+    private final Counter hits, misses, evictions, invalidations;
+
+    private final ScheduledExecutorService reaper;
+
+    /**
+     * Creates a pool which keeps no buffers.
+     */
+    public PixelBufferPool() {
+        this(0, 0, new NullMetrics());
+    }
+
+    /**
+     * Creates a new pool.
+     *
+     * @param maxIdle The maximum number of idle buffers to keep open. If not
+     *        positive buffers are closed as soon as they are returned.
+     * @param idleTimeout Milliseconds after which idle buffers are closed.
+     *        If not positive idle buffers are only closed to respect
+     *        <code>maxIdle</code>.
+     * @param metrics Receives the hit, miss, eviction and invalidation counts.
+     */
+    public PixelBufferPool(int maxIdle, long idleTimeout, Metrics metrics) {
+        this.maxIdle = maxIdle;
+        this.idleTimeout = idleTimeout;
+        hits = metrics.counter(this, "hits");
+        misses = metrics.counter(this, "misses");
+        evictions = metrics.counter(this, "evictions");
+        invalidations = metrics.counter(this, "invalidations");
+        if (maxIdle > 0 && idleTimeout > 0) {
+            reaper = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            final Thread thread = new Thread(runnable,
+                                    "PixelBufferPool-reaper");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            reaper.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    evictIdle();
+                }
+            }, idleTimeout, idleTimeout, TimeUnit.MILLISECONDS);
+        } else {
+            reaper = null;
+        }
+    }
+
+    /**
+     * @return if returned buffers are kept open at all
+     */
+    public boolean isEnabled() {
+        return maxIdle > 0;
+    }
+
+    /**
+     * Lends a buffer for the given pixels set, opening one if none is idle.
+     *
+     * @param pixelsId The pixels set ID.
+     * @param opener Opens a new buffer on a miss, called without holding the
+     *        pool's lock.
+     * @return a handle to the buffer which must be closed to return it
+     */
+    public PixelBuffer borrow(long pixelsId, Opener opener) {
+        final Long id = pixelsId;
+        final long generation;
+        synchronized (this) {
+            final Deque<Entry> entries = idle.get(id);
+            if (entries != null) {
+                final Entry entry = entries.pollLast();
+                if (entries.isEmpty()) {
+                    idle.remove(id);
+                }
+                if (entry != null) {
+                    idleCount--;
+                    lend(id);
+                    hits.inc();
+                    return handle(entry);
+                }
+            }
+            generation = generation(id);
+            lend(id);
+            misses.inc();
+        }
+        final PixelBuffer buffer;
+        try {
+            buffer = opener.open();
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                unlend(id);
+            }
+            throw e;
+        }
+        return handle(new Entry(pixelsId, generation, buffer));
+    }
+
+    /**
+     * Closes the idle buffers of a pixels set and marks those lent out to be
+     * closed when they are returned, to be called when its files change.
+     *
+     * @param pixelsId The pixels set ID.
+     */
+    public void invalidate(long pixelsId) {
+        invalidate(Collections.singleton(pixelsId));
+    }
+
+    /**
+     * Invalidates the buffers of several pixels sets.
+     *
+     * @param pixelsIds The pixels set IDs.
+     * @see #invalidate(long)
+     */
+    public void invalidate(Collection<Long> pixelsIds) {
+        final List<Entry> toClose = new ArrayList<Entry>();
+        synchronized (this) {
+            for (final Long id : pixelsIds) {
+                final Deque<Entry> entries = idle.remove(id);
+                if (entries != null) {
+                    idleCount -= entries.size();
+                    toClose.addAll(entries);
+                }
+                if (entries != null || lent.containsKey(id)) {
+                    generations.put(id, generation(id) + 1);
+                }
+            }
+        }
+        for (int i = 0; i < toClose.size(); i++) {
+            invalidations.inc();
+        }
+        closeAll(toClose);
+    }
+
+    /**
+     * Closes the buffers which have been idle for longer than the timeout.
+     */
+    public void evictIdle() {
+        if (idleTimeout <= 0) {
+            return;
+        }
+        final long oldest = System.currentTimeMillis() - idleTimeout;
+        final List<Entry> toClose = new ArrayList<Entry>();
+        synchronized (this) {
+            final Iterator<Deque<Entry>> lists = idle.values().iterator();
+            while (lists.hasNext()) {
+                final Deque<Entry> entries = lists.next();
+                while (!entries.isEmpty()
+                        && entries.peekFirst().idleSince < oldest) {
+                    toClose.add(entries.pollFirst());
+                    idleCount--;
+                }
+                if (entries.isEmpty()) {
+                    lists.remove();
+                }
+            }
+        }
+        for (int i = 0; i < toClose.size(); i++) {
+            evictions.inc();
+        }
+        closeAll(toClose);
+    }
+
+    /**
+     * Closes all idle buffers and stops the eviction of idle buffers.
+     * Buffers lent out are closed when they are returned.
+     */
+    public void close() {
+        if (reaper != null) {
+            reaper.shutdownNow();
+        }
+        final List<Entry> toClose = new ArrayList<Entry>();
+        synchronized (this) {
+            shutdown = true;
+            for (final Deque<Entry> entries : idle.values()) {
+                toClose.addAll(entries);
+            }
+            idle.clear();
+            idleCount = 0;
+        }
+        closeAll(toClose);
+    }
+
+    /**
+     * @return the number of buffers currently idle
+     */
+    public synchronized int getIdleCount() {
+        return idleCount;
+    }
+
+    /**
+     * @param pixelsId The pixels set ID.
+     * @return the number of buffers of the pixels set currently lent out
+     */
+    public synchronized int getLentCount(long pixelsId) {
+        final Integer count = lent.get(pixelsId);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Takes back a buffer from a handle, closing it if it is not to be kept.
+     *
+     * @param entry The buffer.
+     * @param reusable If the handle left the buffer in a reusable state.
+     */
+    private void release(Entry entry, boolean reusable) {
+        final List<Entry> toClose = new ArrayList<Entry>();
+        synchronized (this) {
+            final Long id = entry.pixelsId;
+            unlend(id);
+            if (!reusable || maxIdle <= 0 || shutdown
+                    || entry.generation != generation(id)) {
+                toClose.add(entry);
+            } else {
+                entry.idleSince = System.currentTimeMillis();
+                Deque<Entry> entries = idle.remove(id);
+                if (entries == null) {
+                    entries = new ArrayDeque<Entry>();
+                }
+                /* reinserted so that the map iterates by least recent use */
+                idle.put(id, entries);
+                entries.addLast(entry);
+                idleCount++;
+                final Iterator<Deque<Entry>> lists = idle.values().iterator();
+                while (idleCount > maxIdle) {
+                    final Deque<Entry> oldest = lists.next();
+                    while (idleCount > maxIdle && !oldest.isEmpty()) {
+                        toClose.add(oldest.pollFirst());
+                        idleCount--;
+                        evictions.inc();
+                    }
+                    if (oldest.isEmpty()) {
+                        lists.remove();
+                    }
+                }
+            }
+            if (!lent.containsKey(id) && !idle.containsKey(id)) {
+                generations.remove(id);
+            }
+        }
+        closeAll(toClose);
+    }
+
+    private long generation(Long id) {
+        final Long generation = generations.get(id);
+        return generation == null ? 0 : generation;
+    }
+
+    private void lend(Long id) {
+        final Integer count = lent.get(id);
+        lent.put(id, count == null ? 1 : count + 1);
+    }
+
+    private void unlend(Long id) {
+        final Integer count = lent.get(id);
+        if (count == null || count <= 1) {
+            lent.remove(id);
+        } else {
+            lent.put(id, count - 1);
+        }
+    }
+
+    private static void closeAll(List<Entry> entries) {
+        for (final Entry entry : entries) {
+            try {
+                entry.buffer.close();
+            } catch (IOException e) {
+                log.warn("Failed to close pixel buffer of Pixels:"
+                        + entry.pixelsId, e);
+            }
+        }
+    }
+
+    private PixelBuffer handle(Entry entry) {
+        return (PixelBuffer) Proxy.newProxyInstance(
+                PixelBuffer.class.getClassLoader(),
+                new Class<?>[] { PixelBuffer.class }, new Handle(entry));
+    }
+
+    /**
+     * Delegates to a lent buffer until closed.
+     */
+    private final class Handle implements InvocationHandler {
+
+        private final Entry entry;
+
+        /** The resolution level to restore, if changed through the handle. */
+        private Integer resolutionLevel;
+
+        private boolean closed = false;
+
+        Handle(Entry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public synchronized Object invoke(Object proxy, Method method,
+                Object[] args) throws Throwable {
+            final String name = method.getName();
+            if (method.getDeclaringClass() == Object.class) {
+                if ("equals".equals(name)) {
+                    return proxy == args[0];
+                } else if ("hashCode".equals(name)) {
+                    return System.identityHashCode(proxy);
+                } else if ("toString".equals(name)) {
+                    return "Pooled:" + entry.buffer;
+                }
+            }
+            if ("close".equals(name) && method.getParameterTypes().length == 0) {
+                if (!closed) {
+                    closed = true;
+                    release(entry, restore());
+                }
+                return null;
+            }
+            if (closed) {
+                throw new IllegalStateException(
+                        "pixel buffer already returned to pool");
+            }
+            if ("setResolutionLevel".equals(name) && resolutionLevel == null) {
+                resolutionLevel = entry.buffer.getResolutionLevel();
+            }
+            try {
+                return method.invoke(entry.buffer, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        /**
+         * @return if the buffer is back in the state in which it was lent
+         */
+        private boolean restore() {
+            if (resolutionLevel == null) {
+                return true;
+            }
+            try {
+                if (resolutionLevel != entry.buffer.getResolutionLevel()) {
+                    entry.buffer.setResolutionLevel(resolutionLevel);
+                }
+                return true;
+            } catch (RuntimeException e) {
+                log.debug("Cannot restore resolution level of " + entry.buffer,
+                        e);
+                return false;
+            }
+        }
+    }
+}
@@ -10,6 +10,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteOrder;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
@@ -106,6 +107,12 @@ public class PixelsService extends AbstractFileSystemService
 	
 	private IQuery iQuery;
 
+	/** Keeps read-only pixel buffers open between calls, if enabled. */
+	private PixelBufferPool pixelBufferPool = new PixelBufferPool();
+
+	/** Keeps tiles decoded from pyramids for all sessions, if enabled. */
+	private PyramidTileCache pyramidTileCache = new PyramidTileCache();
+
 	/** Null plane byte array. */
 	public static final byte[] nullPlane = new byte[] { -128, 127, -128, 127,
 			-128, 127, -128, 127, -128, 127, // 10
@@ -222,6 +229,34 @@ public class PixelsService extends AbstractFileSystemService
         this.minmaxTimes = metrics.timer(this, "minmaxTimes");
     }
 
+    /**
+     * Sets the pool from which {@link #getPixelBuffer(Pixels, boolean)} lends
+     * read-only pixel buffers.
+     * @param pixelBufferPool the pool to use
+     */
+    public void setPixelBufferPool(PixelBufferPool pixelBufferPool) {
+        this.pixelBufferPool = pixelBufferPool;
+    }
+
+    /**
+     * Sets the cache in which pyramid pixel buffers keep the tiles they read.
+     * @param pyramidTileCache the cache to use
+     */
+    public void setPyramidTileCache(PyramidTileCache pyramidTileCache) {
+        this.pyramidTileCache = pyramidTileCache;
+    }
+
+    /**
+     * Closes any pooled pixel buffers and drops any cached pyramid tiles of
+     * the given pixels sets, to be called when their pixel data files are
+     * changed or deleted.
+     * @param pixelsIds the IDs of the pixels sets
+     */
+    public void invalidatePixelBuffers(Collection<Long> pixelsIds) {
+        pixelBufferPool.invalidate(pixelsIds);
+        pyramidTileCache.invalidate(pixelsIds);
+    }
+
     public long getMemoizerWait() {
         return memoizerWait;
     }
@@ -369,6 +404,10 @@ public class PixelsService extends AbstractFileSystemService
                     log.error("Error closing pixel pyramid.", e);
                 }
             }
+            // Buffers pooled by this process, e.g. the one read to write
+            // the pyramid, were opened before the pyramid existed.
+            pixelBufferPool.invalidate(pixels.getId());
+            pyramidTileCache.invalidate(pixels.getId());
         }
     }
 
@@ -532,13 +571,25 @@ public class PixelsService extends AbstractFileSystemService
      * @param pixels Pixels set to retrieve a pixel buffer for.
      * @param write Whether or not to open the pixel buffer as read-write.
      * <code>true</code> opens as read-write, <code>false</code> opens as
-     * read-only.
+     * read-only. Read-only buffers may be lent from the pool of open
+     * buffers, in which case closing the buffer returns it to the pool.
      * @return A pixel buffer instance.
      * @since OMERO-Beta4.3
      */
-    public PixelBuffer getPixelBuffer(Pixels pixels, boolean write)
+    public PixelBuffer getPixelBuffer(final Pixels pixels, boolean write)
     {
-        PixelBuffer pb = _getPixelBuffer(pixels, write);
+        final PixelBuffer pb;
+        if (write || pixels.getId() == null || !pixelBufferPool.isEnabled()) {
+            pb = _getPixelBuffer(pixels, write);
+        } else {
+            pb = pixelBufferPool.borrow(pixels.getId(),
+                    new PixelBufferPool.Opener() {
+                        @Override
+                        public PixelBuffer open() {
+                            return _getPixelBuffer(pixels, false);
+                        }
+                    });
+        }
         if (log.isDebugEnabled()) {
             log.debug(pb +" for " + pixels);
         }
@@ -639,16 +690,14 @@ public class PixelsService extends AbstractFileSystemService
     /**
      * Returns whether a pyramid should be used for the given {@link Pixels}.
      * This usually implies that this is a "Big image" and therefore will
-     * need tiling.
+     * need tiling. Floating point images are included, their pyramids
+     * being written losslessly by {@link BfPyramidPixelBuffer}.
      *
      * @param pixels
      * @return {@code true} if a pyramid should be used, {@code false}
      *         otherwise
      */
     public boolean requiresPixelsPyramid(Pixels pixels) {
-        String type = pixels.getPixelsType().getValue();
-        if ("float".equals(type) || "double".equals(type))
-            return false;
         final long sizeX = pixels.getSizeX();
         final long sizeY = pixels.getSizeY();
         final boolean requirePyramid = (sizeX * sizeY) > (sizes.getMaxPlaneWidth()*sizes.getMaxPlaneHeight());
@@ -885,7 +934,10 @@ public class PixelsService extends AbstractFileSystemService
                 // #5159. Creating the path if we need to write.
                 createSubpath(filePath);
             }
-            return new BfPyramidPixelBuffer(pixels, filePath, write);
+            final BfPyramidPixelBuffer pixelsPyramid =
+                    new BfPyramidPixelBuffer(pixels, filePath, write);
+            pixelsPyramid.setTileCache(pyramidTileCache);
+            return pixelsPyramid;
         }
         catch (Exception e)
         {
@@ -922,6 +974,9 @@ public class PixelsService extends AbstractFileSystemService
 		String fileName;
 		boolean success = false;
 
+		pixelBufferPool.invalidate(pixelIds);
+		pyramidTileCache.invalidate(pixelIds);
+
 		for (Iterator<Long> iter = pixelIds.iterator(); iter.hasNext();) {
 			Long id = iter.next();
 
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.io.nio;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import ome.system.metrics.Counter;
+import ome.system.metrics.Metrics;
+import ome.system.metrics.NullMetrics;
+
+/**
+ * Keeps tiles already decoded from pixel pyramids so that tiles requested
+ * again, perhaps by another session viewing the same image, need not be read
+ * and decompressed anew. One cache is shared by all the pyramid pixel buffers
+ * of a server. Its size is bounded by the total number of bytes of the tiles
+ * held; the least recently used tiles are dropped first.
+ *
+ * Tiles are known by their pixels set, the modification time of the pyramid
+ * file they were read from, the resolution level and their position so that
+ * a rewritten pyramid is not served from stale tiles.
+ * {@link #invalidate(Collection)} drops the tiles of pixels sets whose
+ * pyramids are deleted or replaced. The cache holds its own copies of the
+ * tile data: callers may modify the arrays they put and get.
+ *
+ * @since 5.4.10
+ */
+public class PyramidTileCache {
+
+    /** Identifies a tile read from a given pyramid file. */
+    public static final class Key {
+
+        private final long pixelsId;
+
+        private final long fileVersion;
+
+        private final int resolutionLevel;
+
+        private final int t, x, y, w, h;
+
+        private final boolean direct;
+
+        /**
+         * Creates a new key.
+         *
+         * @param pixelsId The pixels set ID.
+         * @param fileVersion The modification time of the pyramid file.
+         * @param resolutionLevel The resolution level of the tile.
+         * @param t The rasterized timepoint of the tile's plane.
+         * @param x The X offset of the tile.
+         * @param y The Y offset of the tile.
+         * @param w The width of the tile.
+         * @param h The height of the tile.
+         * @param direct If the tile data is byte swapped as by
+         *        {@link PixelBuffer#getTileDirect}.
+         */
+        public Key(long pixelsId, long fileVersion, int resolutionLevel,
+                int t, int x, int y, int w, int h, boolean direct) {
+            this.pixelsId = pixelsId;
+            this.fileVersion = fileVersion;
+            this.resolutionLevel = resolutionLevel;
+            this.t = t;
+            this.x = x;
+            this.y = y;
+            this.w = w;
+            this.h = h;
+            this.direct = direct;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (this == object) {
+                return true;
+            }
+            if (!(object instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) object;
+            return pixelsId == other.pixelsId
+                    && fileVersion == other.fileVersion
+                    && resolutionLevel == other.resolutionLevel
+                    && t == other.t && x == other.x && y == other.y
+                    && w == other.w && h == other.h
+                    && direct == other.direct;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = (int) (pixelsId ^ (pixelsId >>> 32));
+            hash = 31 * hash + (int) (fileVersion ^ (fileVersion >>> 32));
+            hash = 31 * hash + resolutionLevel;
+            hash = 31 * hash + t;
+            hash = 31 * hash + x;
+            hash = 31 * hash + y;
+            hash = 31 * hash + w;
+            hash = 31 * hash + h;
+            return direct ? hash : ~hash;
+        }
+
+        @Override
+        public String toString() {
+            return "Pixels:" + pixelsId + " level " + resolutionLevel
+                    + " t " + t + " tile " + x + "," + y + " " + w + "x" + h;
+        }
+    }
+
+    /** The maximum total size in bytes of the tiles held. */
+    private final long maxBytes;
+
+    /** Tiles by key, iterating from the least recently used. */
+    private final Map<Key, byte[]> tiles =
+            new LinkedHashMap<Key, byte[]>(16, 0.75f, true);
+
+    private long bytes = 0;
+
+    private final Counter hits, misses, evictions, invalidations;
+
+    /**
+     * Creates a cache which keeps no tiles.
+     */
+    public PyramidTileCache() {
+        this(0, new NullMetrics());
+    }
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maxBytes The maximum total size in bytes of the tiles to keep.
+     *        If not positive no tiles are kept.
+     * @param metrics Receives the hit, miss, eviction and invalidation counts.
+     */
+    public PyramidTileCache(long maxBytes, Metrics metrics) {
+        this.maxBytes = maxBytes;
+        hits = metrics.counter(this, "hits");
+        misses = metrics.counter(this, "misses");
+        evictions = metrics.counter(this, "evictions");
+        invalidations = metrics.counter(this, "invalidations");
+    }
+
+    /**
+     * @return if tiles are kept at all
+     */
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * Looks up a tile.
+     *
+     * @param key The tile's key.
+     * @return a copy of the tile's data or <code>null</code> if not held
+     */
+    public byte[] get(Key key) {
+        final byte[] tile;
+        synchronized (this) {
+            tile = tiles.get(key);
+        }
+        if (tile == null) {
+            misses.inc();
+            return null;
+        }
+        hits.inc();
+        return tile.clone();
+    }
+
+    /**
+     * Keeps a tile, dropping the least recently used tiles as needed to
+     * respect the size limit. Tiles larger than a quarter of the limit are
+     * not kept so that one large region does not empty the cache.
+     *
+     * @param key The tile's key.
+     * @param tile The tile's data, copied by the cache.
+     */
+    public void put(Key key, byte[] tile) {
+        put(key, tile, tile.length);
+    }
+
+    /**
+     * Keeps a tile whose data starts an array.
+     *
+     * @param key The tile's key.
+     * @param tile The array, copied by the cache.
+     * @param length The number of bytes of the array which are the tile's.
+     * @see #put(Key, byte[])
+     */
+    public void put(Key key, byte[] tile, int length) {
+        if (maxBytes <= 0 || length > maxBytes / 4) {
+            return;
+        }
+        final byte[] copy = Arrays.copyOf(tile, length);
+        synchronized (this) {
+            final byte[] previous = tiles.put(key, copy);
+            if (previous != null) {
+                bytes -= previous.length;
+            }
+            bytes += copy.length;
+            final Iterator<byte[]> oldest = tiles.values().iterator();
+            while (bytes > maxBytes) {
+                bytes -= oldest.next().length;
+                oldest.remove();
+                evictions.inc();
+            }
+        }
+    }
+
+    /**
+     * Drops the tiles of a pixels set, to be called when its pyramid changes.
+     *
+     * @param pixelsId The pixels set ID.
+     */
+    public void invalidate(long pixelsId) {
+        invalidate(Collections.singleton(pixelsId));
+    }
+
+    /**
+     * Drops the tiles of several pixels sets.
+     *
+     * @param pixelsIds The pixels set IDs.
+     * @see #invalidate(long)
+     */
+    public void invalidate(Collection<Long> pixelsIds) {
+        if (maxBytes <= 0 || pixelsIds.isEmpty()) {
+            return;
+        }
+        final Set<Long> ids = new HashSet<Long>(pixelsIds);
+        synchronized (this) {
+            final Iterator<Map.Entry<Key, byte[]>> entries =
+                    tiles.entrySet().iterator();
+            while (entries.hasNext()) {
+                final Map.Entry<Key, byte[]> entry = entries.next();
+                if (ids.contains(entry.getKey().pixelsId)) {
+                    bytes -= entry.getValue().length;
+                    entries.remove();
+                    invalidations.inc();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of tiles currently held
+     */
+    public synchronized int getTileCount() {
+        return tiles.size();
+    }
+
+    /**
+     * @return the total size in bytes of the tiles currently held
+     */
+    public synchronized long getByteCount() {
+        return bytes;
+    }
+}
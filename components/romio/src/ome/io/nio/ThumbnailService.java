@@ -10,7 +10,10 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -69,6 +72,20 @@ public class ThumbnailService extends AbstractFileSystemService {
         return f.length();
     }
 
+    /**
+     * Returns the lengths of thumbnails on disk, for reporting disk usage.
+     *
+     * @param thumbnailIds the thumbnail ids
+     * @return the length of each thumbnail, zero if it is not on disk
+     */
+    public Map<Long, Long> getThumbnailLengths(Collection<Long> thumbnailIds) {
+        final Map<Long, Long> lengths = new HashMap<Long, Long>();
+        for (Long id : thumbnailIds) {
+            lengths.put(id, new File(getThumbnailPath(id)).length());
+        }
+        return lengths;
+    }
+
     /**
      * Return byte array of Thumbnail
      *
@@ -162,4 +179,21 @@ public class ThumbnailService extends AbstractFileSystemService {
             }
         }
     }
+
+    /**
+     * Writes any buffered thumbnails to disk. Thumbnails are written
+     * immediately by this implementation so there is nothing to do.
+     */
+    public void flush() {
+    }
+
+    /**
+     * Reclaims space left by removed thumbnails. Files are deleted
+     * immediately by this implementation so there is nothing to do.
+     *
+     * @return the number of bytes reclaimed.
+     */
+    public long compact() {
+        return 0;
+    }
 }
@@ -59,10 +59,13 @@ public abstract class AbstractPyramidPixelBufferUnitTest {
     protected int bytesPerPixel;
 
     protected void createService() {
+        createService("uint16");
+    }
+
+    protected void createService(String pixelType) {
         root = PathUtil.getInstance().getTemporaryDataFilePath();
         pixels = new Pixels();
 
-        String pixelType = "uint16";
         bytesPerPixel = FormatTools.getBytesPerPixel(pixelType);
         pixels.setId(1L);
         pixels.setSizeX(sizeX);
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package ome.io.nio.utests;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+import ome.io.bioformats.BfPyramidPixelBuffer;
+import ome.io.bioformats.OmeroPixelsPyramidWriter;
+import ome.io.nio.TileLoopIteration;
+import ome.io.nio.Utils;
+import ome.util.PixelData;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the writing and reading of {@link BfPyramidPixelBuffer} instances
+ * for floating point pixels.
+ * @since 5.4.10
+ */
+public class FloatPyramidPixelBufferUnitTest
+        extends AbstractPyramidPixelBufferUnitTest {
+
+    @BeforeClass
+    public void setup() {
+        createService("float");
+    }
+
+    @AfterClass
+    public void tearDown() throws IOException {
+        if (pixelBuffer != null) {
+            pixelBuffer.close();
+        }
+        deleteRoot();
+    }
+
+    @Test
+    public void testRequiresPixelsPyramid() {
+        Assert.assertTrue(service.requiresPixelsPyramid(pixels));
+    }
+
+    @Test
+    public void testDownsample() {
+        ByteBuffer source = ByteBuffer.allocate(3 * 3 * 4);
+        source.asFloatBuffer().put(new float[] {
+                1, 3, 10,
+                5, 7, Float.NaN,
+                -2, Float.NaN, Float.NaN });
+        ByteBuffer target = ByteBuffer.allocate(2 * 2 * 4);
+        OmeroPixelsPyramidWriter.downsample(source, 3, 3, target, 2, 2,
+                false);
+        FloatBuffer values = target.asFloatBuffer();
+        Assert.assertEquals(values.get(0), 4f);
+        Assert.assertEquals(values.get(1), 10f);
+        Assert.assertEquals(values.get(2), -2f);
+        Assert.assertTrue(Float.isNaN(values.get(3)));
+    }
+
+    @Test
+    public void testDownsampleDoubleRange() {
+        ByteBuffer source = ByteBuffer.allocate(2 * 2 * 8);
+        source.asDoubleBuffer().put(new double[] {
+                Double.MAX_VALUE, Double.MAX_VALUE,
+                Double.MAX_VALUE, Double.MAX_VALUE });
+        ByteBuffer target = ByteBuffer.allocate(8);
+        OmeroPixelsPyramidWriter.downsample(source, 2, 2, target, 1, 1,
+                true);
+        Assert.assertEquals(target.getDouble(0), Double.MAX_VALUE);
+    }
+
+    @Test
+    public void testPyramidWriteTiles() throws Exception {
+        pixelBuffer = service._getPixelBuffer(pixels, true);
+        short tileCount = (short) Utils.forEachTile(new TileLoopIteration() {
+            public void run(int z, int c, int t, int x, int y, int tileWidth,
+                            int tileHeight, int tileCount) {
+                byte[] tile = new byte[tileWidth * tileHeight * bytesPerPixel];
+                float value = tileCount;
+                FloatBuffer values = ByteBuffer.wrap(tile).asFloatBuffer();
+                while (values.hasRemaining()) {
+                    values.put(value);
+                }
+                try {
+                    pixelBuffer.setTile(
+                            tile, z, c, t, x, y, tileWidth, tileHeight);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }, pixelBuffer, tileWidth, tileHeight);
+        Assert.assertEquals(tileCount, 768);
+        pixelBuffer.close();
+        pixelBuffer = service._getPixelBuffer(pixels, false);
+    }
+
+    @Test(dependsOnMethods = { "testPyramidWriteTiles" })
+    public void testGetPixelBufferResolutionLevels() {
+        Assert.assertEquals(pixelBuffer.getResolutionLevels(),
+                BfPyramidPixelBuffer.FLOATING_POINT_RESOLUTION_LEVELS);
+    }
+
+    @Test(dependsOnMethods = { "testPyramidWriteTiles" })
+    public void testFullResolutionTile() throws Exception {
+        pixelBuffer.setResolutionLevel(pixelBuffer.getResolutionLevels() - 1);
+        PixelData tile = pixelBuffer.getTile(0, 0, 0, 256, 0, 256, 256);
+        Assert.assertEquals(tile.getPixelValue(0), 1.0);
+        Assert.assertEquals(tile.getPixelValue(256 * 256 - 1), 1.0);
+    }
+
+    @Test(dependsOnMethods = { "testFullResolutionTile" })
+    public void testLowResolutionValueRange() throws Exception {
+        pixelBuffer.setResolutionLevel(0);
+        Assert.assertEquals(pixelBuffer.getSizeX(), (int) Math.ceil(sizeX / 32.0));
+        Assert.assertEquals(pixelBuffer.getSizeY(), (int) Math.ceil(sizeY / 32.0));
+        PixelData plane = pixelBuffer.getPlane(sizeZ - 1, sizeC - 1, sizeT - 1);
+        int tilesPerPlane = 16;
+        int planes = sizeZ * sizeC * sizeT;
+        for (int i = 0; i < plane.size(); i++) {
+            double value = plane.getPixelValue(i);
+            Assert.assertTrue(value >= (planes - 1) * tilesPerPlane);
+            Assert.assertTrue(value < planes * tilesPerPlane);
+        }
+    }
+}
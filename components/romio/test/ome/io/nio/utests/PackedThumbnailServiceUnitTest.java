@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package ome.io.nio.utests;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import ome.io.nio.PackedThumbnailService;
+import ome.io.nio.ThumbnailService;
+import ome.model.display.Thumbnail;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class PackedThumbnailServiceUnitTest {
+
+    private String root;
+
+    private PackedThumbnailService service;
+
+    @BeforeMethod
+    public void setUp() {
+        root = PathUtil.getInstance().getTemporaryDataFilePath();
+        service = open();
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        service.close();
+        FileUtils.deleteDirectory(new File(root));
+    }
+
+    private PackedThumbnailService open() {
+        // Small containers and batches so that tests span several of each
+        return new PackedThumbnailService(root, false, 2, 4096, 8);
+    }
+
+    private static Thumbnail thumbnail(long id) {
+        Thumbnail thumbnail = new Thumbnail();
+        thumbnail.setId(id);
+        return thumbnail;
+    }
+
+    private static byte[] data(long id) {
+        byte[] data = new byte[100 + (int) (id % 50)];
+        Arrays.fill(data, (byte) id);
+        return data;
+    }
+
+    private void assertThumbnail(ThumbnailService service, long id)
+            throws IOException {
+        Thumbnail thumbnail = thumbnail(id);
+        Assert.assertTrue(service.getThumbnailExists(thumbnail));
+        Assert.assertEquals(service.getThumbnailLength(thumbnail),
+                data(id).length);
+        Assert.assertEquals(service.getThumbnail(thumbnail), data(id));
+    }
+
+    @Test
+    public void testReadBeforeFlush() throws IOException {
+        service.createThumbnail(thumbnail(1), data(1));
+        assertThumbnail(service, 1);
+    }
+
+    @Test
+    public void testReopen() throws IOException {
+        for (long id = 1; id <= 100; id++) {
+            service.createThumbnail(thumbnail(id), data(id));
+        }
+        service.close();
+        service = open();
+        for (long id = 1; id <= 100; id++) {
+            assertThumbnail(service, id);
+        }
+    }
+
+    @Test
+    public void testOverwrite() throws IOException {
+        service.createThumbnail(thumbnail(1), data(2));
+        service.flush();
+        service.createThumbnail(thumbnail(1), data(1));
+        service.close();
+        service = open();
+        assertThumbnail(service, 1);
+    }
+
+    @Test
+    public void testOutputStream() throws IOException {
+        FileOutputStream stream = service.getThumbnailOutputStream(thumbnail(3));
+        try {
+            stream.write(data(3));
+        } finally {
+            stream.close();
+        }
+        assertThumbnail(service, 3);
+        Assert.assertFalse(new File(service.getThumbnailPath(3L)).exists());
+    }
+
+    @Test
+    public void testRemove() throws IOException {
+        for (long id = 1; id <= 20; id++) {
+            service.createThumbnail(thumbnail(id), data(id));
+        }
+        service.removeThumbnails(Arrays.asList(2L, 3L, 5L, 7L));
+        Assert.assertFalse(service.getThumbnailExists(thumbnail(2)));
+        service.close();
+        service = open();
+        for (long id = 1; id <= 20; id++) {
+            if (id == 2 || id == 3 || id == 5 || id == 7) {
+                Assert.assertFalse(service.getThumbnailExists(thumbnail(id)));
+            } else {
+                assertThumbnail(service, id);
+            }
+        }
+    }
+
+    @Test
+    public void testCompact() throws IOException {
+        List<Long> removed = new ArrayList<Long>();
+        for (long id = 1; id <= 200; id++) {
+            service.createThumbnail(thumbnail(id), data(id));
+            if (id % 4 != 0) {
+                removed.add(id);
+            }
+        }
+        service.removeThumbnails(removed);
+        Assert.assertTrue(service.compact() > 0);
+        service.close();
+        service = open();
+        for (long id = 1; id <= 200; id++) {
+            if (id % 4 == 0) {
+                assertThumbnail(service, id);
+            } else {
+                Assert.assertFalse(service.getThumbnailExists(thumbnail(id)));
+            }
+        }
+    }
+
+    @Test
+    public void testWrittenBeforeReturn() throws IOException {
+        service.createThumbnail(thumbnail(1), data(1));
+        // Neither flushed nor closed
+        PackedThumbnailService other =
+                new PackedThumbnailService(root, true, 2, 4096, 8);
+        try {
+            assertThumbnail(other, 1);
+        } finally {
+            other.close();
+        }
+    }
+
+    @Test
+    public void testCompactKeepsRemovals() throws IOException {
+        for (long id = 1; id <= 60; id++) {
+            service.createThumbnail(thumbnail(id), data(id));
+        }
+        // Journaled in a later container than the thumbnail itself
+        service.removeThumbnails(Arrays.asList(1L));
+        List<Long> removed = new ArrayList<Long>();
+        for (long id = 61; id <= 150; id++) {
+            service.createThumbnail(thumbnail(id), data(id));
+        }
+        // Empties the later container but not the first one
+        for (long id = 40; id <= 150; id++) {
+            removed.add(id);
+        }
+        service.removeThumbnails(removed);
+        Assert.assertTrue(service.compact() > 0);
+        service.close();
+        service = open();
+        for (long id = 1; id <= 150; id++) {
+            if (id == 1 || id >= 40) {
+                Assert.assertFalse(service.getThumbnailExists(thumbnail(id)));
+            } else {
+                assertThumbnail(service, id);
+            }
+        }
+    }
+
+    @Test
+    public void testCompactDropsRemovals() throws IOException {
+        List<Long> removed = new ArrayList<Long>();
+        for (long id = 1; id <= 100; id++) {
+            service.createThumbnail(thumbnail(id), data(id));
+            if (id % 4 != 0) {
+                removed.add(id);
+            }
+        }
+        service.removeThumbnails(removed);
+        Assert.assertTrue(countRemovals() > 0);
+        // Seals the containers holding the removals
+        for (long id = 101; id <= 200; id++) {
+            service.createThumbnail(thumbnail(id), data(id));
+        }
+        service.setCompactionThreshold(0);
+        service.compact();
+        // Once the removed thumbnails are gone, so are their removals
+        service.compact();
+        Assert.assertEquals(countRemovals(), 0);
+        service.close();
+        service = open();
+        for (long id = 1; id <= 200; id++) {
+            if (id <= 100 && id % 4 != 0) {
+                Assert.assertFalse(service.getThumbnailExists(thumbnail(id)));
+            } else {
+                assertThumbnail(service, id);
+            }
+        }
+    }
+
+    /**
+     * @return the number of removals recorded in the index journals
+     */
+    private int countRemovals() throws IOException {
+        int count = 0;
+        File packed = new File(service.getThumbnailsDirectory(),
+                PackedThumbnailService.PACKED_PATH);
+        for (File idx : FileUtils.listFiles(packed, new String[]{"idx"},
+                true)) {
+            ByteBuffer journal = ByteBuffer.wrap(
+                    FileUtils.readFileToByteArray(idx));
+            while (journal.remaining() >= 8 + 8 + 4) {
+                journal.getLong();
+                if (journal.getLong() < 0) {
+                    count++;
+                }
+                journal.getInt();
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void testLengths() throws IOException {
+        ThumbnailService legacy = new ThumbnailService(root, false);
+        FileOutputStream stream = legacy.getThumbnailOutputStream(
+                thumbnail(3));
+        try {
+            stream.write(data(3));
+        } finally {
+            stream.close();
+        }
+        service.createThumbnail(thumbnail(1), data(1));
+        Map<Long, Long> lengths =
+                service.getThumbnailLengths(Arrays.asList(1L, 2L, 3L));
+        Assert.assertEquals(lengths.get(1L).longValue(), data(1).length);
+        Assert.assertEquals(lengths.get(2L).longValue(), 0);
+        Assert.assertEquals(lengths.get(3L).longValue(), data(3).length);
+    }
+
+    @Test
+    public void testMigrate() throws IOException {
+        ThumbnailService legacy = new ThumbnailService(root, false);
+        for (long id = 998; id <= 1002; id++) {
+            FileOutputStream stream = legacy.getThumbnailOutputStream(
+                    thumbnail(id));
+            try {
+                stream.write(data(id));
+            } finally {
+                stream.close();
+            }
+        }
+        // Found in the per-file layout before migration
+        assertThumbnail(service, 1000);
+        Assert.assertEquals(service.migrate(true), 5);
+        for (long id = 998; id <= 1002; id++) {
+            Assert.assertFalse(new File(service.getThumbnailPath(id)).exists());
+            assertThumbnail(service, id);
+        }
+    }
+
+}
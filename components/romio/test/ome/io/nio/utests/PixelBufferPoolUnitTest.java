@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package ome.io.nio.utests;
+
+import java.io.IOException;
+
+import ome.io.nio.InMemoryPlanarPixelBuffer;
+import ome.io.nio.PixelBuffer;
+import ome.io.nio.PixelBufferPool;
+import ome.system.metrics.NullMetrics;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the lending of pixel buffers by {@link PixelBufferPool}.
+ *
+ * @since 5.4.10
+ */
+@Test(groups = "unit")
+public class PixelBufferPoolUnitTest {
+
+    /** Counts how often it is opened and closed. */
+    private static class Opener implements PixelBufferPool.Opener {
+
+        int opened = 0;
+
+        int closed = 0;
+
+        @Override
+        public PixelBuffer open() {
+            opened++;
+            return new InMemoryPlanarPixelBuffer(null, null) {
+
+                private int resolutionLevel = 0;
+
+                @Override
+                public int getResolutionLevel() {
+                    return resolutionLevel;
+                }
+
+                @Override
+                public void setResolutionLevel(int resolutionLevel) {
+                    this.resolutionLevel = resolutionLevel;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    closed++;
+                }
+            };
+        }
+    }
+
+    public void testReuse() throws IOException {
+        PixelBufferPool pool = new PixelBufferPool(4, 0, new NullMetrics());
+        Opener opener = new Opener();
+        PixelBuffer first = pool.borrow(1, opener);
+        PixelBuffer second = pool.borrow(1, opener);
+        Assert.assertEquals(opener.opened, 2);
+        Assert.assertEquals(pool.getLentCount(1), 2);
+        first.close();
+        second.close();
+        Assert.assertEquals(pool.getLentCount(1), 0);
+        Assert.assertEquals(pool.getIdleCount(), 2);
+        pool.borrow(1, opener).close();
+        Assert.assertEquals(opener.opened, 2);
+        Assert.assertEquals(opener.closed, 0);
+    }
+
+    public void testClosedHandle() throws IOException {
+        PixelBufferPool pool = new PixelBufferPool(4, 0, new NullMetrics());
+        PixelBuffer buffer = pool.borrow(1, new Opener());
+        buffer.close();
+        buffer.close();
+        Assert.assertEquals(pool.getIdleCount(), 1);
+        try {
+            buffer.getResolutionLevel();
+            Assert.fail("returned buffer must not be used");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    public void testResolutionLevelRestored() throws IOException {
+        PixelBufferPool pool = new PixelBufferPool(4, 0, new NullMetrics());
+        Opener opener = new Opener();
+        PixelBuffer buffer = pool.borrow(1, opener);
+        buffer.setResolutionLevel(2);
+        buffer.close();
+        buffer = pool.borrow(1, opener);
+        Assert.assertEquals(opener.opened, 1);
+        Assert.assertEquals(buffer.getResolutionLevel(), 0);
+    }
+
+    public void testMaxIdle() throws IOException {
+        PixelBufferPool pool = new PixelBufferPool(2, 0, new NullMetrics());
+        Opener opener = new Opener();
+        PixelBuffer[] buffers = new PixelBuffer[3];
+        for (int id = 0; id < buffers.length; id++) {
+            buffers[id] = pool.borrow(id, opener);
+        }
+        for (PixelBuffer buffer : buffers) {
+            buffer.close();
+        }
+        Assert.assertEquals(pool.getIdleCount(), 2);
+        Assert.assertEquals(opener.closed, 1);
+        pool.borrow(0, opener).close();
+        Assert.assertEquals(opener.opened, 4);
+    }
+
+    public void testIdleTimeout() throws Exception {
+        PixelBufferPool pool = new PixelBufferPool(2, 50, new NullMetrics());
+        Opener opener = new Opener();
+        pool.borrow(1, opener).close();
+        Thread.sleep(200);
+        pool.evictIdle();
+        Assert.assertEquals(pool.getIdleCount(), 0);
+        Assert.assertEquals(opener.closed, 1);
+        pool.close();
+    }
+
+    public void testInvalidate() throws IOException {
+        PixelBufferPool pool = new PixelBufferPool(4, 0, new NullMetrics());
+        Opener opener = new Opener();
+        PixelBuffer lent = pool.borrow(1, opener);
+        pool.borrow(1, opener).close();
+        pool.borrow(2, opener).close();
+        pool.invalidate(1);
+        Assert.assertEquals(opener.closed, 1);
+        lent.close();
+        Assert.assertEquals(opener.closed, 2);
+        Assert.assertEquals(pool.getIdleCount(), 1);
+        pool.borrow(1, opener).close();
+        Assert.assertEquals(opener.opened, 4);
+    }
+
+    public void testDisabled() throws IOException {
+        PixelBufferPool pool = new PixelBufferPool();
+        Assert.assertFalse(pool.isEnabled());
+        Opener opener = new Opener();
+        pool.borrow(1, opener).close();
+        Assert.assertEquals(opener.closed, 1);
+        Assert.assertEquals(pool.getIdleCount(), 0);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package ome.io.nio.utests;
+
+import java.util.Arrays;
+
+import ome.io.nio.PyramidTileCache;
+import ome.system.metrics.NullMetrics;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the keeping of decoded tiles by {@link PyramidTileCache}.
+ *
+ * @since 5.4.10
+ */
+@Test(groups = "unit")
+public class PyramidTileCacheUnitTest {
+
+    private static PyramidTileCache.Key key(long pixelsId, int x) {
+        return new PyramidTileCache.Key(pixelsId, 1, 0, 0, x, 0, 16, 16,
+                false);
+    }
+
+    private static byte[] tile(int value) {
+        final byte[] tile = new byte[256];
+        Arrays.fill(tile, (byte) value);
+        return tile;
+    }
+
+    public void testHit() {
+        PyramidTileCache cache = new PyramidTileCache(4096, new NullMetrics());
+        byte[] tile = tile(1);
+        cache.put(key(1, 0), tile);
+        tile[0] = 9;
+        byte[] got = cache.get(key(1, 0));
+        Assert.assertEquals(got, tile(1));
+        got[0] = 9;
+        Assert.assertEquals(cache.get(key(1, 0)), tile(1));
+        Assert.assertNull(cache.get(key(1, 16)));
+        Assert.assertNull(cache.get(new PyramidTileCache.Key(
+                1, 2, 0, 0, 0, 0, 16, 16, false)));
+        Assert.assertNull(cache.get(new PyramidTileCache.Key(
+                1, 1, 0, 0, 0, 0, 16, 16, true)));
+    }
+
+    public void testDisabled() {
+        PyramidTileCache cache = new PyramidTileCache();
+        Assert.assertFalse(cache.isEnabled());
+        cache.put(key(1, 0), tile(1));
+        Assert.assertNull(cache.get(key(1, 0)));
+        Assert.assertEquals(cache.getTileCount(), 0);
+    }
+
+    public void testLeastRecentlyUsedEvicted() {
+        PyramidTileCache cache = new PyramidTileCache(1024, new NullMetrics());
+        for (int i = 0; i < 4; i++) {
+            cache.put(key(1, i * 16), tile(i));
+        }
+        Assert.assertNotNull(cache.get(key(1, 0)));
+        cache.put(key(1, 64), tile(4));
+        Assert.assertEquals(cache.getTileCount(), 4);
+        Assert.assertEquals(cache.getByteCount(), 1024);
+        Assert.assertNotNull(cache.get(key(1, 0)));
+        Assert.assertNull(cache.get(key(1, 16)));
+        Assert.assertNotNull(cache.get(key(1, 64)));
+    }
+
+    public void testLargeTileNotKept() {
+        PyramidTileCache cache = new PyramidTileCache(1024, new NullMetrics());
+        cache.put(key(1, 0), new byte[512]);
+        Assert.assertEquals(cache.getTileCount(), 0);
+        byte[] buffer = tile(3);
+        cache.put(key(1, 0), buffer, 128);
+        Assert.assertEquals(cache.get(key(1, 0)).length, 128);
+    }
+
+    public void testInvalidate() {
+        PyramidTileCache cache = new PyramidTileCache(4096, new NullMetrics());
+        cache.put(key(1, 0), tile(1));
+        cache.put(key(2, 0), tile(2));
+        cache.invalidate(1);
+        Assert.assertNull(cache.get(key(1, 0)));
+        Assert.assertNotNull(cache.get(key(2, 0)));
+        Assert.assertEquals(cache.getByteCount(), 256);
+    }
+}
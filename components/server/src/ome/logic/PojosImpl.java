@@ -60,6 +60,7 @@ import org.springframework.orm.hibernate3.HibernateCallback;
 import org.springframework.transaction.annotation.Transactional;
 
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Sets;
 
 /**
@@ -99,6 +100,21 @@ public class PojosImpl extends AbstractLevel2Service implements IContainer {
             + "left outer join fetch p.annotationLinksCountPerOwner " 
             + "where p in (:list)";
 
+    /** Query to load the projects containing the given datasets. */
+    final static String loadProjectsOfDatasets = "select this from Project this "
+            + "left outer join fetch this.datasetLinks pdl "
+            + "left outer join fetch pdl.child ds "
+            + "where ds in (:list)";
+
+    /** Query to load the screens containing the given plates. */
+    final static String loadScreensOfPlates = "select this from Screen this "
+            + "left outer join fetch this.plateLinks pdl "
+            + "left outer join fetch pdl.child ds "
+            + "where ds in (:list)";
+
+    /** The number of objects whose collections are counted by one query. */
+    final static int COUNT_BATCH_SIZE = 1000;
+
     /* A model object hierarchy navigator that is convenient for getImagesBySplitFilesets.
      * To switch its API from bare Longs to an IObject-based query interface, it is easy to implement
      * HierarchyNavigatorWrap<Class<? extends IObject>, IObject> and implement noteLookups with its methods. */
@@ -200,16 +216,11 @@ public class PojosImpl extends AbstractLevel2Service implements IContainer {
                             notLinked.put(id, d);// not linked to user's project
                         }
                     }
-                    StringBuffer sb = new StringBuffer();
-                    sb.append("select this from Project this ");
-                    sb.append("left outer join fetch this.datasetLinks pdl ");
-                    sb.append("left outer join fetch pdl.child ds ");
-                    sb.append("where ds in (:list)");
                     if (notLinked.size() > 0) {
                         List<Dataset> nl = new ArrayList<Dataset>();
                         nl.addAll(notLinked.values());
                         List<IObject> projects =
-                                iQuery.findAllByQuery(sb.toString(),
+                                iQuery.findAllByQuery(loadProjectsOfDatasets,
                                 new Parameters().addList("list", nl));
                         if (projects.isEmpty()) {
                             datasets.addAll(nl);
@@ -287,16 +298,11 @@ public class PojosImpl extends AbstractLevel2Service implements IContainer {
                             notLinked.put(id, pp);// not linked to user's screen
                         }
                     }
-                    StringBuffer sb = new StringBuffer();
-                    sb.append("select this from Screen this ");
-                    sb.append("left outer join fetch this.plateLinks pdl ");
-                    sb.append("left outer join fetch pdl.child ds ");
-                    sb.append("where ds in (:list)");
                     if (notLinked.size() > 0) {
                         List<Plate> nl = new ArrayList<Plate>();
                         nl.addAll(notLinked.values());
                         List<IObject> screens =
-                                iQuery.findAllByQuery(sb.toString(),
+                                iQuery.findAllByQuery(loadScreensOfPlates,
                                 new Parameters().addList("list", nl));
                         if (screens.isEmpty()) {
                             plates.addAll(nl);
@@ -597,16 +603,15 @@ public class PojosImpl extends AbstractLevel2Service implements IContainer {
 
         Map<Long, Integer> results = new HashMap<Long, Integer>();
 
-        String query = "select size(table." + parsedProperty + ") from " + type
-                + " table where table.id = :id";
-        // FIXME: optimize by doing new list(id,size(table.property)) ... group
-        // by id
-        for (Iterator iter = ids.iterator(); iter.hasNext();) {
-            Long id = (Long) iter.next();
-            Query<List<Integer>> q = getQueryFactory().lookup(query,
-                    new Parameters().addId(id));
-            Integer count = iQuery.execute(q).get(0);
-            results.put(id, count);
+        String query = "select table.id, size(table." + parsedProperty
+                + ") from " + type + " table where table.id in (:ids)";
+        for (List<Long> batch : Iterables.partition((Iterable<Long>) ids,
+                COUNT_BATCH_SIZE)) {
+            Query<List<Object[]>> q = getQueryFactory().lookup(query,
+                    new Parameters().addIds(batch));
+            for (Object[] row : iQuery.execute(q)) {
+                results.put((Long) row[0], ((Number) row[1]).intValue());
+            }
         }
 
         return results;
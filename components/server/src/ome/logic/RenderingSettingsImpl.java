@@ -14,6 +14,9 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -59,6 +62,7 @@ import ome.model.units.Length;
 import ome.parameters.Parameters;
 import omeis.providers.re.ColorsFactory;
 import omeis.providers.re.Renderer;
+import omeis.providers.re.SharedWorkers;
 import omeis.providers.re.data.PlaneDef;
 import omeis.providers.re.metadata.StatsFactory;
 import omeis.providers.re.quantum.QuantumFactory;
@@ -97,6 +101,18 @@ public class RenderingSettingsImpl extends AbstractLevel2Service implements
  
     /** Reference to the raw pixels store. */
     private RawPixelsStore rawPixelsStore;
+
+    /**
+     * The number of images whose minimum and maximum are computed
+     * concurrently when resetting the settings of a set of images.
+     */
+    private int statsThreads = 1;
+
+    /**
+     * The maximum number of rendering settings handled and saved at once
+     * when working on a set of images. <code>0</code> for no limit.
+     */
+    private int saveBatchSize = 0;
     
     /**
      * Returns the min/max depending on the pixels type if the values
@@ -501,6 +517,31 @@ public class RenderingSettingsImpl extends AbstractLevel2Service implements
                                        boolean save, boolean computeStats,
                                        List<Family> families, 
                                        List<RenderingModel> renderingModels)
+    {
+        return resetDefaults(settings, pixels, save, computeStats, families,
+                renderingModels, null);
+    }
+
+    /**
+     * Resets the rendering settings of the passed pixels set using, if not
+     * <code>null</code>, the minimum and maximum of each channel computed
+     * beforehand.
+     *
+     * @param settings The settings to reset.
+     * @param pixels The pixels set.
+     * @param save Pass <code>true</code> to save the settings.
+     * @param computeStats Pass <code>true</code> to compute the stats.
+     * @param families The valid rendering family enumerations.
+     * @param renderingModels The valid rendering model enumerations.
+     * @param minMax The minimum and maximum by channel index or
+     *               <code>null</code>.
+     * @return See above.
+     */
+    private RenderingDef resetDefaults(RenderingDef settings, Pixels pixels,
+                                       boolean save, boolean computeStats,
+                                       List<Family> families,
+                                       List<RenderingModel> renderingModels,
+                                       Map<Integer, double[]> minMax)
     {
     	// Handle the case where we have no rendering settings so that we can
     	// reset "pretty good image" or "original" (channel minimum and
@@ -514,7 +555,7 @@ public class RenderingSettingsImpl extends AbstractLevel2Service implements
         try
         {
         	PixelBuffer buffer = null;
-        	if (computeStats)
+        	if (computeStats && minMax == null)
         	{
 	        buffer = pixelsData.getPixelBuffer(pixels, false);
         	}
@@ -522,7 +563,7 @@ public class RenderingSettingsImpl extends AbstractLevel2Service implements
             try
             {
                 resetDefaults(settings, pixels, quantumFactory,
-                        renderingModels, buffer, computeStats);
+                        renderingModels, buffer, computeStats, minMax);
             }
             finally
             {
@@ -565,10 +606,13 @@ public class RenderingSettingsImpl extends AbstractLevel2Service implements
      * @param buffer A pixel buffer which maps to the <i>planeDef</i>.
      * @param computeStats Pass <code>true</code> to compute the stats,
      * 			           <code>false</code> otherwise
+     * @param minMax The minimum and maximum by channel index computed
+     *               beforehand or <code>null</code>.
      */
     private void resetDefaults(RenderingDef def, Pixels pixels,
             QuantumFactory quantumFactory, List<RenderingModel> renderingModels,
-            PixelBuffer buffer, boolean computeStats) {
+            PixelBuffer buffer, boolean computeStats,
+            Map<Integer, double[]> minMax) {
         // The default rendering definition settings
         def.setDefaultZ(pixels.getSizeZ() / 2);
         def.setDefaultT(0);
@@ -605,15 +649,21 @@ public class RenderingSettingsImpl extends AbstractLevel2Service implements
         def.setQuantization(quantumDef);
     
         // Reset the channel bindings
-        resetChannelBindings(def, pixels, quantumFactory, buffer, computeStats);
+        resetChannelBindings(def, pixels, quantumFactory, buffer, computeStats,
+                minMax);
     }
     
     /**
      * Performs the logic specified by {@link #resetDefaultsInSet()} and
      * {@link #setOriginalSettingsInSet()}.
+     *
+     * @param computedMinMax The minimum and maximum by channel index by
+     *                       pixels set id computed beforehand or
+     *                       <code>null</code> to compute them here.
      */
     private <T extends IObject> Set<Long> resetDefaultsInSet(
-            Class<T> klass, Set<Long> nodeIds, boolean computeStats)
+            Class<T> klass, Set<Long> nodeIds, boolean computeStats,
+            Map<Long, Map<Integer, double[]>> computedMinMax)
     {
     	checkValidContainerClass(klass);
     	
@@ -634,11 +684,22 @@ public class RenderingSettingsImpl extends AbstractLevel2Service implements
         List<RenderingModel> renderingModels = 
             pixelsMetadata.getAllEnumerations(RenderingModel.class);
         
-    	List<RenderingDef> toSave = new ArrayList<RenderingDef>(pixels.size());
     	Map<Long, RenderingDef> settingsMap = loadRenderingSettings(pixels);
     	RenderingDef settings;
-    	for (Pixels p : pixels)
+    	for (List<Pixels> batch : partition(pixels))
     	{
+    	    List<RenderingDef> toSave =
+    	        new ArrayList<RenderingDef>(batch.size());
+    	    Map<Long, Map<Integer, double[]>> minMax;
+    	    if (computedMinMax != null) {
+    	        minMax = computedMinMax;
+    	    } else if (computeStats) {
+    	        minMax = computeMinMax(batch, false);
+    	    } else {
+    	        minMax = new HashMap<Long, Map<Integer, double[]>>();
+    	    }
+    	    for (Pixels p : batch)
+    	    {
     		settings = settingsMap.get(p.getId());
     		if (settings == null)
     		{
@@ -647,7 +708,7 @@ public class RenderingSettingsImpl extends AbstractLevel2Service implements
     		try {
     			RenderingDef newSettings =
     				resetDefaults(settings, p, false, computeStats,
-    						families, renderingModels);
+    						families, renderingModels, minMax.get(p.getId()));
     			if (newSettings != null) {
     				toSave.add(newSettings);
     			}
@@ -662,19 +723,158 @@ public class RenderingSettingsImpl extends AbstractLevel2Service implements
                 log.warn("Exception while resetting settings for Image:"
                          + p.getImage().getId(), e);
             }
+    	    }
+    	    save(toSave, "omero.resetDefaultsInSet.saveAndReturn");
     	}
-        StopWatch s2 = new Slf4JStopWatch(
-			"omero.resetDefaultsInSet.saveAndReturn");
-        if (toSave.size() > 0) {
-        	RenderingDef[] toSaveArray = 
-        		toSave.toArray(new RenderingDef[toSave.size()]);
-        	iUpdate.saveAndReturnArray(toSaveArray);
-        }
-        s2.stop();
         s1.stop();
     	return imageIds;
     }
     
+    /**
+     * Splits the passed pixels sets into batches of at most
+     * {@link #saveBatchSize} elements.
+     *
+     * @param pixels The pixels sets to split.
+     * @return See above.
+     */
+    private List<List<Pixels>> partition(List<Pixels> pixels)
+    {
+        List<List<Pixels>> batches = new ArrayList<List<Pixels>>();
+        int size = saveBatchSize > 0 ? saveBatchSize : pixels.size();
+        for (int i = 0; i < pixels.size(); i += size) {
+            batches.add(pixels.subList(i, Math.min(i + size, pixels.size())));
+        }
+        return batches;
+    }
+
+    /**
+     * Saves the passed objects, at most {@link #saveBatchSize} per call.
+     *
+     * @param toSave The objects to save.
+     * @param tag The tag of the stop watch timing the saves.
+     */
+    private void save(List<? extends IObject> toSave, String tag)
+    {
+        if (toSave.size() == 0) return;
+        StopWatch s1 = new Slf4JStopWatch(tag);
+        int size = saveBatchSize > 0 ? saveBatchSize : toSave.size();
+        for (int i = 0; i < toSave.size(); i += size) {
+            List<? extends IObject> batch =
+                toSave.subList(i, Math.min(i + size, toSave.size()));
+            iUpdate.saveArray(batch.toArray(new IObject[batch.size()]));
+        }
+        s1.stop();
+    }
+
+    /**
+     * Computes the minimum and maximum of the channels of the pixels sets
+     * which have no statistics, {@link #statsThreads} images at a time on
+     * the {@link SharedWorkers}. The pixel buffers are opened and closed in
+     * the current thread, which holds the Hibernate session, only the
+     * reading of the planes and the computation are done by the workers.
+     * Pyramids and images which cannot be read are left out so that
+     * {@link #computeLocationStats} handles them as before. Unless
+     * <code>all</code> is set, so are images when only one thread is
+     * configured or only one image has no statistics.
+     *
+     * @param pixels The pixels sets to handle.
+     * @param all Pass <code>true</code> to compute the minimum and maximum
+     *            even if they cannot be computed concurrently.
+     * @return The minimum and maximum by channel index by pixels set id.
+     */
+    private Map<Long, Map<Integer, double[]>> computeMinMax(
+            List<Pixels> pixels, boolean all)
+    {
+        Map<Long, Map<Integer, double[]>> result =
+            new HashMap<Long, Map<Integer, double[]>>();
+        if (!all && statsThreads < 2) return result;
+        List<Pixels> toCompute = new ArrayList<Pixels>();
+        for (Pixels p : pixels) {
+            if (p.sizeOfChannels() > 0
+                    && p.getPrimaryChannel().getStatsInfo() == null
+                    && !pixelsData.requiresPixelsPyramid(p)) {
+                toCompute.add(p);
+            }
+        }
+        if (toCompute.isEmpty() || (!all && toCompute.size() < 2)) {
+            return result;
+        }
+        int threads = Math.max(1, statsThreads);
+        StopWatch s1 = new Slf4JStopWatch("omero.computeMinMax");
+        try {
+            for (int i = 0; i < toCompute.size(); i += threads) {
+                computeMinMax(toCompute.subList(i,
+                        Math.min(i + threads, toCompute.size())), result);
+            }
+        } finally {
+            s1.stop();
+        }
+        return result;
+    }
+
+    /**
+     * Computes the minimum and maximum of the channels of the passed pixels
+     * sets concurrently.
+     *
+     * @param pixels The pixels sets to handle.
+     * @param result The map to populate.
+     */
+    private void computeMinMax(List<Pixels> pixels,
+            Map<Long, Map<Integer, double[]>> result)
+    {
+        List<Long> ids = new ArrayList<Long>(pixels.size());
+        List<PixelBuffer> buffers = new ArrayList<PixelBuffer>(pixels.size());
+        List<Future<Map<Integer, double[]>>> futures =
+            new ArrayList<Future<Map<Integer, double[]>>>(pixels.size());
+        try {
+            for (Pixels p : pixels) {
+                final PixelBuffer buffer;
+                try {
+                    buffer = pixelsData.getPixelBuffer(p, false);
+                } catch (Exception e) {
+                    log.warn("Cannot read pixels set:" + p.getId(), e);
+                    continue;
+                }
+                buffers.add(buffer);
+                ids.add(p.getId());
+                final int[] channels = new int[p.sizeOfChannels()];
+                for (int c = 0; c < channels.length; c++)
+                    channels[c] = c;
+                futures.add(SharedWorkers.submit(
+                    new Callable<Map<Integer, double[]>>() {
+                    public Map<Integer, double[]> call() throws IOException {
+                        int z = buffer.getSizeZ() > 1 ?
+                            (buffer.getSizeZ() - 1) / 2 : 0;
+                        int t = buffer.getSizeT() > 1 ?
+                            (buffer.getSizeT() - 1) / 2 : 0;
+                        return StatsFactory.computeMinMax(buffer, channels,
+                            z, t, StatsFactory.DEFAULT_MAX_SAMPLES);
+                    }
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    result.put(ids.get(i), SharedWorkers.get(futures.get(i)));
+                } catch (ExecutionException e) {
+                    log.warn("Cannot compute min/max of pixels set:"
+                            + ids.get(i), e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ResourceError("Interrupted while computing min/max.");
+        } finally {
+            SharedWorkers.cancel(futures);
+            for (PixelBuffer buffer : buffers) {
+                try {
+                    buffer.close();
+                } catch (IOException e) {
+                    log.warn("Cannot close pixel buffer.", e);
+                }
+            }
+        }
+    }
+
     /**
      * Returns the cut in value if available.
      * 
@@ -760,10 +960,13 @@ public class RenderingSettingsImpl extends AbstractLevel2Service implements
      * @param computeStats 
      * 			  Pass <code>true</code> to compute the stats,
      * 			  <code>false</code> otherwise
+     * @param minMax
+     *            the minimum and maximum by channel index computed
+     *            beforehand or <code>null</code>.
      */
     private void resetChannelBindings(RenderingDef def, Pixels pixels,
             QuantumFactory quantumFactory, PixelBuffer buffer, boolean
-            computeStats) {
+            computeStats, Map<Integer, double[]> minMax) {
         // The actual channel bindings we are returning
         List<ChannelBinding> 
         	channelBindings = def.<ChannelBinding>collectWaveRendering(null);
@@ -854,7 +1057,7 @@ public class RenderingSettingsImpl extends AbstractLevel2Service implements
         // the computation of the pixels set's location statistics.
         if (computeStats)
         	computeLocationStats(pixels, channelBindings, planeDef, buffer,
-        			quantumFactory, qDef);
+        			quantumFactory, qDef, minMax);
         else {
         	StatsInfo stats;
         	double min, max;
@@ -904,10 +1107,13 @@ public class RenderingSettingsImpl extends AbstractLevel2Service implements
      * @param buf		The buffer.
      * @param quantumFactory A populated quantum factory.
      * @param qDef		The object hosting information about how to map data.
+     * @param minMax	The minimum and maximum by channel index computed
+     *                  beforehand or <code>null</code> to compute them here.
      */
     private void computeLocationStats(Pixels pixels,
             List<ChannelBinding> cbs, PlaneDef planeDef, PixelBuffer buf,
-            QuantumFactory quantumFactory, QuantumDef qDef) {
+            QuantumFactory quantumFactory, QuantumDef qDef,
+            Map<Integer, double[]> minMax) {
         if (planeDef == null) {
             throw new NullPointerException("No plane definition.");
         }
@@ -918,7 +1124,9 @@ public class RenderingSettingsImpl extends AbstractLevel2Service implements
         
         // if there are no stats available the channel window start/end must be set to 
         // reasonable (real min/max) values (note: that only affects non-pyramid images)
-        if (stats == null) {
+        if (stats == null && minMax != null) {
+            realMinMax = minMax;
+        } else if (stats == null) {
             int[] channels = new int[pixels.sizeOfChannels()];
             for (int i = 0; i < channels.length; i++)
                 channels[i] = i;
@@ -1199,6 +1407,30 @@ public class RenderingSettingsImpl extends AbstractLevel2Service implements
         this.rawPixelsStore = rawPixelsStore;
     }
 
+    /**
+     * Sets the number of images whose minimum and maximum are computed
+     * concurrently when resetting the settings of a set of images.
+     * For use during configuration.
+     *
+     * @param statsThreads
+     *            The value to set.
+     */
+    public void setStatsThreads(int statsThreads) {
+        this.statsThreads = statsThreads;
+    }
+
+    /**
+     * Sets the maximum number of rendering settings handled and saved at
+     * once when working on a set of images, <code>0</code> for no limit.
+     * For use during configuration.
+     *
+     * @param saveBatchSize
+     *            The value to set.
+     */
+    public void setSaveBatchSize(int saveBatchSize) {
+        this.saveBatchSize = saveBatchSize;
+    }
+
     /**
      * Returns the interface this implementation is for.
      * @see AbstractLevel2Service#getServiceInterface()
@@ -1292,12 +1524,7 @@ public class RenderingSettingsImpl extends AbstractLevel2Service implements
             	toReturnTrue.add(p.getImage().getId());
             }
     	}
-        StopWatch s2 = new Slf4JStopWatch(
-			"omero.applySettingsToSet.saveAndReturn");
-        RenderingDef[] toSaveArray = 
-        	toSave.toArray(new RenderingDef[toSave.size()]);
-        iUpdate.saveAndReturnArray(toSaveArray);
-        s2.stop();
+        save(toSave, "omero.applySettingsToSet.saveAndReturn");
         s1.stop();
         
     	toReturn.put(Boolean.valueOf(true), toReturnTrue);
@@ -1485,7 +1712,43 @@ public class RenderingSettingsImpl extends AbstractLevel2Service implements
     public <T extends IObject> Set<Long> resetDefaultsInSet(Class<T> klass,
     		                                                Set<Long> nodeIds)
     {
-    	return resetDefaultsInSet(klass, nodeIds, true);
+    	return resetDefaultsInSet(klass, nodeIds, true, null);
+    }
+
+    /**
+     * As {@link #resetDefaultsInSet(Class, Set)} but using the minimum and
+     * maximum computed beforehand by {@link #computeMinMaxInSet(Set)}, e.g.
+     * in a read-only transaction, for the pixels sets which have no
+     * statistics. Those missing from the map are computed as before.
+     *
+     * @param klass The type of the nodes.
+     * @param nodeIds The ids of the nodes.
+     * @param minMax The minimum and maximum by channel index by pixels set
+     *               id.
+     * @return The ids of the images whose settings were reset.
+     */
+    public <T extends IObject> Set<Long> resetDefaultsInSet(Class<T> klass,
+            Set<Long> nodeIds, Map<Long, Map<Integer, double[]>> minMax)
+    {
+        return resetDefaultsInSet(klass, nodeIds, true, minMax);
+    }
+
+    /**
+     * Computes the minimum and maximum of the channels of the passed pixels
+     * sets which have no statistics, for
+     * {@link #resetDefaultsInSet(Class, Set, Map)}. The pixel data are only
+     * read so this may run in a read-only transaction. Pyramids and images
+     * which cannot be read are left out.
+     *
+     * @param pixelsIds The ids of the pixels sets.
+     * @return The minimum and maximum by channel index by pixels set id.
+     */
+    public Map<Long, Map<Integer, double[]>> computeMinMaxInSet(
+            Set<Long> pixelsIds)
+    {
+        List<Pixels> pixels = new ArrayList<Pixels>();
+        updatePixelsForNodes(pixels, Pixels.class, pixelsIds);
+        return computeMinMax(pixels, true);
     }
 
     /**
@@ -1508,7 +1771,7 @@ public class RenderingSettingsImpl extends AbstractLevel2Service implements
             loadRenderingSettingsByOwner(pixelsList);
         Map<Long, RenderingDef> mySettings =
             loadRenderingSettings(pixelsList);
-        Set<IObject> toSave = new HashSet<IObject>();
+        List<IObject> toSave = new ArrayList<IObject>();
        
         RenderingDef def, from, to;
         for (Pixels pixels : pixelsList)
@@ -1530,7 +1793,7 @@ public class RenderingSettingsImpl extends AbstractLevel2Service implements
                         "%s from %s to %s", pixels, from, to), e);
             }
         }
-        if (toSave.size() > 0) iUpdate.saveCollection(toSave);
+        save(toSave, "omero.resetDefaultsByOwnerInSet.saveAndReturn");
         return toReturn;
     }
 
@@ -1557,9 +1820,7 @@ public class RenderingSettingsImpl extends AbstractLevel2Service implements
         
         Map<Long, RenderingDef> mySettings =
             loadRenderingSettings(pixelsList);
-        Set<IObject> toSave = new HashSet<IObject>();
-       
-        
+        List<IObject> toSave = new ArrayList<IObject>();
 
         RenderingDef settings;
         ChannelBinding cb;
@@ -1612,7 +1873,7 @@ public class RenderingSettingsImpl extends AbstractLevel2Service implements
             // IUpdate.touch() or similar once that functionality exists.
             settings.setVersion(settings.getVersion() + 1);
         }
-        if (toSave.size() > 0) iUpdate.saveCollection(toSave);
+        save(toSave, "omero.resetMinMaxInSet.saveAndReturn");
         s1.stop();
         return toReturn;
     }
@@ -1658,6 +1919,6 @@ public class RenderingSettingsImpl extends AbstractLevel2Service implements
     public <T extends IObject> Set<Long> setOriginalSettingsInSet(
             Class<T> klass, Set<Long> nodeIds)
     {
-    	return resetDefaultsInSet(klass, nodeIds, false);
+    	return resetDefaultsInSet(klass, nodeIds, false, null);
     }
 }
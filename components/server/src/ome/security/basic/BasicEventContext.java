@@ -61,6 +61,8 @@ public class BasicEventContext extends SimpleEventContext {
 
     private List<EventLog> logs;
 
+    private Set<String> logKeys;
+
     private Event event;
 
     private Experimenter owner;
@@ -328,6 +330,18 @@ public class BasicEventContext extends SimpleEventContext {
         this.logs = logs;
     }
 
+    /**
+     * @return the action, entity type and entity ID of each of the
+     * {@link #getLogs() logs}, for not adding the same log twice
+     */
+    public Set<String> getLogKeys() {
+        return logKeys;
+    }
+
+    public void setLogKeys(Set<String> logKeys) {
+        this.logKeys = logKeys;
+    }
+
     // ~ Special logic for groups
     // =========================================================================
 
@@ -390,9 +390,18 @@ public class CurrentDetails implements PrincipalHolder {
 
         BasicEventContext c = current();
         List<EventLog> list = current().getLogs();
+        Set<String> keys = c.getLogKeys();
         if (list == null) {
             list = new ArrayList<EventLog>();
             c.setLogs(list);
+            keys = null;
+        }
+        if (keys == null) {
+            keys = new HashSet<String>();
+            c.setLogKeys(keys);
+        }
+        if (!keys.add(action + ':' + klass.getName() + ':' + id)) {
+            return; // Already logged in this transaction.
         }
 
         EventLog l = new EventLog();
@@ -417,6 +426,7 @@ public class CurrentDetails implements PrincipalHolder {
 
     public void clearLogs() {
         current().setLogs(null);
+        current().setLogKeys(null);
     }
 
     /**
@@ -12,7 +12,6 @@ import ome.api.StatefulServiceInterface;
 import ome.conditions.ApiUsageException;
 import ome.conditions.InternalException;
 import ome.conditions.SessionTimeoutException;
-import ome.model.meta.Event;
 import ome.model.meta.EventLog;
 import ome.services.messages.ContextMessage;
 import ome.services.util.ReadOnlyStatus;
@@ -62,6 +61,8 @@ public class EventHandler implements MethodInterceptor, ApplicationListener<Cont
 
     protected final boolean readOnly;
 
+    protected final EventLogWriter eventLogWriter;
+
     /**
      * only public constructor, used for dependency injection. Requires an
      * active {@link HibernateTemplate} and {@link BasicSecuritySystem}.
@@ -81,6 +82,24 @@ public class EventHandler implements MethodInterceptor, ApplicationListener<Cont
     public EventHandler(SqlAction sql,
             BasicSecuritySystem securitySystem, SessionFactory factory,
             TransactionAttributeSource txSource, ReadOnlyStatus readOnly) {
+        this(sql, securitySystem, factory, txSource, readOnly, null);
+    }
+
+    /**
+     * @param sql the SQL action
+     * @param securitySystem the security system
+     * @param factory the Hibernate session factory
+     * @param txSource the Spring transaction attribute source
+     * @param readOnly the read-only status of the server
+     * @param eventLogWriter the writer of the event logs, if {@code null} they
+     * are written within the transaction
+     */
+    public EventHandler(SqlAction sql,
+            BasicSecuritySystem securitySystem, SessionFactory factory,
+            TransactionAttributeSource txSource, ReadOnlyStatus readOnly,
+            EventLogWriter eventLogWriter) {
+        this.eventLogWriter = eventLogWriter == null ?
+                new EventLogWriter(sql) : eventLogWriter;
         this.secSys = securitySystem;
         this.txSource = txSource;
         this.factory = factory;
@@ -300,22 +319,7 @@ public class EventHandler implements MethodInterceptor, ApplicationListener<Cont
         }
 
         try {
-            long lastValue = sql.nextValue("seq_eventlog", logs.size());
-            long id = lastValue - logs.size() + 1;
-            List<Object[]> batchData = new ArrayList<Object[]>();
-            for (EventLog l : logs) {
-                Event e = l.getEvent();
-                if (e.getId() == null) {
-                    throw new RuntimeException("Transient event");
-                }
-                batchData
-                        .add(new Object[] { id++, -35L, l.getEntityId(),
-                                l.getEntityType(), l.getAction(),
-                                l.getEvent().getId() });
-            }
-
-            sql.insertLogs(batchData);
-
+            eventLogWriter.write(logs);
         } catch (Exception ex) {
             log.error("Error saving event logs: " + logs, ex);
         }
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.security.basic;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import ome.model.meta.Event;
+import ome.model.meta.EventLog;
+import ome.util.SqlAction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Writes the {@link EventLog}s collected by the {@link EventLogListener} to the
+ * database for the {@link EventHandler}. By default they are written within
+ * the current transaction. Optionally they are instead written once the
+ * transaction commits, by a single background thread that takes the logs of
+ * the committed transactions in order, so that consumers of the event log such
+ * as the {@link ome.services.eventlogs.EventLogLoader} see them in commit order.
+ * @since 5.4.10
+ */
+public class EventLogWriter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(EventLogWriter.class);
+
+    /* the permissions of every event log row */
+    private static final long PERMISSIONS = -35L;
+
+    /* the most rows to write in one transaction of the background thread */
+    private static final int MAX_ROWS_PER_WRITE = 100000;
+
+    private final SqlAction sql;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final BlockingQueue<List<Object[]>> queue;
+
+    private final Thread writer;
+
+    private volatile boolean isStopping = false;
+
+    /**
+     * Construct an event log writer that writes within the current transaction.
+     * @param sql the SQL action
+     */
+    public EventLogWriter(SqlAction sql) {
+        this(sql, null, false, 0);
+    }
+
+    /**
+     * Construct an event log writer.
+     * @param sql the SQL action
+     * @param transactionManager the transaction manager for the background thread, may be {@code null} if not asynchronous
+     * @param isAsync if the logs are to be written by a background thread once their transaction commits
+     * @param queueSize how many transactions' logs may await writing by the background thread before further commits wait
+     */
+    public EventLogWriter(SqlAction sql, PlatformTransactionManager transactionManager, boolean isAsync, int queueSize) {
+        this.sql = sql;
+        if (isAsync) {
+            transactionTemplate = new TransactionTemplate(transactionManager);
+            /* may be called after the commit of a transaction that is still bound to the thread */
+            transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+            queue = new LinkedBlockingQueue<List<Object[]>>(Math.max(1, queueSize));
+            writer = new Thread("EventLogWriter") {
+                @Override
+                public void run() {
+                    writeQueued();
+                }
+            };
+            writer.setDaemon(true);
+            writer.start();
+            LOGGER.info("Writing event logs after commit, queue size {}", queueSize);
+        } else {
+            transactionTemplate = null;
+            queue = null;
+            writer = null;
+        }
+    }
+
+    /**
+     * Write the given event logs, either now or once the current transaction commits.
+     * @param logs the event logs to write
+     */
+    public void write(List<EventLog> logs) {
+        final List<Object[]> rows = new ArrayList<Object[]>(logs.size());
+        for (final EventLog log : logs) {
+            final Event event = log.getEvent();
+            if (event.getId() == null) {
+                throw new RuntimeException("Transient event");
+            }
+            rows.add(new Object[] {log.getEntityId(), log.getEntityType(), log.getAction(), event.getId()});
+        }
+        if (queue == null) {
+            insert(rows);
+        } else if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    enqueue(rows);
+                }
+            });
+        } else {
+            enqueue(rows);
+        }
+    }
+
+    /**
+     * Assign IDs to the given rows and insert them into the event log.
+     * @param rows the entity ID, entity type, action and event ID of each row
+     */
+    private void insert(List<Object[]> rows) {
+        final long lastValue = sql.nextValue("seq_eventlog", rows.size());
+        long id = lastValue - rows.size() + 1;
+        final List<Object[]> batchData = new ArrayList<Object[]>(rows.size());
+        for (final Object[] row : rows) {
+            batchData.add(new Object[] {id++, PERMISSIONS, row[0], row[1], row[2], row[3]});
+        }
+        sql.insertLogs(batchData);
+    }
+
+    /**
+     * Insert the given rows in a new transaction.
+     * @param rows the rows to insert
+     */
+    private void insertInTransaction(final List<Object[]> rows) {
+        transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                insert(rows);
+            }
+        });
+    }
+
+    /**
+     * Insert the given rows in a new transaction, logging rather than throwing any failure.
+     * @param rows the rows to insert
+     */
+    private void insertOrLog(List<Object[]> rows) {
+        try {
+            insertInTransaction(rows);
+        } catch (Exception e) {
+            LOGGER.error("Error saving {} event logs", rows.size(), e);
+        }
+    }
+
+    /**
+     * Queue the given rows for the background thread, waiting for room in the queue.
+     * The rows are never written by the calling thread while the background thread runs, even if interrupted,
+     * so that they are not written before rows queued earlier. Once the background thread has stopped, the rows
+     * left in the queue then the given rows are instead written directly.
+     * @param rows the rows to write
+     */
+    private void enqueue(List<Object[]> rows) {
+        boolean isInterrupted = false;
+        boolean isQueued = false;
+        try {
+            while (!isQueued && writer.isAlive()) {
+                try {
+                    isQueued = queue.offer(rows, 1, TimeUnit.SECONDS);
+                } catch (InterruptedException ie) {
+                    /* the rows must still be queued behind the earlier ones */
+                    isInterrupted = true;
+                }
+            }
+        } finally {
+            if (isInterrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (!writer.isAlive()) {
+            /* the background thread may have stopped before taking these rows */
+            writeRemaining(isQueued ? null : rows);
+        }
+    }
+
+    /**
+     * Once the background thread has stopped, write the rows left in the queue in order, then the given rows.
+     * @param rows the rows to write after the queued rows, may be {@code null}
+     */
+    private void writeRemaining(List<Object[]> rows) {
+        synchronized (queue) {
+            List<Object[]> queued;
+            while ((queued = queue.poll()) != null) {
+                insertOrLog(queued);
+            }
+            if (rows != null) {
+                insertOrLog(rows);
+            }
+        }
+    }
+
+    /**
+     * The loop of the background thread: write the queued rows, combining those of
+     * consecutive transactions, until stopping and the queue is empty.
+     */
+    private void writeQueued() {
+        final List<List<Object[]>> batches = new ArrayList<List<Object[]>>();
+        while (!(isStopping && queue.isEmpty())) {
+            try {
+                final List<Object[]> first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batches.add(first);
+                int rowCount = first.size();
+                List<Object[]> next;
+                while (rowCount < MAX_ROWS_PER_WRITE && (next = queue.poll()) != null) {
+                    batches.add(next);
+                    rowCount += next.size();
+                }
+                final List<Object[]> rows = new ArrayList<Object[]>(rowCount);
+                for (final List<Object[]> batch : batches) {
+                    rows.addAll(batch);
+                }
+                batches.clear();
+                insertOrLog(rows);
+            } catch (InterruptedException ie) {
+                /* check if stopping */
+            }
+        }
+    }
+
+    /**
+     * Write any queued logs then stop the background thread.
+     */
+    public void destroy() {
+        if (writer == null) {
+            return;
+        }
+        isStopping = true;
+        try {
+            writer.join(TimeUnit.MINUTES.toMillis(1));
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        if (writer.isAlive()) {
+            LOGGER.warn("Event log writer did not finish, {} transactions' logs unsaved", queue.size());
+        } else {
+            /* rows queued after the background thread last looked */
+            writeRemaining(null);
+        }
+    }
+}
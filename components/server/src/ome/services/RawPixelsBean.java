@@ -13,6 +13,8 @@ import java.io.IOException;
 import java.nio.BufferOverflowException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -34,6 +36,7 @@ import ome.io.nio.RomioPixelBuffer;
 import ome.model.core.Channel;
 import ome.model.core.Pixels;
 import ome.parameters.Parameters;
+import ome.services.projection.ProjectedStackCache;
 import ome.util.PixelData;
 import ome.util.ShallowCopy;
 import ome.util.SqlAction;
@@ -98,6 +101,9 @@ public class RawPixelsBean extends AbstractStatefulBean implements
     /** The server's OMERO data directory. */
     private transient String omeroDataDir;
 
+    /** Projected stacks to invalidate when the pixel data is modified. */
+    private transient ProjectedStackCache projectedStackCache;
+
     /**
      * default constructor
      */
@@ -149,6 +155,17 @@ public class RawPixelsBean extends AbstractStatefulBean implements
         this.sql = sql;
     }
 
+    /**
+     * Projected stack cache Bean injector
+     * @param projectedStackCache a <code>ProjectedStackCache</code>
+     */
+    public synchronized final void setProjectedStackCache(
+            ProjectedStackCache projectedStackCache) {
+        getBeanHelper().throwIfAlreadySet(this.projectedStackCache,
+                projectedStackCache);
+        this.projectedStackCache = projectedStackCache;
+    }
+
     // ~ Lifecycle methods
     // =========================================================================
 
@@ -198,6 +215,10 @@ public class RawPixelsBean extends AbstractStatefulBean implements
 
             iUpdate.flush();
             modified = false;
+            if (projectedStackCache != null) {
+                projectedStackCache.invalidate(id);
+            }
+            dataService.invalidatePixelBuffers(Collections.singleton(id));
             return new ShallowCopy().copy(pixelsInstance);
         }
         return null;
@@ -753,16 +774,18 @@ public class RawPixelsBean extends AbstractStatefulBean implements
             return result;
 
         try {
+            List<Integer> valid = new ArrayList<Integer>(channels.length);
             for (int ch : channels) {
-                Channel channel = pixelsInstance.getChannel(ch);
-                if (channel == null)
-                    continue;
-                int z = buffer.getSizeZ() > 1 ? (buffer.getSizeZ() - 1) / 2 : 0;
-                int t = buffer.getSizeT() > 1 ? (buffer.getSizeT() - 1) / 2 : 0;
-                PixelData px = buffer.getPlane(z, ch, t);
-                double[] minmax = determineHistogramMinMax(px, channel, false);
-                result.put(ch, minmax);
+                if (pixelsInstance.getChannel(ch) != null)
+                    valid.add(ch);
             }
+            int[] toCompute = new int[valid.size()];
+            for (int i = 0; i < toCompute.length; i++)
+                toCompute[i] = valid.get(i);
+            int z = buffer.getSizeZ() > 1 ? (buffer.getSizeZ() - 1) / 2 : 0;
+            int t = buffer.getSizeT() > 1 ? (buffer.getSizeT() - 1) / 2 : 0;
+            result.putAll(StatsFactory.computeMinMax(buffer, toCompute, z, t,
+                    StatsFactory.DEFAULT_MAX_SAMPLES));
         } catch (IOException e) {
             handleException(e);
         }
@@ -802,13 +825,9 @@ public class RawPixelsBean extends AbstractStatefulBean implements
         StatsFactory sf = new StatsFactory();
         double[] pixelMinMax = sf.initPixelsRange(channel.getPixels());
 
-        min = pixelMinMax[1];
-        max = pixelMinMax[0];
-
-        for (int i = 0; i < px.size(); i++) {
-            min = Math.min(min, px.getPixelValue(i));
-            max = Math.max(max, px.getPixelValue(i));
-        }
+        double[] planeMinMax = StatsFactory.minMax(px, 1);
+        min = Math.min(pixelMinMax[1], planeMinMax[0]);
+        max = Math.max(pixelMinMax[0], planeMinMax[1]);
 
         return new double[] { min, max };
     }
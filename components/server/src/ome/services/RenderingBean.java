@@ -10,11 +10,18 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import ome.annotations.RolesAllowed;
@@ -42,8 +49,11 @@ import ome.model.enums.RenderingModel;
 import ome.model.roi.Mask;
 import ome.parameters.Parameters;
 import ome.security.SecuritySystem;
+import ome.security.basic.CurrentDetails;
+import ome.services.projection.ProjectedStackCache;
 import ome.services.util.Executor;
 import ome.system.EventContext;
+import ome.system.Principal;
 import ome.system.ServiceFactory;
 import ome.system.SimpleEventContext;
 import ome.util.ImageUtil;
@@ -51,6 +61,7 @@ import ome.util.ShallowCopy;
 import omeis.providers.re.RGBBuffer;
 import omeis.providers.re.Renderer;
 import omeis.providers.re.RenderingEngine;
+import omeis.providers.re.SharedWorkers;
 import omeis.providers.re.codomain.CodomainChain;
 import omeis.providers.re.codomain.CodomainMapContext;
 import omeis.providers.re.codomain.ReverseIntensityContext;
@@ -161,6 +172,26 @@ public class RenderingBean implements RenderingEngine, Serializable {
     /** The resolution level to be used by the pixel buffer. */
     private Integer resolutionLevel;
 
+    /**
+     * The maximum number of planes rendered concurrently, each reading from
+     * its own pixel buffer.
+     */
+    private int renderThreads = 1;
+
+    /**
+     * The read-only pixel buffers opened for rendering and not currently in
+     * use. Also guards {@link #openBuffers}. Emptied when the renderer is
+     * closed so never serialized with any content.
+     */
+    private final List<PixelBuffer> idleBuffers = new ArrayList<PixelBuffer>();
+
+    /** The number of pixel buffers opened for rendering. */
+    private int openBuffers = 0;
+
+    /** Reference to the cache of projected stacks. */
+    private transient ProjectedStackCache projectedStackCache =
+            new ProjectedStackCache();
+
     /**
      * True when an explicit rendering def ID was passed into the
      * server. In this case, a call to {@link #saveCurrentSettings()}
@@ -192,6 +223,27 @@ public class RenderingBean implements RenderingEngine, Serializable {
         this.lutProvider = lutProvider;
     }
 
+    /**
+     * Sets the cache of the projected stacks rendered by
+     * {@link #renderProjectedAsPackedInt(int, int, int, int, int)}.
+     *
+     * @param projectedStackCache The cache, shared by all rendering engines.
+     */
+    public void setProjectedStackCache(
+            ProjectedStackCache projectedStackCache) {
+        this.projectedStackCache = projectedStackCache;
+    }
+
+    /**
+     * Sets the maximum number of planes that this rendering engine renders
+     * concurrently, each reading from its own pixel buffer.
+     *
+     * @param renderThreads The number of planes, at least 1.
+     */
+    public void setRenderThreads(int renderThreads) {
+        this.renderThreads = Math.max(1, renderThreads);
+    }
+
     @RolesAllowed("user")
     public long getRenderingDefId() {
         if (rendDefObj == null || rendDefObj.getId() == null) {
@@ -417,6 +469,9 @@ public class RenderingBean implements RenderingEngine, Serializable {
             PixelBuffer buffer = getPixelBuffer();
             renderer = new Renderer(quantumFactory, renderingModels, pixelsObj,
                     rendDefObj, buffer, lutProvider);
+            if (resolutionLevel != null) {
+                renderer.setResolutionLevel(resolutionLevel);
+            }
         } finally {
             rwl.writeLock().unlock();
         }
@@ -432,7 +487,13 @@ public class RenderingBean implements RenderingEngine, Serializable {
     @RolesAllowed("user")
     public void setOverlays(Map<byte[], Integer> overlays)
     {
-    	renderer.setOverlays(overlays);
+        rwl.writeLock().lock();
+
+        try {
+            renderer.setOverlays(overlays);
+        } finally {
+            rwl.writeLock().unlock();
+        }
     }
 
     /**
@@ -469,15 +530,14 @@ public class RenderingBean implements RenderingEngine, Serializable {
      */
     @RolesAllowed("user")
     public RGBBuffer render(PlaneDef pd) {
-        rwl.readLock().lock();
+        readLockForRendering();
 
+        PixelBuffer buffer = null;
         try {
-            final Map<byte[], Integer> overlays = getMasks(pd);
-            if (overlays.size() > 0) {
-                renderer.setOverlays(overlays);
-            }
             errorIfInvalidState();
-            return renderer.render(pd);
+            final Map<byte[], Integer> overlays = getMasks(pd);
+            buffer = borrowBuffer(true);
+            return newRenderer(buffer, overlays).render(pd);
         } catch (IOException e) {
             log.error("IO error while rendering.", e);
             throw new ResourceError(e.getMessage());
@@ -485,6 +545,7 @@ public class RenderingBean implements RenderingEngine, Serializable {
             log.error("Quantization exception while rendering.", e);
             throw new InternalException(e.getMessage());
         } finally {
+            returnBuffer(buffer);
             rwl.readLock().unlock();
         }
     }
@@ -496,20 +557,15 @@ public class RenderingBean implements RenderingEngine, Serializable {
      */
     @RolesAllowed("user")
     public int[] renderAsPackedInt(PlaneDef pd) {
-        rwl.writeLock().lock();
+        readLockForRendering();
 
+        PixelBuffer buffer = null;
         try {
-            final Map<byte[], Integer> overlays = getMasks(pd);
-            if (overlays.size() > 0) {
-                renderer.setOverlays(overlays);
-            }
             errorIfInvalidState();
+            final Map<byte[], Integer> overlays = getMasks(pd);
             checkPlaneDef(pd);
-            if (resolutionLevel != null)
-            {
-                renderer.setResolutionLevel(resolutionLevel);
-            }
-            return renderer.renderAsPackedInt(pd, null);
+            buffer = borrowBuffer(true);
+            return newRenderer(buffer, overlays).renderAsPackedInt(pd, null);
         } catch (IOException e) {
             log.error("IO error while rendering.", e);
             throw new ResourceError(e.getMessage());
@@ -517,7 +573,8 @@ public class RenderingBean implements RenderingEngine, Serializable {
             log.error("Quantization exception while rendering.", e);
             throw new InternalException(e.getMessage());
         } finally {
-            rwl.writeLock().unlock();
+            returnBuffer(buffer);
+            rwl.readLock().unlock();
         }
     }
 
@@ -528,45 +585,112 @@ public class RenderingBean implements RenderingEngine, Serializable {
      */
     @RolesAllowed("user")
     public byte[] renderCompressed(PlaneDef pd) {
-        rwl.writeLock().lock();
+        readLockForRendering();
 
-        ByteArrayOutputStream byteStream = null;
+        PixelBuffer buffer = null;
         try {
+            errorIfInvalidState();
             final Map<byte[], Integer> overlays = getMasks(pd);
-            if (overlays.size() > 0) {
-                renderer.setOverlays(overlays);
-            }
-            int stride = pd.getStride();
-            if (stride < 0) stride = 0;
-            stride++;
-            int[] buf = renderAsPackedInt(pd);
-            int sizeX = pixelsObj.getSizeX();
-            int sizeY = pixelsObj.getSizeY();
-            RegionDef region = pd.getRegion();
-            if (region != null) {
-                sizeX = region.getWidth();
-                sizeY = region.getHeight();
-            }
-            sizeX = sizeX/stride;
-            sizeY = sizeY/stride;
-            BufferedImage image = ImageUtil.createBufferedImage(buf, sizeX,
-                    sizeY);
-            byteStream = new ByteArrayOutputStream();
-            compressionSrv.compressToStream(image, byteStream);
-            return byteStream.toByteArray();
+            checkPlaneDef(pd);
+            buffer = borrowBuffer(true);
+            return compress(pd,
+                    newRenderer(buffer, overlays).renderAsPackedInt(pd, null));
         } catch (IOException e) {
-            log.error("Could not compress rendered image.", e);
+            log.error("IO error while rendering.", e);
             throw new ResourceError(e.getMessage());
+        } catch (QuantizationException e) {
+            log.error("Quantization exception while rendering.", e);
+            throw new InternalException(e.getMessage());
         } finally {
-            rwl.writeLock().unlock();
-            try {
-                if (byteStream != null) {
-                    byteStream.close();
+            returnBuffer(buffer);
+            rwl.readLock().unlock();
+        }
+    }
+
+    /**
+     * Implemented as specified by the {@link RenderingEngine} interface.
+     * 
+     * @see RenderingEngine#renderTiles(List)
+     */
+    @RolesAllowed("user")
+    public List<byte[]> renderTiles(final List<PlaneDef> pds) {
+        if (pds == null) {
+            throw new ValidationException("No plane definitions.");
+        }
+        readLockForRendering();
+
+        final List<PixelBuffer> buffers = new ArrayList<PixelBuffer>();
+        final List<Future<Object>> futures = new ArrayList<Future<Object>>();
+        try {
+            errorIfInvalidState();
+            // Database access must happen in this thread.
+            final List<Map<byte[], Integer>> overlays =
+                    new ArrayList<Map<byte[], Integer>>(pds.size());
+            for (final PlaneDef pd : pds) {
+                overlays.add(getMasks(pd));
+                checkPlaneDef(pd);
+            }
+            if (pds.isEmpty()) {
+                return new ArrayList<byte[]>();
+            }
+            buffers.add(borrowBuffer(true));
+            while (buffers.size() < Math.min(renderThreads, pds.size())) {
+                final PixelBuffer buffer = borrowBuffer(false);
+                if (buffer == null) {
+                    break;
+                }
+                buffers.add(buffer);
+            }
+
+            // Render each group of tiles with its own buffer on the shared
+            // workers, the current thread rendering any group not started.
+            final byte[][] tiles = new byte[pds.size()][];
+            final int n = buffers.size();
+            for (int i = 0; i < n; i++) {
+                final int first = i;
+                final Renderer tileRenderer = newRenderer(buffers.get(i), null);
+                futures.add(SharedWorkers.submit(new Callable<Object>() {
+                    public Object call() throws IOException,
+                            QuantizationException {
+                        for (int j = first; j < tiles.length; j += n) {
+                            final PlaneDef pd = pds.get(j);
+                            tileRenderer.setOverlays(
+                                    overlaysOrDefault(overlays.get(j)));
+                            tiles[j] = compress(pd,
+                                    tileRenderer.renderAsPackedInt(pd, null));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (final Future<Object> future : futures) {
+                try {
+                    SharedWorkers.get(future);
+                } catch (ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        log.error("IO error while rendering.", cause);
+                        throw new ResourceError(cause.getMessage());
+                    } else if (cause instanceof QuantizationException) {
+                        log.error("Quantization exception while rendering.",
+                                cause);
+                        throw new InternalException(cause.getMessage());
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    throw new InternalException(String.valueOf(cause));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InternalException("Interrupted while rendering.");
                 }
-            } catch (IOException e) {
-                log.error("Could not close byte stream.", e);
-                throw new ResourceError(e.getMessage());
             }
+            return Arrays.asList(tiles);
+        } finally {
+            SharedWorkers.cancel(futures);
+            for (final PixelBuffer buffer : buffers) {
+                returnBuffer(buffer);
+            }
+            rwl.readLock().unlock();
         }
     }
 
@@ -578,40 +702,12 @@ public class RenderingBean implements RenderingEngine, Serializable {
     @RolesAllowed("user")
     public int[] renderProjectedAsPackedInt(int algorithm, int timepoint,
             int stepping, int start, int end) {
-        rwl.writeLock().lock();
+        readLockForRendering();
 
         try {
             errorIfInvalidState();
-            if (resolutionLevel != null)
-            {
-                renderer.setResolutionLevel(resolutionLevel);
-            }
-            ChannelBinding[] channelBindings = renderer.getChannelBindings();
-            byte[][][][] planes = new byte[1][pixelsObj.getSizeC()][1][];
-            long pixelsId = pixelsObj.getId();
-            int projectedSizeC = 0;
-            for (int i = 0; i < channelBindings.length; i++) {
-                if (channelBindings[i].getActive()) {
-                    planes[0][i][0] = projectStack(algorithm, timepoint,
-                            stepping, start, end, pixelsId, i);
-                    projectedSizeC += 1;
-                }
-            }
-            if (projectedSizeC == 0) {
-                projectedSizeC = 1;
-            }
-            Pixels projectedPixels = new Pixels();
-            projectedPixels.setSizeX(pixelsObj.getSizeX());
-            projectedPixels.setSizeY(pixelsObj.getSizeY());
-            projectedPixels.setSizeZ(1);
-            projectedPixels.setSizeT(1);
-            projectedPixels.setSizeC(projectedSizeC);
-            projectedPixels.setPixelsType(pixelsObj.getPixelsType());
-            PixelBuffer projectedPlanes = new InMemoryPlanarPixelBuffer(
-                    projectedPixels, planes);
-            PlaneDef pd = new PlaneDef(PlaneDef.XY, 0);
-            pd.setZ(0);
-            return renderer.renderAsPackedInt(pd, projectedPlanes);
+            return internalRenderProjected(algorithm, timepoint, stepping,
+                    start, end);
         } catch (IOException e) {
             log.error("IO error while rendering.", e);
             throw new ResourceError(e.getMessage());
@@ -619,7 +715,7 @@ public class RenderingBean implements RenderingEngine, Serializable {
             log.error("Quantization exception while rendering.", e);
             throw new InternalException(e.getMessage());
         } finally {
-            rwl.writeLock().unlock();
+            rwl.readLock().unlock();
         }
     }
 
@@ -631,36 +727,228 @@ public class RenderingBean implements RenderingEngine, Serializable {
     @RolesAllowed("user")
     public byte[] renderProjectedCompressed(int algorithm, int timepoint,
             int stepping, int start, int end) {
-        rwl.writeLock().lock();
+        readLockForRendering();
 
-        ByteArrayOutputStream byteStream = null;
         try {
-            if (resolutionLevel != null)
-            {
-                renderer.setResolutionLevel(resolutionLevel);
-            }
-            int[] buf = renderProjectedAsPackedInt(algorithm, timepoint,
+            errorIfInvalidState();
+            int[] buf = internalRenderProjected(algorithm, timepoint,
                     stepping, start, end);
-            int sizeX = pixelsObj.getSizeX();
-            int sizeY = pixelsObj.getSizeY();
-            BufferedImage image = ImageUtil.createBufferedImage(buf, sizeX,
-                    sizeY);
-            byteStream = new ByteArrayOutputStream();
-            compressionSrv.compressToStream(image, byteStream);
-            return byteStream.toByteArray();
+            return compress(new PlaneDef(PlaneDef.XY, 0), buf);
         } catch (IOException e) {
-            log.error("Could not compress rendered image.", e);
+            log.error("IO error while rendering.", e);
             throw new ResourceError(e.getMessage());
+        } catch (QuantizationException e) {
+            log.error("Quantization exception while rendering.", e);
+            throw new InternalException(e.getMessage());
         } finally {
-            rwl.writeLock().unlock();
+            rwl.readLock().unlock();
+        }
+    }
+
+    /**
+     * Projects the active channels, reusing the cached projections, and
+     * renders the projection. Must be called with the read lock held.
+     */
+    private int[] internalRenderProjected(int algorithm, int timepoint,
+            int stepping, int start, int end)
+            throws IOException, QuantizationException {
+        ChannelBinding[] channelBindings = renderer.getChannelBindings();
+        byte[][][][] planes = new byte[1][pixelsObj.getSizeC()][1][];
+        long pixelsId = pixelsObj.getId();
+        List<ProjectedStackCache.Key> missing =
+                new ArrayList<ProjectedStackCache.Key>();
+        int projectedSizeC = 0;
+        for (int i = 0; i < channelBindings.length; i++) {
+            if (channelBindings[i].getActive()) {
+                ProjectedStackCache.Key key = new ProjectedStackCache.Key(
+                        pixelsId, algorithm, timepoint, stepping, start, end, i);
+                planes[0][i][0] = projectedStackCache.get(key);
+                if (planes[0][i][0] == null) {
+                    missing.add(key);
+                }
+                projectedSizeC += 1;
+            }
+        }
+        projectStacks(missing, planes[0]);
+        for (ProjectedStackCache.Key key : missing) {
+            projectedStackCache.put(key, planes[0][key.channel][0]);
+        }
+        if (projectedSizeC == 0) {
+            projectedSizeC = 1;
+        }
+        Pixels projectedPixels = new Pixels();
+        projectedPixels.setSizeX(pixelsObj.getSizeX());
+        projectedPixels.setSizeY(pixelsObj.getSizeY());
+        projectedPixels.setSizeZ(1);
+        projectedPixels.setSizeT(1);
+        projectedPixels.setSizeC(projectedSizeC);
+        projectedPixels.setPixelsType(pixelsObj.getPixelsType());
+        PixelBuffer projectedPlanes = new InMemoryPlanarPixelBuffer(
+                projectedPixels, planes);
+        PlaneDef pd = new PlaneDef(PlaneDef.XY, 0);
+        pd.setZ(0);
+        return renderer.newRenderer(projectedPlanes, renderer.getOverlays())
+                .renderAsPackedInt(pd, null);
+    }
+
+    // ~ Concurrent rendering
+    // =========================================================================
+
+    /**
+     * Acquires the read lock for rendering. Renders only read the settings
+     * so may run concurrently; reloading a passivated renderer needs the
+     * write lock, which is then downgraded.
+     */
+    private void readLockForRendering() {
+        rwl.readLock().lock();
+        if (renderer == null && wasPassivated) {
+            rwl.readLock().unlock();
+            rwl.writeLock().lock();
             try {
-                if (byteStream != null) {
-                    byteStream.close();
+                errorIfNullRenderer();
+                rwl.readLock().lock();
+            } finally {
+                rwl.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Returns a renderer for the current settings reading from the given
+     * buffer at the current resolution level. Must be called with the read
+     * lock held.
+     *
+     * @param buffer The buffer to read from.
+     * @param overlays The masks to render, may be empty.
+     * @return See above.
+     */
+    private Renderer newRenderer(PixelBuffer buffer,
+            Map<byte[], Integer> overlays) {
+        if (resolutionLevel != null) {
+            buffer.setResolutionLevel(resolutionLevel);
+        }
+        return renderer.newRenderer(buffer, overlaysOrDefault(overlays));
+    }
+
+    /**
+     * Returns the given masks if any, otherwise those set with the deprecated
+     * {@link #setOverlays(Map)}.
+     */
+    private Map<byte[], Integer> overlaysOrDefault(
+            Map<byte[], Integer> overlays) {
+        if (overlays != null && overlays.size() > 0) {
+            return overlays;
+        }
+        return renderer.getOverlays();
+    }
+
+    /**
+     * Takes a read-only pixel buffer for a single render, opening a new one
+     * if none is idle and fewer than {@link #renderThreads} are open. Must be
+     * called with the read lock held, from a thread which may access the
+     * database.
+     *
+     * @param wait If no buffer may be opened, whether to wait for one to be
+     *             returned or to return <code>null</code>.
+     * @return See above.
+     */
+    private PixelBuffer borrowBuffer(boolean wait) {
+        synchronized (idleBuffers) {
+            while (idleBuffers.isEmpty() && openBuffers >= renderThreads) {
+                if (!wait) {
+                    return null;
+                }
+                try {
+                    idleBuffers.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InternalException(
+                            "Interrupted while waiting for a pixel buffer.");
+                }
+            }
+            if (!idleBuffers.isEmpty()) {
+                return idleBuffers.remove(idleBuffers.size() - 1);
+            }
+            openBuffers++;
+        }
+        boolean opened = false;
+        try {
+            final PixelBuffer buffer = getPixelBuffer();
+            opened = true;
+            return buffer;
+        } finally {
+            if (!opened) {
+                synchronized (idleBuffers) {
+                    openBuffers--;
+                    idleBuffers.notify();
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes a buffer taken with {@link #borrowBuffer(boolean)} available to
+     * other renders.
+     *
+     * @param buffer The buffer, may be <code>null</code>.
+     */
+    private void returnBuffer(PixelBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        synchronized (idleBuffers) {
+            idleBuffers.add(buffer);
+            idleBuffers.notify();
+        }
+    }
+
+    /**
+     * Closes the buffers opened for rendering. Must be called with the write
+     * lock held so that none are in use.
+     */
+    private void closeBuffers() {
+        synchronized (idleBuffers) {
+            for (final PixelBuffer buffer : idleBuffers) {
+                try {
+                    buffer.close();
+                } catch (IOException e) {
+                    log.warn("Pixel buffer did not close successfully.", e);
                 }
-            } catch (IOException e) {
-                log.error("Could not close byte stream.", e);
-                throw new ResourceError(e.getMessage());
             }
+            idleBuffers.clear();
+            openBuffers = 0;
+        }
+    }
+
+    /**
+     * Compresses the image rendered for the given plane definition.
+     *
+     * @param pd The plane definition.
+     * @param buf The packed-integer rendered image.
+     * @return A compressed JPEG.
+     * @throws IOException If the image could not be compressed.
+     */
+    private byte[] compress(PlaneDef pd, int[] buf) throws IOException {
+        int stride = pd.getStride();
+        if (stride < 0) stride = 0;
+        stride++;
+        int sizeX = pixelsObj.getSizeX();
+        int sizeY = pixelsObj.getSizeY();
+        RegionDef region = pd.getRegion();
+        if (region != null) {
+            sizeX = region.getWidth();
+            sizeY = region.getHeight();
+        }
+        sizeX = sizeX/stride;
+        sizeY = sizeY/stride;
+        BufferedImage image = ImageUtil.createBufferedImage(buf, sizeX,
+                sizeY);
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        try {
+            compressionSrv.compressToStream(image, byteStream);
+            return byteStream.toByteArray();
+        } finally {
+            byteStream.close();
         }
     }
 
@@ -1208,13 +1496,13 @@ public class RenderingBean implements RenderingEngine, Serializable {
     public void setChannelLookupTable(int w, String lookup) {
         StopWatch t0 = new Slf4JStopWatch(
                 "omero.rendering_bean.setChannelLookupTable");
-        rwl.readLock().lock();
+        rwl.writeLock().lock();
 
         try {
             errorIfNullRenderingDef();
             renderer.setChannelLookupTable(w, lookup);
         } finally {
-            rwl.readLock().unlock();
+            rwl.writeLock().unlock();
             t0.stop();
         }
     }
@@ -1884,6 +2172,7 @@ public class RenderingBean implements RenderingEngine, Serializable {
      * included pixel buffer.
      */
     private void closeRenderer() {
+        closeBuffers();
         if (renderer != null) {
             renderer.close();
         }
@@ -2143,28 +2432,98 @@ public class RenderingBean implements RenderingEngine, Serializable {
     
     /**
      * Projects a given stack.
-     * 
-     * @param algorithm The projection algorithm.
-     * @param timepoint The selected time point.
-     * @param stepping  The step between z-section to project.
-     * @param start     The lower z-section to project.
-     * @param end       The upper z-section to project.
-     * @param pixelsId  The identifier of the pixels set.
-     * @param i         The channel.
-     * @return See above.
-     */
-    private byte[] projectStack(final int algorithm, final int timepoint, 
-            final int stepping, final int start, final int end, 
-            final long pixelsId, final int i) {
-        return (byte[]) ex.execute(/* ex */null/* principal */, 
+     *
+     * @param callContext The call context if the principal is given.
+     * @param p The principal to log in as, <code>null</code> to use the
+     *          current one.
+     * @param key Identifies the projected stack.
+     * @return The projected plane.
+     */
+    private byte[] projectStack(Map<String, String> callContext, Principal p,
+            final ProjectedStackCache.Key key) {
+        return (byte[]) ex.execute(callContext, p,
         		new Executor.SimpleWork(this,"projectStack") {
             @Transactional(readOnly = true)
             public Object doWork(Session session, ServiceFactory sf) {
                 return sf.getProjectionService()
-                .projectStack(pixelsId, null, algorithm, timepoint,
-                        i, stepping, start, end);
+                .projectStack(key.pixelsId, null, key.algorithm,
+                        key.timepoint, key.channel, key.stepping, key.start,
+                        key.end);
             }});
     }
+
+    /**
+     * Projects the given stacks, in parallel on up to {@link #renderThreads}
+     * threads of the executor, each logged in to the current session.
+     *
+     * @param keys Identifies the projected stacks.
+     * @param planes Receives each projected plane at
+     *               <code>[channel][0]</code>.
+     */
+    private void projectStacks(final List<ProjectedStackCache.Key> keys,
+            final byte[][][] planes) {
+        final int n = Math.min(renderThreads, keys.size());
+        if (n < 2) {
+            for (final ProjectedStackCache.Key key : keys) {
+                planes[key.channel][0] = projectStack(null, null, key);
+            }
+            return;
+        }
+        final Principal p = new Principal(
+                secSys.getEventContext().getCurrentSessionUuid());
+        final Map<String, String> callContext = new HashMap<String, String>();
+        final Map<String, String> current =
+                ex.getContext().getBean(CurrentDetails.class).getContext();
+        if (current != null) {
+            callContext.putAll(current);
+        }
+        // N-1 groups of stacks async and one in the current thread.
+        final AtomicBoolean stopped = new AtomicBoolean(false);
+        final List<Future<Object>> futures = new ArrayList<Future<Object>>();
+        boolean done = false;
+        try {
+            for (int i = 1; i < n; i++) {
+                final int first = i;
+                futures.add(ex.submit(new Callable<Object>() {
+                    public Object call() {
+                        for (int j = first; j < keys.size() && !stopped.get();
+                                j += n) {
+                            final ProjectedStackCache.Key key = keys.get(j);
+                            planes[key.channel][0] =
+                                    projectStack(callContext, p, key);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (int j = 0; j < keys.size(); j += n) {
+                final ProjectedStackCache.Key key = keys.get(j);
+                planes[key.channel][0] = projectStack(null, null, key);
+            }
+            for (final Future<Object> future : futures) {
+                ex.get(future);
+            }
+            done = true;
+        } finally {
+            if (!done) {
+                // Stop the other groups after their current stack and wait
+                // for them so that none still works for this failed call.
+                stopped.set(true);
+                for (final Future<Object> future : futures) {
+                    try {
+                        future.get();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    } catch (ExecutionException e) {
+                        // The first failure is already being thrown.
+                    } catch (CancellationException e) {
+                        // Likewise.
+                    }
+                }
+            }
+        }
+    }
     
     /**
      * Creates new rendering settings for the passed pixels set.
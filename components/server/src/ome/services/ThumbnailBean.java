@@ -8,7 +8,6 @@ package ome.services;
 import java.awt.Dimension;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.Serializable;
@@ -485,13 +484,16 @@ public class ThumbnailBean extends AbstractLevel2Service
             iRepositoryInfo.sanityCheckRepository();
         }
 
-        try (FileOutputStream stream = ioService.getThumbnailOutputStream(metadata)) {
+        // Compressed in memory so that the thumbnail service can store the
+        // result in a single write, e.g. when thumbnails are packed
+        try (ByteArrayOutputStream stream = new ByteArrayOutputStream()) {
             if (inProgress) {
                 compressInProgressImageToStream(metadata.getSizeX(), metadata.getSizeY(),
                         stream, inProgressImageResource);
             } else {
                 compressionService.compressToStream(image, stream);
             }
+            ioService.createThumbnail(metadata, stream.toByteArray());
         }
     }
 
@@ -19,6 +19,7 @@ package ome.services.delete;
 
 import ome.io.nio.AbstractFileSystemService;
 import ome.services.delete.files.FileDeleter;
+import ome.services.delete.files.FileDeletionPool;
 import ome.system.OmeroContext;
 import ome.tools.hibernate.ExtendedMetadata;
 
@@ -63,9 +64,16 @@ public class Deletion {
 
         protected ExtendedMetadata em;
 
+        protected FileDeletionPool pool;
+
         public Builder(AbstractFileSystemService afs, ExtendedMetadata em) {
+            this(afs, em, null);
+        }
+
+        public Builder(AbstractFileSystemService afs, ExtendedMetadata em, FileDeletionPool pool) {
             this.afs = afs;
             this.em = em;
+            this.pool = pool;
         }
 
         @Override
@@ -77,7 +85,7 @@ public class Deletion {
         @Override
         protected Deletion createInstance()
             throws Exception {
-            return new Deletion(afs, ctx);
+            return new Deletion(afs, ctx, pool);
         }
 
         @Override
@@ -97,10 +105,17 @@ public class Deletion {
 
     private final AbstractFileSystemService afs;
 
+    private final FileDeletionPool pool;
+
     public Deletion(AbstractFileSystemService afs, OmeroContext ctx) {
+        this(afs, ctx, null);
+    }
+
+    public Deletion(AbstractFileSystemService afs, OmeroContext ctx, FileDeletionPool pool) {
 
         this.afs = afs;
         this.ctx = ctx;
+        this.pool = pool;
 
     }
 
@@ -108,15 +123,17 @@ public class Deletion {
      * For each Report use the map of tables to deleted ids to remove the files
      * under Files, Pixels and Thumbnails if the ids no longer exist in the db.
      * Create a map of failed ids (not yet passed back to client).
+     * @return the deleter, for reporting on the deletion
       */
-    public void deleteFiles(SetMultimap<String, Long> deleteTargets) {
+    public FileDeleter deleteFiles(SetMultimap<String, Long> deleteTargets) {
         final StopWatch sw = new Slf4JStopWatch();
         try {
-            final FileDeleter files = new FileDeleter(ctx, afs, deleteTargets);
+            final FileDeleter files = new FileDeleter(ctx, afs, deleteTargets, pool);
             files.run();
             if (files.getFailedFilesCount() > 0) {
                 log.warn(files.getWarning());
             }
+            return files;
         } finally {
             sw.stop("omero.delete.binary");
         }
@@ -48,6 +48,8 @@ public abstract class AbstractFileDeletions {
 
     private long bytesFailed = 0;
 
+    private int filesDeleted = 0;
+
     public AbstractFileDeletions(AbstractFileSystemService afs, Set<Long> deletedIds) {
         this.afs = afs;
     	this.deletedIds = deletedIds;
@@ -81,6 +83,7 @@ public abstract class AbstractFileDeletions {
             if (file.exists()) {
                 if (file.delete()) {
                     log.debug("DELETED: " + file.getAbsolutePath());
+                    filesDeleted++;
                 } else {
                     log.debug("Failed to delete " + file.getAbsolutePath());
                     fail(file, id, file.length());
@@ -92,6 +95,30 @@ public abstract class AbstractFileDeletions {
         return failedFiles.size();
     }
 
+    /**
+     * As {@link #deleteLocal()} but deleting the files in parallel.
+     * @param pool the pool with which to delete the files, may be {@code null} to delete them sequentially
+     * @return the number of files that could not be deleted
+     */
+    public int deleteLocal(FileDeletionPool pool) {
+        if (pool == null) {
+            return deleteLocal();
+        }
+        final FileDeletionPool.Result result = pool.delete(localFiles.keySet());
+        for (final File file : result.getFailedFiles()) {
+            fail(file, localFiles.get(file), file.length());
+        }
+        filesDeleted += result.getDeletedCount();
+        return failedFiles.size();
+    }
+
+    /**
+     * @return how many files were deleted by {@link #deleteLocal()}
+     */
+    public int getFilesDeleted() {
+        return filesDeleted;
+    }
+
     public long getBytesFailed() {
         return bytesFailed;
     }
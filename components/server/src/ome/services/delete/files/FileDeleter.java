@@ -18,12 +18,18 @@
 
 package ome.services.delete.files;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 
+import ome.io.bioformats.BfPyramidPixelBuffer;
 import ome.io.nio.AbstractFileSystemService;
+import ome.io.nio.PackedThumbnailService;
+import ome.io.nio.PixelsService;
+import ome.services.util.FileSizeCache;
 import ome.system.OmeroContext;
 
 import org.slf4j.Logger;
@@ -66,24 +72,50 @@ public class FileDeleter {
 
     private long bytesFailed = 0;
 
+    private final FileDeletionPool pool;
+
+    private final Map<String, String> throughput = new LinkedHashMap<String, String>();
+
 	public FileDeleter(OmeroContext ctx, AbstractFileSystemService afs, SetMultimap<String, Long> deleteTargets) {
+        this(ctx, afs, deleteTargets, null);
+    }
+
+    /**
+     * @param ctx the application context
+     * @param afs the file system service
+     * @param deleteTargets the IDs of the deleted objects by type
+     * @param pool the pool with which to delete the files in parallel,
+     * may be {@code null} to delete them sequentially
+     */
+    public FileDeleter(OmeroContext ctx, AbstractFileSystemService afs, SetMultimap<String, Long> deleteTargets,
+            FileDeletionPool pool) {
         this.ctx = ctx;
         this.afs = afs;
         this.deleteTargets = deleteTargets;
+        this.pool = pool;
     }
 
     public void run() {
+        long startTime = System.currentTimeMillis();
         originalFD = new OriginalFileDeletions(afs, load(Type.OriginalFile), ctx);
-        filesFailed += originalFD.deleteLocal();
+        filesFailed += originalFD.deleteLocal(pool);
         bytesFailed += originalFD.getBytesFailed();
+        noteThroughput(Type.OriginalFile, originalFD, startTime);
 
+        startTime = System.currentTimeMillis();
         thumbFD = new ThumbnailFileDeletions(afs, load(Type.Thumbnail));
-        filesFailed += thumbFD.deleteLocal();
+        filesFailed += thumbFD.deleteLocal(pool);
         bytesFailed += thumbFD.getBytesFailed();
+        removePackedThumbnails(load(Type.Thumbnail));
+        noteThroughput(Type.Thumbnail, thumbFD, startTime);
 
+        startTime = System.currentTimeMillis();
+        closePixelBuffers(load(Type.Pixels));
         pixelsFD = new PixelsFileDeletions(afs, load(Type.Pixels));
-        filesFailed += pixelsFD.deleteLocal();
+        filesFailed += pixelsFD.deleteLocal(pool);
         bytesFailed += pixelsFD.getBytesFailed();
+        forgetPixelsSizes(load(Type.Pixels));
+        noteThroughput(Type.Pixels, pixelsFD, startTime);
 
         undeletedFiles = new HashMap<String, long[]>();
         undeletedFiles.put(Type.OriginalFile.toString(), originalFD.getUndeletedFiles());
@@ -101,6 +133,79 @@ public class FileDeleter {
         }
     }
 
+    /**
+     * Note how quickly the files of the given type were deleted.
+     * @param fileType the type of file
+     * @param deletions the deletions of that type
+     * @param startTime when the deletions started
+     */
+    private void noteThroughput(Type fileType, AbstractFileDeletions deletions, long startTime) {
+        if (load(fileType).isEmpty()) {
+            return;
+        }
+        final long elapsed = System.currentTimeMillis() - startTime;
+        final int deleted = deletions.getFilesDeleted();
+        final String description = String.format("%d files in %d ms (%.1f files/s)",
+                deleted, elapsed, elapsed == 0 ? 0.0 : deleted * 1000.0 / elapsed);
+        throughput.put(fileType.toString(), description);
+        log.info("Deleted {} {}", fileType, description);
+    }
+
+    /**
+     * Thumbnails held in a {@link PackedThumbnailService} have no file of
+     * their own and so must be removed from their container by the service.
+     * @param ids the thumbnail IDs scheduled for deletion
+     */
+    protected void removePackedThumbnails(Set<Long> ids) {
+        if (ids.isEmpty() || ctx == null || !ctx.containsBean("/OMERO/Thumbs")) {
+            return;
+        }
+        final Object thumbs = ctx.getBean("/OMERO/Thumbs");
+        if (thumbs instanceof PackedThumbnailService) {
+            try {
+                ((PackedThumbnailService) thumbs).removeThumbnails(
+                        new ArrayList<Long>(ids));
+            } catch (RuntimeException e) {
+                log.warn("Failed to remove packed thumbnails", e);
+                filesFailed += ids.size();
+            }
+        }
+    }
+
+    /**
+     * Pixel buffers kept open by the {@link PixelsService} must be closed
+     * before their files are deleted.
+     * @param ids the pixels IDs scheduled for deletion
+     */
+    protected void closePixelBuffers(Set<Long> ids) {
+        if (ids.isEmpty() || ctx == null || !ctx.containsBean("/OMERO/Pixels")) {
+            return;
+        }
+        final Object pixels = ctx.getBean("/OMERO/Pixels");
+        if (pixels instanceof PixelsService) {
+            ((PixelsService) pixels).invalidatePixelBuffers(ids);
+        }
+    }
+
+    /**
+     * The sizes of the pixels and pyramid files noted by the
+     * {@link FileSizeCache} for disk usage must be forgotten once the files
+     * are deleted.
+     * @param ids the pixels IDs scheduled for deletion
+     */
+    protected void forgetPixelsSizes(Set<Long> ids) {
+        if (ids.isEmpty() || ctx == null || !ctx.containsBean("fileSizeCache")) {
+            return;
+        }
+        final FileSizeCache fileSizeCache = ctx.getBean("fileSizeCache", FileSizeCache.class);
+        for (final Long id : ids) {
+            final String pixelsPath = afs.getPixelsPath(id);
+            fileSizeCache.invalidate(pixelsPath);
+            fileSizeCache.invalidate(pixelsPath + PixelsService.PYRAMID_SUFFIX);
+            fileSizeCache.invalidate(pixelsPath + PixelsService.PYRAMID_SUFFIX + BfPyramidPixelBuffer.PYR_LOCK_EXT);
+        }
+    }
+
     /**
      * Lookup the ids which are scheduled for deletion.
      * @param fileType non-null
@@ -114,6 +219,13 @@ public class FileDeleter {
         return undeletedFiles;
     }
 
+    /**
+     * @return for each type of file deleted by {@link #run()}, a description of how quickly they were deleted
+     */
+    public Map<String, String> getThroughput() {
+        return throughput;
+    }
+
     public int getFailedFilesCount() {
         return filesFailed;
     }
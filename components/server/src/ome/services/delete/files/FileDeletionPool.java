@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.services.delete.files;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Deletes files from the binary repository in parallel once their model objects are deleted. The files are grouped
+ * by the filesystem on which they reside and at most a configured number of files are deleted at once from each
+ * filesystem, so a slow network filesystem is not flooded and does not delay deletions from others.
+ * <p>
+ * Before a set of files is deleted their paths are written to a pending list under the data directory which is
+ * removed once the deletion is finished. On {@link #start()} any lists remaining from a server that halted during
+ * a deletion are deleted in the background. The model objects are already deleted by then so the files are no longer
+ * needed.
+ * </p>
+ * @since 5.4.10
+ */
+public class FileDeletionPool {
+
+    private static final Logger log = LoggerFactory.getLogger(FileDeletionPool.class);
+
+    private static final String PENDING_DIR = "PendingDeletions";
+
+    private static final String PENDING_SUFFIX = ".pending";
+
+    private static final String RESUMING_SUFFIX = ".resuming";
+
+    /* the group of files whose filesystem cannot be determined */
+    private static final Object UNKNOWN_FILESYSTEM = new Object();
+
+    /**
+     * The outcome of deleting a set of files.
+     */
+    public static class Result {
+
+        private final AtomicInteger deletedCount = new AtomicInteger();
+        private final AtomicInteger missingCount = new AtomicInteger();
+        private final Set<File> failedFiles = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+        private long elapsedMillis;
+
+        /**
+         * @return how many files were deleted
+         */
+        public int getDeletedCount() {
+            return deletedCount.get();
+        }
+
+        /**
+         * @return how many files did not exist
+         */
+        public int getMissingCount() {
+            return missingCount.get();
+        }
+
+        /**
+         * @return the files that could not be deleted
+         */
+        public Set<File> getFailedFiles() {
+            return failedFiles;
+        }
+
+        /**
+         * @return how long the deletion took, in milliseconds
+         */
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+    }
+
+    private final ExecutorService executor;
+
+    private final int threadsPerFileSystem;
+
+    private final File pendingDir;
+
+    private final ConcurrentMap<Object, Semaphore> permits = new ConcurrentHashMap<Object, Semaphore>();
+
+    /**
+     * Construct a new pool for deleting files.
+     * @param threads how many files may be deleted at once
+     * @param threadsPerFileSystem how many files may be deleted at once from any one filesystem
+     * @param dataDir the data directory under which to keep the lists of pending deletions,
+     * may be {@code null} to keep no such lists
+     */
+    public FileDeletionPool(int threads, int threadsPerFileSystem, String dataDir) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "FileDeletion-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.threadsPerFileSystem = Math.max(1, threadsPerFileSystem);
+        this.pendingDir = dataDir == null ? null : new File(dataDir, PENDING_DIR);
+    }
+
+    /**
+     * Delete in the background any files listed as pending by a previous server.
+     */
+    public void start() {
+        if (pendingDir == null || !pendingDir.isDirectory()) {
+            return;
+        }
+        final File[] pendingLists = pendingDir.listFiles();
+        if (pendingLists == null) {
+            return;
+        }
+        for (final File pendingList : pendingLists) {
+            if (!pendingList.getName().endsWith(PENDING_SUFFIX)) {
+                continue;
+            }
+            /* claim the list so that other server processes do not also resume it */
+            final File resumingList = new File(pendingDir, pendingList.getName() + RESUMING_SUFFIX);
+            if (!pendingList.renameTo(resumingList)) {
+                continue;
+            }
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    resume(resumingList);
+                }
+            });
+        }
+    }
+
+    /**
+     * Stop deleting files. Any deletions not yet done remain listed as pending.
+     */
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Delete the files listed in the given pending list, then the list itself.
+     * @param pendingList a list of pending deletions
+     */
+    private void resume(File pendingList) {
+        final List<File> files = new ArrayList<File>();
+        try {
+            for (final String path : Files.readAllLines(pendingList.toPath(), StandardCharsets.UTF_8)) {
+                if (!path.isEmpty()) {
+                    files.add(new File(path));
+                }
+            }
+        } catch (IOException ioe) {
+            log.warn("Failed to read pending deletions from {}", pendingList, ioe);
+            return;
+        }
+        log.info("Resuming deletion of {} files from {}", files.size(), pendingList.getName());
+        /* runs on a pool thread so delete directly rather than waiting for other pool threads */
+        final Result result = new Result();
+        for (final File file : files) {
+            deleteFile(file, result);
+        }
+        if (!result.getFailedFiles().isEmpty()) {
+            log.warn("Failed to delete {} pending files", result.getFailedFiles().size());
+        }
+        if (!pendingList.delete()) {
+            log.warn("Failed to remove {}", pendingList);
+        }
+    }
+
+    /**
+     * Write a list of files pending deletion.
+     * @param files the files
+     * @return the pending list, or {@code null} if it could not be written
+     */
+    private File writePendingList(Collection<File> files) {
+        if (pendingDir == null) {
+            return null;
+        }
+        final List<String> paths = new ArrayList<String>(files.size());
+        for (final File file : files) {
+            paths.add(file.getAbsolutePath());
+        }
+        final File pendingList = new File(pendingDir, UUID.randomUUID() + PENDING_SUFFIX);
+        try {
+            Files.createDirectories(pendingDir.toPath());
+            Files.write(pendingList.toPath(), paths, StandardCharsets.UTF_8);
+            return pendingList;
+        } catch (IOException ioe) {
+            log.warn("Failed to write pending deletions to {}", pendingList, ioe);
+            return null;
+        }
+    }
+
+    /**
+     * Determine the filesystem on which a file resides.
+     * @param file a file
+     * @param fileSystems a cache of the filesystems of directories
+     * @return an object identifying the file's filesystem
+     */
+    private static Object getFileSystem(File file, Map<File, Object> fileSystems) {
+        final File directory = file.getAbsoluteFile().getParentFile();
+        if (directory == null) {
+            return UNKNOWN_FILESYSTEM;
+        }
+        Object fileSystem = fileSystems.get(directory);
+        if (fileSystem == null) {
+            fileSystem = UNKNOWN_FILESYSTEM;
+            for (File existing = directory; existing != null; existing = existing.getParentFile()) {
+                if (existing.exists()) {
+                    try {
+                        fileSystem = Files.getFileStore(existing.toPath());
+                    } catch (IOException ioe) {
+                        log.debug("cannot determine filesystem of {}", existing, ioe);
+                    }
+                    break;
+                }
+            }
+            fileSystems.put(directory, fileSystem);
+        }
+        return fileSystem;
+    }
+
+    /**
+     * Delete a file.
+     * @param file the file to delete
+     * @param result the result to which to add the outcome
+     */
+    private static void deleteFile(File file, Result result) {
+        if (file.exists()) {
+            if (file.delete()) {
+                log.debug("DELETED: " + file.getAbsolutePath());
+                result.deletedCount.incrementAndGet();
+            } else {
+                log.debug("Failed to delete " + file.getAbsolutePath());
+                result.failedFiles.add(file);
+            }
+        } else {
+            log.debug("File " + file.getAbsolutePath() + " does not exist.");
+            result.missingCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Delete the given files, returning once all are deleted.
+     * @param files the files to delete
+     * @return the outcome of the deletion
+     */
+    public Result delete(Collection<File> files) {
+        final Result result = new Result();
+        if (files.isEmpty()) {
+            return result;
+        }
+        final long startTime = System.nanoTime();
+        final File pendingList = writePendingList(files);
+
+        final Map<File, Object> fileSystems = new HashMap<File, Object>();
+        final Map<Object, Queue<File>> filesByFileSystem = new HashMap<Object, Queue<File>>();
+        for (final File file : files) {
+            final Object fileSystem = getFileSystem(file, fileSystems);
+            Queue<File> queue = filesByFileSystem.get(fileSystem);
+            if (queue == null) {
+                queue = new ConcurrentLinkedQueue<File>();
+                filesByFileSystem.put(fileSystem, queue);
+            }
+            queue.add(file);
+        }
+
+        final List<Future<?>> workers = new ArrayList<Future<?>>();
+        for (final Map.Entry<Object, Queue<File>> fileSystemFiles : filesByFileSystem.entrySet()) {
+            Semaphore fileSystemPermits = permits.get(fileSystemFiles.getKey());
+            if (fileSystemPermits == null) {
+                permits.putIfAbsent(fileSystemFiles.getKey(), new Semaphore(threadsPerFileSystem));
+                fileSystemPermits = permits.get(fileSystemFiles.getKey());
+            }
+            final Semaphore workerPermits = fileSystemPermits;
+            final Queue<File> queue = fileSystemFiles.getValue();
+            final int workerCount = Math.min(threadsPerFileSystem, queue.size());
+            for (int worker = 0; worker < workerCount; worker++) {
+                workers.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        workerPermits.acquireUninterruptibly();
+                        try {
+                            File file;
+                            while ((file = queue.poll()) != null) {
+                                deleteFile(file, result);
+                            }
+                        } finally {
+                            workerPermits.release();
+                        }
+                    }
+                }));
+            }
+        }
+
+        boolean isComplete = true;
+        for (final Future<?> worker : workers) {
+            try {
+                worker.get();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                isComplete = false;
+                break;
+            } catch (ExecutionException ee) {
+                log.warn("Failed to delete files", ee.getCause());
+                isComplete = false;
+            }
+        }
+        result.elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+
+        /* if interrupted or failed then the deletions remain pending until a restart */
+        if (isComplete && pendingList != null && !pendingList.delete()) {
+            log.warn("Failed to remove {}", pendingList);
+        }
+        return result;
+    }
+}
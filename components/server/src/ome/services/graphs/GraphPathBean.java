@@ -54,6 +54,7 @@ import com.google.common.collect.Maps;
 import com.google.common.collect.SetMultimap;
 
 import ome.model.IObject;
+import ome.services.util.Executor;
 import ome.tools.spring.OnContextRefreshedEventListener;
 
 /**
@@ -140,6 +141,11 @@ public class GraphPathBean extends OnContextRefreshedEventListener {
     /* the properties of classes that have simple values, with only the top-level name */
     private final SetMultimap<String, String> simplePropertiesDirect = HashMultimap.create();
 
+    /* tuning of the graph traversals that use this bean */
+    private int batchSize = GraphTraversal.DEFAULT_BATCH_SIZE;
+    private int linkLoadingThreads = 1;
+    private Executor executor = null;
+
     /**
      * The application context after refresh should contain a usable Hibernate session factory.
      * If not already done, process the Hibernate domain object model from that bean.
@@ -151,6 +157,9 @@ public class GraphPathBean extends OnContextRefreshedEventListener {
             final ApplicationContext context = event.getApplicationContext();
             final SessionFactoryImplementor sessionFactory = context.getBean("sessionFactory", SessionFactoryImplementor.class);
             initialize(sessionFactory);
+            if (context.containsBean("executor")) {
+                executor = context.getBean("executor", Executor.class);
+            }
         }
     }
 
@@ -585,4 +594,45 @@ public class GraphPathBean extends OnContextRefreshedEventListener {
     public Set<String> getSimpleProperties(String className, boolean isNested) {
         return (isNested ? simplePropertiesNested : simplePropertiesDirect).get(className);
     }
+
+    /**
+     * Set how many IDs graph traversals query at once with {@code IN (:ids)}. For use during configuration.
+     * @param batchSize the batch size, must be positive
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batch size must be positive");
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @return how many IDs graph traversals query at once with {@code IN (:ids)}
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Set how many read-only sessions graph traversals may use to query link properties concurrently.
+     * For use during configuration.
+     * @param linkLoadingThreads the number of threads, {@code 1} for querying on the traversal's own session only
+     */
+    public void setLinkLoadingThreads(int linkLoadingThreads) {
+        this.linkLoadingThreads = Math.max(1, linkLoadingThreads);
+    }
+
+    /**
+     * @return how many read-only sessions graph traversals may use to query link properties concurrently
+     */
+    public int getLinkLoadingThreads() {
+        return linkLoadingThreads;
+    }
+
+    /**
+     * @return the executor with which graph traversals may query on other threads, {@code null} before context refresh
+     */
+    Executor getExecutor() {
+        return executor;
+    }
 }
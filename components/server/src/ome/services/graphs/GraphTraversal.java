@@ -20,18 +20,25 @@
 package ome.services.graphs;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -40,6 +47,7 @@ import org.hibernate.Query;
 import org.hibernate.QueryException;
 import org.hibernate.Session;
 import org.hibernate.proxy.HibernateProxy;
+import org.springframework.transaction.annotation.Transactional;
 
 import com.google.common.base.Joiner;
 import com.google.common.base.Objects;
@@ -56,13 +64,17 @@ import ome.model.internal.Permissions;
 import ome.model.meta.Experimenter;
 import ome.model.meta.ExperimenterGroup;
 import ome.security.ACLVoter;
+import ome.security.basic.CurrentDetails;
 import ome.security.basic.LightAdminPrivileges;
 import ome.services.graphs.GraphPathBean.PropertyKind;
 import ome.services.graphs.GraphPolicy.Ability;
 import ome.services.graphs.GraphPolicy.Action;
 import ome.services.graphs.GraphPolicy.Details;
 import ome.services.graphs.GraphPolicy.Orphan;
+import ome.services.util.Executor;
 import ome.system.EventContext;
+import ome.system.Principal;
+import ome.system.ServiceFactory;
 
 /**
  * An alternative implementation of model object graph traversal, relying on SELECTing in advance for making decisions,
@@ -74,8 +86,8 @@ public class GraphTraversal {
 
     private static final Logger log = LoggerFactory.getLogger(GraphTraversal.class);
 
-    /* all bulk operations are batched; this size should be suitable for IN (:ids) for HQL */
-    private static final int BATCH_SIZE = 256;
+    /** The default size of the batches of bulk operations, suitable for IN (:ids) for HQL. */
+    public static final int DEFAULT_BATCH_SIZE = 256;
 
     /* the full name of the model object classes for which subclasses need not be queried */
     private static final Set<String> NO_SUBCLASS_QUERY = Collections.synchronizedSet(new HashSet<String>());
@@ -426,14 +438,14 @@ public class GraphTraversal {
          * Null the given property of the indicated instances.
          * @param className full name of mapped Hibernate class
          * @param propertyName HQL-style property name of class
-         * @param ids applicable instances of class, no more than {@link #BATCH_SIZE}
+         * @param ids applicable instances of class, no more than the traversal's batch size
          */
         void nullProperties(String className, String propertyName, Collection<Long> ids);
 
         /**
          * Delete the given instances.
          * @param className full name of mapped Hibernate class
-         * @param ids applicable instances of class, no more than {@link #BATCH_SIZE}
+         * @param ids applicable instances of class, no more than the traversal's batch size
          * @throws GraphException if not all the instances could be deleted
          */
         void deleteInstances(String className, Collection<Long> ids) throws GraphException;
@@ -441,7 +453,7 @@ public class GraphTraversal {
         /**
          * Process the given instances. They will have been sufficiently unlinked by the other methods.
          * @param className full name of mapped Hibernate class
-         * @param ids applicable instances of class, no more than {@link #BATCH_SIZE}
+         * @param ids applicable instances of class, no more than the traversal's batch size
          * @throws GraphException if not all the instances could be processed
          */
         void processInstances(String className, Collection<Long> ids) throws GraphException;
@@ -471,6 +483,11 @@ public class GraphTraversal {
     private final Planning planning;
     private final GraphPolicy policy;
     private final Processor processor;
+    /* all bulk operations are batched; this size should be suitable for IN (:ids) for HQL */
+    private final int batchSize;
+    private boolean isParallelLinkLoading = false;
+    /* for each phase of the operation, the number of calls and the nanoseconds taken */
+    private final Map<String, long[]> phaseTimes = new LinkedHashMap<String, long[]>();
 
     /**
      * Construct a new instance of a graph traversal manager.
@@ -492,9 +509,61 @@ public class GraphTraversal {
         this.planning = new Planning();
         this.policy = policy;
         this.processor = log.isDebugEnabled() ? debugWrap(processor) : processor;
+        this.batchSize = graphPathBean.getBatchSize();
         this.isCheckUserPermissions = !LightAdminPrivileges.getAllPrivileges().equals(eventContext.getCurrentAdminPrivileges());
     }
 
+    /**
+     * Allow link properties to be queried concurrently on separate read-only sessions while planning, if so configured
+     * by {@link GraphPathBean#setLinkLoadingThreads(int)}. Those sessions do not see changes not yet committed by this
+     * traversal's session so this may be set only if the planning does not depend on any such changes.
+     * @param isParallelLinkLoading if link properties may be queried concurrently
+     */
+    public void setParallelLinkLoading(boolean isParallelLinkLoading) {
+        this.isParallelLinkLoading = isParallelLinkLoading;
+    }
+
+    /**
+     * Note the time taken by a phase of the operation.
+     * @param phase the name of the phase
+     * @param startTime when the phase started, from {@link System#nanoTime()}
+     */
+    private void notePhase(String phase, long startTime) {
+        final long elapsed = System.nanoTime() - startTime;
+        long[] countAndTime = phaseTimes.get(phase);
+        if (countAndTime == null) {
+            countAndTime = new long[2];
+            phaseTimes.put(phase, countAndTime);
+        }
+        countAndTime[0]++;
+        countAndTime[1] += elapsed;
+    }
+
+    /**
+     * Report how long the phases of the operation have taken so far, one line per phase. The phases are
+     * <q>planning</q> overall, within that the <q>details</q> and <q>links</q> queries,
+     * then <q>unlinking</q> and <q>processing</q>.
+     * @return the timing report
+     */
+    public String getTimingReport() {
+        final StringBuilder report = new StringBuilder();
+        for (final Entry<String, long[]> phaseTime : phaseTimes.entrySet()) {
+            final long[] countAndTime = phaseTime.getValue();
+            report.append(String.format("%-10s %8d calls %10d ms%n", phaseTime.getKey(), countAndTime[0],
+                    TimeUnit.NANOSECONDS.toMillis(countAndTime[1])));
+        }
+        return report.toString();
+    }
+
+    /**
+     * Log the timing report if debug logging is enabled.
+     */
+    private void logTimingReport() {
+        if (log.isDebugEnabled()) {
+            log.debug("time taken by phases of graph operation:\n" + getTimingReport());
+        }
+    }
+
     /**
      * Traverse model object graph to determine steps for the proposed operation.
      * @param objects the model objects to process
@@ -589,6 +658,20 @@ public class GraphTraversal {
      * @throws GraphException if the model objects were not as expected
      */
     private void planOperation() throws GraphException {
+        final long startTime = System.nanoTime();
+        try {
+            planOperationLoop();
+        } finally {
+            notePhase("planning", startTime);
+            logTimingReport();
+        }
+    }
+
+    /**
+     * Iterate through the planning of the operation until the orphan status of all the objects is settled.
+     * @throws GraphException if the model objects were not as expected
+     */
+    private void planOperationLoop() throws GraphException {
         /* track state to guarantee progress in reprocessing objects whose orphan status is relevant */
         Set<CI> optimisticReprocess = null;
         /* set of not-last objects after latest review */
@@ -763,13 +846,14 @@ public class GraphTraversal {
         }
 
         if (!idsToQuery.isEmpty()) {
+            final long startTime = System.nanoTime();
             boolean subclassesQueried = false;
 
             if (!NO_SUBCLASS_QUERY.contains(className)) {
                 try {
                     /* determine the class of persisted objects without loading them */
                     final String rootQuery = "SELECT r.id, TYPE(r) FROM " + className + " r WHERE r.id IN (:ids)";
-                    for (final List<Long> idsBatch : Iterables.partition(idsToQuery, BATCH_SIZE)) {
+                    for (final List<Long> idsBatch : Iterables.partition(idsToQuery, batchSize)) {
                         for (final Object[] result :
                             (List<Object[]>) session.createQuery(rootQuery).setParameterList("ids", idsBatch).list()) {
                             final Long id = (Long) result[0];
@@ -816,7 +900,7 @@ public class GraphTraversal {
                     "SELECT " + Joiner.on(',').join(selectTerms) + " FROM " + className +" AS root WHERE root.id IN (:ids)";
 
             /* query and note details of objects */
-            for (final List<Long> idsBatch : Iterables.partition(idsToQuery, BATCH_SIZE)) {
+            for (final List<Long> idsBatch : Iterables.partition(idsToQuery, batchSize)) {
                 final Query hibernateQuery = session.createQuery(detailsQuery).setParameterList("ids", idsBatch);
                 for (final Object[] result : (List<Object[]>) hibernateQuery.list()) {
                     final ome.model.internal.Details details = ome.model.internal.Details.create();
@@ -827,6 +911,7 @@ public class GraphTraversal {
                     noteDetails(objectsById.get(id), details);
                 }
             }
+            notePhase("details", startTime);
         }
 
         return objectsById;
@@ -882,22 +967,135 @@ public class GraphTraversal {
     }
 
     /**
-     * Load a specific link property's object relationships into the various cache fields of {@link Planning}.
-     * @param linkProperty the link property being processed
+     * Query a specific link property's object relationships.
+     * @param querySession the Hibernate session with which to query
      * @param query the HQL to query the property's object relationships
      * @param ids the IDs of the related objects
-     * @return which linker objects are related to which linked objects by the given property
-     * @throws GraphException if the objects could not be converted to unloaded instances
+     * @return the linker object IDs mapped to the linked object IDs
      */
-    private List<Entry<CI,CI>> getLinksToCache(CP linkProperty, String query, Collection<Long> ids) throws GraphException {
-        final String linkedClassName = getLinkedClass(linkProperty);
-        final boolean propertyIsAccessible = model.isPropertyAccessible(linkProperty.className, linkProperty.propertyName);
+    private SetMultimap<Long, Long> queryLinks(Session querySession, String query, Collection<Long> ids) {
         final SetMultimap<Long, Long> linkerToLinked = HashMultimap.create();
-        for (final List<Long> idsBatch : Iterables.partition(ids, BATCH_SIZE)) {
-            for (final Object[] result : (List<Object[]>) session.createQuery(query).setParameterList("ids", idsBatch).list()) {
+        for (final List<Long> idsBatch : Iterables.partition(ids, batchSize)) {
+            for (final Object[] result :
+                (List<Object[]>) querySession.createQuery(query).setParameterList("ids", idsBatch).list()) {
                 linkerToLinked.put((Long) result[0], (Long) result[1]);
             }
         }
+        return linkerToLinked;
+    }
+
+    /**
+     * Query link properties' object relationships, taking the next query not yet taken until none remain.
+     * @param querySession the Hibernate session with which to query
+     * @param queries the HQL to query the properties' object relationships
+     * @param ids the IDs of the related objects for each query
+     * @param nextQuery the index of the next query to take
+     * @param results the linker object IDs mapped to the linked object IDs, set for each query taken
+     */
+    private void queryLinks(Session querySession, List<String> queries, List<Collection<Long>> ids,
+            AtomicInteger nextQuery, SetMultimap<Long, Long>[] results) {
+        int index;
+        while ((index = nextQuery.getAndIncrement()) < results.length) {
+            results[index] = queryLinks(querySession, queries.get(index), ids.get(index));
+        }
+    }
+
+    /**
+     * Note which of the filters defined for the session factory are enabled in a session.
+     * @param querySession a Hibernate session
+     * @return the names of the filters enabled in the session
+     */
+    private static Set<String> getEnabledFilterNames(Session querySession) {
+        final Set<String> names = new HashSet<String>();
+        for (final Object name : querySession.getSessionFactory().getDefinedFilterNames()) {
+            if (querySession.getEnabledFilter((String) name) != null) {
+                names.add((String) name);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Query link properties' object relationships concurrently. This thread queries on this traversal's session while
+     * up to {@code threadCount - 1} tasks submitted to the server's {@link Executor} query in their own read-only
+     * transactions, logged in to the same session with the same call context, so with the same security filters
+     * enabled by the server as this traversal's session. A task whose session does not have the same filters enabled
+     * leaves the queries to the other threads.
+     * @param queries the HQL to query the properties' object relationships
+     * @param ids the IDs of the related objects for each query
+     * @param threadCount how many threads to use, including this one
+     * @return the linker object IDs mapped to the linked object IDs, for each query
+     * @throws GraphException if any of the queries failed
+     */
+    private List<SetMultimap<Long, Long>> queryLinksInParallel(final List<String> queries, final List<Collection<Long>> ids,
+            int threadCount) throws GraphException {
+        final Set<String> filterNames = getEnabledFilterNames(session);
+        final SetMultimap<Long, Long>[] results = new SetMultimap[queries.size()];
+        final AtomicInteger nextQuery = new AtomicInteger();
+        final Executor executor = model.getExecutor();
+        final Principal principal = executor.principal();
+        final Map<String, String> callContext = new HashMap<String, String>();
+        final Map<String, String> currentContext = executor.getContext().getBean(CurrentDetails.class).getContext();
+        if (currentContext != null) {
+            callContext.putAll(currentContext);
+        }
+        final List<Future<Object>> futures = new ArrayList<Future<Object>>(threadCount - 1);
+        for (int thread = 1; thread < threadCount; thread++) {
+            futures.add(executor.submit(callContext, new Callable<Object>() {
+                @Override
+                public Object call() {
+                    return executor.execute(callContext, principal,
+                            new Executor.SimpleWork(GraphTraversal.this, "queryLinks") {
+                        @Override
+                        @Transactional(readOnly = true)
+                        public Object doWork(Session workerSession, ServiceFactory sf) {
+                            final Set<String> workerFilterNames = getEnabledFilterNames(workerSession);
+                            if (workerFilterNames.equals(filterNames)) {
+                                queryLinks(workerSession, queries, ids, nextQuery, results);
+                            } else {
+                                log.warn("not querying links with filters " + workerFilterNames + " instead of " +
+                                        filterNames);
+                            }
+                            return null;
+                        }
+                    });
+                }
+            }));
+        }
+        try {
+            /* this thread queries too so the queries are all taken even if the executor has no thread free */
+            queryLinks(session, queries, ids, nextQuery, results);
+            for (final Future<Object> future : futures) {
+                /* tasks not yet started have no query left to take */
+                if (!future.cancel(false)) {
+                    future.get();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GraphException("interrupted while querying links");
+        } catch (ExecutionException e) {
+            log.warn("failed to query links", e.getCause());
+            throw new GraphException("failed to query links: " + e.getCause());
+        } finally {
+            for (final Future<Object> future : futures) {
+                future.cancel(false);
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Load a specific link property's object relationships into the various cache fields of {@link Planning}.
+     * @param linkProperty the link property being processed
+     * @param linkerToLinked the linker object IDs mapped to the linked object IDs, from {@link #queryLinks}
+     * @return which linker objects are related to which linked objects by the given property
+     * @throws GraphException if the objects could not be converted to unloaded instances
+     */
+    private List<Entry<CI,CI>> getLinksToCache(CP linkProperty, SetMultimap<Long, Long> linkerToLinked)
+            throws GraphException {
+        final String linkedClassName = getLinkedClass(linkProperty);
+        final boolean propertyIsAccessible = model.isPropertyAccessible(linkProperty.className, linkProperty.propertyName);
         final List<Entry<CI,CI>> linkerLinked = new ArrayList<Entry<CI,CI>>();
         final Map<Long, CI> linkersById = findObjectDetails(linkProperty.className, linkerToLinked.keySet());
         final Map<Long, CI> linkedsById = findObjectDetails(linkedClassName, new HashSet<Long>(linkerToLinked.values()));
@@ -943,22 +1141,50 @@ public class GraphTraversal {
                 }
             }
         }
-        /* query and cache forward links */
+        /* note the queries for the forward links then for the backward links */
+        final List<CP> linkProperties = new ArrayList<CP>();
+        final List<String> queries = new ArrayList<String>();
+        final List<Collection<Long>> queryIds = new ArrayList<Collection<Long>>();
         for (final Entry<CP, Collection<Long>> forwardLink : forwardLinksWanted.asMap().entrySet()) {
             final CP linkProperty = forwardLink.getKey();
-            final String query = "SELECT linker.id, linked.id FROM " + linkProperty.className + " AS linker " +
-                    "JOIN linker." + linkProperty.propertyName + " AS linked WHERE linker.id IN (:ids)";
-            for (final Entry<CI, CI> linkerLinked : getLinksToCache(linkProperty, query, forwardLink.getValue())) {
-                planning.forwardLinksCached.put(linkProperty.toCPI(linkerLinked.getKey().id), linkerLinked.getValue());
-            }
+            linkProperties.add(linkProperty);
+            queries.add("SELECT linker.id, linked.id FROM " + linkProperty.className + " AS linker " +
+                    "JOIN linker." + linkProperty.propertyName + " AS linked WHERE linker.id IN (:ids)");
+            queryIds.add(forwardLink.getValue());
         }
-        /* query and cache backward links */
+        final int forwardLinkCount = linkProperties.size();
         for (final Entry<CP, Collection<Long>> backwardLink : backwardLinksWanted.asMap().entrySet()) {
             final CP linkProperty = backwardLink.getKey();
-            final String query = "SELECT linker.id, linked.id FROM " + linkProperty.className + " AS linker " +
-                    "JOIN linker." + linkProperty.propertyName + " AS linked WHERE linked.id IN (:ids)";
-            for (final Entry<CI, CI> linkerLinked : getLinksToCache(linkProperty, query, backwardLink.getValue())) {
-                planning.backwardLinksCached.put(linkProperty.toCPI(linkerLinked.getValue().id), linkerLinked.getKey());
+            linkProperties.add(linkProperty);
+            queries.add("SELECT linker.id, linked.id FROM " + linkProperty.className + " AS linker " +
+                    "JOIN linker." + linkProperty.propertyName + " AS linked WHERE linked.id IN (:ids)");
+            queryIds.add(backwardLink.getValue());
+        }
+        /* query the links, concurrently if permitted */
+        final long startTime = System.nanoTime();
+        final int threadCount = Math.min(model.getLinkLoadingThreads(), queries.size());
+        final List<SetMultimap<Long, Long>> links;
+        if (isParallelLinkLoading && threadCount > 1 && model.getExecutor() != null) {
+            links = queryLinksInParallel(queries, queryIds, threadCount);
+        } else {
+            links = new ArrayList<SetMultimap<Long, Long>>(queries.size());
+            for (int index = 0; index < queries.size(); index++) {
+                links.add(queryLinks(session, queries.get(index), queryIds.get(index)));
+            }
+        }
+        notePhase("links", startTime);
+        /* cache the links */
+        for (int index = 0; index < linkProperties.size(); index++) {
+            final CP linkProperty = linkProperties.get(index);
+            final List<Entry<CI, CI>> linkersLinkeds = getLinksToCache(linkProperty, links.get(index));
+            if (index < forwardLinkCount) {
+                for (final Entry<CI, CI> linkerLinked : linkersLinkeds) {
+                    planning.forwardLinksCached.put(linkProperty.toCPI(linkerLinked.getKey().id), linkerLinked.getValue());
+                }
+            } else {
+                for (final Entry<CI, CI> linkerLinked : linkersLinkeds) {
+                    planning.backwardLinksCached.put(linkProperty.toCPI(linkerLinked.getValue().id), linkerLinked.getKey());
+                }
             }
         }
         /* note cached objects for further processing */
@@ -1502,13 +1728,15 @@ public class GraphTraversal {
                     throw new IllegalStateException("model objects already unlinked");
                 }
                 /* actually do the noted unlinking */
+                final long startTime = System.nanoTime();
                 for (final Entry<CP, Collection<Long>> nullCurr : eachToNullByCP.entrySet()) {
                     final CP linker = nullCurr.getKey();
                     final Collection<Long> allIds = nullCurr.getValue();
-                    for (final List<Long> ids : Iterables.partition(allIds, BATCH_SIZE)) {
+                    for (final List<Long> ids : Iterables.partition(allIds, batchSize)) {
                         processor.nullProperties(linker.className, linker.propertyName, ids);
                     }
                 }
+                notePhase("unlinking", startTime);
                 progress.add(Milestone.UNLINKED);
             }
         };
@@ -1579,6 +1807,7 @@ public class GraphTraversal {
                     throw new IllegalStateException("model objects already processed");
                 }
                 /* actually do the noted processing */
+                final long startTime = System.nanoTime();
                 for (final Entry<Map<String, Collection<Long>>, Map<String, Collection<Long>>> next : toJoinAndDelete) {
                     final Map<String, Collection<Long>> toJoin = next.getKey();
                     final Map<String, Collection<Long>> toDelete = next.getValue();
@@ -1594,7 +1823,7 @@ public class GraphTraversal {
                                 idGroups = Collections.singleton(allIds);
                             }
                             for (final Collection<Long> idGroup : idGroups) {
-                                for (final List<Long> ids : Iterables.partition(idGroup, BATCH_SIZE)) {
+                                for (final List<Long> ids : Iterables.partition(idGroup, batchSize)) {
                                     processor.deleteInstances(className, ids);
                                 }
                             }
@@ -1605,12 +1834,14 @@ public class GraphTraversal {
                         for (final Entry<String, Collection<Long>> oneClassToJoin : toJoin.entrySet()) {
                             final String className = oneClassToJoin.getKey();
                             final Collection<Long> allIds = oneClassToJoin.getValue();
-                            for (final List<Long> ids : Iterables.partition(allIds, BATCH_SIZE)) {
+                            for (final List<Long> ids : Iterables.partition(allIds, batchSize)) {
                                 processor.processInstances(className, ids);
                             }
                         }
                     }
                 }
+                notePhase("processing", startTime);
+                logTimingReport();
                 progress.add(Milestone.PROCESSED);
             }
         };
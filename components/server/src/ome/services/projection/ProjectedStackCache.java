@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.services.projection;
+
+import java.util.Iterator;
+
+import ome.system.metrics.Counter;
+import ome.system.metrics.Metrics;
+import ome.system.metrics.NullMetrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+
+/**
+ * Size-bounded cache of the planes returned by
+ * {@link ome.api.IProjection#projectStack}, so that rendering the same
+ * projection again with other settings, e.g. while adjusting the channel
+ * windows, does not reread the whole stack. Entries of a pixels set are
+ * invalidated when its pixel data is modified through a
+ * {@link ome.api.RawPixelsStore} of this server process. The cache is local
+ * to the process: changes made by other processes, such as another server
+ * instance sharing the binary repository, do not invalidate it and its
+ * entries then remain until they are evicted.
+ *
+ * @since 5.4.10
+ */
+public class ProjectedStackCache {
+
+    private final static Logger log =
+            LoggerFactory.getLogger(ProjectedStackCache.class);
+
+    /**
+     * Identifies a projected plane, immutable.
+     */
+    public static final class Key {
+
+        public final long pixelsId;
+
+        public final int algorithm;
+
+        public final int timepoint;
+
+        public final int stepping;
+
+        public final int start;
+
+        public final int end;
+
+        public final int channel;
+
+        public Key(long pixelsId, int algorithm, int timepoint, int stepping,
+                int start, int end, int channel) {
+            this.pixelsId = pixelsId;
+            this.algorithm = algorithm;
+            this.timepoint = timepoint;
+            this.stepping = stepping;
+            this.start = start;
+            this.end = end;
+            this.channel = channel;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (this == object) {
+                return true;
+            }
+            if (!(object instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) object;
+            return pixelsId == other.pixelsId && algorithm == other.algorithm
+                    && timepoint == other.timepoint
+                    && stepping == other.stepping && start == other.start
+                    && end == other.end && channel == other.channel;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = (int) (pixelsId ^ (pixelsId >>> 32));
+            hash = 31 * hash + algorithm;
+            hash = 31 * hash + timepoint;
+            hash = 31 * hash + stepping;
+            hash = 31 * hash + start;
+            hash = 31 * hash + end;
+            hash = 31 * hash + channel;
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Pixels:%d[algorithm=%d T=%d C=%d Z=%d-%d/%d]",
+                    pixelsId, algorithm, timepoint, channel, start, end,
+                    stepping);
+        }
+    }
+
+    /** The cached planes, or <code>null</code> if caching is disabled. */
+    private final Cache<Key, byte[]> planes;
+
+    private final Counter hits, misses, evictions, invalidations;
+
+    /**
+     * Creates a cache holding no projected planes.
+     */
+    public ProjectedStackCache() {
+        this(0, new NullMetrics());
+    }
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maxBytes The total size of the planes to keep. If not positive
+     *        no plane is cached.
+     * @param metrics Receives the hit, miss, eviction and invalidation counts.
+     */
+    public ProjectedStackCache(long maxBytes, Metrics metrics) {
+        hits = metrics.counter(this, "hits");
+        misses = metrics.counter(this, "misses");
+        evictions = metrics.counter(this, "evictions");
+        invalidations = metrics.counter(this, "invalidations");
+        if (maxBytes <= 0) {
+            planes = null;
+            return;
+        }
+        planes = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher(new Weigher<Key, byte[]>() {
+                    @Override
+                    public int weigh(Key key, byte[] plane) {
+                        return plane.length;
+                    }
+                })
+                .removalListener(new RemovalListener<Key, byte[]>() {
+                    @Override
+                    public void onRemoval(
+                            RemovalNotification<Key, byte[]> notification) {
+                        if (notification.wasEvicted()) {
+                            evictions.inc();
+                            if (log.isDebugEnabled()) {
+                                log.debug("Evicted " + notification.getKey()
+                                        + " after " + evictions.getCount()
+                                        + " evictions, " + hits.getCount()
+                                        + " hits, " + misses.getCount()
+                                        + " misses");
+                            }
+                        }
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * @return if projected planes are kept at all
+     */
+    public boolean isEnabled() {
+        return planes != null;
+    }
+
+    /**
+     * Returns the projected plane if cached.
+     *
+     * @param key Identifies the plane.
+     * @return the plane or <code>null</code> if it must be projected. Must
+     *         not be modified.
+     */
+    public byte[] get(Key key) {
+        final byte[] plane = planes == null ? null : planes.getIfPresent(key);
+        if (plane == null) {
+            misses.inc();
+        } else {
+            hits.inc();
+        }
+        return plane;
+    }
+
+    /**
+     * Caches a projected plane.
+     *
+     * @param key Identifies the plane.
+     * @param plane The plane, must not be modified afterward.
+     */
+    public void put(Key key, byte[] plane) {
+        if (planes != null && plane != null) {
+            planes.put(key, plane);
+        }
+    }
+
+    /**
+     * Drops the projected planes of a pixels set from this process's cache,
+     * to be called when its pixel data changes. The caches of other
+     * processes are not affected.
+     *
+     * @param pixelsId The pixels set ID.
+     */
+    public void invalidate(long pixelsId) {
+        if (planes == null) {
+            return;
+        }
+        final Iterator<Key> keys = planes.asMap().keySet().iterator();
+        while (keys.hasNext()) {
+            if (keys.next().pixelsId == pixelsId) {
+                keys.remove();
+                invalidations.inc();
+            }
+        }
+    }
+
+    /**
+     * @return the number of planes currently cached
+     */
+    public long size() {
+        return planes == null ? 0 : planes.size();
+    }
+}
@@ -36,13 +36,39 @@ public class PojosLoadHierarchyQueryDefinition extends Query {
 
         Class klass = (Class) value(CLASS);
 
+        // optional ids
+        Collection ids = (Collection) value(IDS);
+        boolean hasIds = ids != null && ids.size() > 0;
+
+        org.hibernate.Query q = session.createQuery(getHql(klass,
+                params.isLeaves(), params.isAcquisitionData(), hasIds));
+        if (hasIds) {
+            q.setParameterList("ids", ids);
+        }
+        setQuery(q);
+    }
+
+    /**
+     * Returns the HQL loading the hierarchy below the given containers.
+     *
+     * @param klass the type of the root containers
+     * @param leaves if the images are to be loaded
+     * @param acquisitionData if the acquisition data of the images are to be
+     *            loaded
+     * @param hasIds if the root containers are restricted to the
+     *            <code>ids</code> parameter
+     * @return the query string
+     */
+    public static String getHql(Class klass, boolean leaves,
+            boolean acquisitionData, boolean hasIds) {
+
         StringBuilder sb = new StringBuilder();
         if (Project.class.isAssignableFrom(klass)) {
             sb.append("select this from Project this ");
             sb.append("left outer join fetch this.details.creationEvent ");
             sb.append("left outer join fetch this.datasetLinks pdl ");
             sb.append("left outer join fetch pdl.child ds ");
-            if (params.isLeaves()) {
+            if (leaves) {
                 sb.append("left outer join fetch ds.imageLinks dil ");
                 sb.append("left outer join fetch dil.child img ");
             }
@@ -51,7 +77,7 @@ public class PojosLoadHierarchyQueryDefinition extends Query {
         } else if (Dataset.class.isAssignableFrom(klass)) {
             sb.append("select this from Dataset this ");
             sb.append("left outer join fetch this.details.creationEvent ");
-            if (params.isLeaves()) {
+            if (leaves) {
                 sb.append("left outer join fetch this.imageLinks dil ");
                 sb.append("left outer join fetch dil.child img ");
             }
@@ -82,7 +108,7 @@ public class PojosLoadHierarchyQueryDefinition extends Query {
                     + klass.getName());
         }
 
-        if (params.isLeaves()) {
+        if (leaves) {
             if (Screen.class.isAssignableFrom(klass) || Plate.class.isAssignableFrom(klass)) {
                 sb.append("left outer join fetch sa.wellSample ws ");
                 sb.append("left outer join fetch ws.image img ");
@@ -92,7 +118,7 @@ public class PojosLoadHierarchyQueryDefinition extends Query {
             sb.append("left outer join fetch img.pixels as pix ");
             sb.append("left outer join fetch img.format as format ");
             sb.append("left outer join fetch pix.pixelsType as pt ");
-            if (params.isAcquisitionData()) {
+            if (acquisitionData) {
 	            sb.append("left outer join fetch img.stageLabel as position ");
 	            sb.append("left outer join fetch img.imagingEnvironment" +
 	            		" as condition ");
@@ -104,17 +130,10 @@ public class PojosLoadHierarchyQueryDefinition extends Query {
             }
         }
 
-        // optional ids
-        Collection ids = (Collection) value(IDS);
-        if (ids != null && ids.size() > 0) {
+        if (hasIds) {
             sb.append("where this.id in (:ids)");
         }
-
-        org.hibernate.Query q = session.createQuery(sb.toString());
-        if (ids != null && ids.size() > 0) {
-            q.setParameterList("ids", ids);
-        }
-        setQuery(q);
+        return sb.toString();
     }
 
     @Override
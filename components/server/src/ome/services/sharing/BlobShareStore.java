@@ -10,6 +10,7 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -56,7 +57,6 @@ import ome.tools.hibernate.QueryBuilder;
 import ome.tools.hibernate.SessionFactory;
 import ome.util.SqlAction;
 
-import org.apache.commons.collections.CollectionUtils;
 import org.hibernate.Query;
 import org.hibernate.Session;
 import org.springframework.beans.BeansException;
@@ -64,6 +64,10 @@ import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
 import org.springframework.dao.EmptyResultDataAccessException;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+
 /**
  * Implements {@link ShareStore} and provides functionality to work with binary
  * Ice data from the share. Also provides methods for verification if metadata
@@ -87,9 +91,19 @@ public class BlobShareStore extends ShareStore implements
 
     protected SqlAction sqlAction;
 
-    protected Map<Long, Long> pixToImageCache = new HashMap<Long, Long>();
+    /**
+     * Number of image IDs bound at once when looking up the objects linked
+     * to the shared images.
+     */
+    private static final int BATCH_SIZE = 500;
 
-    protected Map<Long, List<Long>> obToImageCache = new HashMap<Long, List<Long>>();
+    /**
+     * The parsed shares checked by {@link #doContains(long, Class, long)},
+     * by share ID. An entry is used only while its version matches that
+     * of the share.
+     */
+    protected final Cache<Long, ShareIndex> indexes = CacheBuilder.newBuilder()
+            .maximumSize(1000).build();
 
     /**
      * Because there is a cyclic dependency (SF->ACLVoter->BlobStore->SF), we
@@ -149,6 +163,7 @@ public class BlobShareStore extends ShareStore implements
         share.setVersion((int) newOptLock);
         session.merge(share);
         synchronizeMembers(session, data);
+        indexes.invalidate(data.id);
     }
 
     @Override
@@ -203,82 +218,90 @@ public class BlobShareStore extends ShareStore implements
         }
     }
 
-    boolean imagesContainsPixels(Session s, List<Long> images, Pixels pix,
-            Map<Long, Long> cache) {
-        Long pixID = pix.getId();
-        return imagesContainsPixels(s, images, pixID, cache);
-    }
-
-    boolean imagesContainsPixels(Session s, List<Long> images, long pixID,
-            Map<Long, Long> cache) {
-        Long imgID;
-        if (cache.containsKey(pixID)) {
-            imgID = cache.get(pixID);
-        } else {
-            imgID = (Long) s
-                    .createQuery("select image.id from Pixels where id = ?")
-                    .setParameter(0, pixID).uniqueResult();
-            cache.put(pixID, imgID);
+    /**
+     * Returns the index of the current version of a share, parsing the share
+     * and looking up the objects linked to its images if it changed.
+     *
+     * @param id the share ID
+     * @return the index or <code>null</code> if there is no such share
+     */
+    protected ShareIndex index(long id) {
+        final Session session = session();
+        final Share share = (Share) session.get(Share.class, id);
+        if (share == null) {
+            indexes.invalidate(id);
+            return null;
+        }
+        final int version = share.getVersion() == null ? 0 : share.getVersion();
+        ShareIndex index = indexes.getIfPresent(id);
+        if (index != null && index.version == version) {
+            return index;
         }
-        return images.contains(imgID);
+        final ShareData data = parse(id, share.getData());
+        if (data == null) {
+            return null;
+        }
+        List<Long> images = data.objectMap == null ? null
+                : data.objectMap.get(Image.class.getName());
+        if (images == null) {
+            images = Collections.emptyList();
+        }
+        index = new ShareIndex(version, data,
+                imageLinks(session, "select id from Pixels "
+                        + "where image.id in (:ids)", images),
+                imageLinks(session, "select instrument.id from Image "
+                        + "where id in (:ids) and instrument is not null",
+                        images),
+                imageLinks(session, "select objectiveSettings.id from Image "
+                        + "where id in (:ids) and objectiveSettings is not null",
+                        images));
+        indexes.put(id, index);
+        return index;
     }
 
+    /**
+     * Runs a query for the IDs of objects linked to images in batches.
+     *
+     * @param session the Hibernate session
+     * @param hql the query, taking the image IDs as the <code>ids</code>
+     *        parameter
+     * @param images the image IDs
+     * @return the IDs returned by the query
+     */
     @SuppressWarnings("unchecked")
-    boolean imagesContainsInstrument(Session s, List<Long> images,
-            Instrument instr, Map<Long, List<Long>> cache) {
-        if (instr == null) {
-            return false;
+    private Set<Long> imageLinks(Session session, String hql,
+            List<Long> images) {
+        final Set<Long> ids = new HashSet<Long>();
+        for (final List<Long> batch : Lists.partition(images, BATCH_SIZE)) {
+            ids.addAll((List<Long>) session.createQuery(hql)
+                    .setParameterList("ids", batch).list());
         }
-        Long instrID = instr.getId();
-        List<Long> imgIDs;
-        if (cache.containsKey(instrID)) {
-            imgIDs = cache.get(instrID);
-        } else {
-            imgIDs = (List<Long>) s
-                    .createQuery("select id from Image where instrument.id = ?")
-                    .setParameter(0, instrID).list();
-            cache.put(instrID, imgIDs);
-        }
-        return CollectionUtils.containsAny(images, imgIDs);
+        return ids;
     }
 
-    boolean imagesContainsObjectiveSettings(Session s, List<Long> images,
-            ObjectiveSettings os, Map<Long, List<Long>> cache) {
-        Long osID = os.getId();
-        return imagesContainsObjectiveSettings(s, images, osID, cache);
+    private static boolean containsPixels(ShareIndex index, Pixels pixels) {
+        return pixels != null && index.containsPixels(pixels.getId());
     }
 
-    @SuppressWarnings("unchecked")
-    boolean imagesContainsObjectiveSettings(Session s, List<Long> images,
-            long osID, Map<Long, List<Long>> cache) {
-        List<Long> imgIDs;
-        if (cache.containsKey(osID)) {
-            imgIDs = cache.get(osID);
-        } else {
-            imgIDs = (List<Long>) s
-                    .createQuery(
-                            "select id from Image where objectiveSettings.id = ?")
-                    .setParameter(0, osID).list();
-            cache.put(osID, imgIDs);
-        }
-        return CollectionUtils.containsAny(images, imgIDs);
+    private static boolean containsInstrument(ShareIndex index,
+            Instrument instrument) {
+        return instrument != null && index.containsInstrument(instrument.getId());
     }
 
     @Override
     public <T extends IObject> boolean doContains(long sessionId, Class<T> kls,
             long objId) {
-        ShareData data = get(sessionId);
-        if (data == null) {
+        ShareIndex index = index(sessionId);
+        if (index == null) {
             return false;
         }
-        return doContains(data, kls, objId);
+        return doContains(index, kls, objId);
     }
 
     @SuppressWarnings("unchecked")
-    protected <T extends IObject> boolean doContains(ShareData data,
+    protected <T extends IObject> boolean doContains(ShareIndex index,
             Class<T> kls, long objId) {
-        List<Long> ids = data.objectMap.get(kls.getName());
-        if (ids != null && ids.contains(objId)) {
+        if (index.contains(kls.getName(), objId)) {
             return true;
         }
 
@@ -300,45 +323,39 @@ public class BlobShareStore extends ShareStore implements
          * "left outer join fetch r.quantization "
          */
 
-        List<Long> images = data.objectMap.get(Image.class.getName());
         Session s = session();
         if (Pixels.class.isAssignableFrom(kls)) {
-            return imagesContainsPixels(s, images, objId, pixToImageCache);
+            return index.containsPixels(objId);
         } else if (RenderingDef.class.isAssignableFrom(kls)) {
             RenderingDef obj = (RenderingDef) s.get(RenderingDef.class, objId);
-            return imagesContainsPixels(s, images, obj.getPixels(),
-                    pixToImageCache);
+            return containsPixels(index, obj.getPixels());
         } else if (ChannelBinding.class.isAssignableFrom(kls)) {
             ChannelBinding obj = (ChannelBinding) s.get(ChannelBinding.class,
                     objId);
-            return imagesContainsPixels(s, images, obj.getRenderingDef()
-                    .getPixels(), pixToImageCache);
+            return containsPixels(index, obj.getRenderingDef().getPixels());
         } else if (CodomainMapContext.class.isAssignableFrom(kls)) {
             final CodomainMapContext obj = (CodomainMapContext) s.get(CodomainMapContext.class, objId);
-            return imagesContainsPixels(s, images, obj.getChannelBinding().getRenderingDef()
-                    .getPixels(), pixToImageCache);
+            return containsPixels(index, obj.getChannelBinding()
+                    .getRenderingDef().getPixels());
         } else if (Thumbnail.class.isAssignableFrom(kls)) {
             Thumbnail obj = (Thumbnail) s.get(Thumbnail.class, objId);
-            return imagesContainsPixels(s, images, obj.getPixels(),
-                    pixToImageCache);
+            return containsPixels(index, obj.getPixels());
         } else if (Channel.class.isAssignableFrom(kls)) {
             Channel obj = (Channel) s.get(Channel.class, objId);
-            return imagesContainsPixels(s, images, obj.getPixels(),
-                    pixToImageCache);
+            return containsPixels(index, obj.getPixels());
         } else if (LogicalChannel.class.isAssignableFrom(kls)) {
             LogicalChannel obj = (LogicalChannel) s.get(LogicalChannel.class,
                     objId);
             Iterator<Channel> it = obj.iterateChannels();
             while (it.hasNext()) {
                 Channel ch = it.next();
-                if (images.contains(ch.getPixels().getImage().getId())) {
+                if (containsPixels(index, ch.getPixels())) {
                     return true;
                 }
             }
         } else if (PlaneInfo.class.isAssignableFrom(kls)) {
             PlaneInfo obj = (PlaneInfo) s.get(PlaneInfo.class, objId);
-            return imagesContainsPixels(s, images, obj.getPixels(),
-                    pixToImageCache);
+            return containsPixels(index, obj.getPixels());
         } else if (StatsInfo.class.isAssignableFrom(kls)
                 || QuantumDef.class.isAssignableFrom(kls)
                 || LightPath.class.isAssignableFrom(kls)
@@ -350,48 +367,38 @@ public class BlobShareStore extends ShareStore implements
         }
 
         if (ObjectiveSettings.class.isAssignableFrom(kls)) {
-            ObjectiveSettings obj = (ObjectiveSettings) s.get(
-                    ObjectiveSettings.class, objId);
-            return imagesContainsObjectiveSettings(s, images, obj,
-                    obToImageCache);
+            return index.containsObjectiveSettings(objId);
         } else if (Objective.class.isAssignableFrom(kls)) {
             Objective obj = (Objective) s.get(Objective.class, objId);
-            return imagesContainsInstrument(s, images, obj.getInstrument(),
-                    obToImageCache);
+            return containsInstrument(index, obj.getInstrument());
         } else if (Detector.class.isAssignableFrom(kls)) {
             Detector obj = (Detector) s.get(Detector.class, objId);
-            return imagesContainsInstrument(s, images, obj.getInstrument(),
-                    obToImageCache);
+            return containsInstrument(index, obj.getInstrument());
         } else if (Dichroic.class.isAssignableFrom(kls)) {
             Dichroic obj = (Dichroic) s.get(Dichroic.class, objId);
-            return imagesContainsInstrument(s, images, obj.getInstrument(),
-                    obToImageCache);
+            return containsInstrument(index, obj.getInstrument());
         } else if (FilterSet.class.isAssignableFrom(kls)) {
             FilterSet obj = (FilterSet) s.get(FilterSet.class, objId);
-            return imagesContainsInstrument(s, images, obj.getInstrument(),
-                    obToImageCache);
+            return containsInstrument(index, obj.getInstrument());
         } else if (Filter.class.isAssignableFrom(kls)) {
             Filter obj = (Filter) s.get(Filter.class, objId);
-            return imagesContainsInstrument(s, images, obj.getInstrument(),
-                    obToImageCache);
+            return containsInstrument(index, obj.getInstrument());
         } else if (LightSource.class.isAssignableFrom(kls)) {
             LightSource obj = (LightSource) s.get(LightSource.class, objId);
-            return imagesContainsInstrument(s, images, obj.getInstrument(),
-                    obToImageCache);
+            return containsInstrument(index, obj.getInstrument());
         } else if (Laser.class.isAssignableFrom(kls)) {
             Laser obj = (Laser) s.get(Laser.class, objId);
-            return imagesContainsInstrument(s, images, obj.getInstrument(),
-                    obToImageCache);
+            return containsInstrument(index, obj.getInstrument());
         } else if (LightSettings.class.isAssignableFrom(kls)) {
             LightSettings obj = (LightSettings) s.get(LightSettings.class,
                     objId);
-            return imagesContainsInstrument(s, images, obj.getLightSource()
-                    .getInstrument(), obToImageCache);
+            return containsInstrument(index, obj.getLightSource()
+                    .getInstrument());
         } else if (DetectorSettings.class.isAssignableFrom(kls)) {
             DetectorSettings obj = (DetectorSettings) s.get(
                     DetectorSettings.class, objId);
-            if (imagesContainsInstrument(s, images, obj.getDetector()
-                    .getInstrument(), obToImageCache)) {
+            if (containsInstrument(index, obj.getDetector()
+                    .getInstrument())) {
                 return true;
             } else {
                 List<LogicalChannel> lcs = (List<LogicalChannel>) s
@@ -400,7 +407,7 @@ public class BlobShareStore extends ShareStore implements
                                         + "where l.detectorSettings.id = "
                                         + obj.getId()).list();
                 for (LogicalChannel lc : lcs) {
-                    if (doContains(data, LogicalChannel.class, lc.getId())) {
+                    if (doContains(index, LogicalChannel.class, lc.getId())) {
                         return true;
                     }
                 }
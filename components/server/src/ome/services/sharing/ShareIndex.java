@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.services.sharing;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ome.services.sharing.data.ShareData;
+
+/**
+ * Immutable lookup structure for one version of a share, so that
+ * {@link BlobShareStore#doContains(long, Class, long)} need neither parse
+ * the share's {@link ShareData} nor query the database for every object
+ * checked. Holds the shared object IDs by class and the IDs of the objects
+ * linked to the shared images through which other metadata is reachable.
+ * The IDs are kept as sorted primitive arrays.
+ *
+ * @since 5.4.10
+ */
+public class ShareIndex {
+
+    private static final long[] NONE = new long[0];
+
+    /** The version of the share which was indexed. */
+    public final int version;
+
+    /** The parsed share. */
+    public final ShareData data;
+
+    private final Map<String, long[]> objects;
+
+    private final long[] pixels;
+
+    private final long[] instruments;
+
+    private final long[] objectiveSettings;
+
+    /**
+     * Creates a new index.
+     *
+     * @param version The version of the share.
+     * @param data The parsed share.
+     * @param pixels The IDs of the pixels of the shared images.
+     * @param instruments The IDs of the instruments of the shared images.
+     * @param objectiveSettings The IDs of the objective settings of the
+     *        shared images.
+     */
+    public ShareIndex(int version, ShareData data, Collection<Long> pixels,
+            Collection<Long> instruments, Collection<Long> objectiveSettings) {
+        this.version = version;
+        this.data = data;
+        final Map<String, long[]> objects = new HashMap<String, long[]>();
+        if (data.objectMap != null) {
+            for (final Map.Entry<String, List<Long>> entry
+                    : data.objectMap.entrySet()) {
+                objects.put(entry.getKey(), sorted(entry.getValue()));
+            }
+        }
+        this.objects = Collections.unmodifiableMap(objects);
+        this.pixels = sorted(pixels);
+        this.instruments = sorted(instruments);
+        this.objectiveSettings = sorted(objectiveSettings);
+    }
+
+    /**
+     * @param className The name of a model class.
+     * @param id An object ID.
+     * @return if the object was added to the share
+     */
+    public boolean contains(String className, long id) {
+        final long[] ids = objects.get(className);
+        return ids != null && Arrays.binarySearch(ids, id) >= 0;
+    }
+
+    /**
+     * @param id A pixels ID.
+     * @return if the pixels belong to a shared image
+     */
+    public boolean containsPixels(long id) {
+        return Arrays.binarySearch(pixels, id) >= 0;
+    }
+
+    /**
+     * @param id An instrument ID.
+     * @return if the instrument is that of a shared image
+     */
+    public boolean containsInstrument(long id) {
+        return Arrays.binarySearch(instruments, id) >= 0;
+    }
+
+    /**
+     * @param id An objective settings ID.
+     * @return if the objective settings are those of a shared image
+     */
+    public boolean containsObjectiveSettings(long id) {
+        return Arrays.binarySearch(objectiveSettings, id) >= 0;
+    }
+
+    private static long[] sorted(Collection<Long> ids) {
+        if (ids == null || ids.isEmpty()) {
+            return NONE;
+        }
+        final long[] sorted = new long[ids.size()];
+        int index = 0;
+        for (final Long id : ids) {
+            if (id != null) {
+                sorted[index++] = id;
+            }
+        }
+        final long[] trimmed = index == sorted.length ? sorted
+                : Arrays.copyOf(sorted, index);
+        Arrays.sort(trimmed);
+        return trimmed;
+    }
+}
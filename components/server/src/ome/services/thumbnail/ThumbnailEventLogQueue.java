@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.services.thumbnail;
+
+import ome.model.core.Pixels;
+import ome.model.meta.EventLog;
+import ome.services.eventlogs.EventLogQueue;
+import ome.system.metrics.Metrics;
+
+/**
+ * {@link EventLogQueue} for {@link Pixels} INSERT events which, unlike the
+ * indexer, starts from the newest {@link EventLog} when first run rather than
+ * working through the whole history of the server. Thumbnails for existing
+ * images continue to be generated on demand.
+ *
+ * @since 5.4.10
+ */
+public class ThumbnailEventLogQueue extends EventLogQueue {
+
+    public ThumbnailEventLogQueue(Metrics metrics, int max) {
+        super(metrics, max, new String[]{Pixels.class.getName()},
+                new String[]{"INSERT"});
+    }
+
+    /**
+     * Sets the current id to that of the newest {@link EventLog}.
+     */
+    @Override
+    public void initialize() {
+        final EventLog last = lastEventLog();
+        if (last != null) {
+            setCurrentId(last.getId());
+            log.info("Starting thumbnail pre-generation from EventLog:{}",
+                    last.getId());
+        }
+    }
+
+}
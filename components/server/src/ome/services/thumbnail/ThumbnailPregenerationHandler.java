@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.services.thumbnail;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import ome.api.IQuery;
+import ome.model.core.Pixels;
+import ome.model.meta.EventLog;
+import ome.parameters.Parameters;
+import ome.services.eventlogs.EventLogLoader;
+import ome.services.util.Executor.SimpleWork;
+import ome.system.ServiceFactory;
+import ome.util.SqlAction;
+
+import org.hibernate.Session;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Loads the ids of newly inserted {@link Pixels} from the event log for
+ * processing by the {@link ThumbnailPregenerationThread}, and decides which of
+ * them are ready to have their thumbnails generated.
+ *
+ * @since 5.4.10
+ */
+public class ThumbnailPregenerationHandler extends SimpleWork {
+
+    /**
+     * Owner and group under whose session thumbnails for a set of
+     * {@link Pixels} should be generated.
+     */
+    public static class Target {
+
+        public final String owner;
+
+        public final String group;
+
+        public Target(String owner, String group) {
+            this.owner = owner;
+            this.group = group;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Target)) {
+                return false;
+            }
+            final Target other = (Target) obj;
+            return owner.equals(other.owner) && group.equals(other.group);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * owner.hashCode() + group.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return owner + "@" + group;
+        }
+    }
+
+    /**
+     * Result of {@link ThumbnailPregenerationHandler#classify(Collection, IQuery)}.
+     */
+    public static class Classification {
+
+        /** Ready pixels ids per owner and group. */
+        public final Map<Target, Set<Long>> ready =
+                new HashMap<Target, Set<Long>>();
+
+        /** Pixels ids whose import or pyramid generation is still running. */
+        public final Set<Long> pending = new HashSet<Long>();
+
+        /** Pixels ids which no longer exist. */
+        public final Set<Long> missing = new HashSet<Long>();
+    }
+
+    final protected EventLogLoader loader;
+
+    public ThumbnailPregenerationHandler(EventLogLoader loader) {
+        super("ThumbnailPregenerationHandler", "process");
+        this.loader = loader;
+    }
+
+    /**
+     * Since these instances are used repeatedly, we need to check for
+     * already set SqlAction
+     */
+    @Override
+    public synchronized void setSqlAction(SqlAction sql) {
+        if (getSqlAction() == null) {
+            super.setSqlAction(sql);
+        }
+    }
+
+    /**
+     * Drains the {@link EventLogLoader} of its current batch and returns the
+     * {@link Pixels} ids which were found.
+     */
+    @Transactional(readOnly = false)
+    public Object doWork(Session session, ServiceFactory sf) {
+        final List<Long> ids = new ArrayList<Long>();
+        while (loader.hasNext()) {
+            try {
+                final EventLog el = loader.next();
+                if (el != null) {
+                    ids.add(el.getEntityId());
+                }
+            } catch (NoSuchElementException nsee) {
+                break;
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Splits the given {@link Pixels} ids into those which can have their
+     * thumbnails generated now, those which must wait and those which have
+     * been deleted in the meantime. Pixels are only considered ready once
+     * every channel has its {@link ome.model.stats.StatsInfo} and the owner
+     * has rendering settings. For images which need a pyramid the statistics
+     * are only set once the pyramid has been written, so this also skips
+     * images whose pyramid is still being built.
+     */
+    public Classification classify(Collection<Long> ids, IQuery query) {
+        final Classification rv = new Classification();
+        if (ids.isEmpty()) {
+            return rv;
+        }
+        final Set<Long> remaining = new HashSet<Long>(ids);
+
+        final List<Object[]> owners = query.projection(
+                "select p.id, o.omeName, g.name from Pixels p " +
+                "join p.details.owner o join p.details.group g " +
+                "where p.id in (:ids)", new Parameters().addIds(ids));
+
+        final Set<Long> incomplete = new HashSet<Long>();
+        for (Object[] row : query.projection(
+                "select distinct ch.pixels.id from Channel ch " +
+                "where ch.pixels.id in (:ids) and ch.statsInfo is null",
+                new Parameters().addIds(ids))) {
+            incomplete.add((Long) row[0]);
+        }
+
+        final Set<Long> withSettings = new HashSet<Long>();
+        for (Object[] row : query.projection(
+                "select distinct r.pixels.id from RenderingDef r " +
+                "where r.pixels.id in (:ids) " +
+                "and r.details.owner.id = r.pixels.details.owner.id",
+                new Parameters().addIds(ids))) {
+            withSettings.add((Long) row[0]);
+        }
+
+        for (Object[] row : owners) {
+            final Long id = (Long) row[0];
+            remaining.remove(id);
+            if (incomplete.contains(id) || !withSettings.contains(id)) {
+                rv.pending.add(id);
+                continue;
+            }
+            final Target target = new Target((String) row[1], (String) row[2]);
+            Set<Long> set = rv.ready.get(target);
+            if (set == null) {
+                set = new HashSet<Long>();
+                rv.ready.put(target, set);
+            }
+            set.add(id);
+        }
+        rv.missing.addAll(remaining);
+        return rv;
+    }
+
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.services.thumbnail;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ome.api.ThumbnailStore;
+import ome.model.core.Pixels;
+import ome.model.meta.EventLog;
+import ome.services.sessions.SessionManager;
+import ome.services.thumbnail.ThumbnailPregenerationHandler.Classification;
+import ome.services.thumbnail.ThumbnailPregenerationHandler.Target;
+import ome.services.util.ExecutionThread;
+import ome.services.util.Executor;
+import ome.system.Principal;
+import ome.system.ServiceFactory;
+import ome.system.metrics.Counter;
+import ome.system.metrics.Metrics;
+import ome.system.metrics.Timer;
+
+import org.hibernate.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Background task which pre-generates thumbnails of a configurable set of
+ * sizes for newly imported images, so that clients browsing at sizes other
+ * than the default one generated during import do not have to wait for
+ * each thumbnail to be rendered on demand.
+ *
+ * New {@link Pixels} are found via INSERT {@link EventLog} entries in the same
+ * way as the {@link ome.services.pixeldata.PixelDataThread} finds PIXELDATA
+ * entries. They are held in a {@link ThumbnailQueue} until their import and
+ * any pyramid generation has finished. Each run is skipped while the system
+ * load average per processor is above {@link #maxLoad}.
+ *
+ * @since 5.4.10
+ */
+public class ThumbnailPregenerationThread extends ExecutionThread {
+
+    private final static Logger log = LoggerFactory.getLogger(ThumbnailPregenerationThread.class);
+
+    private final static Principal DEFAULT_PRINCIPAL = new Principal("root",
+            "system", "Task");
+
+    /** Longest-side sizes of the thumbnails to generate. Empty disables. */
+    private final List<Integer> sizes;
+
+    /** Maximum number of {@link Pixels} to process per run. */
+    private final int batch;
+
+    /** Load average per processor above which runs are skipped. */
+    private final double maxLoad;
+
+    private final ThumbnailQueue queue;
+
+    private final OperatingSystemMXBean os =
+            ManagementFactory.getOperatingSystemMXBean();
+
+    private final Timer batchTimer, generateTimer;
+
+    private final Counter generated, skippedRuns;
+
+    /**
+     * Main constructor. No arguments can be null.
+     *
+     * @param sizes the longest-side sizes which should be generated. Blank
+     *        entries are ignored; if none remain the thread is disabled.
+     */
+    public ThumbnailPregenerationThread(SessionManager manager,
+            Executor executor, ThumbnailPregenerationHandler handler,
+            ThumbnailQueue queue, String[] sizes, int batch, double maxLoad,
+            Metrics metrics) {
+        super(manager, executor, handler, DEFAULT_PRINCIPAL);
+        this.queue = queue;
+        this.sizes = new ArrayList<Integer>();
+        for (String size : sizes) {
+            if (size != null && size.trim().length() > 0) {
+                this.sizes.add(Integer.valueOf(size.trim()));
+            }
+        }
+        this.batch = batch;
+        this.maxLoad = maxLoad;
+        this.batchTimer = metrics.timer(this, "batch");
+        this.generateTimer = metrics.timer(this, "generate");
+        this.generated = metrics.counter(this, "generated");
+        this.skippedRuns = metrics.counter(this, "skippedRuns");
+    }
+
+    /**
+     * Called by Spring on creation.
+     */
+    public void start() {
+        if (sizes.isEmpty()) {
+            log.info("Initializing ThumbnailPregenerationThread (disabled)");
+        } else {
+            log.info(String.format(
+                    "Initializing ThumbnailPregenerationThread (sizes=%s)",
+                    sizes));
+        }
+    }
+
+    /**
+     * Called by Spring on destruction.
+     */
+    public void stop() {
+        log.info("Shutting down ThumbnailPregenerationThread");
+        ((ThumbnailPregenerationHandler) this.work).loader.setStop(true);
+    }
+
+    /**
+     * Returns {@code true} if the system is too busy for another run.
+     */
+    protected boolean isOverloaded() {
+        final double load = os.getSystemLoadAverage();
+        if (load < 0) {
+            return false; // Not available on this platform
+        }
+        return load / os.getAvailableProcessors() > maxLoad;
+    }
+
+    @Override
+    public void doRun() {
+        if (sizes.isEmpty()) {
+            return;
+        }
+
+        @SuppressWarnings("unchecked")
+        final List<Long> found = (List<Long>)
+                executor.execute(getPrincipal(), work);
+        for (Long id : found) {
+            queue.add(id);
+        }
+
+        if (isOverloaded()) {
+            skippedRuns.inc();
+            log.debug("System load too high; {} queued", queue.size());
+            return;
+        }
+
+        final List<Long> ids = queue.poll(batch, System.currentTimeMillis());
+        if (ids.isEmpty()) {
+            return;
+        }
+
+        final Timer.Context timer = batchTimer.time();
+        try {
+            final Map<String, String> callContext = new HashMap<String, String>();
+            callContext.put("omero.group", "-1");
+            final Classification c = (Classification) executor.execute(
+                    callContext, getPrincipal(),
+                    new Executor.SimpleWork(this, "classify") {
+                @Transactional(readOnly = true)
+                public Object doWork(Session session, ServiceFactory sf) {
+                    return ((ThumbnailPregenerationHandler) work).classify(
+                            ids, sf.getQueryService());
+                }
+            });
+
+            final long now = System.currentTimeMillis();
+            for (Long id : c.pending) {
+                queue.defer(id, now);
+            }
+            for (Long id : c.missing) {
+                queue.done(id);
+            }
+            for (Map.Entry<Target, Set<Long>> entry : c.ready.entrySet()) {
+                generate(entry.getKey(), entry.getValue());
+            }
+            log.info(String.format("Processed %s pixels (deferred=%s, " +
+                    "queued=%s)", ids.size(), c.pending.size(), queue.size()));
+        } finally {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Generates all configured thumbnail sizes for the given pixels in a
+     * session belonging to their owner, so that the thumbnails are found
+     * when the owner's rendering settings are used.
+     */
+    private void generate(Target target, final Set<Long> pixelsIds) {
+        final Timer.Context timer = generateTimer.time();
+        final ome.model.meta.Session session = manager.createWithAgent(
+                new Principal(target.owner, target.group, "Task"),
+                "ThumbnailPregeneration", null);
+        try {
+            executor.execute(new Principal(session.getUuid()),
+                    new Executor.SimpleWork(this, "createThumbnails", target) {
+                @Transactional(readOnly = false)
+                public Object doWork(Session s, ServiceFactory sf) {
+                    final ThumbnailStore tb = sf.createThumbnailService();
+                    for (Integer size : sizes) {
+                        tb.createThumbnailsByLongestSideSet(size, pixelsIds);
+                    }
+                    return null;
+                }
+            });
+            for (Long id : pixelsIds) {
+                queue.done(id);
+                generated.inc();
+            }
+        } catch (Exception e) {
+            log.warn("Failed to generate thumbnails for " + target, e);
+            final long now = System.currentTimeMillis();
+            for (Long id : pixelsIds) {
+                queue.defer(id, now);
+            }
+        } finally {
+            manager.close(session.getUuid());
+            timer.stop();
+        }
+    }
+
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.services.thumbnail;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import ome.model.core.Pixels;
+import ome.system.metrics.Counter;
+import ome.system.metrics.Metrics;
+import ome.system.metrics.NullMetrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Thread-safe, prioritised queue of {@link Pixels} ids which are awaiting
+ * thumbnail pre-generation. Ids which have not been attempted yet are handed
+ * out before those which had to be deferred, and amongst those the most
+ * recently imported (highest id) come first. Deferred ids are not handed out
+ * again until their back-off has expired, doubling with every attempt up to
+ * a maximum. Once {@link #maxAttempts} is reached, an id is dropped.
+ * Deferred ids wait apart from the others, soonest first, so that handing
+ * out ids does not go through those still backing off.
+ *
+ * The queue is held only in memory: the ids queued or in flight when the
+ * server stops are not pre-generated.
+ *
+ * Ids which have been handed out by {@link #poll(int, long)} are considered
+ * "in flight" until either {@link #done(long)} or {@link #defer(long, long)}
+ * is called for them.
+ *
+ * @since 5.4.10
+ */
+public class ThumbnailQueue {
+
+    private final static Logger log = LoggerFactory.getLogger(ThumbnailQueue.class);
+
+    /**
+     * Queue state for a single {@link Pixels} id.
+     */
+    static class Entry implements Comparable<Entry> {
+
+        final long pixelsId;
+
+        int attempts = 0;
+
+        long notBefore = 0L;
+
+        Entry(long pixelsId) {
+            this.pixelsId = pixelsId;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            if (attempts != other.attempts) {
+                return attempts < other.attempts ? -1 : 1;
+            }
+            if (pixelsId != other.pixelsId) {
+                return pixelsId > other.pixelsId ? -1 : 1;
+            }
+            return 0;
+        }
+    }
+
+    /** Ids which may be handed out. */
+    private final PriorityQueue<Entry> queue = new PriorityQueue<Entry>();
+
+    /** Deferred ids whose back-off may not have expired, soonest first. */
+    private final PriorityQueue<Entry> waiting = new PriorityQueue<Entry>(11,
+            new Comparator<Entry>() {
+                @Override
+                public int compare(Entry first, Entry second) {
+                    if (first.notBefore != second.notBefore) {
+                        return first.notBefore < second.notBefore ? -1 : 1;
+                    }
+                    return first.compareTo(second);
+                }
+            });
+
+    /** All ids which are either queued or in flight. */
+    private final Map<Long, Entry> entries = new HashMap<Long, Entry>();
+
+    /** Number of times an id will be handed out before it is dropped. */
+    private final int maxAttempts;
+
+    /** Initial back-off in milliseconds after a deferral. */
+    private final long backOff;
+
+    /** Upper limit in milliseconds for the back-off. */
+    private final long maxBackOff;
+
+    private final Counter depth, dropped;
+
+    public ThumbnailQueue(int maxAttempts, long backOff, long maxBackOff) {
+        this(maxAttempts, backOff, maxBackOff, new NullMetrics());
+    }
+
+    public ThumbnailQueue(int maxAttempts, long backOff, long maxBackOff,
+            Metrics metrics) {
+        this.maxAttempts = maxAttempts;
+        this.backOff = backOff;
+        this.maxBackOff = maxBackOff;
+        this.depth = metrics.counter(this, "depth");
+        this.dropped = metrics.counter(this, "dropped");
+    }
+
+    /**
+     * Adds a {@link Pixels} id to the queue unless it is already queued or in
+     * flight.
+     *
+     * @return {@code true} if the id was newly added.
+     */
+    public synchronized boolean add(long pixelsId) {
+        if (entries.containsKey(pixelsId)) {
+            return false;
+        }
+        final Entry entry = new Entry(pixelsId);
+        entries.put(pixelsId, entry);
+        queue.add(entry);
+        depth.inc();
+        return true;
+    }
+
+    /**
+     * Removes and returns up to {@code max} ids, in priority order, whose
+     * back-off has expired at the time {@code now}.
+     */
+    public synchronized List<Long> poll(int max, long now) {
+        while (!waiting.isEmpty() && waiting.peek().notBefore <= now) {
+            queue.add(waiting.poll());
+        }
+        final List<Long> rv = new ArrayList<Long>();
+        while (rv.size() < max && !queue.isEmpty()) {
+            final Entry entry = queue.poll();
+            entry.attempts++;
+            rv.add(entry.pixelsId);
+            depth.dec();
+        }
+        return rv;
+    }
+
+    /**
+     * Marks an in-flight id as finished, whether successfully or not.
+     */
+    public synchronized void done(long pixelsId) {
+        entries.remove(pixelsId);
+    }
+
+    /**
+     * Returns an in-flight id to the queue so that it will be tried again
+     * once its back-off has expired.
+     *
+     * @return {@code false} if the id has been dropped since it has reached
+     *         the maximum number of attempts.
+     */
+    public synchronized boolean defer(long pixelsId, long now) {
+        final Entry entry = entries.get(pixelsId);
+        if (entry == null) {
+            return false;
+        }
+        if (entry.attempts >= maxAttempts) {
+            entries.remove(pixelsId);
+            dropped.inc();
+            log.warn("Dropping Pixels:{} after {} attempts",
+                    pixelsId, entry.attempts);
+            return false;
+        }
+        final int shift = Math.min(entry.attempts - 1, 30);
+        entry.notBefore = now + Math.min(maxBackOff, backOff << shift);
+        waiting.add(entry);
+        depth.inc();
+        return true;
+    }
+
+    /**
+     * Returns the number of ids which are queued, excluding those in flight.
+     */
+    public synchronized int size() {
+        return queue.size() + waiting.size();
+    }
+
+}
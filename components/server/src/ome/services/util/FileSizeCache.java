@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.services.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Iterables;
+
+/**
+ * Notes the sizes of the files in the binary repository that are not recorded in the database, such as pixel files
+ * and pyramids, so that repeated disk usage queries need not check every file. Files whose size is not known are
+ * checked in parallel. These files may be written by other server processes, for instance pyramids by the pixel data
+ * service, which cannot invalidate the noted sizes. So, files that do not exist or that were modified too recently,
+ * likely still being written, are not noted, and a noted size is trusted only for a limited time. Files deleted by
+ * this process should be {@link #invalidate(String) invalidated}. Optionally, the noted sizes are periodically checked
+ * in parallel against the filesystem to correct and report any drift.
+ * @since 5.4.10
+ */
+public class FileSizeCache {
+
+    private static final Logger log = LoggerFactory.getLogger(FileSizeCache.class);
+
+    /* how many files each parallel task checks */
+    private static final int BATCH_SIZE = 64;
+
+    private final Cache<String, Long> sizes;
+
+    private final ExecutorService executor;
+
+    private final ScheduledExecutorService reconciler;
+
+    private final long settleTime;
+
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), drifts = new AtomicLong();
+
+    /**
+     * Creates a cache that notes no sizes and checks files one at a time.
+     */
+    public FileSizeCache() {
+        this(1, 0, 0, 0);
+    }
+
+    /**
+     * Creates a new cache.
+     * @param threads how many files may be checked at once
+     * @param maxEntries how many file sizes to note; if not positive then no sizes are noted
+     * @param timeToLive for how many milliseconds a noted size is trusted
+     * @param reconcileInterval how often in milliseconds to check all the noted sizes; if not positive then never
+     */
+    public FileSizeCache(int threads, long maxEntries, long timeToLive, long reconcileInterval) {
+        this(threads, maxEntries, timeToLive, reconcileInterval, 0);
+    }
+
+    /**
+     * Creates a new cache.
+     * @param threads how many files may be checked at once
+     * @param maxEntries how many file sizes to note; if not positive then no sizes are noted
+     * @param timeToLive for how many milliseconds a noted size is trusted
+     * @param reconcileInterval how often in milliseconds to check all the noted sizes; if not positive then never
+     * @param settleTime for how many milliseconds a file must not have been modified for its size to be noted
+     */
+    public FileSizeCache(int threads, long maxEntries, long timeToLive, long reconcileInterval, long settleTime) {
+        this.settleTime = settleTime;
+        final AtomicInteger threadCount = new AtomicInteger();
+        final ThreadFactory threadFactory = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "FileSizeCache-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        executor = threads > 1 ? Executors.newFixedThreadPool(threads, threadFactory) : null;
+        if (maxEntries > 0 && timeToLive > 0) {
+            sizes = CacheBuilder.newBuilder()
+                    .maximumSize(maxEntries)
+                    .expireAfterWrite(timeToLive, TimeUnit.MILLISECONDS)
+                    .build();
+        } else {
+            sizes = null;
+        }
+        if (sizes != null && reconcileInterval > 0) {
+            reconciler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+            reconciler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        reconcile();
+                    } catch (Throwable t) {
+                        log.warn("Failed to reconcile file sizes", t);
+                    }
+                }
+            }, reconcileInterval, reconcileInterval, TimeUnit.MILLISECONDS);
+        } else {
+            reconciler = null;
+        }
+    }
+
+    /**
+     * Stop the threads of this cache.
+     */
+    public void stop() {
+        if (reconciler != null) {
+            reconciler.shutdownNow();
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Get the size of the file at the given path from the filesystem.
+     * @param path a file path
+     * @return the file's size, or {@code 0} if it does not exist
+     */
+    private static long getFileSize(String path) {
+        final File file = new File(path);
+        return file.exists() ? file.length() : 0;
+    }
+
+    /**
+     * Get the size of the file at the given path from the filesystem.
+     * @param path a file path
+     * @param unsettled to which to add the path if the file exists but was modified too recently for its size to be
+     * noted, may be {@code null}
+     * @return the file's size, or {@code 0} if it does not exist
+     */
+    private long getFileSize(String path, Set<String> unsettled) {
+        final long size = getFileSize(path);
+        if (unsettled != null && size > 0 && settleTime > 0 &&
+                System.currentTimeMillis() - new File(path).lastModified() < settleTime) {
+            unsettled.add(path);
+        }
+        return size;
+    }
+
+    /**
+     * Get the sizes of the files at the given paths from the filesystem, in parallel if so configured.
+     * @param paths file paths
+     * @param unsettled to which to add the paths of the files modified too recently for their size to be noted,
+     * may be {@code null}
+     * @return the files' sizes, {@code 0} for those that do not exist
+     */
+    private Map<String, Long> getFileSizes(Collection<String> paths, final Set<String> unsettled) {
+        final Map<String, Long> fileSizes = new HashMap<String, Long>();
+        if (executor == null || paths.size() <= BATCH_SIZE) {
+            for (final String path : paths) {
+                fileSizes.put(path, getFileSize(path, unsettled));
+            }
+            return fileSizes;
+        }
+        final List<Future<Map<String, Long>>> batches = new ArrayList<Future<Map<String, Long>>>();
+        for (final List<String> batch : Iterables.partition(paths, BATCH_SIZE)) {
+            batches.add(executor.submit(new Callable<Map<String, Long>>() {
+                @Override
+                public Map<String, Long> call() {
+                    final Map<String, Long> batchSizes = new HashMap<String, Long>();
+                    for (final String path : batch) {
+                        batchSizes.put(path, getFileSize(path, unsettled));
+                    }
+                    return batchSizes;
+                }
+            }));
+        }
+        try {
+            for (final Future<Map<String, Long>> batch : batches) {
+                fileSizes.putAll(batch.get());
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while checking file sizes", ie);
+        } catch (ExecutionException ee) {
+            throw new RuntimeException("failed to check file sizes", ee.getCause());
+        }
+        return fileSizes;
+    }
+
+    /**
+     * Get the sizes of the files at the given paths.
+     * @param paths file paths
+     * @return the files' sizes, {@code 0} for those that do not exist
+     */
+    public Map<String, Long> getSizes(Collection<String> paths) {
+        if (sizes == null) {
+            return getFileSizes(paths, null);
+        }
+        final Map<String, Long> fileSizes = new HashMap<String, Long>(sizes.getAllPresent(paths));
+        hits.addAndGet(fileSizes.size());
+        if (fileSizes.size() < paths.size()) {
+            final List<String> unknownPaths = new ArrayList<String>(paths.size() - fileSizes.size());
+            for (final String path : paths) {
+                if (!fileSizes.containsKey(path)) {
+                    unknownPaths.add(path);
+                }
+            }
+            misses.addAndGet(unknownPaths.size());
+            final Set<String> unsettled = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            for (final Map.Entry<String, Long> fileSize : getFileSizes(unknownPaths, unsettled).entrySet()) {
+                fileSizes.put(fileSize.getKey(), fileSize.getValue());
+                if (fileSize.getValue() > 0 && !unsettled.contains(fileSize.getKey())) {
+                    sizes.put(fileSize.getKey(), fileSize.getValue());
+                }
+            }
+        }
+        return fileSizes;
+    }
+
+    /**
+     * @return how many file sizes have been found already noted
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return how many file sizes have had to be checked on the filesystem
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return how many noted file sizes have been found to be wrong by {@link #reconcile()}
+     */
+    public long getDrifts() {
+        return drifts.get();
+    }
+
+    /**
+     * Forget the size of the file at the given path, for instance because it is rewritten or deleted.
+     * @param path a file path
+     */
+    public void invalidate(String path) {
+        if (sizes != null) {
+            sizes.invalidate(path);
+        }
+    }
+
+    /**
+     * Check every noted size against the filesystem, correcting those that have drifted.
+     * @return how many noted sizes were found to be wrong
+     */
+    public int reconcile() {
+        if (sizes == null) {
+            return 0;
+        }
+        final Map<String, Long> noted = new HashMap<String, Long>(sizes.asMap());
+        int driftCount = 0;
+        final Set<String> unsettled = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        for (final Map.Entry<String, Long> fileSize : getFileSizes(noted.keySet(), unsettled).entrySet()) {
+            final String path = fileSize.getKey();
+            final long actual = fileSize.getValue();
+            if (actual != noted.get(path)) {
+                driftCount++;
+                if (actual > 0 && !unsettled.contains(path)) {
+                    sizes.put(path, actual);
+                } else {
+                    sizes.invalidate(path);
+                }
+            }
+        }
+        drifts.addAndGet(driftCount);
+        if (driftCount > 0) {
+            log.info("Corrected {} of {} noted file sizes", driftCount, noted.size());
+        } else {
+            log.debug("Checked {} noted file sizes", noted.size());
+        }
+        return driftCount;
+    }
+}
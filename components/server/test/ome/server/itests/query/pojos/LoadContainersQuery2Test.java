@@ -7,7 +7,10 @@
 package ome.server.itests.query.pojos;
 
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import ome.model.IObject;
@@ -20,6 +23,8 @@ import ome.parameters.Parameters;
 import ome.server.itests.AbstractManagedContextTest;
 import ome.services.query.PojosLoadHierarchyQueryDefinition;
 
+import org.perf4j.LoggingStopWatch;
+import org.perf4j.StopWatch;
 import org.testng.annotations.Test;
 
 /**
@@ -157,6 +162,59 @@ public class LoadContainersQuery2Test extends AbstractManagedContextTest {
         assertEquals(10, res.size());
     }
 
+    @Test(groups = "longrunning")
+    public void testCountsForLargeHierarchy() throws Exception {
+
+        loginNewUser();
+        long uid = iAdmin.getEventContext().getCurrentUserId();
+
+        Map<String, Integer> imageCounts = new HashMap<String, Integer>();
+        for (int i = 0; i < 20; i++) {
+            Project p = new Project("large hierarchy");
+            for (int j = 0; j < 100; j++) {
+                Dataset d = new Dataset("large hierarchy " + i + "." + j);
+                for (int k = 0; k < j % 4; k++) {
+                    d.linkImage(new Image("large hierarchy"));
+                }
+                imageCounts.put(d.getName(), j % 4);
+                p.linkDataset(d);
+            }
+            iUpdate.saveObject(p);
+        }
+
+        StopWatch stopWatch = new LoggingStopWatch(
+                "loadContainerHierarchy.largeHierarchy");
+        Set<IObject> ps = iContainer.loadContainerHierarchy(Project.class,
+                null, new Parameters().exp(uid));
+        stopWatch.stop();
+        assertEquals(20, ps.size());
+
+        Set<Long> ids = new HashSet<Long>();
+        for (IObject o : ps) {
+            for (Dataset d : ((Project) o).linkedDatasetList()) {
+                ids.add(d.getId());
+                assertEquals(imageCounts.get(d.getName()),
+                        d.getImageLinksCountPerOwner().get(uid) == null
+                        ? Integer.valueOf(0)
+                        : Integer.valueOf(d.getImageLinksCountPerOwner()
+                                .get(uid).intValue()));
+            }
+        }
+        assertEquals(2000, ids.size());
+
+        stopWatch = new LoggingStopWatch("getCollectionCount.largeHierarchy");
+        Map<Long, Integer> counts = iContainer.getCollectionCount(
+                Dataset.class.getName(), Dataset.IMAGELINKS, ids, null);
+        stopWatch.stop();
+        assertEquals(2000, counts.size());
+        for (IObject o : ps) {
+            for (Dataset d : ((Project) o).linkedDatasetList()) {
+                assertEquals(imageCounts.get(d.getName()),
+                        counts.get(d.getId()));
+            }
+        }
+    }
+
     // Helpers
     // =======================================
 
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package ome.server.utests;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import ome.services.util.FileSizeCache;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test
+public class FileSizeCacheTest {
+
+    private File dir;
+
+    private FileSizeCache cache;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("FileSizeCacheTest").toFile();
+        cache = new FileSizeCache(4, 1000, 60000, 0);
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        cache.stop();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    private String write(String name, int size) throws Exception {
+        final File file = new File(dir, name);
+        Files.write(file.toPath(), new byte[size]);
+        return file.getPath();
+    }
+
+    public void testSizesCheckedInParallel() throws Exception {
+        final List<String> paths = new ArrayList<String>();
+        for (int i = 0; i < 300; i++) {
+            paths.add(write(Integer.toString(i), i));
+        }
+        paths.add(new File(dir, "missing").getPath());
+        final Map<String, Long> sizes = cache.getSizes(paths);
+        Assert.assertEquals(sizes.size(), 301);
+        for (int i = 0; i < 300; i++) {
+            Assert.assertEquals(sizes.get(paths.get(i)).longValue(), i);
+        }
+        Assert.assertEquals(sizes.get(paths.get(300)).longValue(), 0);
+        Assert.assertEquals(cache.getMisses(), 301);
+    }
+
+    public void testNotedSizeReused() throws Exception {
+        final String path = write("a", 10);
+        cache.getSizes(Collections.singleton(path));
+        Files.write(new File(path).toPath(), new byte[20]);
+        Assert.assertEquals(cache.getSizes(Collections.singleton(path)).get(path).longValue(), 10);
+        Assert.assertEquals(cache.getHits(), 1);
+        cache.invalidate(path);
+        Assert.assertEquals(cache.getSizes(Collections.singleton(path)).get(path).longValue(), 20);
+    }
+
+    public void testMissingFileNotNoted() throws Exception {
+        final String path = new File(dir, "later").getPath();
+        Assert.assertEquals(cache.getSizes(Collections.singleton(path)).get(path).longValue(), 0);
+        write("later", 5);
+        Assert.assertEquals(cache.getSizes(Collections.singleton(path)).get(path).longValue(), 5);
+    }
+
+    public void testRecentlyModifiedFileNotNoted() throws Exception {
+        final FileSizeCache settling = new FileSizeCache(4, 1000, 60000, 0, 60000);
+        try {
+            final String path = write("growing", 10);
+            Assert.assertEquals(settling.getSizes(Collections.singleton(path)).get(path).longValue(), 10);
+            Files.write(new File(path).toPath(), new byte[20]);
+            Assert.assertEquals(settling.getSizes(Collections.singleton(path)).get(path).longValue(), 20);
+            Assert.assertEquals(settling.getHits(), 0);
+            Assert.assertTrue(new File(path).setLastModified(System.currentTimeMillis() - 120000));
+            settling.getSizes(Collections.singleton(path));
+            Assert.assertEquals(settling.getSizes(Collections.singleton(path)).get(path).longValue(), 20);
+            Assert.assertEquals(settling.getHits(), 1);
+        } finally {
+            settling.stop();
+        }
+    }
+
+    public void testReconcile() throws Exception {
+        final String changed = write("changed", 10);
+        final String deleted = write("deleted", 10);
+        final String same = write("same", 10);
+        final List<String> paths = new ArrayList<String>();
+        paths.add(changed);
+        paths.add(deleted);
+        paths.add(same);
+        cache.getSizes(paths);
+        Files.write(new File(changed).toPath(), new byte[30]);
+        Assert.assertTrue(new File(deleted).delete());
+        Assert.assertEquals(cache.reconcile(), 2);
+        final Map<String, Long> sizes = cache.getSizes(paths);
+        Assert.assertEquals(sizes.get(changed).longValue(), 30);
+        Assert.assertEquals(sizes.get(deleted).longValue(), 0);
+        Assert.assertEquals(sizes.get(same).longValue(), 10);
+    }
+}
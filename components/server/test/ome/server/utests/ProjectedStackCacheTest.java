@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package ome.server.utests;
+
+import ome.services.projection.ProjectedStackCache;
+import ome.services.projection.ProjectedStackCache.Key;
+import ome.system.metrics.NullMetrics;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test(groups = { "rendering" })
+public class ProjectedStackCacheTest {
+
+    private static Key key(long pixelsId, int channel) {
+        return new Key(pixelsId, 0, 0, 1, 0, 9, channel);
+    }
+
+    public void testHit() {
+        ProjectedStackCache cache =
+                new ProjectedStackCache(1000, new NullMetrics());
+        byte[] plane = new byte[10];
+        Assert.assertNull(cache.get(key(1, 0)));
+        cache.put(key(1, 0), plane);
+        Assert.assertSame(cache.get(key(1, 0)), plane);
+        Assert.assertNull(cache.get(key(1, 1)));
+        Assert.assertNull(cache.get(new Key(1, 0, 0, 2, 0, 9, 0)));
+    }
+
+    public void testSizeBound() {
+        ProjectedStackCache cache =
+                new ProjectedStackCache(100, new NullMetrics());
+        for (int c = 0; c < 10; c++) {
+            cache.put(key(1, c), new byte[40]);
+        }
+        Assert.assertTrue(cache.size() <= 2);
+    }
+
+    public void testInvalidate() {
+        ProjectedStackCache cache =
+                new ProjectedStackCache(1000, new NullMetrics());
+        cache.put(key(1, 0), new byte[10]);
+        cache.put(key(1, 1), new byte[10]);
+        cache.put(key(2, 0), new byte[10]);
+        cache.invalidate(1);
+        Assert.assertNull(cache.get(key(1, 0)));
+        Assert.assertNull(cache.get(key(1, 1)));
+        Assert.assertNotNull(cache.get(key(2, 0)));
+    }
+
+    public void testDisabled() {
+        ProjectedStackCache cache = new ProjectedStackCache();
+        Assert.assertFalse(cache.isEnabled());
+        cache.put(key(1, 0), new byte[10]);
+        Assert.assertNull(cache.get(key(1, 0)));
+    }
+}
@@ -10,7 +10,9 @@ import java.util.Arrays;
 
 import junit.framework.TestCase;
 import ome.conditions.ApiUsageException;
+import ome.model.containers.Dataset;
 import ome.model.containers.Project;
+import ome.model.core.Image;
 import ome.parameters.Parameters;
 import ome.services.query.ClassQuerySource;
 import ome.services.query.NullQuerySource;
@@ -86,6 +88,30 @@ public class QueryFactoryTest extends TestCase {
         assertNotNull("We should have a Pojos Query", q);
     }
 
+    @Test
+    public void testHierarchyQueryPerOptions() throws Exception {
+        String hql = PojosLoadHierarchyQueryDefinition.getHql(Project.class,
+                true, false, true);
+        assertTrue(hql.endsWith("where this.id in (:ids)"));
+        String noIds = PojosLoadHierarchyQueryDefinition.getHql(Project.class,
+                true, false, false);
+        assertFalse(noIds.contains(":ids"));
+        assertFalse(PojosLoadHierarchyQueryDefinition.getHql(Project.class,
+                false, false, true).contains("img"));
+        assertTrue(PojosLoadHierarchyQueryDefinition.getHql(Project.class,
+                true, true, true).contains("img.objectiveSettings"));
+        /* acquisition data is loaded only with the leaves */
+        assertEquals(PojosLoadHierarchyQueryDefinition.getHql(Dataset.class,
+                false, true, true), PojosLoadHierarchyQueryDefinition.getHql(
+                Dataset.class, false, false, true));
+    }
+
+    @Test(expectedExceptions = ApiUsageException.class)
+    public void testHierarchyQueryRejectsUnknownClass() throws Exception {
+        PojosLoadHierarchyQueryDefinition.getHql(Image.class, false, false,
+                false);
+    }
+
     @Test(expectedExceptions = ApiUsageException.class)
     public void test_StringSourceDoesntTakeNull() throws Exception {
         q = stringQS.lookup(null, null);
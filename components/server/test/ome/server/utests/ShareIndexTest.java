@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package ome.server.utests;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import ome.services.sharing.ShareIndex;
+import ome.services.sharing.data.ShareData;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test(groups = { "sharing" })
+public class ShareIndexTest {
+
+    private static ShareData data() {
+        ShareData data = new ShareData();
+        data.objectMap = new HashMap<String, List<Long>>();
+        data.objectMap.put("ome.model.core.Image", Arrays.asList(7L, 3L, 5L));
+        data.objectMap.put("ome.model.containers.Dataset",
+                Collections.singletonList(2L));
+        return data;
+    }
+
+    public void testContains() {
+        ShareIndex index = new ShareIndex(1, data(),
+                Collections.<Long>emptyList(), null,
+                Collections.<Long>emptyList());
+        Assert.assertTrue(index.contains("ome.model.core.Image", 3));
+        Assert.assertTrue(index.contains("ome.model.core.Image", 7));
+        Assert.assertFalse(index.contains("ome.model.core.Image", 2));
+        Assert.assertTrue(index.contains("ome.model.containers.Dataset", 2));
+        Assert.assertFalse(index.contains("ome.model.core.Pixels", 3));
+    }
+
+    public void testLinks() {
+        ShareIndex index = new ShareIndex(1, data(),
+                Arrays.asList(30L, 10L, null), Arrays.asList(4L),
+                Arrays.asList(8L, 9L));
+        Assert.assertTrue(index.containsPixels(10));
+        Assert.assertTrue(index.containsPixels(30));
+        Assert.assertFalse(index.containsPixels(20));
+        Assert.assertTrue(index.containsInstrument(4));
+        Assert.assertFalse(index.containsInstrument(5));
+        Assert.assertTrue(index.containsObjectiveSettings(9));
+        Assert.assertFalse(index.containsObjectiveSettings(3));
+    }
+
+    public void testEmptyShare() {
+        ShareIndex index = new ShareIndex(2, new ShareData(), null, null,
+                null);
+        Assert.assertFalse(index.contains("ome.model.core.Image", 1));
+        Assert.assertFalse(index.containsPixels(1));
+        Assert.assertEquals(index.version, 2);
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package ome.server.utests;
+
+import java.util.Arrays;
+import java.util.List;
+
+import ome.services.thumbnail.ThumbnailQueue;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test(groups = { "thumbnail" })
+public class ThumbnailQueueTest {
+
+    ThumbnailQueue q;
+
+    @BeforeMethod
+    public void setup() {
+        q = new ThumbnailQueue(3, 100, 250);
+    }
+
+    public void testNewestFirst() {
+        q.add(1);
+        q.add(3);
+        q.add(2);
+        Assert.assertEquals(q.poll(10, 0), Arrays.asList(3L, 2L, 1L));
+        Assert.assertEquals(q.size(), 0);
+    }
+
+    public void testDuplicatesIgnored() {
+        Assert.assertTrue(q.add(1));
+        Assert.assertFalse(q.add(1));
+        q.poll(1, 0);
+        // Still in flight
+        Assert.assertFalse(q.add(1));
+        q.done(1);
+        Assert.assertTrue(q.add(1));
+    }
+
+    public void testPollLimit() {
+        for (long i = 0; i < 5; i++) {
+            q.add(i);
+        }
+        Assert.assertEquals(q.poll(2, 0).size(), 2);
+        Assert.assertEquals(q.size(), 3);
+    }
+
+    public void testDeferredAfterNew() {
+        q.add(1);
+        q.poll(1, 0);
+        Assert.assertTrue(q.defer(1, 0));
+        q.add(2);
+        List<Long> ids = q.poll(10, 1000);
+        Assert.assertEquals(ids, Arrays.asList(2L, 1L));
+    }
+
+    public void testBackOff() {
+        q.add(1);
+        q.poll(1, 0);
+        q.defer(1, 0);
+        Assert.assertTrue(q.poll(1, 99).isEmpty());
+        Assert.assertEquals(q.size(), 1);
+        Assert.assertEquals(q.poll(1, 100), Arrays.asList(1L));
+        q.defer(1, 100);
+        // Doubled
+        Assert.assertTrue(q.poll(1, 299).isEmpty());
+        Assert.assertEquals(q.poll(1, 300), Arrays.asList(1L));
+    }
+
+    public void testBackingOffLeftWaiting() {
+        q.add(1);
+        q.add(2);
+        q.poll(2, 0);
+        q.defer(2, 0);
+        q.defer(1, 50);
+        q.add(3);
+        // The other deferred id is still backing off
+        Assert.assertEquals(q.poll(10, 120), Arrays.asList(3L, 2L));
+        Assert.assertEquals(q.size(), 1);
+        Assert.assertEquals(q.poll(10, 150), Arrays.asList(1L));
+    }
+
+    public void testMaxBackOff() {
+        q = new ThumbnailQueue(10, 100, 250);
+        q.add(1);
+        q.poll(1, 0);
+        q.defer(1, 0);
+        q.poll(1, 100);
+        q.defer(1, 100);
+        q.poll(1, 300);
+        // Third deferral would wait 400 but is limited to 250
+        q.defer(1, 300);
+        Assert.assertTrue(q.poll(1, 549).isEmpty());
+        Assert.assertEquals(q.poll(1, 550), Arrays.asList(1L));
+    }
+
+    public void testDroppedAfterMaxAttempts() {
+        q = new ThumbnailQueue(1, 100, 250);
+        q.add(1);
+        q.poll(1, 0);
+        Assert.assertFalse(q.defer(1, 0));
+        Assert.assertEquals(q.size(), 0);
+        Assert.assertTrue(q.add(1));
+    }
+
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package ome.services.delete;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ome.services.delete.files.FileDeletionPool;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the parallel deletion of files and the resumption of pending deletions.
+ * @since 5.4.10
+ */
+@Test
+public class FileDeletionPoolTest {
+
+    private File dataDir;
+
+    private FileDeletionPool pool;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        dataDir = Files.createTempDirectory("FileDeletionPoolTest").toFile();
+        pool = new FileDeletionPool(4, 2, dataDir.getPath());
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        pool.stop();
+        FileUtils.deleteDirectory(dataDir);
+    }
+
+    private List<File> createFiles(int count) throws Exception {
+        final File dir = new File(dataDir, "Pixels");
+        dir.mkdirs();
+        final List<File> files = new ArrayList<File>();
+        for (int i = 0; i < count; i++) {
+            final File file = new File(dir, Integer.toString(i));
+            Assert.assertTrue(file.createNewFile());
+            files.add(file);
+        }
+        return files;
+    }
+
+    /**
+     * Test that the files are all deleted and that no pending list remains.
+     * @throws Exception unexpected
+     */
+    public void testDelete() throws Exception {
+        final List<File> files = createFiles(100);
+        files.add(new File(dataDir, "missing"));
+        final FileDeletionPool.Result result = pool.delete(files);
+        Assert.assertEquals(result.getDeletedCount(), 100);
+        Assert.assertEquals(result.getMissingCount(), 1);
+        Assert.assertTrue(result.getFailedFiles().isEmpty());
+        for (final File file : files) {
+            Assert.assertFalse(file.exists());
+        }
+        Assert.assertEquals(new File(dataDir, "PendingDeletions").list().length, 0);
+    }
+
+    /**
+     * Test that a pending list left by a previous server is resumed on start.
+     * @throws Exception unexpected
+     */
+    public void testResume() throws Exception {
+        final List<File> files = createFiles(10);
+        final List<String> paths = new ArrayList<String>();
+        for (final File file : files) {
+            paths.add(file.getAbsolutePath());
+        }
+        final File pendingDir = new File(dataDir, "PendingDeletions");
+        pendingDir.mkdirs();
+        Files.write(new File(pendingDir, "left.pending").toPath(), paths, StandardCharsets.UTF_8);
+        pool.start();
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (pendingDir.list().length > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(Arrays.asList(pendingDir.list()), new ArrayList<String>());
+        for (final File file : files) {
+            Assert.assertFalse(file.exists());
+        }
+    }
+}
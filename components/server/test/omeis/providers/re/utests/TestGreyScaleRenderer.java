@@ -0,0 +1,255 @@
+/*
+ *   Copyright (C) 2018 University of Dundee & Open Microscopy Environment.
+ *   All rights reserved.
+ *
+ *   Use is subject to license terms supplied in LICENSE.txt
+ */
+package omeis.providers.re.utests;
+
+import java.nio.ByteBuffer;
+
+import ome.model.display.ChannelBinding;
+import ome.model.enums.PixelsType;
+import ome.model.enums.RenderingModel;
+import omeis.providers.re.RGBBuffer;
+import omeis.providers.re.Renderer;
+import omeis.providers.re.codomain.CodomainChain;
+import omeis.providers.re.data.PlaneDef;
+import omeis.providers.re.quantum.Quantization_32_bit;
+import omeis.providers.re.quantum.Quantization_float;
+import omeis.providers.re.quantum.QuantumFactory;
+import omeis.providers.re.quantum.QuantumStrategy;
+
+import org.perf4j.LoggingStopWatch;
+import org.perf4j.StopWatch;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Renders planes of increasing size and of the pixels types quantized by
+ * different strategies with the greyscale model, checking that
+ * the planes rendered in concurrent bands of rows match the pixel values
+ * quantized one by one and logging the rendering times.
+ */
+public class TestGreyScaleRenderer extends BaseRenderingTest
+{
+
+	/** The plane sizes to render, some splitting into uneven bands. */
+	private static final int[][] SIZES = new int[][] {
+		{ 64, 64 }, { 256, 256 }, { 512, 509 }, { 1024, 1024 },
+		{ 2048, 2047 } };
+
+	/**
+	 * The pixels types to render, <code>int32</code> and <code>float</code>
+	 * planes being quantized by strategies which map the values lazily as the
+	 * bands are rendered.
+	 */
+	private static final String[] PIXELS_TYPES = new String[] {
+		"uint16", "int32", "float" };
+
+	private String pixelsType = "uint16";
+
+	private int sizeX = 64;
+
+	private int sizeY = 64;
+
+	@Override
+	protected int getSizeX()
+	{
+		return sizeX;
+	}
+
+	@Override
+	protected int getSizeY()
+	{
+		return sizeY;
+	}
+
+	@Override
+	protected int getBytesPerPixel()
+	{
+		return "uint16".equals(pixelsType) ? 2 : 4;
+	}
+
+	@Override
+	protected PixelsType getPixelsType()
+	{
+		PixelsType type = new PixelsType();
+		type.setValue(pixelsType);
+		type.setBitSize(getBytesPerPixel() * 8);
+		return type;
+	}
+
+	@Override
+	protected byte[] getPlane()
+	{
+		if (!"float".equals(pixelsType))
+		{
+			return super.getPlane();
+		}
+		// Random bytes may not be finite floats.
+		ByteBuffer buffer =
+			ByteBuffer.allocate(getSizeX() * getSizeY() * getBytesPerPixel());
+		while (buffer.hasRemaining())
+		{
+			buffer.putFloat(random.nextInt(1 << 16) / 4f);
+		}
+		return buffer.array();
+	}
+
+	@Override
+	protected QuantumFactory createQuantumFactory()
+	{
+		TestQuantumFactory qf = new TestQuantumFactory();
+		if ("int32".equals(pixelsType))
+		{
+			qf.setStrategy(new Quantization_32_bit(settings.getQuantization(),
+				pixels));
+		}
+		else if ("float".equals(pixelsType))
+		{
+			qf.setStrategy(new Quantization_float(settings.getQuantization(),
+				pixels));
+		}
+		return qf;
+	}
+
+	/**
+	 * Sets up the renderer for a plane of the given type and size, rendered
+	 * in greyscale.
+	 */
+	private void setUp(String pixelsType, int sizeX, int sizeY)
+	{
+		this.pixelsType = pixelsType;
+		this.sizeX = sizeX;
+		this.sizeY = sizeY;
+		setUp();
+		for (RenderingModel model :
+			pixelsMetadataService.getAllEnumerations(RenderingModel.class))
+		{
+			if (Renderer.MODEL_GREYSCALE.equals(model.getValue()))
+			{
+				renderer.setModel(model);
+			}
+		}
+	}
+
+	/**
+	 * Returns the index of the channel rendered in greyscale.
+	 */
+	private int getRenderedChannel()
+	{
+		ChannelBinding[] channelBindings = renderer.getChannelBindings();
+		for (int i = 0; i < channelBindings.length; i++)
+		{
+			if (channelBindings[i].getActive())
+			{
+				return i;
+			}
+		}
+		throw new IllegalStateException("No active channel");
+	}
+
+	/**
+	 * Quantizes the pixel values of the plane one by one.
+	 */
+	private int[] getDiscreteValues() throws Exception
+	{
+		int channel = getRenderedChannel();
+		QuantumStrategy qs =
+			renderer.getQuantumManager().getStrategyFor(channel);
+		CodomainChain cc = renderer.getCodomainChain(channel);
+		int[] discreteValues = new int[sizeX * sizeY];
+		for (int i = 0; i < discreteValues.length; i++)
+		{
+			discreteValues[i] = qs.quantize(data.getPixelValue(i));
+			if (cc.hasMapContext())
+			{
+				discreteValues[i] = cc.transform(discreteValues[i]);
+			}
+		}
+		return discreteValues;
+	}
+
+	/**
+	 * Renders the plane set up as packed integers and checks the values.
+	 */
+	private void renderAsPackedInt(PlaneDef def) throws Exception
+	{
+		int alpha = renderer.getChannelBindings()[getRenderedChannel()]
+			.getAlpha();
+		int[] discreteValues = getDiscreteValues();
+		int[] rendered = null;
+		for (int i = 0; i < RUN_COUNT; i++)
+		{
+			StopWatch stopWatch = new LoggingStopWatch(
+				"testRenderAsPackedInt." + pixelsType + "." + sizeX + "x"
+				+ sizeY);
+			rendered = renderer.renderAsPackedInt(def, pixelBuffer);
+			stopWatch.stop();
+		}
+		Assert.assertEquals(rendered.length, discreteValues.length);
+		for (int i = 0; i < rendered.length; i++)
+		{
+			int v = discreteValues[i];
+			Assert.assertEquals(rendered[i],
+				alpha << 24 | v << 16 | v << 8 | v);
+		}
+	}
+
+	/**
+	 * Renders the plane set up in RGB bands and checks the values.
+	 */
+	private void render(PlaneDef def) throws Exception
+	{
+		float alpha = renderer.getChannelBindings()[getRenderedChannel()]
+			.getAlpha().floatValue() / 255;
+		int[] discreteValues = getDiscreteValues();
+		RGBBuffer rendered = null;
+		for (int i = 0; i < RUN_COUNT; i++)
+		{
+			StopWatch stopWatch = new LoggingStopWatch(
+				"testRender." + pixelsType + "." + sizeX + "x" + sizeY);
+			rendered = renderer.render(def);
+			stopWatch.stop();
+		}
+		byte[] r = rendered.getRedBand();
+		byte[] g = rendered.getGreenBand();
+		byte[] b = rendered.getBlueBand();
+		for (int i = 0; i < discreteValues.length; i++)
+		{
+			byte value = (byte) (discreteValues[i] * alpha);
+			Assert.assertEquals(r[i], value);
+			Assert.assertEquals(g[i], value);
+			Assert.assertEquals(b[i], value);
+		}
+	}
+
+	@Test(timeOut=180000)
+	public void testRenderAsPackedInt() throws Exception
+	{
+		PlaneDef def = new PlaneDef(PlaneDef.XY, 0);
+		for (String type : PIXELS_TYPES)
+		{
+			for (int[] size : SIZES)
+			{
+				setUp(type, size[0], size[1]);
+				renderAsPackedInt(def);
+			}
+		}
+	}
+
+	@Test(timeOut=180000)
+	public void testRender() throws Exception
+	{
+		PlaneDef def = new PlaneDef(PlaneDef.XY, 0);
+		for (String type : PIXELS_TYPES)
+		{
+			for (int[] size : SIZES)
+			{
+				setUp(type, size[0], size[1]);
+				render(def);
+			}
+		}
+	}
+}
@@ -1072,6 +1072,68 @@ public class RenderingEngineTest extends AbstractServerTest {
         re.close();
     }
 
+    /**
+     * Tests to render the tiles of a plane using the
+     * <code>renderTiles</code> method. Each tile must be the same as the one
+     * returned by the <code>renderCompressed</code> method.
+     *
+     * @throws Exception
+     *             Thrown if an error occurred.
+     */
+    @Test
+    public void testRenderTiles() throws Exception {
+        File f = File.createTempFile("testRenderTiles", "." + OME_FORMAT);
+        XMLMockObjects xml = new XMLMockObjects();
+        XMLWriter writer = new XMLWriter();
+        writer.writeFile(f, xml.createImage(), true);
+        List<Pixels> pixels = null;
+        try {
+            pixels = importFile(f, OME_FORMAT);
+        } catch (Throwable e) {
+            throw new Exception("cannot import image", e);
+        }
+        Pixels p = pixels.get(0);
+        long id = p.getId().getValue();
+        RenderingEnginePrx re = factory.createRenderingEngine();
+        re.lookupPixels(id);
+        if (!(re.lookupRenderingDef(id))) {
+            re.resetDefaultSettings(true);
+            re.lookupRenderingDef(id);
+        }
+        re.load();
+        int sizeX = p.getSizeX().getValue();
+        int sizeY = p.getSizeY().getValue();
+        int v = 2;
+        List<PlaneDef> defs = new ArrayList<PlaneDef>();
+        for (int i = 0; i < v; i++) {
+            for (int j = 0; j < v; j++) {
+                PlaneDef pDef = new PlaneDef();
+                pDef.t = re.getDefaultT();
+                pDef.z = re.getDefaultZ();
+                pDef.slice = omero.romio.XY.value;
+                RegionDef r = new RegionDef();
+                r.x = j * sizeX / v;
+                r.y = i * sizeY / v;
+                r.width = sizeX / v;
+                r.height = sizeY / v;
+                pDef.region = r;
+                defs.add(pDef);
+            }
+        }
+        byte[][] tiles = re.renderTiles(defs);
+        Assert.assertNotNull(tiles);
+        Assert.assertEquals(tiles.length, defs.size());
+        for (int i = 0; i < tiles.length; i++) {
+            BufferedImage image = createImage(tiles[i]);
+            Assert.assertNotNull(image);
+            Assert.assertEquals(image.getWidth(), sizeX / v);
+            Assert.assertEquals(image.getHeight(), sizeY / v);
+            Assert.assertEquals(tiles[i], re.renderCompressed(defs.get(i)));
+        }
+        f.delete();
+        re.close();
+    }
+
     /**
      * Tests to render a plane using the <code>renderAsPackedInt</code> method.
      *
@@ -23,14 +23,17 @@ package integration.gateway;
 import integration.ModelMockFactory;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 import omero.gateway.SecurityContext;
 import omero.gateway.exception.DSAccessException;
 import omero.gateway.exception.DSOutOfServiceException;
+import omero.gateway.facility.PagedIterator;
 import omero.model.IObject;
 import omero.model.Plate;
 import omero.model.Well;
@@ -39,6 +42,7 @@ import org.testng.Assert;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
+import omero.gateway.model.DataObject;
 import omero.gateway.model.DatasetData;
 import omero.gateway.model.ExperimenterData;
 import omero.gateway.model.FolderData;
@@ -259,6 +263,54 @@ public class BrowseFacilityTest extends GatewayTest {
         Assert.assertEquals(result.iterator().next().getId(), img2.getId());
     }
 
+    @Test
+    public void testIterateImages() throws Exception {
+        SecurityContext ctx = new SecurityContext(group.getId());
+
+        // iterate over the images of the group, one per page
+        PagedIterator<ImageData> it = browseFacility.iterateUserImages(ctx, 1);
+        List<Long> ids = new ArrayList<Long>();
+        while (it.hasNext())
+            ids.add(it.next().getId());
+        Assert.assertEquals(ids.size(), 3);
+        Assert.assertTrue(ids.containsAll(Arrays.asList(img0.getId(),
+                img1.getId(), img2.getId())));
+        List<Long> sorted = new ArrayList<Long>(ids);
+        Collections.sort(sorted);
+        Assert.assertEquals(ids, sorted);
+        Assert.assertEquals(it.getPageCount(), 4);
+
+        // iterate over specific images, duplicates are ignored
+        it = browseFacility.iterateImages(ctx,
+                Arrays.asList(img2.getId(), img1.getId(), img2.getId()), 2);
+        Assert.assertEquals(it.next().getId(), Math.min(img1.getId(),
+                img2.getId()));
+        Assert.assertEquals(it.next().getId(), Math.max(img1.getId(),
+                img2.getId()));
+        Assert.assertFalse(it.hasNext());
+
+        // iterate over the images of datasets
+        it = browseFacility.iterateImagesForDatasets(ctx,
+                Arrays.asList(ds.getId(), ds2.getId()), 0);
+        ids.clear();
+        while (it.hasNext())
+            ids.add(it.next().getId());
+        Assert.assertEquals(ids.size(), 2);
+        Assert.assertTrue(ids.containsAll(Arrays.asList(img1.getId(),
+                img2.getId())));
+
+        // iterate over the projects
+        PagedIterator<DataObject> projects = browseFacility.iterateHierarchy(
+                ctx, ProjectData.class, user.getId(), 1);
+        Assert.assertTrue(projects.hasNext());
+        ProjectData p = (ProjectData) projects.next();
+        Assert.assertEquals(p.getId(), proj.getId());
+        Assert.assertEquals(p.getDatasets().iterator().next().getId(),
+                ds.getId());
+        Assert.assertFalse(projects.hasNext());
+        projects.close();
+    }
+
     @Test
     public void testFindIObject() throws DSOutOfServiceException,
             DSAccessException {
@@ -23,6 +23,7 @@ import java.util.Collection;
 import java.util.Random;
 import java.util.UUID;
 
+import omero.gateway.facility.TableCursor;
 import omero.gateway.facility.TablesFacility;
 import omero.gateway.model.DatasetData;
 import omero.gateway.model.FileAnnotationData;
@@ -283,6 +284,56 @@ public class TablesFacilityTest extends GatewayTest {
     }
     
     @Test(dependsOnMethods = { "testThreshold" })
+    /**
+     * Read the whole table chunk by chunk and compare to the original data
+     * @throws Exception
+     */
+    public void testCursor() throws Exception {
+        Object[][] origData = original.getData();
+        int chunkSize = 300;
+        int read = 0;
+        try (TableCursor cursor = tablesFacility.openTable(rootCtx,
+                original.getOriginalFileId(), chunkSize)) {
+            Assert.assertEquals(cursor.getNumberOfRows(), nRows);
+            TableDataColumn[] header = cursor.getColumns();
+            Assert.assertEquals(header.length, nCols);
+            while (cursor.hasNext()) {
+                TableCursor.Chunk chunk = cursor.next();
+                Assert.assertEquals(chunk.getOffset(), read);
+                Assert.assertEquals(chunk.getRowCount(),
+                        Math.min(chunkSize, nRows - read));
+                for (int c = 0; c < header.length; c++) {
+                    Class<?> type = header[c].getType();
+                    Assert.assertEquals(type, original.getColumns()[c].getType());
+                    for (int r = 0; r < chunk.getRowCount(); r++) {
+                        Object expected = origData[c][read + r];
+                        if (type.equals(String.class)) {
+                            Assert.assertEquals(chunk.getStrings(c)[r],
+                                    expected);
+                        } else if (type.equals(Long.class)) {
+                            Assert.assertEquals(chunk.getLongs(c)[r],
+                                    ((Long) expected).longValue());
+                        } else if (type.equals(Double.class)) {
+                            Assert.assertEquals(chunk.getDoubles(c)[r],
+                                    ((Double) expected).doubleValue());
+                        } else if (type.equals(Double[].class)) {
+                            Double[] d = (Double[]) expected;
+                            double[] values = chunk.getDoubleArrays(c)[r];
+                            Assert.assertEquals(values.length, d.length);
+                            for (int i = 0; i < d.length; i++)
+                                Assert.assertEquals(values[i],
+                                        d[i].doubleValue());
+                        }
+                    }
+                }
+                read += chunk.getRowCount();
+            }
+            Assert.assertNull(cursor.next());
+        }
+        Assert.assertEquals(read, nRows);
+    }
+
+    @Test(dependsOnMethods = { "testCursor" })
     public void testUpdateTable() throws Exception {
         // modify values for row 10 to 20, columns 5, 6 and 7
         TableData td = tablesFacility.getTable(rootCtx,